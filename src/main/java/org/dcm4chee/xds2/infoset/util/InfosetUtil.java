@@ -40,7 +40,6 @@ package org.dcm4chee.xds2.infoset.util;
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType.Document;
 
-import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -49,7 +48,6 @@ import java.util.Map;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 
 import oasis.names.tc.ebxml_regrep.xsd.lcm._3.SubmitObjectsRequest;
 import oasis.names.tc.ebxml_regrep.xsd.query._3.AdhocQueryRequest;
@@ -63,25 +61,19 @@ import oasis.names.tc.ebxml_regrep.xsd.rim._3.RegistryObjectType;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.RegistryPackageType;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.SlotType1;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.ValueListType;
+import org.openhim.mediator.JAXBRuntime;
 
 public class InfosetUtil {
 
-    private static JAXBContext jaxbCtx;
     private static ObjectFactory objFacRim = new ObjectFactory();
     private static oasis.names.tc.ebxml_regrep.xsd.query._3.ObjectFactory objFacQuery = new oasis.names.tc.ebxml_regrep.xsd.query._3.ObjectFactory();
 
     public static JAXBContext jaxbCtx() throws JAXBException {
-        if (InfosetUtil.jaxbCtx == null)
-            InfosetUtil.jaxbCtx = JAXBContext.newInstance(AdhocQueryRequest.class);
-        return InfosetUtil.jaxbCtx;
+        return JAXBRuntime.getContext(AdhocQueryRequest.class);
     }
     
     public static String marshallObject(Object o, boolean indent) throws JAXBException {
-        StringWriter sw = new StringWriter();
-        Marshaller m = jaxbCtx().createMarshaller();
-        m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, indent);
-        m.marshal(o, sw);
-        return sw.toString();
+        return JAXBRuntime.marshal(jaxbCtx(), o, false, indent);
     }
 
     public static RegistryPackageType getRegistryPackage(SubmitObjectsRequest sor, String classificationUUID) {
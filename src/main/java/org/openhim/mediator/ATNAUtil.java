@@ -15,6 +15,7 @@ import ihe.iti.atna.TypeValuePairType;
 import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.Collections;
 import java.util.Date;
@@ -29,8 +30,20 @@ import javax.xml.datatype.XMLGregorianCalendar;
 public class ATNAUtil {
 	
 	public static final String WSA_REPLYTO_ANON = "http://www.w3.org/2005/08/addressing/anonymous";
+	static final Charset UTF8 = Charset.forName("UTF-8");
 	
-	private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+	//SimpleDateFormat isn't thread-safe and audits are generated in parallel
+	private static final ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+		}
+	};
+	
+	//the process and host don't change, so only look these up once
+	private static final String RUNTIME_NAME = ManagementFactory.getRuntimeMXBean().getName();
+	private static volatile String hostIP;
+	private static final ThreadLocal<DatatypeFactory> datatypeFactory = new ThreadLocal<DatatypeFactory>();
 
 	
 	public static String build_TCP_Msg_header() {
@@ -45,7 +58,7 @@ public class ATNAUtil {
 	}
 	
 	private static String now() {
-		String now = dateFormat.format(new Date());
+		String now = dateFormat.get().format(new Date());
 		now = now.substring(0, 26) + ":" + now.substring(26, 28);
 		return now;
 	}
@@ -112,7 +125,7 @@ public class ATNAUtil {
 			)
 		);
 		
-		if (participantObjectQuery!=null) res.setParticipantObjectQuery(participantObjectQuery.getBytes());
+		if (participantObjectQuery!=null) res.setParticipantObjectQuery(participantObjectQuery.getBytes(UTF8));
 		
 		if (participantObjectDetails!=null) {
 			for (ParticipantObjectDetail participantObjectDetail : participantObjectDetails) {
@@ -143,30 +156,38 @@ public class ATNAUtil {
 	}
 	
 	public static XMLGregorianCalendar newXMLGregorianCalendar() throws JAXBException {
+		return newXMLGregorianCalendar(new Date());
+	}
+	
+	public static XMLGregorianCalendar newXMLGregorianCalendar(Date date) throws JAXBException {
 		GregorianCalendar gc = new GregorianCalendar();
+		gc.setTime(date);
 		try {
-			return DatatypeFactory.newInstance().newXMLGregorianCalendar(gc);
+			//creating a DatatypeFactory is expensive and instances aren't guaranteed to be thread-safe
+			if (datatypeFactory.get()==null) {
+				datatypeFactory.set(DatatypeFactory.newInstance());
+			}
+			return datatypeFactory.get().newXMLGregorianCalendar(gc);
 		} catch (DatatypeConfigurationException ex) {
 			throw new JAXBException(ex);
 		}
 	}
 	
 	public static String getHostIP() {
-		try {
-			return InetAddress.getLocalHost().getHostAddress();
-		} catch (UnknownHostException e) { /* shouldn't happen since we're referencing localhost */ }
-		
-		return null;
+		if (hostIP==null) {
+			try {
+				hostIP = InetAddress.getLocalHost().getHostAddress();
+			} catch (UnknownHostException e) { /* shouldn't happen since we're referencing localhost */ }
+		}
+		return hostIP;
 	}
 	
 	public static String getProcessID() {
-		String runtime = ManagementFactory.getRuntimeMXBean().getName();
-		return runtime.split("@")[0];
+		return RUNTIME_NAME.split("@")[0];
 	}
 	
 	public static String getSystemName() {
-		String runtime = ManagementFactory.getRuntimeMXBean().getName();
-		return runtime.split("@")[1];
+		return RUNTIME_NAME.split("@")[1];
 	}
 	
 	public static String getProcessName() {
@@ -174,7 +195,7 @@ public class ATNAUtil {
 	}
 	
 	public static String marshallATNAObject(Object o) throws JAXBException {
-		return Util.marshallJAXBObject("ihe.iti.atna", o, false);
+		return JAXBRuntime.marshal(JAXBRuntime.getContext("ihe.iti.atna"), o, true, false);
 	}
 	
 
@@ -0,0 +1,39 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import javax.xml.bind.JAXBException;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Builds an RFC 3881 audit message. The parts must be added in document order: the event identification,
+ * the active participants, the audit source and then the participant objects.
+ *
+ * @see StreamingAuditMessageBuilder
+ * @see JAXBAuditMessageBuilder
+ */
+public interface AuditMessageBuilder {
+
+    void eventIdentification(String eventActionCode, Date eventDateTime, int eventOutcomeIndicator,
+                             String eventIDCodeSystemName, String eventIDCode, String eventIDDisplayName,
+                             String eventTypeCodeSystemName, String eventTypeCode, String eventTypeDisplayName);
+
+    void activeParticipant(String userID, String alternativeUserID, boolean userIsRequestor, String networkAccessPointID,
+                           short networkAccessPointTypeCode, String roleIDCodeSystemName, String roleIDCode, String roleIDDisplayName);
+
+    void auditSource(String auditSourceID);
+
+    void participantObject(String participantObjectID, short participantObjectTypeCode, short participantObjectTypeCodeRole,
+                           String idTypeCodeSystemName, String idTypeCode, String idTypeDisplayName,
+                           String participantObjectQuery, List<ATNAUtil.ParticipantObjectDetail> participantObjectDetails);
+
+    /**
+     * @return the serialized audit message
+     */
+    String build() throws JAXBException;
+}
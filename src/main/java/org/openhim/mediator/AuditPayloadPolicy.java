@@ -0,0 +1,152 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import javax.xml.bind.DatatypeConverter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Determines how much of a transaction's message is included in its audit (ParticipantObjectQuery).
+ * <br/><br/>
+ * Set by <code>atna.payload</code>:
+ * <ul>
+ *     <li>full - the whole message (default)</li>
+ *     <li>metadata - only the submission metadata. For Provide and Register requests the document content
+ *     is left out; other messages consist of metadata only and are included in full.</li>
+ *     <li>truncated - at most <code>atna.payload.maxBytes</code> bytes of the message</li>
+ *     <li>digest - the SHA-256 digest of the message</li>
+ * </ul>
+ * An unknown mode is logged and full messages are audited.
+ */
+public class AuditPayloadPolicy {
+
+    public enum Mode {
+        FULL, METADATA, TRUNCATED, DIGEST
+    }
+
+    private static final int DEFAULT_MAX_BYTES = 4096;
+    private static final int DIGEST_CHUNK_SIZE = 8192;
+
+    private final Mode mode;
+    private final int maxBytes;
+
+
+    public AuditPayloadPolicy(Mode mode, int maxBytes) {
+        this.mode = mode;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Read the policy from <code>atna.payload</code>. Callers should do this once, rather than for each audit.
+     */
+    public static AuditPayloadPolicy fromConfig(MediatorConfig config, LoggingAdapter log) {
+        String value = config.getProperty("atna.payload");
+        Mode mode = Mode.FULL;
+        if (value!=null) {
+            try {
+                mode = Mode.valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                log.warning("Unknown atna.payload mode '" + value + "'. Auditing full messages.");
+            }
+        }
+        return new AuditPayloadPolicy(mode, Util.getIntegerProperty(config, "atna.payload.maxBytes", DEFAULT_MAX_BYTES));
+    }
+
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the part of the message to include in an audit. In metadata mode, the message is returned as is
+     * and callers with messages that contain more than metadata should supply the metadata instead.
+     */
+    public String apply(CharSequence message) {
+        if (message==null) {
+            return null;
+        }
+
+        switch (mode) {
+            case TRUNCATED:
+                return truncate(message, maxBytes);
+            case DIGEST:
+                return "sha256:" + sha256(message);
+            default:
+                return message.toString();
+        }
+    }
+
+    /**
+     * Truncate a message to at most <code>maxBytes</code> UTF-8 bytes, without splitting a character.
+     */
+    protected static String truncate(CharSequence message, int maxBytes) {
+        int bytes = 0;
+        for (int i=0; i<message.length(); i++) {
+            char c = message.charAt(i);
+            int length;
+            if (c < 0x80) {
+                length = 1;
+            } else if (c < 0x800) {
+                length = 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length = 4;
+            } else {
+                length = 3;
+            }
+
+            if (bytes + length > maxBytes) {
+                return message.subSequence(0, i).toString();
+            }
+            bytes += length;
+            if (length==4) {
+                //skip the low surrogate
+                i++;
+            }
+        }
+        return message.toString();
+    }
+
+    /**
+     * Digest the UTF-8 encoding of a message in chunks, so that a large message isn't copied into a single byte array.
+     */
+    protected static String sha256(CharSequence message) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            CharsetEncoder encoder = ATNAUtil.UTF8.newEncoder();
+            CharBuffer in = CharBuffer.wrap(message);
+            ByteBuffer out = ByteBuffer.allocate(DIGEST_CHUNK_SIZE);
+
+            CoderResult result;
+            do {
+                result = encoder.encode(in, out, true);
+                out.flip();
+                digest.update(out);
+                out.clear();
+            } while (result.isOverflow());
+            while (encoder.flush(out).isOverflow()) {
+                out.flip();
+                digest.update(out);
+                out.clear();
+            }
+            out.flip();
+            digest.update(out);
+
+            return DatatypeConverter.printHexBinary(digest.digest()).toLowerCase();
+        } catch (NoSuchAlgorithmException ex) {
+            //SHA-256 is required on all Java platforms
+            throw new IllegalStateException(ex);
+        }
+    }
+}
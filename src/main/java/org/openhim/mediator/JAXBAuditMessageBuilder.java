@@ -0,0 +1,68 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import ihe.iti.atna.AuditMessage;
+import ihe.iti.atna.EventIdentificationType;
+
+import javax.xml.bind.JAXBException;
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Builds an audit message as a JAXB {@link AuditMessage} and marshals it.
+ */
+public class JAXBAuditMessageBuilder implements AuditMessageBuilder {
+
+    private final AuditMessage message = new AuditMessage();
+    private Date eventDateTime;
+
+
+    @Override
+    public void eventIdentification(String eventActionCode, Date eventDateTime, int eventOutcomeIndicator,
+                                    String eventIDCodeSystemName, String eventIDCode, String eventIDDisplayName,
+                                    String eventTypeCodeSystemName, String eventTypeCode, String eventTypeDisplayName) {
+        EventIdentificationType eid = new EventIdentificationType();
+        eid.setEventID(ATNAUtil.buildCodedValueType(eventIDCodeSystemName, eventIDCode, eventIDDisplayName));
+        eid.setEventActionCode(eventActionCode);
+        eid.getEventTypeCode().add(ATNAUtil.buildCodedValueType(eventTypeCodeSystemName, eventTypeCode, eventTypeDisplayName));
+        eid.setEventOutcomeIndicator(BigInteger.valueOf(eventOutcomeIndicator));
+        message.setEventIdentification(eid);
+        this.eventDateTime = eventDateTime;
+    }
+
+    @Override
+    public void activeParticipant(String userID, String alternativeUserID, boolean userIsRequestor, String networkAccessPointID,
+                                  short networkAccessPointTypeCode, String roleIDCodeSystemName, String roleIDCode, String roleIDDisplayName) {
+        message.getActiveParticipant().add(ATNAUtil.buildActiveParticipant(
+                userID, alternativeUserID, userIsRequestor, networkAccessPointID, networkAccessPointTypeCode,
+                roleIDCodeSystemName, roleIDCode, roleIDDisplayName
+        ));
+    }
+
+    @Override
+    public void auditSource(String auditSourceID) {
+        message.getAuditSourceIdentification().add(ATNAUtil.buildAuditSource(auditSourceID));
+    }
+
+    @Override
+    public void participantObject(String participantObjectID, short participantObjectTypeCode, short participantObjectTypeCodeRole,
+                                  String idTypeCodeSystemName, String idTypeCode, String idTypeDisplayName,
+                                  String participantObjectQuery, List<ATNAUtil.ParticipantObjectDetail> participantObjectDetails) {
+        message.getParticipantObjectIdentification().add(ATNAUtil.buildParticipantObjectIdentificationType(
+                participantObjectID, participantObjectTypeCode, participantObjectTypeCodeRole,
+                idTypeCodeSystemName, idTypeCode, idTypeDisplayName, participantObjectQuery, participantObjectDetails
+        ));
+    }
+
+    @Override
+    public String build() throws JAXBException {
+        message.getEventIdentification().setEventDateTime(ATNAUtil.newXMLGregorianCalendar(eventDateTime));
+        return ATNAUtil.marshallATNAObject(message);
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared JAXB runtime for the mediator.
+ * <br/><br/>
+ * Contexts are expensive to create but thread-safe, so each one is created once and shared.
+ * Marshallers and unmarshallers are cheap compared to a context, but aren't thread-safe,
+ * so each thread keeps its own for every context and reuses them.
+ * <br/><br/>
+ * Usage counters are kept and can be read with {@link #getStatistics()}.
+ */
+public class JAXBRuntime {
+
+    private static final ConcurrentMap<String, JAXBContext> contexts = new ConcurrentHashMap<>();
+
+    //a marshaller is removed from the map while in use, so that a nested call on the same thread gets its own
+    private static final ThreadLocal<Map<JAXBContext, Marshaller>> marshallers = new ThreadLocal<Map<JAXBContext, Marshaller>>() {
+        @Override
+        protected Map<JAXBContext, Marshaller> initialValue() {
+            return new IdentityHashMap<>();
+        }
+    };
+    private static final ThreadLocal<Map<JAXBContext, Unmarshaller>> unmarshallers = new ThreadLocal<Map<JAXBContext, Unmarshaller>>() {
+        @Override
+        protected Map<JAXBContext, Unmarshaller> initialValue() {
+            return new IdentityHashMap<>();
+        }
+    };
+
+    private static final AtomicLong contextsCreated = new AtomicLong();
+    private static final AtomicLong contextCreationNanos = new AtomicLong();
+    private static final AtomicLong marshallersCreated = new AtomicLong();
+    private static final AtomicLong unmarshallersCreated = new AtomicLong();
+    private static final AtomicLong marshals = new AtomicLong();
+    private static final AtomicLong marshalNanos = new AtomicLong();
+    private static final AtomicLong unmarshals = new AtomicLong();
+    private static final AtomicLong unmarshalNanos = new AtomicLong();
+
+
+    private JAXBRuntime() {
+    }
+
+
+    /**
+     * @return the shared context for a colon separated list of package names
+     */
+    public static JAXBContext getContext(String contextPath) throws JAXBException {
+        JAXBContext context = contexts.get(contextPath);
+        if (context==null) {
+            long start = System.nanoTime();
+            context = JAXBContext.newInstance(contextPath);
+            recordContextCreation(start);
+
+            JAXBContext existing = contexts.putIfAbsent(contextPath, context);
+            if (existing!=null) {
+                context = existing;
+            }
+        }
+        return context;
+    }
+
+    /**
+     * @return the shared context for a class and the classes reachable from it
+     */
+    public static JAXBContext getContext(Class<?> type) throws JAXBException {
+        String key = "class:" + type.getName();
+        JAXBContext context = contexts.get(key);
+        if (context==null) {
+            long start = System.nanoTime();
+            context = JAXBContext.newInstance(type);
+            recordContextCreation(start);
+
+            JAXBContext existing = contexts.putIfAbsent(key, context);
+            if (existing!=null) {
+                context = existing;
+            }
+        }
+        return context;
+    }
+
+    private static void recordContextCreation(long start) {
+        contextsCreated.incrementAndGet();
+        contextCreationNanos.addAndGet(System.nanoTime() - start);
+    }
+
+
+    private static Marshaller takeMarshaller(JAXBContext context) throws JAXBException {
+        Marshaller marshaller = marshallers.get().remove(context);
+        if (marshaller==null) {
+            marshaller = context.createMarshaller();
+            marshallersCreated.incrementAndGet();
+        }
+        return marshaller;
+    }
+
+    private static Unmarshaller takeUnmarshaller(JAXBContext context) throws JAXBException {
+        Unmarshaller unmarshaller = unmarshallers.get().remove(context);
+        if (unmarshaller==null) {
+            unmarshaller = context.createUnmarshaller();
+            unmarshallersCreated.incrementAndGet();
+        }
+        return unmarshaller;
+    }
+
+    /**
+     * Marshal a JAXB object
+     *
+     * @param fragment if true the XML declaration is left out
+     * @param formatted if true the output is indented
+     */
+    public static void marshal(JAXBContext context, Object o, Writer out, boolean fragment, boolean formatted) throws JAXBException {
+        long start = System.nanoTime();
+        Marshaller marshaller = takeMarshaller(context);
+        //properties are set on each use since marshallers are shared by callers
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, fragment);
+        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, formatted);
+        marshaller.marshal(o, out);
+        marshallers.get().put(context, marshaller);
+
+        marshals.incrementAndGet();
+        marshalNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Marshal a JAXB object and return the XML as a string
+     */
+    public static String marshal(JAXBContext context, Object o, boolean fragment, boolean formatted) throws JAXBException {
+        StringWriter sw = new StringWriter();
+        marshal(context, o, sw, fragment, formatted);
+        return sw.toString();
+    }
+
+    /**
+     * Unmarshal XML. The result is either the bound object or, for types without a root element, a JAXBElement.
+     */
+    public static Object unmarshal(JAXBContext context, Reader in) throws JAXBException {
+        long start = System.nanoTime();
+        Unmarshaller unmarshaller = takeUnmarshaller(context);
+        Object result = unmarshaller.unmarshal(in);
+        //not returned on failure, an unmarshaller could be left in an inconsistent state
+        unmarshallers.get().put(context, unmarshaller);
+
+        unmarshals.incrementAndGet();
+        unmarshalNanos.addAndGet(System.nanoTime() - start);
+        return result;
+    }
+
+
+    /**
+     * Unmarshal the element at which a stream reader is positioned. Only that element's subtree is read.
+     */
+    public static <T> JAXBElement<T> unmarshal(JAXBContext context, XMLStreamReader in, Class<T> type) throws JAXBException {
+        long start = System.nanoTime();
+        Unmarshaller unmarshaller = takeUnmarshaller(context);
+        JAXBElement<T> result = unmarshaller.unmarshal(in, type);
+        unmarshallers.get().put(context, unmarshaller);
+
+        unmarshals.incrementAndGet();
+        unmarshalNanos.addAndGet(System.nanoTime() - start);
+        return result;
+    }
+
+
+    public static Statistics getStatistics() {
+        return new Statistics(
+                contexts.size(), contextsCreated.get(), contextCreationNanos.get(),
+                marshallersCreated.get(), unmarshallersCreated.get(),
+                marshals.get(), marshalNanos.get(), unmarshals.get(), unmarshalNanos.get()
+        );
+    }
+
+    /**
+     * A snapshot of the runtime's usage counters. Times are in nanoseconds.
+     */
+    public static class Statistics {
+        private final int contexts;
+        private final long contextsCreated;
+        private final long contextCreationTime;
+        private final long marshallersCreated;
+        private final long unmarshallersCreated;
+        private final long marshals;
+        private final long marshalTime;
+        private final long unmarshals;
+        private final long unmarshalTime;
+
+        public Statistics(int contexts, long contextsCreated, long contextCreationTime, long marshallersCreated,
+                          long unmarshallersCreated, long marshals, long marshalTime, long unmarshals, long unmarshalTime) {
+            this.contexts = contexts;
+            this.contextsCreated = contextsCreated;
+            this.contextCreationTime = contextCreationTime;
+            this.marshallersCreated = marshallersCreated;
+            this.unmarshallersCreated = unmarshallersCreated;
+            this.marshals = marshals;
+            this.marshalTime = marshalTime;
+            this.unmarshals = unmarshals;
+            this.unmarshalTime = unmarshalTime;
+        }
+
+        public int getContexts() {
+            return contexts;
+        }
+
+        /**
+         * @return the number of contexts created. This can be more than the number of contexts
+         * if threads raced to create the same one.
+         */
+        public long getContextsCreated() {
+            return contextsCreated;
+        }
+
+        public long getContextCreationTime() {
+            return contextCreationTime;
+        }
+
+        public long getMarshallersCreated() {
+            return marshallersCreated;
+        }
+
+        public long getUnmarshallersCreated() {
+            return unmarshallersCreated;
+        }
+
+        public long getMarshals() {
+            return marshals;
+        }
+
+        public long getMarshalTime() {
+            return marshalTime;
+        }
+
+        public long getUnmarshals() {
+            return unmarshals;
+        }
+
+        public long getUnmarshalTime() {
+            return unmarshalTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("JAXB runtime: %d contexts (%d created in %dms), %d marshallers, %d unmarshallers, " +
+                            "%d marshals (%dms), %d unmarshals (%dms)",
+                    contexts, contextsCreated, contextCreationTime / 1000000, marshallersCreated, unmarshallersCreated,
+                    marshals, marshalTime / 1000000, unmarshals, unmarshalTime / 1000000);
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import org.apache.commons.io.input.ReaderInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable message body that is passed between actors in place of a String.
+ * <br/><br/>
+ * A payload is a view over one or more ranges of existing strings - normally the request body received by the engine -
+ * so slicing a payload (e.g. taking the SOAP body out of an envelope) or joining payloads (e.g. putting an enriched
+ * SOAP body back into its envelope) doesn't copy any content. The content is only copied if the payload is
+ * converted to a String with {@link #toString()}, which should be left to the point where a String is required,
+ * such as when the engine sends a request. Payloads can be read without copying them as a whole through
+ * {@link #openReader()}, {@link #openStream(Charset)} and {@link #writeTo(Writer)}.
+ */
+public abstract class Payload implements CharSequence {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    public static final Payload EMPTY = new Segment("", 0, 0);
+
+
+    /**
+     * @return a payload over a string, or the payload itself if it's already one
+     */
+    public static Payload of(CharSequence content) {
+        if (content instanceof Payload) {
+            return (Payload) content;
+        }
+        String s = content.toString();
+        return s.isEmpty() ? EMPTY : new Segment(s, 0, s.length());
+    }
+
+    /**
+     * @return a payload consisting of several parts one after the other. The parts aren't copied.
+     */
+    public static Payload concat(CharSequence... parts) {
+        return concat(Arrays.asList(parts));
+    }
+
+    public static Payload concat(List<? extends CharSequence> parts) {
+        List<Segment> segments = new ArrayList<>();
+        for (CharSequence part : parts) {
+            if (part!=null) {
+                of(part).addSegmentsTo(segments);
+            }
+        }
+
+        if (segments.isEmpty()) {
+            return EMPTY;
+        } else if (segments.size()==1) {
+            return segments.get(0);
+        }
+        return new Composite(segments.toArray(new Segment[segments.size()]));
+    }
+
+
+    /**
+     * @return a view of part of the payload
+     */
+    public abstract Payload slice(int start, int end);
+
+    public Payload slice(int start) {
+        return slice(start, length());
+    }
+
+    @Override
+    public Payload subSequence(int start, int end) {
+        return slice(start, end);
+    }
+
+    /**
+     * @return the index of the first occurrence of a string at or after <code>from</code>, or -1 if there is none
+     */
+    public abstract int indexOf(String str, int from);
+
+    public int indexOf(String str) {
+        return indexOf(str, 0);
+    }
+
+    /**
+     * @return the index of the last occurrence of a string at or before <code>from</code>, or -1 if there is none
+     */
+    public abstract int lastIndexOf(String str, int from);
+
+    public int lastIndexOf(String str) {
+        return lastIndexOf(str, length());
+    }
+
+    public boolean isEmpty() {
+        return length()==0;
+    }
+
+    /**
+     * @return true if the payload has the same content as a character sequence
+     */
+    public boolean contentEquals(CharSequence other) {
+        if (other==null || other.length()!=length()) {
+            return false;
+        }
+        for (int i=0; i<length(); i++) {
+            if (charAt(i)!=other.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a reader over the payload's content
+     */
+    public Reader openReader() {
+        return new PayloadReader(this);
+    }
+
+    /**
+     * @return a stream of the payload's content, encoded as it's read
+     */
+    public InputStream openStream(Charset charset) {
+        return new ReaderInputStream(openReader(), charset, BUFFER_SIZE);
+    }
+
+    public void writeTo(Writer out) throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        addSegmentsTo(segments);
+        for (Segment segment : segments) {
+            out.write(segment.source, segment.start, segment.end - segment.start);
+        }
+    }
+
+    /**
+     * Write the payload's content, encoding it as it's written. The stream is flushed but not closed.
+     */
+    public void writeTo(OutputStream out, Charset charset) throws IOException {
+        Writer writer = new OutputStreamWriter(out, charset);
+        writeTo(writer);
+        writer.flush();
+    }
+
+    /**
+     * @return the payload's content. This is a copy of the content unless the payload covers the whole of a string,
+     * in which case that string is returned.
+     */
+    @Override
+    public abstract String toString();
+
+    abstract void addSegmentsTo(List<Segment> segments);
+
+
+    /**
+     * A range of a string
+     */
+    private static final class Segment extends Payload {
+        private final String source;
+        private final int start;
+        private final int end;
+
+        Segment(String source, int start, int end) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index<0 || index>=length()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", length: " + length());
+            }
+            return source.charAt(start + index);
+        }
+
+        @Override
+        public Payload slice(int start, int end) {
+            checkRange(start, end, length());
+            if (start==0 && end==length()) {
+                return this;
+            }
+            return start==end ? EMPTY : new Segment(source, this.start + start, this.start + end);
+        }
+
+        @Override
+        public int indexOf(String str, int from) {
+            int i = source.indexOf(str, start + Math.max(from, 0));
+            return i>=0 && i + str.length()<=end ? i - start : -1;
+        }
+
+        @Override
+        public int lastIndexOf(String str, int from) {
+            int i = source.lastIndexOf(str, start + Math.min(from, length() - str.length()));
+            return i>=start ? i - start : -1;
+        }
+
+        @Override
+        public String toString() {
+            return start==0 && end==source.length() ? source : source.substring(start, end);
+        }
+
+        @Override
+        void addSegmentsTo(List<Segment> segments) {
+            if (end>start) {
+                segments.add(this);
+            }
+        }
+    }
+
+    /**
+     * Several segments one after the other
+     */
+    private static final class Composite extends Payload {
+        private final Segment[] segments;
+        //the offset of each segment in the payload
+        private final int[] offsets;
+        private final int length;
+
+        Composite(Segment[] segments) {
+            this.segments = segments;
+            this.offsets = new int[segments.length];
+            int offset = 0;
+            for (int i=0; i<segments.length; i++) {
+                offsets[i] = offset;
+                offset += segments[i].length();
+            }
+            this.length = offset;
+        }
+
+        private int segmentAt(int index) {
+            int i = Arrays.binarySearch(offsets, index);
+            return i>=0 ? i : -i - 2;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index<0 || index>=length) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", length: " + length);
+            }
+            int i = segmentAt(index);
+            return segments[i].charAt(index - offsets[i]);
+        }
+
+        @Override
+        public Payload slice(int start, int end) {
+            checkRange(start, end, length);
+            if (start==0 && end==length) {
+                return this;
+            }
+            if (start==end) {
+                return EMPTY;
+            }
+
+            int first = segmentAt(start);
+            int last = segmentAt(end - 1);
+            List<Segment> parts = new ArrayList<>(last - first + 1);
+            for (int i=first; i<=last; i++) {
+                int from = Math.max(start - offsets[i], 0);
+                int to = Math.min(end - offsets[i], segments[i].length());
+                parts.add((Segment) segments[i].slice(from, to));
+            }
+            return concat(parts);
+        }
+
+        @Override
+        public int indexOf(String str, int from) {
+            from = Math.max(from, 0);
+            for (int i=segmentAt(Math.min(from, length - 1)); i>=0 && i<segments.length; i++) {
+                int segmentStart = offsets[i];
+                int segmentFrom = Math.max(from - segmentStart, 0);
+
+                //matches within the segment come before those that cross into the next segment
+                int inner = segments[i].indexOf(str, segmentFrom);
+                if (inner>=0) {
+                    return segmentStart + inner;
+                }
+
+                int crossFrom = Math.max(segmentStart + segmentFrom, segmentStart + segments[i].length() - str.length() + 1);
+                for (int j=crossFrom; j<segmentStart + segments[i].length(); j++) {
+                    if (regionMatches(j, str)) {
+                        return j;
+                    }
+                }
+            }
+            return str.isEmpty() && from<=length ? from : -1;
+        }
+
+        @Override
+        public int lastIndexOf(String str, int from) {
+            for (int i=Math.min(from, length - str.length()); i>=0; i--) {
+                if (regionMatches(i, str)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean regionMatches(int offset, String str) {
+            if (offset + str.length()>length) {
+                return false;
+            }
+            for (int i=0; i<str.length(); i++) {
+                if (charAt(offset + i)!=str.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(length);
+            for (Segment segment : segments) {
+                sb.append(segment.source, segment.start, segment.end);
+            }
+            return sb.toString();
+        }
+
+        @Override
+        void addSegmentsTo(List<Segment> segments) {
+            segments.addAll(Arrays.asList(this.segments));
+        }
+    }
+
+    private static void checkRange(int start, int end, int length) {
+        if (start<0 || end>length || start>end) {
+            throw new IndexOutOfBoundsException("Range: [" + start + ", " + end + "), length: " + length);
+        }
+    }
+
+    private static class PayloadReader extends Reader {
+        private final List<Segment> segments = new ArrayList<>();
+        private int segment;
+        private int position;
+
+        PayloadReader(Payload payload) {
+            payload.addSegmentsTo(segments);
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (len==0) {
+                return 0;
+            }
+            while (segment<segments.size()) {
+                Segment current = segments.get(segment);
+                int remaining = current.length() - position;
+                if (remaining>0) {
+                    int n = Math.min(len, remaining);
+                    current.source.getChars(current.start + position, current.start + position + n, cbuf, off);
+                    position += n;
+                    return n;
+                }
+                segment++;
+                position = 0;
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
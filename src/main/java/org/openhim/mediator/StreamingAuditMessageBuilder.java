@@ -0,0 +1,189 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import javax.xml.bind.DatatypeConverter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes an audit message directly as XML, without building a JAXB object graph.
+ * The output is the same as that of {@link JAXBAuditMessageBuilder}, except that tabs and line breaks in attribute
+ * values are written as character references, so that they aren't normalized to spaces when the audit is parsed,
+ * and characters that aren't allowed in XML are replaced with U+FFFD.
+ * <br/><br/>
+ * The XML is written into a buffer that is reused by each thread, so a builder must be used
+ * on a single thread and only one builder per thread may be in use at a time.
+ */
+public class StreamingAuditMessageBuilder implements AuditMessageBuilder {
+
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+    //don't hold on to buffers that grew very large
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+    private static final char REPLACEMENT_CHARACTER = '\uFFFD';
+
+    private static final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(INITIAL_BUFFER_SIZE);
+        }
+    };
+
+    private static final ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+        }
+    };
+
+    private final StringBuilder out;
+
+
+    public StreamingAuditMessageBuilder() {
+        StringBuilder buffer = buffers.get();
+        if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            buffer = new StringBuilder(INITIAL_BUFFER_SIZE);
+            buffers.set(buffer);
+        }
+        buffer.setLength(0);
+        out = buffer;
+        out.append("<AuditMessage>");
+    }
+
+
+    private void attribute(String name, String value) {
+        if (value==null) {
+            return;
+        }
+        out.append(' ').append(name).append("=\"");
+        escapeAttribute(value);
+        out.append('"');
+    }
+
+    private void escapeAttribute(String value) {
+        for (int i=0; i<value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                case '\t':
+                    out.append("&#9;");
+                    break;
+                case '\n':
+                    out.append("&#10;");
+                    break;
+                case '\r':
+                    out.append("&#13;");
+                    break;
+                default:
+                    if (Character.isHighSurrogate(c) && i+1<value.length() && Character.isLowSurrogate(value.charAt(i+1))) {
+                        out.append(c).append(value.charAt(++i));
+                    } else if (isXMLChar(c)) {
+                        out.append(c);
+                    } else {
+                        out.append(REPLACEMENT_CHARACTER);
+                    }
+            }
+        }
+    }
+
+    /**
+     * @return true if the character (outside of a surrogate pair) is allowed in an XML 1.0 document
+     */
+    private static boolean isXMLChar(char c) {
+        return (c >= 0x20 && c < Character.MIN_SURROGATE) || (c > Character.MAX_SURROGATE && c <= 0xFFFD);
+    }
+
+    private void codedValue(String element, String codeSystemName, String code, String displayName) {
+        out.append('<').append(element);
+        attribute("code", code);
+        attribute("displayName", displayName);
+        attribute("codeSystemName", codeSystemName);
+        out.append("/>");
+    }
+
+    @Override
+    public void eventIdentification(String eventActionCode, Date eventDateTime, int eventOutcomeIndicator,
+                                    String eventIDCodeSystemName, String eventIDCode, String eventIDDisplayName,
+                                    String eventTypeCodeSystemName, String eventTypeCode, String eventTypeDisplayName) {
+        out.append("<EventIdentification");
+        attribute("EventActionCode", eventActionCode);
+        attribute("EventDateTime", dateFormat.get().format(eventDateTime));
+        attribute("EventOutcomeIndicator", Integer.toString(eventOutcomeIndicator));
+        out.append('>');
+        codedValue("EventID", eventIDCodeSystemName, eventIDCode, eventIDDisplayName);
+        codedValue("EventTypeCode", eventTypeCodeSystemName, eventTypeCode, eventTypeDisplayName);
+        out.append("</EventIdentification>");
+    }
+
+    @Override
+    public void activeParticipant(String userID, String alternativeUserID, boolean userIsRequestor, String networkAccessPointID,
+                                  short networkAccessPointTypeCode, String roleIDCodeSystemName, String roleIDCode, String roleIDDisplayName) {
+        out.append("<ActiveParticipant");
+        attribute("UserID", userID);
+        attribute("AlternativeUserID", alternativeUserID);
+        attribute("UserIsRequestor", Boolean.toString(userIsRequestor));
+        attribute("NetworkAccessPointID", networkAccessPointID);
+        attribute("NetworkAccessPointTypeCode", Short.toString(networkAccessPointTypeCode));
+        out.append('>');
+        codedValue("RoleIDCode", roleIDCodeSystemName, roleIDCode, roleIDDisplayName);
+        out.append("</ActiveParticipant>");
+    }
+
+    @Override
+    public void auditSource(String auditSourceID) {
+        out.append("<AuditSourceIdentification");
+        attribute("AuditSourceID", auditSourceID);
+        out.append("/>");
+    }
+
+    @Override
+    public void participantObject(String participantObjectID, short participantObjectTypeCode, short participantObjectTypeCodeRole,
+                                  String idTypeCodeSystemName, String idTypeCode, String idTypeDisplayName,
+                                  String participantObjectQuery, List<ATNAUtil.ParticipantObjectDetail> participantObjectDetails) {
+        out.append("<ParticipantObjectIdentification");
+        attribute("ParticipantObjectID", participantObjectID);
+        attribute("ParticipantObjectTypeCode", Short.toString(participantObjectTypeCode));
+        attribute("ParticipantObjectTypeCodeRole", Short.toString(participantObjectTypeCodeRole));
+        out.append('>');
+        codedValue("ParticipantObjectIDTypeCode", idTypeCodeSystemName, idTypeCode, idTypeDisplayName);
+
+        if (participantObjectQuery!=null) {
+            out.append("<ParticipantObjectQuery>");
+            out.append(DatatypeConverter.printBase64Binary(participantObjectQuery.getBytes(ATNAUtil.UTF8)));
+            out.append("</ParticipantObjectQuery>");
+        }
+
+        if (participantObjectDetails!=null) {
+            for (ATNAUtil.ParticipantObjectDetail detail : participantObjectDetails) {
+                out.append("<ParticipantObjectDetail");
+                attribute("type", detail.getType());
+                attribute("value", detail.getValue()!=null ? DatatypeConverter.printBase64Binary(detail.getValue()) : null);
+                out.append("/>");
+            }
+        }
+
+        out.append("</ParticipantObjectIdentification>");
+    }
+
+    @Override
+    public String build() {
+        out.append("</AuditMessage>");
+        return out.toString();
+    }
+}
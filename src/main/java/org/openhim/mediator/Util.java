@@ -12,19 +12,14 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.StringWriter;
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 
 public class Util {
-	
-	//creating a new JAXB context is expensive, so keep static instances
-	private static Map<String, JAXBContext> JAXBContextInstances = new HashMap<String, JAXBContext>();
-	
+
 	/**
 	 * Split an id string into the id type and the id number
 	 * @param id_str the id string to split
@@ -51,18 +46,14 @@ public class Util {
 	 * Marshall a JAXB object and return the XML as a string
 	 */
 	public static String marshallJAXBObject(String namespace, Object o, boolean addXMLDeclaration) throws JAXBException {
-		JAXBContext jc = getJAXBContext(namespace);
-		Marshaller marshaller = jc.createMarshaller();
-		marshaller.setProperty(Marshaller.JAXB_FRAGMENT, !addXMLDeclaration);
-		StringWriter sw = new StringWriter();
-		marshaller.marshal(o, sw);
-		return sw.toString();
+		return JAXBRuntime.marshal(getJAXBContext(namespace), o, !addXMLDeclaration, false);
 	}
-	
+
+	/**
+	 * @see JAXBRuntime#getContext(String)
+	 */
 	public static JAXBContext getJAXBContext(String namespace) throws JAXBException {
-		if (!JAXBContextInstances.containsKey(namespace))
-			JAXBContextInstances.put(namespace, JAXBContext.newInstance(namespace));
-		return JAXBContextInstances.get(namespace);
+		return JAXBRuntime.getContext(namespace);
 	}
 
     public static String getResourceAsString(String resource) throws IOException {
@@ -90,4 +81,42 @@ public class Util {
         }
         return config.getProperty(key).equalsIgnoreCase("true");
     }
+
+    public static int getIntegerProperty(MediatorConfig config, String key, int valueIfNotExist) {
+        if (config==null || config.getProperty(key)==null || config.getProperty(key).trim().isEmpty()) {
+            return valueIfNotExist;
+        }
+        return Integer.parseInt(config.getProperty(key).trim());
+    }
+
+    public static long getLongProperty(MediatorConfig config, String key, long valueIfNotExist) {
+        if (config==null || config.getProperty(key)==null || config.getProperty(key).trim().isEmpty()) {
+            return valueIfNotExist;
+        }
+        return Long.parseLong(config.getProperty(key).trim());
+    }
+
+    /**
+     * Release a memory mapping straight away rather than when the buffer is garbage collected, which otherwise keeps
+     * the mapped file's disk space in use after it's deleted. The buffer must not be used afterwards.
+     * <br/><br/>
+     * Falls back to leaving it to the garbage collector if the JVM doesn't allow unmapping.
+     */
+    public static void unmap(MappedByteBuffer buffer) {
+        if (buffer==null) {
+            return;
+        }
+        try {
+            Method getCleaner = buffer.getClass().getMethod("cleaner");
+            getCleaner.setAccessible(true);
+            Object cleaner = getCleaner.invoke(buffer);
+            if (cleaner!=null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (Exception ex) {
+            //not supported on this JVM
+        }
+    }
 }
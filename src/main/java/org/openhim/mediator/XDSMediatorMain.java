@@ -13,13 +13,23 @@ import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.openhim.mediator.denormalization.ATNAAuditingActor;
+import org.openhim.mediator.denormalization.ATNAAuditingPoolActor;
+import org.openhim.mediator.denormalization.ATNASpoolDrainActor;
+import org.openhim.mediator.denormalization.ATNATCPConnectionActor;
+import org.openhim.mediator.denormalization.AuditSpool;
+import org.openhim.mediator.denormalization.CSDDirectorySyncActor;
+import org.openhim.mediator.denormalization.CSDLookupBatcherActor;
 import org.openhim.mediator.denormalization.EnrichRegistryStoredQueryActor;
+import org.openhim.mediator.denormalization.MLLPConnectionPoolActor;
+import org.openhim.mediator.denormalization.PatientIdentifierTableLoaderActor;
+import org.openhim.mediator.denormalization.PatientIdentityFeedActor;
+import org.openhim.mediator.denormalization.PersistentIdentifierStore;
 import org.openhim.mediator.engine.*;
 import org.openhim.mediator.engine.messages.SetupHTTPSCertificate;
 import org.openhim.mediator.normalization.ParseRegistryStoredQueryActor;
 import org.openhim.mediator.orchestration.RegistryActor;
 import org.openhim.mediator.orchestration.RepositoryActor;
+import org.openhim.mediator.orchestration.StreamingHTTPConnectorActor;
 
 import java.io.File;
 import java.io.IOException;
@@ -35,11 +45,35 @@ public class XDSMediatorMain {
         return routingTable;
     }
 
-    private static StartupActorsConfig buildStartupActorsConfig() {
+    private static StartupActorsConfig buildStartupActorsConfig(MediatorConfig config) {
         StartupActorsConfig startupActors = new StartupActorsConfig();
         startupActors.addActor("parse-registry-stored-query", ParseRegistryStoredQueryActor.class);
         startupActors.addActor("enrich-registry-stored-query", EnrichRegistryStoredQueryActor.class);
-        startupActors.addActor("atna-auditing", ATNAAuditingActor.class);
+        startupActors.addActor("atna-auditing", ATNAAuditingPoolActor.class);
+        if (Util.isPropertyTrue(config, "atna.useTcp") && Util.isPropertyTrue(config, "atna.tcp.persistent")) {
+            startupActors.addActor("atna-tcp-connection", ATNATCPConnectionActor.class);
+        }
+        if (Util.isPropertyTrue(config, "atna.useTcp") && config.getProperty("atna.spool.path")!=null) {
+            startupActors.addActor("atna-spool-drainer", ATNASpoolDrainActor.class);
+        }
+        if (Util.isPropertyTrue(config, "ilr.directory.preload")) {
+            startupActors.addActor("csd-directory-sync", CSDDirectorySyncActor.class);
+        }
+        if (Util.isPropertyTrue(config, "ilr.batch.enabled")) {
+            startupActors.addActor("csd-lookup-batcher", CSDLookupBatcherActor.class);
+        }
+        if (Util.isPropertyTrue(config, "pix.pool.enabled")) {
+            startupActors.addActor("pix-connection-pool", MLLPConnectionPoolActor.class);
+        }
+        if (Util.isPropertyTrue(config, "xds.repository.streaming")) {
+            startupActors.addActor("repository-connector", StreamingHTTPConnectorActor.class);
+        }
+        if (config.getProperty("pix.feed.port")!=null) {
+            startupActors.addActor("patient-identity-feed", PatientIdentityFeedActor.class);
+        }
+        if (config.getProperty("pix.table.path")!=null) {
+            startupActors.addActor("patient-identifier-table-loader", PatientIdentifierTableLoaderActor.class);
+        }
         return startupActors;
     }
 
@@ -71,7 +105,7 @@ public class XDSMediatorMain {
         }
 
         config.setRoutingTable(buildRoutingTable());
-        config.setStartupActors(buildStartupActorsConfig());
+        config.setStartupActors(buildStartupActorsConfig(config));
 
         InputStream regInfo = XDSMediatorMain.class.getClassLoader().getResourceAsStream("mediator-registration-info.json");
         RegistrationConfig regConfig = new RegistrationConfig(regInfo);
@@ -127,8 +161,11 @@ public class XDSMediatorMain {
             @Override
             public void run() {
                 log.info("Shutting down mediator");
+                log.info(JAXBRuntime.getStatistics().toString());
                 server.stop();
                 system.shutdown();
+                PersistentIdentifierStore.closeInstances();
+                AuditSpool.closeInstance();
             }
         });
 
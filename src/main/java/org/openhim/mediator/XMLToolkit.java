@@ -0,0 +1,181 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shared XML parsing infrastructure.
+ * <br/><br/>
+ * Looking up factories through the service loader and compiling XPath expressions is expensive,
+ * so this is done once: DOM parsers and compiled XPath expressions are kept per thread (they aren't thread-safe)
+ * and the StAX factories, which are thread-safe once configured, are shared.
+ * <br/><br/>
+ * Parsers are configured for secure processing and don't resolve external entities or DTDs.
+ * DOM parsers aren't namespace aware, so that XPath expressions can match on local element names.
+ */
+public class XMLToolkit {
+
+    //guards against unbounded growth if expressions are ever built from input
+    private static final int MAX_CACHED_EXPRESSIONS = 256;
+
+    private static final ThreadLocal<DocumentBuilder> documentBuilders = new ThreadLocal<>();
+
+    private static final ThreadLocal<XPathFactory> xpathFactories = new ThreadLocal<XPathFactory>() {
+        @Override
+        protected XPathFactory initialValue() {
+            return XPathFactory.newInstance();
+        }
+    };
+
+    private static final ThreadLocal<Map<String, XPathExpression>> expressions = new ThreadLocal<Map<String, XPathExpression>>() {
+        @Override
+        protected Map<String, XPathExpression> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    private static final XMLInputFactory inputFactory = newInputFactory();
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+    private static final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+
+    private XMLToolkit() {
+    }
+
+
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    private static DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+        factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+        factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        factory.setXIncludeAware(false);
+        factory.setExpandEntityReferences(false);
+        return factory.newDocumentBuilder();
+    }
+
+    /**
+     * @return this thread's DOM parser. It must not be used after the thread's next call to this method.
+     */
+    public static DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilder builder = documentBuilders.get();
+        if (builder==null) {
+            builder = newDocumentBuilder();
+            documentBuilders.set(builder);
+        } else {
+            builder.reset();
+        }
+        return builder;
+    }
+
+    /**
+     * Parse an XML string into a DOM document
+     */
+    public static Document parse(String xml) throws ParserConfigurationException, IOException, SAXException {
+        return getDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+    }
+
+    /**
+     * @return this thread's compiled instance of an XPath expression
+     */
+    public static XPathExpression getExpression(String expression) throws XPathExpressionException {
+        Map<String, XPathExpression> cache = expressions.get();
+        XPathExpression compiled = cache.get(expression);
+        if (compiled==null) {
+            compiled = xpathFactories.get().newXPath().compile(expression);
+            if (cache.size() >= MAX_CACHED_EXPRESSIONS) {
+                cache.clear();
+            }
+            cache.put(expression, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Evaluate an XPath expression against a document and return the result as a string
+     */
+    public static String evaluate(String expression, Document doc) throws XPathExpressionException {
+        return getExpression(expression).evaluate(doc);
+    }
+
+    /**
+     * Find a start tag in XML text. This is a plain text search, so tags in comments or CDATA sections also match.
+     *
+     * @param qName the tag's qualified name, i.e. including its prefix if it has one
+     * @return the offset of the first start tag at or after <code>from</code>, or -1 if there is none
+     */
+    public static int indexOfStartTag(CharSequence xml, String qName, int from) {
+        Payload text = Payload.of(xml);
+        String tag = "<" + qName;
+        int i = text.indexOf(tag, from);
+        while (i>=0 && !isNameEnd(text, i + tag.length())) {
+            i = text.indexOf(tag, i+1);
+        }
+        return i;
+    }
+
+    /**
+     * Find the last end tag in XML text. This is a plain text search, so tags in comments or CDATA sections also match.
+     *
+     * @param qName the tag's qualified name, i.e. including its prefix if it has one
+     * @return the offset of the last end tag or -1 if there is none
+     */
+    public static int lastIndexOfEndTag(CharSequence xml, String qName) {
+        Payload text = Payload.of(xml);
+        String tag = "</" + qName;
+        int i = text.lastIndexOf(tag);
+        while (i>=0 && !isNameEnd(text, i + tag.length())) {
+            i = text.lastIndexOf(tag, i-1);
+        }
+        return i;
+    }
+
+    private static boolean isNameEnd(CharSequence xml, int i) {
+        if (i>=xml.length()) {
+            return false;
+        }
+        char c = xml.charAt(i);
+        return c=='>' || c=='/' || Character.isWhitespace(c);
+    }
+
+    public static XMLInputFactory getInputFactory() {
+        return inputFactory;
+    }
+
+    public static XMLOutputFactory getOutputFactory() {
+        return outputFactory;
+    }
+
+    public static XMLEventFactory getEventFactory() {
+        return eventFactory;
+    }
+}
@@ -114,6 +114,31 @@ public class Identifier {
         return organisationName + "^^^^^" + assigningAuthority.toHL7() + "^^^^" + identifier;
     }
 
+    /**
+     * Compare identifiers on their value and assigning authority only, ignoring the type code and other
+     * differences in CX shape. Authorities match on their id if both have one, otherwise on their namespace.
+     */
+    public boolean matches(Identifier other) {
+        if (other==null || identifier==null || !identifier.equals(other.identifier)) {
+            return false;
+        }
+        if (assigningAuthority==null || other.assigningAuthority==null) {
+            return assigningAuthority==other.assigningAuthority;
+        }
+
+        String authId = trimToNull(assigningAuthority.getAssigningAuthorityId());
+        String otherAuthId = trimToNull(other.assigningAuthority.getAssigningAuthorityId());
+        if (authId!=null && otherAuthId!=null) {
+            return authId.equals(otherAuthId);
+        }
+        String namespace = trimToNull(assigningAuthority.getAssigningAuthority());
+        return namespace!=null && namespace.equals(trimToNull(other.assigningAuthority.getAssigningAuthority()));
+    }
+
+    private static String trimToNull(String s) {
+        return s!=null && !s.trim().isEmpty() ? s.trim() : null;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
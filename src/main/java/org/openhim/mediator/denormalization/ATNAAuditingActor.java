@@ -12,10 +12,12 @@ import akka.actor.UntypedActor;
 import akka.dispatch.OnComplete;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
-import ihe.iti.atna.AuditMessage;
-import ihe.iti.atna.EventIdentificationType;
 import org.apache.commons.io.IOUtils;
 import org.openhim.mediator.ATNAUtil;
+import org.openhim.mediator.AuditMessageBuilder;
+import org.openhim.mediator.JAXBAuditMessageBuilder;
+import org.openhim.mediator.StreamingAuditMessageBuilder;
+import org.openhim.mediator.Util;
 import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.MediatorSocketRequest;
@@ -25,11 +27,13 @@ import scala.concurrent.Future;
 
 import javax.net.ssl.SSLSocketFactory;
 import javax.xml.bind.JAXBException;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.math.BigInteger;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Callable;
@@ -39,6 +43,14 @@ import static akka.dispatch.Futures.future;
 /**
  * An actor for sending out audit messages to an audit repository.
  * <br/><br/>
+ * If <code>atna.spool.path</code> is set, TCP audits are written to the {@link AuditSpool} and delivered
+ * by the {@link ATNASpoolDrainActor}. Otherwise, if <code>atna.tcp.persistent</code> is set, TCP audits are sent
+ * using the {@link ATNATCPConnectionActor} rather than opening a new connection for each audit.
+ * <br/><br/>
+ * Audit messages are written directly as XML by a {@link StreamingAuditMessageBuilder}. Set <code>atna.serializer</code>
+ * to <code>jaxb</code> to build them using JAXB instead, or to <code>verify</code> to build them both ways
+ * and log any differences.
+ * <br/><br/>
  * Messages supported:
  * <ul>
  *     <li>ATNAAudit - fire-and-forget</li>
@@ -50,160 +62,101 @@ public class ATNAAuditingActor extends UntypedActor {
 
     private MediatorConfig config;
 
+    //participant details that don't change between audits
+    private final String pixSourceUserID;
+    private final String pixDestinationUserID;
+    private final String processID;
+    private final String hostIP;
+
 
     public ATNAAuditingActor(MediatorConfig config) {
         this.config = config;
+        pixSourceUserID = config.getProperty("pix.sendingFacility") + "|" + config.getProperty("pix.sendingApplication");
+        pixDestinationUserID = config.getProperty("pix.receivingFacility") + "|" + config.getProperty("pix.receivingApplication");
+        processID = ATNAUtil.getProcessID();
+        hostIP = ATNAUtil.getHostIP();
     }
 
-    protected String generateForPIXRequest(ATNAAudit audit) throws JAXBException {
-        AuditMessage res = new AuditMessage();
-
-        EventIdentificationType eid = new EventIdentificationType();
-        eid.setEventID( ATNAUtil.buildCodedValueType("DCM", "110112", "Query") );
-        eid.setEventActionCode("E");
-        eid.setEventDateTime( ATNAUtil.newXMLGregorianCalendar() );
-        eid.getEventTypeCode().add( ATNAUtil.buildCodedValueType("IHE Transactions", "ITI-9", "PIX Query") );
-        eid.setEventOutcomeIndicator(audit.getOutcome() ? BigInteger.ZERO : new BigInteger("4"));
-        res.setEventIdentification(eid);
-
-        res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(
-                config.getProperty("pix.sendingFacility") + "|" + config.getProperty("pix.sendingApplication"),
-                ATNAUtil.getProcessID(), true, ATNAUtil.getHostIP(), (short)2, "DCM", "110153", "Source"));
-        res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(
-                config.getProperty("pix.receivingFacility") + "|" + config.getProperty("pix.receivingApplication"),
-                "2100", false, config.getProperty("pix.manager.host"), (short)1, "DCM", "110152", "Destination"));
-
-        res.getAuditSourceIdentification().add(ATNAUtil.buildAuditSource("openhim"));
+    private static int outcomeIndicator(ATNAAudit audit) {
+        return audit.getOutcome() ? 0 : 4;
+    }
 
+    private static void writePatient(AuditMessageBuilder b, ATNAAudit audit) {
         // Max of 1 patient is allowed
         Identifier id = audit.getParticipantIdentifiers().get(0);
         if (id!=null) {
-            res.getParticipantObjectIdentification().add(
-                    ATNAUtil.buildParticipantObjectIdentificationType(id.toCX(), (short) 1, (short) 1, "RFC-3881", "2", "PatientNumber", null)
-            );
+            b.participantObject(id.toCX(), (short) 1, (short) 1, "RFC-3881", "2", "PatientNumber", null, null);
         }
-
-        res.getParticipantObjectIdentification().add(
-                ATNAUtil.buildParticipantObjectIdentificationType(
-                        UUID.randomUUID().toString(), (short)2, (short)24, "IHE Transactions", "ITI-9", "PIX Query",
-                        audit.getMessage(), new ATNAUtil.ParticipantObjectDetail("MSH-10", audit.getUniqueId().getBytes())
-                )
-        );
-
-        return ATNAUtil.marshallATNAObject(res);
     }
 
-    protected String generateForPIXIdentityFeed(ATNAAudit audit) throws JAXBException {
-        AuditMessage res = new AuditMessage();
+    private static List<ATNAUtil.ParticipantObjectDetail> buildQueryDetails(ATNAAudit audit) {
+        List<ATNAUtil.ParticipantObjectDetail> pod = new ArrayList<>();
+        pod.add(new ATNAUtil.ParticipantObjectDetail("QueryEncoding", "UTF-8".getBytes()));
+        if (audit.getHomeCommunityId()!=null) pod.add(new ATNAUtil.ParticipantObjectDetail("urn:ihe:iti:xca:2010:homeCommunityId", audit.getHomeCommunityId().getBytes()));
+        return pod;
+    }
 
-        EventIdentificationType eid = new EventIdentificationType();
-        eid.setEventID( ATNAUtil.buildCodedValueType("DCM", "110110", "Patient Record") );
-        eid.setEventActionCode("C");
-        eid.setEventDateTime( ATNAUtil.newXMLGregorianCalendar() );
-        eid.getEventTypeCode().add( ATNAUtil.buildCodedValueType("IHE Transactions", "ITI-8", "Patient Identity Feed") );
-        eid.setEventOutcomeIndicator(audit.getOutcome() ? BigInteger.ZERO : new BigInteger("4"));
-        res.setEventIdentification(eid);
+    protected void writeForPIXRequest(AuditMessageBuilder b, ATNAAudit audit, Date now, String queryObjectID) {
+        b.eventIdentification("E", now, outcomeIndicator(audit), "DCM", "110112", "Query", "IHE Transactions", "ITI-9", "PIX Query");
 
-        res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(
-                config.getProperty("pix.sendingFacility") + "|" + config.getProperty("pix.sendingApplication"),
-                ATNAUtil.getProcessID(), true, ATNAUtil.getHostIP(), (short)2, "DCM", "110153", "Source"));
-        res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(
-                config.getProperty("pix.receivingFacility") + "|" + config.getProperty("pix.receivingApplication"),
-                "2100", false, config.getProperty("pix.manager.host"), (short)1, "DCM", "110152", "Destination"));
+        b.activeParticipant(pixSourceUserID, processID, true, hostIP, (short)2, "DCM", "110153", "Source");
+        b.activeParticipant(pixDestinationUserID, "2100", false, config.getProperty("pix.manager.host"), (short)1, "DCM", "110152", "Destination");
 
-        res.getAuditSourceIdentification().add(ATNAUtil.buildAuditSource("openhim"));
+        b.auditSource("openhim");
 
-        // Max of 1 patient is allowed
-        Identifier id = audit.getParticipantIdentifiers().get(0);
-        if (id!=null) {
-            res.getParticipantObjectIdentification().add(
-                    ATNAUtil.buildParticipantObjectIdentificationType(id.toCX(), (short) 1, (short) 1, "RFC-3881", "2", "PatientNumber", null)
-            );
-        }
+        writePatient(b, audit);
 
-        res.getParticipantObjectIdentification().add(
-                ATNAUtil.buildParticipantObjectIdentificationType(
-                        UUID.randomUUID().toString(), (short)2, (short)24, "IHE Transactions", "ITI-9", "PIX Query",
-                        audit.getMessage(), new ATNAUtil.ParticipantObjectDetail("MSH-10", audit.getUniqueId().getBytes())
-                )
+        b.participantObject(
+                queryObjectID, (short)2, (short)24, "IHE Transactions", "ITI-9", "PIX Query",
+                audit.getMessage(), Collections.singletonList(new ATNAUtil.ParticipantObjectDetail("MSH-10", audit.getUniqueId().getBytes()))
         );
-
-        return ATNAUtil.marshallATNAObject(res);
     }
 
-    protected String generateForRegistryQueryReceived(ATNAAudit audit) throws JAXBException {
-        AuditMessage res = new AuditMessage();
+    protected void writeForPIXIdentityFeed(AuditMessageBuilder b, ATNAAudit audit, Date now, String queryObjectID) {
+        b.eventIdentification("C", now, outcomeIndicator(audit), "DCM", "110110", "Patient Record", "IHE Transactions", "ITI-8", "Patient Identity Feed");
 
-        EventIdentificationType eid = new EventIdentificationType();
-        eid.setEventID( ATNAUtil.buildCodedValueType("DCM", "110112", "Query") );
-        eid.setEventActionCode("E");
-        eid.setEventDateTime( ATNAUtil.newXMLGregorianCalendar() );
-        eid.getEventTypeCode().add( ATNAUtil.buildCodedValueType("IHE Transactions", "ITI-18", "Registry Stored Query") );
-        eid.setEventOutcomeIndicator(audit.getOutcome() ? BigInteger.ZERO : new BigInteger("4"));
-        res.setEventIdentification(eid);
+        b.activeParticipant(pixSourceUserID, processID, true, hostIP, (short)2, "DCM", "110153", "Source");
+        b.activeParticipant(pixDestinationUserID, "2100", false, config.getProperty("pix.manager.host"), (short)1, "DCM", "110152", "Destination");
 
-        res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(ATNAUtil.WSA_REPLYTO_ANON, "client", true, audit.getSourceIP(), (short)2, "DCM", "110153", "Source"));
-        res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(ATNAUtil.WSA_REPLYTO_ANON, ATNAUtil.getProcessID(), false, ATNAUtil.getHostIP(), (short)2, "DCM", "110152", "Destination"));
+        b.auditSource("openhim");
 
-        res.getAuditSourceIdentification().add(ATNAUtil.buildAuditSource("openhim"));
+        writePatient(b, audit);
 
-        // Max of 1 patient is allowed
-        Identifier id = audit.getParticipantIdentifiers().get(0);
-        if (id!=null) {
-            res.getParticipantObjectIdentification().add(
-                    ATNAUtil.buildParticipantObjectIdentificationType(id.toCX(), (short) 1, (short) 1, "RFC-3881", "2", "PatientNumber", null)
-            );
-        }
+        b.participantObject(
+                queryObjectID, (short)2, (short)24, "IHE Transactions", "ITI-9", "PIX Query",
+                audit.getMessage(), Collections.singletonList(new ATNAUtil.ParticipantObjectDetail("MSH-10", audit.getUniqueId().getBytes()))
+        );
+    }
 
-        List<ATNAUtil.ParticipantObjectDetail> pod = new ArrayList<>();
-        pod.add(new ATNAUtil.ParticipantObjectDetail("QueryEncoding", "UTF-8".getBytes()));
-        if (audit.getHomeCommunityId()!=null) pod.add(new ATNAUtil.ParticipantObjectDetail("urn:ihe:iti:xca:2010:homeCommunityId", audit.getHomeCommunityId().getBytes()));
+    protected void writeForRegistryQueryReceived(AuditMessageBuilder b, ATNAAudit audit, Date now) {
+        b.eventIdentification("E", now, outcomeIndicator(audit), "DCM", "110112", "Query", "IHE Transactions", "ITI-18", "Registry Stored Query");
 
-        res.getParticipantObjectIdentification().add(
-                ATNAUtil.buildParticipantObjectIdentificationType(
-                        audit.getUniqueId(), (short)2, (short)24, "IHE Transactions", "ITI-18", "Registry Stored Query", audit.getMessage(), pod
-                )
-        );
+        b.activeParticipant(ATNAUtil.WSA_REPLYTO_ANON, "client", true, audit.getSourceIP(), (short)2, "DCM", "110153", "Source");
+        b.activeParticipant(ATNAUtil.WSA_REPLYTO_ANON, processID, false, hostIP, (short)2, "DCM", "110152", "Destination");
 
-        return ATNAUtil.marshallATNAObject(res);
-    }
+        b.auditSource("openhim");
 
-    protected String generateForRegistryQueryResponse(ATNAAudit audit) throws JAXBException {
-        AuditMessage res = new AuditMessage();
+        writePatient(b, audit);
 
-        EventIdentificationType eid = new EventIdentificationType();
-        eid.setEventID( ATNAUtil.buildCodedValueType("DCM", "110112", "Query") );
-        eid.setEventActionCode("E");
-        eid.setEventDateTime( ATNAUtil.newXMLGregorianCalendar() );
-        eid.getEventTypeCode().add( ATNAUtil.buildCodedValueType("IHE Transactions", "ITI-18", "Registry Stored Query") );
-        eid.setEventOutcomeIndicator(audit.getOutcome() ? BigInteger.ZERO : new BigInteger("4"));
-        res.setEventIdentification(eid);
+        b.participantObject(
+                audit.getUniqueId(), (short)2, (short)24, "IHE Transactions", "ITI-18", "Registry Stored Query", audit.getMessage(), buildQueryDetails(audit)
+        );
+    }
+
+    protected void writeForRegistryQueryResponse(AuditMessageBuilder b, ATNAAudit audit, Date now) {
+        b.eventIdentification("E", now, outcomeIndicator(audit), "DCM", "110112", "Query", "IHE Transactions", "ITI-18", "Registry Stored Query");
 
         String xdsRegistryHost = config.getProperty("xds.registry.host");
-        res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(ATNAUtil.WSA_REPLYTO_ANON, ATNAUtil.getProcessID(), true, ATNAUtil.getHostIP(), (short)2, "DCM", "110153", "Source"));
-        res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(buildRegistryPath(), xdsRegistryHost, false, xdsRegistryHost, (short)1, "DCM", "110152", "Destination"));
+        b.activeParticipant(ATNAUtil.WSA_REPLYTO_ANON, processID, true, hostIP, (short)2, "DCM", "110153", "Source");
+        b.activeParticipant(buildRegistryPath(), xdsRegistryHost, false, xdsRegistryHost, (short)1, "DCM", "110152", "Destination");
 
-        res.getAuditSourceIdentification().add(ATNAUtil.buildAuditSource("openhim"));
+        b.auditSource("openhim");
 
-        // Max of 1 patient is allowed
-        Identifier id = audit.getParticipantIdentifiers().get(0);
-        if (id!=null) {
-            res.getParticipantObjectIdentification().add(
-                    ATNAUtil.buildParticipantObjectIdentificationType(id.toCX(), (short) 1, (short) 1, "RFC-3881", "2", "PatientNumber", null)
-            );
-        }
+        writePatient(b, audit);
 
-        List<ATNAUtil.ParticipantObjectDetail> pod = new ArrayList<>();
-        pod.add(new ATNAUtil.ParticipantObjectDetail("QueryEncoding", "UTF-8".getBytes()));
-        if (audit.getHomeCommunityId()!=null) pod.add(new ATNAUtil.ParticipantObjectDetail("urn:ihe:iti:xca:2010:homeCommunityId", audit.getHomeCommunityId().getBytes()));
-
-        res.getParticipantObjectIdentification().add(
-                ATNAUtil.buildParticipantObjectIdentificationType(
-                        audit.getUniqueId(), (short)2, (short)24, "IHE Transactions", "ITI-18", "Registry Stored Query", audit.getMessage(), pod
-                )
+        b.participantObject(
+                audit.getUniqueId(), (short)2, (short)24, "IHE Transactions", "ITI-18", "Registry Stored Query", audit.getMessage(), buildQueryDetails(audit)
         );
-
-        return ATNAUtil.marshallATNAObject(res);
     }
 
     private String buildRegistryPath() {
@@ -215,77 +168,39 @@ public class ATNAAuditingActor extends UntypedActor {
         );
     }
 
-    protected String generateForPNRReceived(ATNAAudit audit) throws JAXBException {
-        AuditMessage res = new AuditMessage();
-
-        EventIdentificationType eid = new EventIdentificationType();
-        eid.setEventID( ATNAUtil.buildCodedValueType("DCM", "110107", "Import") );
-        eid.setEventActionCode("C");
-        eid.setEventDateTime( ATNAUtil.newXMLGregorianCalendar() );
-        eid.getEventTypeCode().add( ATNAUtil.buildCodedValueType("IHE Transactions", "ITI-41", "Provide and Register Document Set-b") );
-        eid.setEventOutcomeIndicator(audit.getOutcome() ? BigInteger.ZERO : new BigInteger("4"));
-        res.setEventIdentification(eid);
+    protected void writeForPNRReceived(AuditMessageBuilder b, ATNAAudit audit, Date now) {
+        b.eventIdentification("C", now, outcomeIndicator(audit), "DCM", "110107", "Import", "IHE Transactions", "ITI-41", "Provide and Register Document Set-b");
 
-        res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(ATNAUtil.WSA_REPLYTO_ANON, "client", true, audit.getSourceIP(), (short)2, "DCM", "110153", "Source"));
-        res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(ATNAUtil.WSA_REPLYTO_ANON, ATNAUtil.getProcessID(), false, ATNAUtil.getHostIP(), (short)2, "DCM", "110152", "Destination"));
+        b.activeParticipant(ATNAUtil.WSA_REPLYTO_ANON, "client", true, audit.getSourceIP(), (short)2, "DCM", "110153", "Source");
+        b.activeParticipant(ATNAUtil.WSA_REPLYTO_ANON, processID, false, hostIP, (short)2, "DCM", "110152", "Destination");
 
-        res.getAuditSourceIdentification().add(ATNAUtil.buildAuditSource("openhim"));
+        b.auditSource("openhim");
 
         // Only one is allowed
-        Identifier id = audit.getParticipantIdentifiers().get(0);
-        if (id!=null) {
-            res.getParticipantObjectIdentification().add(
-                    ATNAUtil.buildParticipantObjectIdentificationType(id.toCX(), (short) 1, (short) 1, "RFC-3881", "2", "PatientNumber", null)
-            );
-        }
-
-        List<ATNAUtil.ParticipantObjectDetail> pod = new ArrayList<>();
-        pod.add(new ATNAUtil.ParticipantObjectDetail("QueryEncoding", "UTF-8".getBytes()));
-        if (audit.getHomeCommunityId()!=null) pod.add(new ATNAUtil.ParticipantObjectDetail("urn:ihe:iti:xca:2010:homeCommunityId", audit.getHomeCommunityId().getBytes()));
+        writePatient(b, audit);
 
-        res.getParticipantObjectIdentification().add(
-                ATNAUtil.buildParticipantObjectIdentificationType(
-                        audit.getUniqueId(), (short)2, (short)20, "IHE XDS Metadata", "urn:uuid:a54d6aa5-d40d-43f9-88c5-b4633d873bdd", "submission set classificationNode", audit.getMessage(), pod
-                )
+        b.participantObject(
+                audit.getUniqueId(), (short)2, (short)20, "IHE XDS Metadata", "urn:uuid:a54d6aa5-d40d-43f9-88c5-b4633d873bdd", "submission set classificationNode", audit.getMessage(), buildQueryDetails(audit)
         );
-
-        return ATNAUtil.marshallATNAObject(res);
     }
 
-    protected String generateForPNRResponse(ATNAAudit audit) throws JAXBException {
-        AuditMessage res = new AuditMessage();
-
-        EventIdentificationType eid = new EventIdentificationType();
-        eid.setEventID( ATNAUtil.buildCodedValueType("DCM", "110106", "Export") );
-        eid.setEventActionCode("R");
-        eid.setEventDateTime( ATNAUtil.newXMLGregorianCalendar() );
-        eid.getEventTypeCode().add( ATNAUtil.buildCodedValueType("IHE Transactions", "ITI-41", "Provide and Register Document Set-b") );
-        eid.setEventOutcomeIndicator(audit.getOutcome() ? BigInteger.ZERO : new BigInteger("4"));
-        res.setEventIdentification(eid);
+    protected void writeForPNRResponse(AuditMessageBuilder b, ATNAAudit audit, Date now) {
+        b.eventIdentification("R", now, outcomeIndicator(audit), "DCM", "110106", "Export", "IHE Transactions", "ITI-41", "Provide and Register Document Set-b");
 
         String xdsRepositoryHost = config.getProperty("xds.repository.host");
-        res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(ATNAUtil.WSA_REPLYTO_ANON, ATNAUtil.getProcessID(), true, ATNAUtil.getHostIP(), (short)2, "DCM", "110153", "Source"));
-        res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(xdsRepositoryHost, false, xdsRepositoryHost, (short)1, "DCM", "110152", "Destination"));
+        b.activeParticipant(ATNAUtil.WSA_REPLYTO_ANON, processID, true, hostIP, (short)2, "DCM", "110153", "Source");
+        b.activeParticipant(xdsRepositoryHost, null, false, xdsRepositoryHost, (short)1, "DCM", "110152", "Destination");
 
-        res.getAuditSourceIdentification().add(ATNAUtil.buildAuditSource("openhim"));
+        b.auditSource("openhim");
 
         // Only one is allowed
-        Identifier id = audit.getParticipantIdentifiers().get(0);
-        if (id!=null) {
-            res.getParticipantObjectIdentification().add(
-                    ATNAUtil.buildParticipantObjectIdentificationType(id.toCX(), (short) 1, (short) 1, "RFC-3881", "2", "PatientNumber", null)
-            );
-        }
+        writePatient(b, audit);
 
-        res.getParticipantObjectIdentification().add(
-                ATNAUtil.buildParticipantObjectIdentificationType(
-                        audit.getUniqueId(), (short)2, (short)20, "IHE XDS Metadata",
-                        "urn:uuid:a54d6aa5-d40d-43f9-88c5-b4633d873bdd", "submission set classificationNode",
-                        audit.getMessage()
-                )
+        b.participantObject(
+                audit.getUniqueId(), (short)2, (short)20, "IHE XDS Metadata",
+                "urn:uuid:a54d6aa5-d40d-43f9-88c5-b4633d873bdd", "submission set classificationNode",
+                audit.getMessage(), null
         );
-
-        return ATNAUtil.marshallATNAObject(res);
     }
 
 
@@ -309,8 +224,9 @@ public class ATNAAuditingActor extends UntypedActor {
         ExecutionContext ec = getContext().dispatcher();
         Future<Boolean> f = future(new Callable<Boolean>() {
             public Boolean call() throws IOException {
-                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                out.writeBytes(request.getBody());
+                OutputStream out = socket.getOutputStream();
+                out.write(request.getBody().getBytes(StandardCharsets.UTF_8));
+                out.flush();
                 return Boolean.TRUE;
             }
         }, ec);
@@ -326,30 +242,73 @@ public class ATNAAuditingActor extends UntypedActor {
         }, ec);
     }
 
-    private String generateMesage(ATNAAudit audit) throws JAXBException {
+    /**
+     * @return true if the message was written to the audit spool, which will then take care of delivering it
+     */
+    private boolean spool(String message) {
+        try {
+            AuditSpool spool = AuditSpool.getInstance(config);
+            if (spool==null) {
+                return false;
+            }
+            spool.append(message);
+            getContext().actorSelection(config.userPathFor("atna-spool-drainer")).tell(new ATNASpoolDrainActor.Drain(), getSelf());
+            return true;
+        } catch (IOException ex) {
+            log.error(ex, "Failed to spool audit message. Sending directly.");
+            return false;
+        }
+    }
+
+    private String write(AuditMessageBuilder b, ATNAAudit audit, Date now, String queryObjectID) throws JAXBException {
         switch (audit.getType()) {
             case PIX_REQUEST:
-                return generateForPIXRequest(audit);
+                writeForPIXRequest(b, audit, now, queryObjectID);
+                break;
             case PIX_IDENTITY_FEED:
-                return generateForPIXIdentityFeed(audit);
+                writeForPIXIdentityFeed(b, audit, now, queryObjectID);
+                break;
             case REGISTRY_QUERY_RECEIVED:
-                return generateForRegistryQueryReceived(audit);
+                writeForRegistryQueryReceived(b, audit, now);
+                break;
             case REGISTRY_QUERY_ENRICHED:
-                return generateForRegistryQueryResponse(audit);
+                writeForRegistryQueryResponse(b, audit, now);
+                break;
             case PROVIDE_AND_REGISTER_RECEIVED:
-                return generateForPNRReceived(audit);
+                writeForPNRReceived(b, audit, now);
+                break;
             case PROVIDE_AND_REGISTER_ENRICHED:
-                return generateForPNRResponse(audit);
+                writeForPNRResponse(b, audit, now);
+                break;
+        }
+        return b.build();
+    }
+
+    protected String generateMessage(ATNAAudit audit) throws JAXBException {
+        Date now = new Date();
+        String queryObjectID = UUID.randomUUID().toString();
+        String serializer = config.getProperty("atna.serializer");
+
+        if ("jaxb".equalsIgnoreCase(serializer)) {
+            return write(new JAXBAuditMessageBuilder(), audit, now, queryObjectID);
         }
 
-        //shouldn't happen as we cover all the enum cases
-        return "";
+        String message = write(new StreamingAuditMessageBuilder(), audit, now, queryObjectID);
+        if ("verify".equalsIgnoreCase(serializer)) {
+            String expected = write(new JAXBAuditMessageBuilder(), audit, now, queryObjectID);
+            if (!expected.equals(message)) {
+                log.warning("Streamed " + audit.getType() + " audit message differs from the JAXB audit message. Using the JAXB message.\n"
+                        + "Streamed: " + message + "\nJAXB: " + expected);
+                return expected;
+            }
+        }
+        return message;
     }
 
     private void sendAuditMessage(ATNAAudit audit)
             throws Exception { //Just die if something goes wrong, akka will restart
 
-        String message = generateMesage(audit);
+        String message = generateMessage(audit);
 
         message = ATNAUtil.build_TCP_Msg_header() + message;
         boolean useTCP;
@@ -358,7 +317,7 @@ public class ATNAAuditingActor extends UntypedActor {
         if (config.getProperty("atna.useTcp").equalsIgnoreCase("true")) {
             port = Integer.parseInt(config.getProperty("atna.tcpPort"));
             useTCP = true;
-            message = message.length() + " " + message; // Required by RFC5425
+            message = SyslogTCPConnection.buildFrame(message); // Required by RFC5425
         } else {
             port = Integer.parseInt(config.getProperty("atna.udpPort"));
             useTCP = false;
@@ -376,7 +335,12 @@ public class ATNAAuditingActor extends UntypedActor {
                 config.getProperty("atna.secure").equalsIgnoreCase("true")
         );
 
-        if (useTCP) {
+        if (useTCP && spool(message)) {
+            log.info("Spooled ATNA " + audit.getType() + " audit message");
+        } else if (useTCP && Util.isPropertyTrue(config, "atna.tcp.persistent")) {
+            log.info("Sending ATNA " + audit.getType() + " audit message using TCP");
+            getContext().actorSelection(config.userPathFor("atna-tcp-connection")).tell(request, getSelf());
+        } else if (useTCP) {
             log.info("Sending ATNA " + audit.getType() + " audit message using TCP");
             sendUsingTCP(request);
         } else {
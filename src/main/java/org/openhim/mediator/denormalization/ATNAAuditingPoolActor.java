@@ -0,0 +1,58 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.routing.RoundRobinPool;
+import org.openhim.mediator.Util;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.messages.ATNAAudit;
+
+/**
+ * Generates and sends audit messages using a pool of {@link ATNAAuditingActor}s, so that audits can be built in parallel.
+ * <br/><br/>
+ * The pool has <code>atna.pool.size</code> routees that run on the <code>atna-dispatcher</code>
+ * (see application.conf), keeping audit generation off the dispatcher used for handling requests.
+ * Audits are still delivered in order per connection, since the routees hand them to a single
+ * connection or spool actor.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ *     <li>ATNAAudit - fire-and-forget</li>
+ * </ul>
+ */
+public class ATNAAuditingPoolActor extends UntypedActor {
+
+    public static final String DISPATCHER = "atna-dispatcher";
+
+    private final MediatorConfig config;
+    private ActorRef router;
+
+
+    public ATNAAuditingPoolActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    @Override
+    public void preStart() throws Exception {
+        int size = Math.max(Util.getIntegerProperty(config, "atna.pool.size", 1), 1);
+        Props routeeProps = Props.create(ATNAAuditingActor.class, config).withDispatcher(DISPATCHER);
+        router = getContext().actorOf(new RoundRobinPool(size).props(routeeProps), "auditors");
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof ATNAAudit) {
+            router.forward(msg, getContext());
+        } else {
+            unhandled(msg);
+        }
+    }
+}
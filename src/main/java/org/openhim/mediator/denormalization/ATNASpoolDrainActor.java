@@ -0,0 +1,179 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.Cancellable;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.Util;
+import org.openhim.mediator.engine.MediatorConfig;
+import scala.concurrent.duration.Duration;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers the audit messages in the {@link AuditSpool} to the audit repository.
+ * <br/><br/>
+ * The spool is drained every <code>atna.spool.drainInterval</code> milliseconds, and whenever a new audit is spooled,
+ * in batches of up to <code>atna.spool.batchSize</code> messages. If the audit repository can't be reached,
+ * delivery is retried with an increasing delay of up to <code>atna.spool.maxRetryInterval</code> milliseconds.
+ * <br/><br/>
+ * Draining blocks on disk and network I/O, so the actor is deployed on the <code>atna-dispatcher</code>
+ * (see application.conf).
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ *     <li>Drain - deliver the spooled messages</li>
+ *     <li>GetSpoolStatus - responds with SpoolStatus</li>
+ * </ul>
+ */
+public class ATNASpoolDrainActor extends UntypedActor {
+
+    public static class Drain {}
+
+    public static class GetSpoolStatus {}
+
+    public static class SpoolStatus {
+        private final int depth;
+        private final long sizeOnDisk;
+        private final long dropped;
+
+        public SpoolStatus(int depth, long sizeOnDisk, long dropped) {
+            this.depth = depth;
+            this.sizeOnDisk = sizeOnDisk;
+            this.dropped = dropped;
+        }
+
+        /**
+         * @return the number of audits waiting to be delivered
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        public long getSizeOnDisk() {
+            return sizeOnDisk;
+        }
+
+        /**
+         * @return the number of undelivered audits that were dropped because the spool was full
+         */
+        public long getDropped() {
+            return dropped;
+        }
+    }
+
+    private static final long DEFAULT_DRAIN_INTERVAL = 1000;
+    private static final long DEFAULT_MAX_RETRY_INTERVAL = 60 * 1000;
+    private static final int DEFAULT_BATCH_SIZE = 50;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+    private static final long DEFAULT_IDLE_TIMEOUT = 30 * 1000;
+    //number of batches to deliver before giving other messages a turn
+    private static final int BATCHES_PER_DRAIN = 10;
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private Cancellable scheduledDrains;
+    private SyslogTCPConnection connection;
+    private long retryInterval;
+    private long retryAt;
+
+
+    public ATNASpoolDrainActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    @Override
+    public void preStart() throws Exception {
+        long interval = Util.getLongProperty(config, "atna.spool.drainInterval", DEFAULT_DRAIN_INTERVAL);
+        scheduledDrains = getContext().system().scheduler().schedule(
+                Duration.Zero(), Duration.create(interval, TimeUnit.MILLISECONDS),
+                getSelf(), new Drain(), getContext().dispatcher(), getSelf()
+        );
+        connection = new SyslogTCPConnection(
+                config.getProperty("atna.host"),
+                Integer.parseInt(config.getProperty("atna.tcpPort")),
+                Util.isPropertyTrue(config, "atna.secure"),
+                Util.getIntegerProperty(config, "atna.tcp.connectTimeout", DEFAULT_CONNECT_TIMEOUT),
+                Util.getLongProperty(config, "atna.tcp.idleTimeout", DEFAULT_IDLE_TIMEOUT)
+        );
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        if (scheduledDrains!=null) {
+            scheduledDrains.cancel();
+        }
+        if (connection!=null) {
+            connection.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        AuditSpool spool = AuditSpool.getInstance(config);
+        if (spool==null || spool.getDepth()==0 || System.currentTimeMillis() < retryAt) {
+            return;
+        }
+
+        int batchSize = Util.getIntegerProperty(config, "atna.spool.batchSize", DEFAULT_BATCH_SIZE);
+        for (int i=0; i<BATCHES_PER_DRAIN; i++) {
+            List<String> batch = spool.peek(batchSize);
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            try {
+                connection.write(batch);
+            } catch (SyslogTCPConnection.WriteFailedException ex) {
+                if (ex.getFramesWritten() > 0) {
+                    //don't deliver the frames that were written in full again
+                    spool.peek(ex.getFramesWritten());
+                    spool.acknowledge();
+                }
+                long interval = Util.getLongProperty(config, "atna.spool.drainInterval", DEFAULT_DRAIN_INTERVAL);
+                long maxInterval = Util.getLongProperty(config, "atna.spool.maxRetryInterval", DEFAULT_MAX_RETRY_INTERVAL);
+                retryInterval = Math.min(retryInterval==0 ? interval : retryInterval * 2, maxInterval);
+                retryAt = System.currentTimeMillis() + retryInterval;
+                log.warning("Failed to deliver spooled audit messages (" + ex.getMessage() + "). "
+                        + spool.getDepth() + " message(s) spooled. Retrying in " + retryInterval + "ms");
+                return;
+            }
+
+            spool.acknowledge();
+            retryInterval = 0;
+            retryAt = 0;
+        }
+
+        if (spool.getDepth() > 0) {
+            getSelf().tell(new Drain(), getSelf());
+        }
+    }
+
+    private SpoolStatus getStatus() throws IOException {
+        AuditSpool spool = AuditSpool.getInstance(config);
+        if (spool==null) {
+            return new SpoolStatus(0, 0, 0);
+        }
+        return new SpoolStatus(spool.getDepth(), spool.getSizeOnDisk(), spool.getDropped());
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof Drain) {
+            drain();
+        } else if (msg instanceof GetSpoolStatus) {
+            getSender().tell(getStatus(), getSelf());
+        } else {
+            unhandled(msg);
+        }
+    }
+}
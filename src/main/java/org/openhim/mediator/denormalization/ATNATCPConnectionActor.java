@@ -0,0 +1,137 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.Cancellable;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.Util;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+import scala.concurrent.duration.Duration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a long-lived syslog connection (RFC5425) to the audit repository and writes audit messages to it in batches.
+ * <br/><br/>
+ * Messages are buffered for up to <code>atna.tcp.batchWindow</code> milliseconds, or until
+ * <code>atna.tcp.batchSize</code> messages are pending, and then written with a single flush.
+ * If a write fails, the frames that weren't written in full are written again on a new connection
+ * (see {@link SyslogTCPConnection}).
+ * <br/><br/>
+ * Connecting and writing block, so the actor is deployed on the <code>atna-dispatcher</code> (see application.conf).
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ *     <li>MediatorSocketRequest - fire-and-forget. The body must be an octet-counted syslog frame.</li>
+ * </ul>
+ */
+public class ATNATCPConnectionActor extends UntypedActor {
+
+    private static class Flush {}
+
+    private static final int DEFAULT_BATCH_SIZE = 20;
+    private static final long DEFAULT_BATCH_WINDOW = 50;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+    private static final long DEFAULT_IDLE_TIMEOUT = 30 * 1000;
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final List<MediatorSocketRequest> pending = new ArrayList<>();
+    private Cancellable scheduledFlush;
+    private SyslogTCPConnection connection;
+
+
+    public ATNATCPConnectionActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    private static boolean sameTarget(MediatorSocketRequest a, MediatorSocketRequest b) {
+        return a.getHost().equals(b.getHost()) && a.getPort()==b.getPort() && a.isSecure()==b.isSecure();
+    }
+
+    private void queue(MediatorSocketRequest request) {
+        if (!pending.isEmpty() && !sameTarget(pending.get(0), request)) {
+            flush();
+        }
+        pending.add(request);
+
+        if (pending.size() >= Util.getIntegerProperty(config, "atna.tcp.batchSize", DEFAULT_BATCH_SIZE)) {
+            flush();
+        } else if (scheduledFlush==null) {
+            long window = Util.getLongProperty(config, "atna.tcp.batchWindow", DEFAULT_BATCH_WINDOW);
+            scheduledFlush = getContext().system().scheduler().scheduleOnce(
+                    Duration.create(window, TimeUnit.MILLISECONDS), getSelf(), new Flush(), getContext().dispatcher(), getSelf()
+            );
+        }
+    }
+
+    private void flush() {
+        if (scheduledFlush!=null) {
+            scheduledFlush.cancel();
+            scheduledFlush = null;
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        MediatorSocketRequest first = pending.get(0);
+        if (connection==null || !connection.isFor(first.getHost(), first.getPort(), first.isSecure())) {
+            if (connection!=null) {
+                connection.close();
+            }
+            int connectTimeout = Util.getIntegerProperty(config, "atna.tcp.connectTimeout", DEFAULT_CONNECT_TIMEOUT);
+            long idleTimeout = Util.getLongProperty(config, "atna.tcp.idleTimeout", DEFAULT_IDLE_TIMEOUT);
+            connection = new SyslogTCPConnection(
+                    first.getHost(), first.getPort(), first.isSecure(), connectTimeout, idleTimeout
+            );
+        }
+
+        List<String> frames = new ArrayList<>(pending.size());
+        for (MediatorSocketRequest request : pending) {
+            frames.add(request.getBody());
+        }
+        pending.clear();
+
+        try {
+            connection.write(frames);
+        } catch (SyslogTCPConnection.WriteFailedException ex) {
+            log.info("Failed to write to the audit repository (" + ex.getMessage() + "). Reconnecting...");
+            List<String> remaining = frames.subList(ex.getFramesWritten(), frames.size());
+            try {
+                connection.write(remaining);
+            } catch (SyslogTCPConnection.WriteFailedException ex2) {
+                log.error(ex2, "Failed to send " + (remaining.size() - ex2.getFramesWritten()) + " ATNA audit message(s)");
+            }
+        }
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        flush();
+        if (connection!=null) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorSocketRequest) {
+            queue((MediatorSocketRequest) msg);
+        } else if (msg instanceof Flush) {
+            flush();
+        } else {
+            unhandled(msg);
+        }
+    }
+}
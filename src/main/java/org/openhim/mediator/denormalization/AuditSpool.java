@@ -0,0 +1,360 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.openhim.mediator.Util;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A local on-disk spool for audit messages, so that audits aren't lost while the audit repository is unavailable.
+ * <br/><br/>
+ * Messages are appended to the current segment file and forced to disk before they are sent (write-ahead). The drainer reads batches
+ * using {@link #peek(int)} and calls {@link #acknowledge()} once a batch was delivered, which moves the read cursor
+ * past the batch and deletes segments that were fully delivered. The cursor is stored in a separate file,
+ * so delivery resumes where it left off after a restart.
+ * <br/><br/>
+ * A new segment is started once the current one reaches <code>atna.spool.segmentSize</code> bytes. If the spool
+ * grows beyond <code>atna.spool.maxSize</code> bytes the oldest segment is dropped, undelivered or not.
+ * <br/><br/>
+ * Record format: <code>length(int) message(UTF-8)</code>.
+ */
+public class AuditSpool {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String CURSOR_FILE = "cursor";
+    private static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final long DEFAULT_MAX_SIZE = 256 * 1024 * 1024;
+
+    private static class Segment {
+        final File file;
+        long size;
+        int records;
+
+        Segment(File file) {
+            this.file = file;
+        }
+    }
+
+    private static AuditSpool instance;
+
+    private final File directory;
+    private final long segmentSize;
+    private final long maxSize;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private FileChannel writeChannel;
+    private RandomAccessFile cursorFile;
+
+    private long cursorSegment;
+    private long cursorOffset;
+    private int cursorRecords;
+
+    //position after the last peeked batch, applied by acknowledge()
+    private long peekedSegment = -1;
+    private long peekedOffset;
+    private int peekedRecords;
+    private int peekedCount;
+
+    private int depth;
+    private long dropped;
+
+
+    /**
+     * @return the spool shared by the auditing actors, or null if <code>atna.spool.path</code> isn't set
+     */
+    public static synchronized AuditSpool getInstance(MediatorConfig config) throws IOException {
+        if (config==null || config.getProperty("atna.spool.path")==null) {
+            return null;
+        }
+        if (instance==null) {
+            instance = new AuditSpool(
+                    new File(config.getProperty("atna.spool.path")),
+                    Util.getLongProperty(config, "atna.spool.segmentSize", DEFAULT_SEGMENT_SIZE),
+                    Util.getLongProperty(config, "atna.spool.maxSize", DEFAULT_MAX_SIZE)
+            );
+        }
+        return instance;
+    }
+
+    /**
+     * Close the shared spool, if open.
+     */
+    public static synchronized void closeInstance() {
+        if (instance!=null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+
+    public AuditSpool(File directory, long segmentSize, long maxSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = Math.max(maxSize, segmentSize);
+        open();
+    }
+
+
+    private void open() throws IOException {
+        directory.mkdirs();
+
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files!=null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    long seq = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(seq, new Segment(file));
+                } catch (NumberFormatException ex) {
+                    //not a segment
+                }
+            }
+        }
+
+        cursorFile = new RandomAccessFile(new File(directory, CURSOR_FILE), "rw");
+        if (cursorFile.length() >= 16) {
+            cursorSegment = cursorFile.readLong();
+            cursorOffset = cursorFile.readLong();
+        }
+
+        for (Map.Entry<Long, Segment> e : segments.entrySet()) {
+            scan(e.getKey(), e.getValue());
+        }
+        if (segments.isEmpty() || !segments.containsKey(cursorSegment)) {
+            //start from the oldest segment
+            cursorSegment = segments.isEmpty() ? 0 : segments.firstKey();
+            cursorOffset = 0;
+            cursorRecords = 0;
+            depth = 0;
+            for (Segment segment : segments.values()) {
+                depth += segment.records;
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, new Segment(segmentFile(0)));
+        }
+
+        openWriteChannel();
+    }
+
+    /**
+     * Count the records in a segment, truncating an incomplete record at the end (e.g. after a crash).
+     */
+    private void scan(long seq, Segment segment) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(segment.file, "rw")) {
+            long length = raf.length();
+            long pos = 0;
+            while (pos + 4 <= length) {
+                raf.seek(pos);
+                int recordLength = raf.readInt();
+                if (recordLength < 0 || pos + 4 + recordLength > length) {
+                    break;
+                }
+                if (seq > cursorSegment || (seq==cursorSegment && pos >= cursorOffset)) {
+                    depth++;
+                } else if (seq==cursorSegment) {
+                    cursorRecords++;
+                }
+                segment.records++;
+                pos += 4 + recordLength;
+            }
+            if (pos < length) {
+                raf.setLength(pos);
+            }
+            segment.size = pos;
+        }
+    }
+
+    private File segmentFile(long seq) {
+        return new File(directory, String.format("%020d%s", seq, SEGMENT_SUFFIX));
+    }
+
+    private void openWriteChannel() throws IOException {
+        Segment last = segments.lastEntry().getValue();
+        writeChannel = new RandomAccessFile(last.file, "rw").getChannel();
+        writeChannel.position(writeChannel.size());
+    }
+
+    /**
+     * Append a message to the spool. The message is forced to disk before this method returns.
+     */
+    public synchronized void append(String message) throws IOException {
+        byte[] bytes = message.getBytes(UTF8);
+        ByteBuffer record = ByteBuffer.allocate(4 + bytes.length);
+        record.putInt(bytes.length).put(bytes).flip();
+
+        Segment current = segments.lastEntry().getValue();
+        if (current.size > 0 && current.size + record.remaining() > segmentSize) {
+            roll();
+            current = segments.lastEntry().getValue();
+        }
+
+        while (record.hasRemaining()) {
+            writeChannel.write(record);
+        }
+        writeChannel.force(false);
+        current.size += 4 + bytes.length;
+        current.records++;
+        depth++;
+
+        enforceMaxSize();
+    }
+
+    private void roll() throws IOException {
+        writeChannel.close();
+        long seq = segments.lastKey() + 1;
+        segments.put(seq, new Segment(segmentFile(seq)));
+        openWriteChannel();
+    }
+
+    private void enforceMaxSize() throws IOException {
+        while (segments.size() > 1 && getSizeOnDisk() > maxSize) {
+            Map.Entry<Long, Segment> oldest = segments.pollFirstEntry();
+            long seq = oldest.getKey();
+            Segment segment = oldest.getValue();
+
+            int undelivered;
+            if (seq > cursorSegment) {
+                undelivered = segment.records;
+            } else if (seq==cursorSegment) {
+                undelivered = segment.records - cursorRecords;
+                cursorSegment = segments.firstKey();
+                cursorOffset = 0;
+                cursorRecords = 0;
+                writeCursor();
+            } else {
+                undelivered = 0;
+            }
+            depth -= undelivered;
+            dropped += undelivered;
+            peekedSegment = -1;
+            segment.file.delete();
+        }
+    }
+
+    /**
+     * Read up to <code>max</code> undelivered messages, without moving the read cursor.
+     */
+    public synchronized List<String> peek(int max) throws IOException {
+        List<String> result = new ArrayList<>();
+        long seq = cursorSegment;
+        long offset = cursorOffset;
+        int records = cursorRecords;
+
+        while (result.size() < max) {
+            Segment segment = segments.get(seq);
+            if (segment==null) {
+                break;
+            }
+            if (offset >= segment.size) {
+                Long next = segments.higherKey(seq);
+                if (next==null) {
+                    break;
+                }
+                seq = next;
+                offset = 0;
+                records = 0;
+                continue;
+            }
+
+            try (RandomAccessFile raf = new RandomAccessFile(segment.file, "r")) {
+                raf.seek(offset);
+                while (result.size() < max && offset < segment.size) {
+                    int length = raf.readInt();
+                    byte[] bytes = new byte[length];
+                    raf.readFully(bytes);
+                    result.add(new String(bytes, UTF8));
+                    offset += 4 + length;
+                    records++;
+                }
+            }
+        }
+
+        peekedSegment = seq;
+        peekedOffset = offset;
+        peekedRecords = records;
+        peekedCount = result.size();
+        return result;
+    }
+
+    /**
+     * Mark the messages returned by the last call to {@link #peek(int)} as delivered.
+     */
+    public synchronized void acknowledge() throws IOException {
+        if (peekedSegment < 0) {
+            //the segment was dropped in the meantime
+            return;
+        }
+
+        cursorSegment = peekedSegment;
+        cursorOffset = peekedOffset;
+        cursorRecords = peekedRecords;
+        depth -= peekedCount;
+        peekedSegment = -1;
+        writeCursor();
+
+        while (segments.firstKey() < cursorSegment) {
+            segments.pollFirstEntry().getValue().file.delete();
+        }
+    }
+
+    private void writeCursor() throws IOException {
+        cursorFile.seek(0);
+        cursorFile.writeLong(cursorSegment);
+        cursorFile.writeLong(cursorOffset);
+        cursorFile.getChannel().force(false);
+    }
+
+    /**
+     * @return the number of messages waiting to be delivered
+     */
+    public synchronized int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the number of undelivered messages that were dropped because the spool was full
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized long getSizeOnDisk() {
+        long size = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    public synchronized void close() {
+        try {
+            writeChannel.close();
+            cursorFile.close();
+        } catch (IOException ex) {
+            //closing anyway
+        }
+    }
+}
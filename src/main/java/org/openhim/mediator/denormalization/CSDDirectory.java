@@ -0,0 +1,189 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.openhim.mediator.XMLToolkit;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-memory index of a CSD provider and facility directory, mapping <code>otherID</code> to <code>entityID</code>.
+ * <br/><br/>
+ * The index is populated from CSD directory documents (e.g. a getModificationsRequest response)
+ * by {@link CSDDirectorySyncActor} and read by {@link CSDRequestActor}.
+ */
+public class CSDDirectory {
+
+    public static final String CSD_NAMESPACE = "urn:ihe:iti:csd:2013";
+
+    public enum EntityType {
+        PROVIDER, FACILITY
+    }
+
+    private static final CSDDirectory instance = new CSDDirectory();
+
+    private final Map<String, String> index = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> keysByEntity = new ConcurrentHashMap<>();
+    private volatile Calendar lastModified;
+    private volatile boolean loaded = false;
+
+
+    public static CSDDirectory getInstance() {
+        return instance;
+    }
+
+
+    private static String buildKey(EntityType type, String code, String assigningAuthorityName) {
+        return type + "|" + code + "|" + assigningAuthorityName;
+    }
+
+    private static String buildEntityKey(EntityType type, String entityID) {
+        return type + "|" + entityID;
+    }
+
+    /**
+     * @return the entityID for the other identifier or null if the directory doesn't contain it
+     */
+    public String lookup(EntityType type, String code, String assigningAuthorityName) {
+        return index.get(buildKey(type, code, assigningAuthorityName));
+    }
+
+    /**
+     * Replace the other identifiers indexed for an entity. Inactive entities are removed from the index.
+     *
+     * @param otherIDs a list of code and assigningAuthorityName pairs
+     */
+    public synchronized void update(EntityType type, String entityID, List<String[]> otherIDs, boolean active) {
+        String entityKey = buildEntityKey(type, entityID);
+
+        List<String> previousKeys = keysByEntity.remove(entityKey);
+        if (previousKeys!=null) {
+            for (String key : previousKeys) {
+                index.remove(key);
+            }
+        }
+
+        if (!active || otherIDs.isEmpty()) {
+            return;
+        }
+
+        List<String> keys = new ArrayList<>(otherIDs.size());
+        for (String[] otherID : otherIDs) {
+            String key = buildKey(type, otherID[0], otherID[1]);
+            index.put(key, entityID);
+            keys.add(key);
+        }
+        keysByEntity.put(entityKey, keys);
+    }
+
+    /**
+     * Apply the providers and facilities contained in a CSD document to the index.
+     * Other directories in the document are skipped.
+     */
+    public void applyModifications(InputStream csd) throws XMLStreamException {
+        XMLStreamReader reader = XMLToolkit.getInputFactory().createXMLStreamReader(csd);
+
+        EntityType currentType = null;
+        String entityID = null;
+        List<String[]> otherIDs = null;
+        boolean active = true;
+        int depth = 0;
+        int entityDepth = -1;
+
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String name = reader.getLocalName();
+
+                    if (currentType == null && CSD_NAMESPACE.equals(reader.getNamespaceURI())
+                            && ("provider".equals(name) || "facility".equals(name))) {
+                        currentType = "provider".equals(name) ? EntityType.PROVIDER : EntityType.FACILITY;
+                        entityID = reader.getAttributeValue(null, "entityID");
+                        otherIDs = new ArrayList<>();
+                        active = true;
+                        entityDepth = depth;
+                    } else if (currentType != null && depth == entityDepth + 1 && "otherID".equals(name)) {
+                        String code = reader.getAttributeValue(null, "code");
+                        String authority = reader.getAttributeValue(null, "assigningAuthorityName");
+                        if (code != null && authority != null) {
+                            otherIDs.add(new String[]{code, authority});
+                        }
+                    } else if (currentType != null && depth == entityDepth + 1 && "record".equals(name)) {
+                        String status = reader.getAttributeValue(null, "status");
+                        active = status == null || "Active".equalsIgnoreCase(status);
+                        recordUpdated(reader.getAttributeValue(null, "updated"));
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (currentType != null && depth == entityDepth) {
+                        if (entityID != null) {
+                            update(currentType, entityID, otherIDs, active);
+                        }
+                        currentType = null;
+                        entityDepth = -1;
+                    }
+                    depth--;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        loaded = true;
+    }
+
+    private void recordUpdated(String updated) {
+        if (updated == null || updated.isEmpty()) {
+            return;
+        }
+        try {
+            Calendar cal = DatatypeConverter.parseDateTime(updated);
+            if (lastModified == null || cal.after(lastModified)) {
+                lastModified = cal;
+            }
+        } catch (IllegalArgumentException ex) {
+            //ignore unparseable timestamps
+        }
+    }
+
+    /**
+     * @return the latest record update time seen in the directory, as an xs:dateTime, or null if nothing has been loaded
+     */
+    public String getLastModified() {
+        Calendar cal = lastModified;
+        return cal != null ? DatatypeConverter.printDateTime(cal) : null;
+    }
+
+    /**
+     * @return true once a directory document has been successfully applied
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public synchronized void clear() {
+        index.clear();
+        keysByEntity.clear();
+        lastModified = null;
+        loaded = false;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.ActorSelection;
+import akka.actor.Cancellable;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.Payload;
+import org.openhim.mediator.Util;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import scala.concurrent.duration.Duration;
+
+import javax.xml.stream.XMLStreamException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the local {@link CSDDirectory} in sync with the CSD Infomanager (interlinked registry).
+ * <br/><br/>
+ * On startup the complete directory is requested using a CSD getModificationsRequest (ITI-74) from the epoch.
+ * Thereafter the directory is polled for any modifications since the latest record update that was seen.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ *     <li>Sync - triggers a directory sync. Sent on a schedule by the actor itself.</li>
+ * </ul>
+ */
+public class CSDDirectorySyncActor extends UntypedActor {
+
+    public static class Sync {}
+
+    private static final String EPOCH = "1970-01-01T00:00:00+00:00";
+    private static final long DEFAULT_SYNC_INTERVAL = 5 * 60 * 1000;
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final CSDDirectory directory;
+    private Cancellable schedule;
+    private String pendingCorrelationId;
+    private long pendingSince;
+
+
+    public CSDDirectorySyncActor(MediatorConfig config) {
+        this(config, CSDDirectory.getInstance());
+    }
+
+    public CSDDirectorySyncActor(MediatorConfig config, CSDDirectory directory) {
+        this.config = config;
+        this.directory = directory;
+    }
+
+
+    private long getSyncInterval() {
+        return Util.getLongProperty(config, "ilr.directory.syncInterval", DEFAULT_SYNC_INTERVAL);
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        long interval = getSyncInterval();
+        schedule = getContext().system().scheduler().schedule(
+                Duration.Zero(), Duration.create(interval, TimeUnit.MILLISECONDS),
+                getSelf(), new Sync(), getContext().dispatcher(), getSelf()
+        );
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        if (schedule!=null) {
+            schedule.cancel();
+        }
+    }
+
+    protected static String buildModificationsRequest(String lastModified) {
+        return "<soap:Envelope xmlns:soap='http://www.w3.org/2003/05/soap-envelope' xmlns:wsa='http://www.w3.org/2005/08/addressing' xmlns:csd='urn:ihe:iti:csd:2013'>\n"
+                + "	<soap:Header>\n"
+                + "		<wsa:Action soap:mustUnderstand='1'>urn:ihe:iti:csd:2013:GetDirectoryModificationsRequest</wsa:Action>\n"
+                + "		<wsa:MessageID>urn:uuid:" + UUID.randomUUID() + "</wsa:MessageID>\n"
+                + "	</soap:Header>\n"
+                + "	<soap:Body>\n"
+                + "		<csd:getModificationsRequest>\n"
+                + "			<csd:lastModified>" + lastModified + "</csd:lastModified>\n"
+                + "		</csd:getModificationsRequest>\n"
+                + "	</soap:Body>\n"
+                + "</soap:Envelope>";
+    }
+
+    private void sync() {
+        if (pendingCorrelationId!=null && System.currentTimeMillis() - pendingSince < getSyncInterval()) {
+            log.info("CSD directory sync still in progress");
+            return;
+        }
+
+        String lastModified = directory.getLastModified();
+        if (lastModified==null) {
+            lastModified = EPOCH;
+            log.info("Downloading CSD provider and facility directories...");
+        } else {
+            log.info("Requesting CSD directory modifications since " + lastModified);
+        }
+
+        pendingCorrelationId = UUID.randomUUID().toString();
+        pendingSince = System.currentTimeMillis();
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "application/soap+xml");
+
+        MediatorHTTPRequest request = new MediatorHTTPRequest(
+                getSelf(), getSelf(), "CSD Directory Sync", "POST", "http",
+                config.getProperty("ilr.host"), Integer.parseInt(config.getProperty("ilr.port")),
+                config.getProperty("ilr.directory.path"), buildModificationsRequest(lastModified),
+                headers, null, pendingCorrelationId
+        );
+
+        ActorSelection httpConnector = getContext().actorSelection(config.userPathFor("http-connector"));
+        httpConnector.tell(request, getSelf());
+    }
+
+    private void processResponse(MediatorHTTPResponse response) {
+        String correlationId = response.getOriginalRequest().getCorrelationId();
+        if (pendingCorrelationId==null || !pendingCorrelationId.equals(correlationId)) {
+            //a late response to a sync that was given up on. Applying it could undo newer modifications.
+            log.warning("Ignoring response to an earlier CSD directory sync");
+            return;
+        }
+        pendingCorrelationId = null;
+
+        if (response.getStatusCode()<200 || response.getStatusCode()>299) {
+            log.warning("CSD directory sync failed with status " + response.getStatusCode());
+            return;
+        }
+
+        try {
+            directory.applyModifications(Payload.of(response.getBody()).openStream(Charset.defaultCharset()));
+            log.info("CSD directory synced. " + directory.size() + " identifiers indexed.");
+        } catch (XMLStreamException ex) {
+            log.error(ex, "Failed to process CSD directory modifications");
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof Sync) {
+            sync();
+        } else if (msg instanceof MediatorHTTPResponse) {
+            processResponse((MediatorHTTPResponse) msg);
+        } else if (msg instanceof ExceptError) {
+            pendingCorrelationId = null;
+            log.error(((ExceptError) msg).getError(), "CSD directory sync failed");
+        } else {
+            //orchestration details from the connector are not needed
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.Payload;
+import org.openhim.mediator.Util;
+import org.openhim.mediator.XMLToolkit;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openhim.mediator.messages.BaseResolveIdentifier;
+import org.openhim.mediator.messages.ResolveFacilityIdentifier;
+import scala.concurrent.duration.Duration;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Combines provider and facility lookups from all {@link CSDRequestActor} instances into batched careServicesRequests.
+ * <br/><br/>
+ * Lookups are collected for <code>ilr.batch.window</code> milliseconds, or until <code>ilr.batch.maxSize</code>
+ * lookups of the same type are pending, and are then sent to the CSD Infomanager as a single search containing all the
+ * identifiers. The entities in the response are matched to the lookups using their <code>otherID</code>s, and a
+ * lookup without a matching entity is resolved to null, as it would be by a search for that identifier alone.
+ * Lookups only fail if the search itself fails or its response can't be parsed.
+ * <br/><br/>
+ * Each batch has its own request handler, so that connector errors and orchestrations can be matched to the batch
+ * they belong to. A failed batch only fails its own lookups.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ *     <li>Lookup - responds with LookupResult. The entityID will be null if the identifier could not be resolved.
+ *     Responds with LookupFailed if the search failed.</li>
+ * </ul>
+ */
+public class CSDLookupBatcherActor extends UntypedActor {
+
+    public static class Lookup {
+        private final BaseResolveIdentifier request;
+
+        public Lookup(BaseResolveIdentifier request) {
+            this.request = request;
+        }
+
+        public BaseResolveIdentifier getRequest() {
+            return request;
+        }
+    }
+
+    public static class LookupResult {
+        private final BaseResolveIdentifier lookup;
+        private final String entityID;
+
+        public LookupResult(BaseResolveIdentifier lookup, String entityID) {
+            this.lookup = lookup;
+            this.entityID = entityID;
+        }
+
+        public BaseResolveIdentifier getLookup() {
+            return lookup;
+        }
+
+        public String getEntityID() {
+            return entityID;
+        }
+    }
+
+    public static class LookupFailed {
+        private final BaseResolveIdentifier lookup;
+        private final Throwable error;
+
+        public LookupFailed(BaseResolveIdentifier lookup, Throwable error) {
+            this.lookup = lookup;
+            this.error = error;
+        }
+
+        public BaseResolveIdentifier getLookup() {
+            return lookup;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+    }
+
+    private static class Flush {
+        final CSDDirectory.EntityType type;
+
+        Flush(CSDDirectory.EntityType type) {
+            this.type = type;
+        }
+    }
+
+    private static class PendingLookup {
+        final BaseResolveIdentifier request;
+        final ActorRef replyTo;
+
+        PendingLookup(BaseResolveIdentifier request, ActorRef replyTo) {
+            this.request = request;
+            this.replyTo = replyTo;
+        }
+    }
+
+    private static class Batch {
+        final String id = UUID.randomUUID().toString();
+        final CSDDirectory.EntityType type;
+        final List<PendingLookup> lookups;
+
+        Batch(CSDDirectory.EntityType type, List<PendingLookup> lookups) {
+            this.type = type;
+            this.lookups = lookups;
+        }
+    }
+
+    private static class BatchOrchestration {
+        final String batchId;
+        final AddOrchestrationToCoreResponse orchestration;
+
+        BatchOrchestration(String batchId, AddOrchestrationToCoreResponse orchestration) {
+            this.batchId = batchId;
+            this.orchestration = orchestration;
+        }
+    }
+
+    private static class BatchFailed {
+        final String batchId;
+        final ExceptError error;
+
+        BatchFailed(String batchId, ExceptError error) {
+            this.batchId = batchId;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Receives the connector's messages for a single batch and passes them on to the batcher,
+     * tagged with the batch id. Stops once the batch is complete.
+     */
+    private static class BatchHandler extends UntypedActor {
+        private final String batchId;
+
+        public BatchHandler(String batchId) {
+            this.batchId = batchId;
+        }
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorHTTPResponse) {
+                getContext().parent().tell(msg, getSelf());
+            } else if (msg instanceof AddOrchestrationToCoreResponse) {
+                getContext().parent().tell(new BatchOrchestration(batchId, (AddOrchestrationToCoreResponse) msg), getSelf());
+                getContext().stop(getSelf());
+            } else if (msg instanceof ExceptError) {
+                getContext().parent().tell(new BatchFailed(batchId, (ExceptError) msg), getSelf());
+                getContext().stop(getSelf());
+            } else {
+                unhandled(msg);
+            }
+        }
+    }
+
+    private static final long DEFAULT_WINDOW = 20;
+    private static final int DEFAULT_MAX_SIZE = 50;
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final Map<CSDDirectory.EntityType, List<PendingLookup>> pending = new EnumMap<>(CSDDirectory.EntityType.class);
+    private final Map<CSDDirectory.EntityType, Cancellable> scheduledFlushes = new EnumMap<>(CSDDirectory.EntityType.class);
+    private final Map<String, Batch> batchesInFlight = new HashMap<>();
+    private final Map<String, Set<ActorRef>> awaitingOrchestration = new HashMap<>();
+
+
+    public CSDLookupBatcherActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    private static CSDDirectory.EntityType determineType(BaseResolveIdentifier request) {
+        return request instanceof ResolveFacilityIdentifier ? CSDDirectory.EntityType.FACILITY : CSDDirectory.EntityType.PROVIDER;
+    }
+
+    private static String buildKey(String code, String assigningAuthorityName) {
+        return code + "|" + assigningAuthorityName;
+    }
+
+    private void queue(Lookup msg) {
+        CSDDirectory.EntityType type = determineType(msg.getRequest());
+        List<PendingLookup> lookups = pending.get(type);
+        if (lookups==null) {
+            lookups = new ArrayList<>();
+            pending.put(type, lookups);
+        }
+        lookups.add(new PendingLookup(msg.getRequest(), getSender()));
+
+        if (lookups.size() >= Util.getIntegerProperty(config, "ilr.batch.maxSize", DEFAULT_MAX_SIZE)) {
+            flush(type);
+        } else if (!scheduledFlushes.containsKey(type)) {
+            long window = Util.getLongProperty(config, "ilr.batch.window", DEFAULT_WINDOW);
+            Cancellable flush = getContext().system().scheduler().scheduleOnce(
+                    Duration.create(window, TimeUnit.MILLISECONDS), getSelf(), new Flush(type), getContext().dispatcher(), getSelf()
+            );
+            scheduledFlushes.put(type, flush);
+        }
+    }
+
+    private void flush(CSDDirectory.EntityType type) {
+        Cancellable scheduled = scheduledFlushes.remove(type);
+        if (scheduled!=null) {
+            scheduled.cancel();
+        }
+
+        List<PendingLookup> lookups = pending.remove(type);
+        if (lookups==null || lookups.isEmpty()) {
+            return;
+        }
+        send(new Batch(type, lookups));
+    }
+
+    private void send(Batch batch) {
+        //identical identifiers in a batch only need to be searched for once
+        Map<String, Identifier> identifiers = new LinkedHashMap<>();
+        for (PendingLookup lookup : batch.lookups) {
+            Identifier id = lookup.request.getIdentifier();
+            identifiers.put(buildKey(id.getIdentifier(), id.getAssigningAuthority().getAssigningAuthorityId()), id);
+        }
+
+        boolean facility = batch.type==CSDDirectory.EntityType.FACILITY;
+        String csdRequest = CSDRequestActor.buildCareServicesRequest(
+                facility ? CSDRequestActor.FACILITY_SEARCH_FUNCTION : CSDRequestActor.PROVIDER_SEARCH_FUNCTION,
+                new ArrayList<>(identifiers.values())
+        );
+        String orchestration = facility ? "CSD Resolve Facility Identifier" : "CSD Resolve Healthcare Worker Identifier";
+        if (identifiers.size() > 1) {
+            orchestration += "s (" + identifiers.size() + ")";
+            log.info("Sending batched CSD search for " + identifiers.size() + " " + batch.type.toString().toLowerCase() + " identifiers");
+        }
+
+        batchesInFlight.put(batch.id, batch);
+        ActorRef handler = getContext().actorOf(Props.create(BatchHandler.class, batch.id));
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "application/xml");
+
+        MediatorHTTPRequest httpRequest = new MediatorHTTPRequest(
+                handler,
+                handler,
+                orchestration,
+                "POST",
+                "http",
+                config.getProperty("ilr.host"),
+                Integer.parseInt(config.getProperty("ilr.port")),
+                config.getProperty("ilr.csr.path"),
+                csdRequest,
+                headers,
+                null,
+                batch.id
+        );
+
+        ActorSelection httpConnector = getContext().actorSelection(config.userPathFor("http-connector"));
+        httpConnector.tell(httpRequest, getSelf());
+    }
+
+    /**
+     * @return the entityIDs in the response keyed by otherID, in document order.
+     * Entities without otherIDs are keyed by their position in the response.
+     */
+    private static Map<String, String> parseEntities(String csdResponse, CSDDirectory.EntityType type) throws XMLStreamException {
+        Map<String, String> entities = new LinkedHashMap<>();
+        String entityName = type==CSDDirectory.EntityType.FACILITY ? "facility" : "provider";
+        XMLStreamReader reader = XMLToolkit.getInputFactory().createXMLStreamReader(Payload.of(csdResponse).openStream(Charset.defaultCharset()));
+
+        String entityID = null;
+        int depth = 0;
+        int entityDepth = -1;
+
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                if (event==XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    if (entityID==null && entityName.equals(reader.getLocalName())
+                            && CSDDirectory.CSD_NAMESPACE.equals(reader.getNamespaceURI())) {
+                        entityID = reader.getAttributeValue(null, "entityID");
+                        entityDepth = depth;
+                        if (entityID!=null) {
+                            entities.put("#" + entities.size(), entityID);
+                        }
+                    } else if (entityID!=null && depth==entityDepth+1 && "otherID".equals(reader.getLocalName())) {
+                        String code = reader.getAttributeValue(null, "code");
+                        String authority = reader.getAttributeValue(null, "assigningAuthorityName");
+                        entities.put(buildKey(code, authority), entityID);
+                    }
+                } else if (event==XMLStreamConstants.END_ELEMENT) {
+                    if (depth==entityDepth) {
+                        entityID = null;
+                        entityDepth = -1;
+                    }
+                    depth--;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return entities;
+    }
+
+    private void fail(List<PendingLookup> lookups, Throwable error) {
+        for (PendingLookup lookup : lookups) {
+            lookup.replyTo.tell(new LookupFailed(lookup.request, error), getSelf());
+        }
+    }
+
+    private void processResponse(MediatorHTTPResponse response) {
+        Batch batch = batchesInFlight.remove(response.getOriginalRequest().getCorrelationId());
+        if (batch==null) {
+            return;
+        }
+
+        //the connector sends the orchestration after the response
+        Set<ActorRef> handlers = new LinkedHashSet<>();
+        for (PendingLookup lookup : batch.lookups) {
+            handlers.add(lookup.request.getRequestHandler());
+        }
+        awaitingOrchestration.put(batch.id, handlers);
+
+        Map<String, String> entities;
+        try {
+            entities = parseEntities(response.getBody(), batch.type);
+        } catch (XMLStreamException ex) {
+            fail(batch.lookups, ex);
+            return;
+        }
+
+        Set<String> searched = new LinkedHashSet<>();
+        for (PendingLookup lookup : batch.lookups) {
+            Identifier id = lookup.request.getIdentifier();
+            searched.add(buildKey(id.getIdentifier(), id.getAssigningAuthority().getAssigningAuthorityId()));
+        }
+
+        for (PendingLookup lookup : batch.lookups) {
+            Identifier id = lookup.request.getIdentifier();
+            String entityID = entities.get(buildKey(id.getIdentifier(), id.getAssigningAuthority().getAssigningAuthorityId()));
+
+            if (entityID==null && searched.size()==1) {
+                //a search for a single identifier: the first entity is the result
+                entityID = entities.get("#0");
+            }
+
+            //an identifier the Infomanager doesn't know has no matching entity
+            lookup.replyTo.tell(new LookupResult(lookup.request, entityID), getSelf());
+        }
+    }
+
+    private void processOrchestration(BatchOrchestration msg) {
+        //record the combined request against every transaction in the batch
+        Set<ActorRef> handlers = awaitingOrchestration.remove(msg.batchId);
+        if (handlers!=null) {
+            for (ActorRef handler : handlers) {
+                handler.tell(msg.orchestration, getSelf());
+            }
+        }
+    }
+
+    private void processError(BatchFailed msg) {
+        Batch batch = batchesInFlight.remove(msg.batchId);
+        if (batch!=null) {
+            fail(batch.lookups, msg.error.getError());
+        }
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        for (Cancellable flush : scheduledFlushes.values()) {
+            flush.cancel();
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof Lookup) {
+            queue((Lookup) msg);
+        } else if (msg instanceof Flush) {
+            flush(((Flush) msg).type);
+        } else if (msg instanceof MediatorHTTPResponse) {
+            processResponse((MediatorHTTPResponse) msg);
+        } else if (msg instanceof BatchOrchestration) {
+            processOrchestration((BatchOrchestration) msg);
+        } else if (msg instanceof BatchFailed) {
+            processError((BatchFailed) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+}
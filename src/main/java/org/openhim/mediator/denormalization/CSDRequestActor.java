@@ -6,15 +6,18 @@
 
 package org.openhim.mediator.denormalization;
 
+import akka.actor.ActorRef;
 import akka.actor.ActorSelection;
 import akka.actor.UntypedActor;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
-import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpStatus;
+import org.openhim.mediator.Util;
+import org.openhim.mediator.XMLToolkit;
 import org.openhim.mediator.datatypes.AssigningAuthority;
 import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
 import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.engine.messages.FinishRequest;
 import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
@@ -24,16 +27,17 @@ import org.openhim.mediator.messages.*;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.WeakHashMap;
 
 /**
  * Messages supported:
@@ -41,31 +45,217 @@ import java.util.UUID;
  *     <li>ResolveHealthcareWorkerIdentifier - responds with ResolveHealthcareWorkerIdentifierResponse</li>
  *     <li>ResolveFacilityIdentifier - responds with ResolveFacilityIdentifierResponse</li>
  * </ul>
+ * <br/>
+ * Successfully resolved identifiers are kept in a cache shared by all instances of this actor
+ * if <code>ilr.cache.enabled</code> is set. Providers and facilities have separate time-to-live settings.
+ * Resolved identifiers are also written through to the {@link PersistentIdentifierStore}
+ * if <code>identifiers.store.path</code> is set.
+ * <br/><br/>
+ * If <code>ilr.directory.preload</code> is set, identifiers are first looked up in the local {@link CSDDirectory}
+ * and the CSD Infomanager is only queried if the identifier isn't found.
+ * <br/><br/>
+ * If <code>ilr.coalesce.enabled</code> is set, concurrent lookups for the same identifier are answered
+ * from a single CSD request (see {@link InFlightLookups}). Connector errors are therefore routed through this actor,
+ * so that the lookups waiting on a failed request are failed along with it.
+ * <br/><br/>
+ * If <code>ilr.batch.enabled</code> is set, lookups are sent to the {@link CSDLookupBatcherActor}
+ * to be combined with other lookups rather than queried individually.
  */
 public class CSDRequestActor extends UntypedActor {
     LoggingAdapter log = Logging.getLogger(getContext().system(), this);
 
     public static final String UUID_OID_AUTHORITY = "2.25";
+    public static final String PROVIDER_SEARCH_FUNCTION = "urn:ihe:iti:csd:2014:stored-function:provider-search";
+    public static final String FACILITY_SEARCH_FUNCTION = "urn:ihe:iti:csd:2014:stored-function:facility-search";
+
+    private static final int DEFAULT_CACHE_CAPACITY = 10000;
+    private static final long DEFAULT_PROVIDER_CACHE_TTL = 60 * 60 * 1000;
+    private static final long DEFAULT_FACILITY_CACHE_TTL = 24 * 60 * 60 * 1000;
+
+    private static final String STORE_KEY_PREFIX = "csd|";
+
+    private static final long DEFAULT_COALESCE_MAX_AGE = 30 * 1000;
+
+    //keyed by config, so that each config's cache settings are used
+    private static final Map<MediatorConfig, IdentifierCache> identifierCaches = new WeakHashMap<>();
+    private static final Map<MediatorConfig, InFlightLookups<BaseResolveIdentifier>> inFlightLookups = new WeakHashMap<>();
 
     private MediatorConfig config;
     private Map<String, BaseResolveIdentifier> originalRequests = new HashMap<>();
+    private ActorRef requestHandler;
 
 
     public CSDRequestActor(MediatorConfig config) {
         this.config = config;
     }
 
+    /**
+     * @return the provider and facility identifier cache shared by all CSD actors with the same config,
+     * or null if caching is disabled
+     */
+    public static synchronized IdentifierCache getIdentifierCache(MediatorConfig config) {
+        if (!Util.isPropertyTrue(config, "ilr.cache.enabled")) {
+            return null;
+        }
+        IdentifierCache cache = identifierCaches.get(config);
+        if (cache==null) {
+            cache = new IdentifierCache(
+                    Util.getIntegerProperty(config, "ilr.cache.capacity", DEFAULT_CACHE_CAPACITY),
+                    Util.getLongProperty(config, "ilr.cache.providerTTL", DEFAULT_PROVIDER_CACHE_TTL)
+            );
+            identifierCaches.put(config, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * @return the provider and facility identifier lookups in flight for all CSD actors with the same config,
+     * or null if coalescing is disabled
+     */
+    public static synchronized InFlightLookups<BaseResolveIdentifier> getInFlightLookups(MediatorConfig config) {
+        if (!Util.isPropertyTrue(config, "ilr.coalesce.enabled")) {
+            return null;
+        }
+        InFlightLookups<BaseResolveIdentifier> lookups = inFlightLookups.get(config);
+        if (lookups==null) {
+            lookups = new InFlightLookups<>(Util.getLongProperty(config, "ilr.coalesce.maxAge", DEFAULT_COALESCE_MAX_AGE));
+            inFlightLookups.put(config, lookups);
+        }
+        return lookups;
+    }
+
+    protected static String buildCacheKey(BaseResolveIdentifier msg) {
+        return determineQueryType(msg) + "|" + msg.getIdentifier().getIdentifier() + "|" + msg.getIdentifier().getAssigningAuthority().getAssigningAuthorityId();
+    }
+
+    private static String determineQueryType(BaseResolveIdentifier msg) {
+        if (msg instanceof ResolveHealthcareWorkerIdentifier) {
+            return "provider";
+        } else if (msg instanceof ResolveFacilityIdentifier) {
+            return "facility";
+        }
+        return "unknown";
+    }
+
+    private long determineCacheTTL(BaseResolveIdentifier msg) {
+        if (msg instanceof ResolveFacilityIdentifier) {
+            return Util.getLongProperty(config, "ilr.cache.facilityTTL", DEFAULT_FACILITY_CACHE_TTL);
+        }
+        return Util.getLongProperty(config, "ilr.cache.providerTTL", DEFAULT_PROVIDER_CACHE_TTL);
+    }
+
+    private PersistentIdentifierStore getIdentifierStore() {
+        try {
+            return PersistentIdentifierStore.getInstance(config);
+        } catch (IOException ex) {
+            log.error(ex, "Could not open the persistent identifier store");
+            return null;
+        }
+    }
+
+    private boolean respondFromCache(BaseResolveIdentifier msg) {
+        IdentifierCache cache = getIdentifierCache(config);
+        PersistentIdentifierStore store = getIdentifierStore();
+        String key = buildCacheKey(msg);
+
+        Identifier cached = null;
+        if (cache!=null) {
+            cached = cache.get(key);
+            if (log.isDebugEnabled()) {
+                log.debug("CSD identifier cache " + (cached!=null ? "hit" : "miss") + " (" + cache + ")");
+            }
+        }
+        if (cached==null && store!=null) {
+            cached = store.get(STORE_KEY_PREFIX + key);
+            if (cached!=null && cache!=null) {
+                cache.put(key, cached, determineCacheTTL(msg));
+            }
+        }
+        if (cached==null) {
+            return false;
+        }
+
+        log.info("Resolved " + determineQueryType(msg) + " identifier from cache");
+        msg.getRespondTo().tell(buildResponse(msg, cached), getSelf());
+        return true;
+    }
+
+    private boolean respondFromDirectory(BaseResolveIdentifier msg) {
+        if (!Util.isPropertyTrue(config, "ilr.directory.preload") || !CSDDirectory.getInstance().isLoaded()) {
+            return false;
+        }
+
+        CSDDirectory.EntityType type = msg instanceof ResolveFacilityIdentifier ? CSDDirectory.EntityType.FACILITY : CSDDirectory.EntityType.PROVIDER;
+        String entityID = CSDDirectory.getInstance().lookup(
+                type, msg.getIdentifier().getIdentifier(), msg.getIdentifier().getAssigningAuthority().getAssigningAuthorityId()
+        );
+        if (entityID==null) {
+            return false;
+        }
+
+        try {
+            log.info("Resolved " + determineQueryType(msg) + " identifier from local CSD directory");
+            msg.getRespondTo().tell(buildResponse(msg, buildIdentifier(entityID)), getSelf());
+            return true;
+        } catch (ValidationException ex) {
+            log.warning("Local CSD directory contains an unsupported entityID: " + entityID);
+            return false;
+        }
+    }
+
+    private boolean respondLocally(BaseResolveIdentifier msg) {
+        return respondFromDirectory(msg) || respondFromCache(msg);
+    }
+
+    private void cacheResolvedIdentifier(BaseResolveIdentifier msg, Identifier resolved) {
+        if (resolved==null) {
+            return;
+        }
+
+        IdentifierCache cache = getIdentifierCache(config);
+        if (cache!=null) {
+            cache.put(buildCacheKey(msg), resolved, determineCacheTTL(msg));
+        }
+
+        PersistentIdentifierStore store = getIdentifierStore();
+        if (store!=null) {
+            store.put(STORE_KEY_PREFIX + buildCacheKey(msg), resolved, determineCacheTTL(msg));
+        }
+    }
+
+    /**
+     * @return true if an identical lookup is already in flight and this request will be answered along with it
+     */
+    private boolean attachToLookupInFlight(BaseResolveIdentifier msg) {
+        InFlightLookups<BaseResolveIdentifier> lookups = getInFlightLookups(config);
+        if (lookups!=null && lookups.attach(buildCacheKey(msg), msg)) {
+            log.info("Identical " + determineQueryType(msg) + " identifier lookup in flight. Waiting for its response");
+            return true;
+        }
+        return false;
+    }
+
+    private List<BaseResolveIdentifier> completeLookupInFlight(BaseResolveIdentifier msg) {
+        InFlightLookups<BaseResolveIdentifier> lookups = getInFlightLookups(config);
+        if (lookups==null) {
+            return Collections.emptyList();
+        }
+        return lookups.complete(buildCacheKey(msg));
+    }
+
     private void sendCSDRequest(String request, BaseResolveIdentifier originalRequest) {
         ActorSelection httpConnector = getContext().actorSelection(config.userPathFor("http-connector"));
 
         String correlationId = UUID.randomUUID().toString();
         originalRequests.put(correlationId, originalRequest);
+        //the connector reports errors to the request handler, so this actor takes its place (see processConnectorError)
+        requestHandler = originalRequest.getRequestHandler();
 
         Map<String, String> headers = new HashMap<>();
         headers.put("Content-Type", "application/xml");
 
         MediatorHTTPRequest httpRequest = new MediatorHTTPRequest(
-                originalRequest.getRequestHandler(),
+                getSelf(),
                 getSelf(),
                 determineOrchestration(originalRequest),
                 "POST",
@@ -91,28 +281,44 @@ public class CSDRequestActor extends UntypedActor {
         return "CSD";
     }
 
+    protected static String buildCareServicesRequest(String functionUrn, List<Identifier> identifiers) {
+        StringBuilder request = new StringBuilder();
+        request.append("<careServicesRequest xmlns='urn:ihe:iti:csd:2013'>\n");
+        request.append("	<function urn='").append(functionUrn).append("'>\n");
+        request.append("		<requestParams>\n");
+        for (Identifier id : identifiers) {
+            request.append("			<otherID code='").append(id.getIdentifier())
+                    .append("' assigningAuthorityName='").append(id.getAssigningAuthority().getAssigningAuthorityId()).append("'/>\n");
+        }
+        request.append("		</requestParams>\n");
+        request.append("	</function>\n");
+        request.append("</careServicesRequest>");
+        return request.toString();
+    }
+
     private void sendResolveHealthcareWorkerIdentifierRequest(ResolveHealthcareWorkerIdentifier msg) {
-        String csdTemplate = "<careServicesRequest xmlns='urn:ihe:iti:csd:2013'>\n"
-                + "	<function urn='urn:ihe:iti:csd:2014:stored-function:provider-search'>\n"
-                + "		<requestParams>\n"
-                + "			<otherID code='" + msg.getIdentifier().getIdentifier() + "' assigningAuthorityName='" + msg.getIdentifier().getAssigningAuthority().getAssigningAuthorityId() + "'/>\n"
-                + "		</requestParams>\n"
-                + "	</function>\n"
-                + "</careServicesRequest>";
+        if (Util.isPropertyTrue(config, "ilr.batch.enabled")) {
+            sendToBatcher(msg);
+            return;
+        }
 
-        sendCSDRequest(csdTemplate, msg);
+        String csdRequest = buildCareServicesRequest(PROVIDER_SEARCH_FUNCTION, Collections.singletonList(msg.getIdentifier()));
+        sendCSDRequest(csdRequest, msg);
     }
 
     private void sendResolveFacilityIdentifierRequest(ResolveFacilityIdentifier msg) {
-        String csdTemplate = "<careServicesRequest xmlns='urn:ihe:iti:csd:2013'>\n"
-                + "	<function urn='urn:ihe:iti:csd:2014:stored-function:facility-search'>\n"
-                + "		<requestParams>\n"
-                + "			<otherID code='" + msg.getIdentifier().getIdentifier() + "' assigningAuthorityName='" + msg.getIdentifier().getAssigningAuthority().getAssigningAuthorityId() + "'/>\n"
-                + "		</requestParams>\n"
-                + "	</function>\n"
-                + "</careServicesRequest>";
+        if (Util.isPropertyTrue(config, "ilr.batch.enabled")) {
+            sendToBatcher(msg);
+            return;
+        }
+
+        String csdRequest = buildCareServicesRequest(FACILITY_SEARCH_FUNCTION, Collections.singletonList(msg.getIdentifier()));
+        sendCSDRequest(csdRequest, msg);
+    }
 
-        sendCSDRequest(csdTemplate, msg);
+    private void sendToBatcher(BaseResolveIdentifier msg) {
+        ActorSelection batcher = getContext().actorSelection(config.userPathFor("csd-lookup-batcher"));
+        batcher.tell(new CSDLookupBatcherActor.Lookup(msg), getSelf());
     }
 
     private String getXPAthExpressionForQueryType(BaseResolveIdentifier query) throws XPathExpressionException {
@@ -148,7 +354,11 @@ public class CSDRequestActor extends UntypedActor {
         if (resolvedId!=null && !resolvedId.isEmpty()) {
             id = buildIdentifier(resolvedId);
         }
+        cacheResolvedIdentifier(originalRequest, id);
+        return buildResponse(originalRequest, id);
+    }
 
+    private BaseResolveIdentifierResponse buildResponse(BaseResolveIdentifier originalRequest, Identifier id) {
         if (originalRequest instanceof ResolveHealthcareWorkerIdentifier) {
             return new ResolveHealthcareWorkerIdentifierResponse(originalRequest, id);
         } else if (originalRequest instanceof ResolveFacilityIdentifier) {
@@ -163,18 +373,63 @@ public class CSDRequestActor extends UntypedActor {
         String csdResponse = response.getBody();
 
         try {
-            DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-            Document doc = builder.parse(IOUtils.toInputStream(csdResponse));
-            XPath xpath = XPathFactory.newInstance().newXPath();
-            String resolvedId = xpath.compile(getXPAthExpressionForQueryType(originalRequest)).evaluate(doc);
+            Document doc = XMLToolkit.parse(csdResponse);
+            String resolvedId = XMLToolkit.evaluate(getXPAthExpressionForQueryType(originalRequest), doc);
 
+            respondWithResolvedId(originalRequest, resolvedId);
+        } catch (ParserConfigurationException | SAXException | IOException | XPathExpressionException ex) {
+            originalRequest.getRequestHandler().tell(new ExceptError(ex), getSelf());
+            for (BaseResolveIdentifier request : completeLookupInFlight(originalRequest)) {
+                request.getRequestHandler().tell(new ExceptError(ex), getSelf());
+            }
+        }
+    }
+
+    private void respondWithResolvedId(BaseResolveIdentifier originalRequest, String resolvedId) {
+        List<BaseResolveIdentifier> attached = completeLookupInFlight(originalRequest);
+
+        try {
             BaseResolveIdentifierResponse finalResponse = buildResponse(originalRequest, resolvedId);
             originalRequest.getRespondTo().tell(finalResponse, getSelf());
+            for (BaseResolveIdentifier request : attached) {
+                request.getRespondTo().tell(buildResponse(request, finalResponse.getIdentifier()), getSelf());
+            }
         } catch (ValidationException ex) {
             FinishRequest fr = new FinishRequest(ex.getMessage(), "text/plain", HttpStatus.SC_BAD_REQUEST);
             originalRequest.getRequestHandler().tell(fr, getSelf());
-        } catch (ParserConfigurationException | SAXException | IOException | XPathExpressionException ex) {
-            originalRequest.getRequestHandler().tell(new ExceptError(ex), getSelf());
+            for (BaseResolveIdentifier request : attached) {
+                request.getRequestHandler().tell(fr, getSelf());
+            }
+        }
+    }
+
+    private void processLookupFailed(CSDLookupBatcherActor.LookupFailed msg) {
+        ExceptError error = new ExceptError(msg.getError());
+        msg.getLookup().getRequestHandler().tell(error, getSelf());
+        for (BaseResolveIdentifier request : completeLookupInFlight(msg.getLookup())) {
+            request.getRequestHandler().tell(error, getSelf());
+        }
+    }
+
+    /**
+     * Connector errors don't identify the request that failed, and fail the orchestration anyway,
+     * so all outstanding requests are failed along with the lookups waiting on them.
+     */
+    private void processConnectorError(ExceptError msg) {
+        Set<ActorRef> handlers = new LinkedHashSet<>();
+        if (requestHandler!=null) {
+            handlers.add(requestHandler);
+        }
+        for (BaseResolveIdentifier originalRequest : originalRequests.values()) {
+            handlers.add(originalRequest.getRequestHandler());
+            for (BaseResolveIdentifier attached : completeLookupInFlight(originalRequest)) {
+                handlers.add(attached.getRequestHandler());
+            }
+        }
+        originalRequests.clear();
+
+        for (ActorRef handler : handlers) {
+            handler.tell(msg, getSelf());
         }
     }
 
@@ -186,7 +441,9 @@ public class CSDRequestActor extends UntypedActor {
                 log.debug("Healthcare Worker ID: " + ((ResolveHealthcareWorkerIdentifier) msg).getIdentifier());
             }
 
-            sendResolveHealthcareWorkerIdentifierRequest((ResolveHealthcareWorkerIdentifier) msg);
+            if (!respondLocally((ResolveHealthcareWorkerIdentifier) msg) && !attachToLookupInFlight((ResolveHealthcareWorkerIdentifier) msg)) {
+                sendResolveHealthcareWorkerIdentifierRequest((ResolveHealthcareWorkerIdentifier) msg);
+            }
 
         } else if (msg instanceof ResolveFacilityIdentifier) {
             log.info("Received request to resolve facility id in the '" + ((ResolveFacilityIdentifier) msg).getTargetAssigningAuthority() + "' domain");
@@ -194,10 +451,21 @@ public class CSDRequestActor extends UntypedActor {
                 log.debug("Facility ID: " + ((ResolveFacilityIdentifier) msg).getIdentifier());
             }
 
-            sendResolveFacilityIdentifierRequest((ResolveFacilityIdentifier) msg);
+            if (!respondLocally((ResolveFacilityIdentifier) msg) && !attachToLookupInFlight((ResolveFacilityIdentifier) msg)) {
+                sendResolveFacilityIdentifierRequest((ResolveFacilityIdentifier) msg);
+            }
 
         } else if (msg instanceof MediatorHTTPResponse) {
             processHTTPResponse((MediatorHTTPResponse) msg);
+        } else if (msg instanceof CSDLookupBatcherActor.LookupResult) {
+            CSDLookupBatcherActor.LookupResult result = (CSDLookupBatcherActor.LookupResult) msg;
+            respondWithResolvedId(result.getLookup(), result.getEntityID());
+        } else if (msg instanceof CSDLookupBatcherActor.LookupFailed) {
+            processLookupFailed((CSDLookupBatcherActor.LookupFailed) msg);
+        } else if (msg instanceof ExceptError) {
+            processConnectorError((ExceptError) msg);
+        } else if (msg instanceof AddOrchestrationToCoreResponse && requestHandler!=null) {
+            requestHandler.forward(msg, getContext());
         } else {
             unhandled(msg);
         }
@@ -9,7 +9,8 @@ package org.openhim.mediator.denormalization;
 import akka.actor.UntypedActor;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
-import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.Payload;
+import org.openhim.mediator.XMLToolkit;
 import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.messages.EnrichRegistryStoredQuery;
@@ -23,6 +24,7 @@ import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.nio.charset.Charset;
 
 /**
  * Enriches registry stored query messages.
@@ -38,10 +40,10 @@ public class EnrichRegistryStoredQueryActor extends UntypedActor {
 
 
     private String enrichStoredQueryXML(Identifier id, InputStream xml) throws XMLStreamException {
-        XMLEventReader reader = XMLInputFactory.newInstance().createXMLEventReader(xml);
+        XMLEventReader reader = XMLToolkit.getInputFactory().createXMLEventReader(xml);
         StringWriter output = new StringWriter();
-        XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(output);
-        XMLEventFactory eventFactory = XMLEventFactory.newFactory();
+        XMLEventWriter writer = XMLToolkit.getOutputFactory().createXMLEventWriter(output);
+        XMLEventFactory eventFactory = XMLToolkit.getEventFactory();
 
         String curSlot = null;
         boolean patientIdSlot = false;
@@ -78,7 +80,7 @@ public class EnrichRegistryStoredQueryActor extends UntypedActor {
 
     private void enrichMessage(EnrichRegistryStoredQuery msg) {
         try {
-            String enrichedMessage = enrichStoredQueryXML(msg.getPatientID(), IOUtils.toInputStream(msg.getOriginalRequest()));
+            String enrichedMessage = enrichStoredQueryXML(msg.getPatientID(), Payload.of(msg.getOriginalRequest()).openStream(Charset.defaultCharset()));
             EnrichRegistryStoredQueryResponse response = new EnrichRegistryStoredQueryResponse(msg, enrichedMessage);
             msg.getRespondTo().tell(response, getSelf());
         } catch (XMLStreamException ex) {
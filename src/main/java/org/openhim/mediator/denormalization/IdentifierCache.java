@@ -0,0 +1,167 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.openhim.mediator.datatypes.Identifier;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe cache for resolved identifiers.
+ * <br/><br/>
+ * Entries are evicted in least-recently-used order once the capacity is reached
+ * and are dropped on access once their time-to-live has passed.
+ */
+public class IdentifierCache {
+
+    private static class Entry {
+        final Identifier value;
+        final long expiresAt;
+
+        Entry(Identifier value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int capacity;
+    private final long defaultTTL;
+    private final Map<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+
+    /**
+     * @param capacity the maximum number of entries to hold
+     * @param defaultTTL the time-to-live for entries in milliseconds
+     */
+    public IdentifierCache(final int capacity, long defaultTTL) {
+        this.capacity = capacity;
+        this.defaultTTL = defaultTTL;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > IdentifierCache.this.capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+
+    /**
+     * @return the cached identifier for the key, or null if there is no live entry
+     */
+    public synchronized Identifier get(String key) {
+        Entry entry = entries.get(key);
+        if (entry==null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(key);
+            expirations.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    public void put(String key, Identifier value) {
+        put(key, value, defaultTTL);
+    }
+
+    /**
+     * Cache an identifier with a specific time-to-live (in milliseconds). Null values are not cached.
+     */
+    public synchronized void put(String key, Identifier value, long ttl) {
+        if (value==null || ttl<=0 || capacity<=0) {
+            return;
+        }
+        entries.put(key, new Entry(value, System.currentTimeMillis() + ttl));
+    }
+
+    public synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Remove all entries that map to a specific identifier.
+     * Values are compared with {@link Identifier#matches(Identifier)}, so differences in CX shape are ignored.
+     *
+     * @return the number of entries removed
+     */
+    public synchronized int removeValue(Identifier value) {
+        int removed = 0;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().value.matches(value)) {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Remove all entries and reset the statistics
+     */
+    public synchronized void clear() {
+        entries.clear();
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+        expirations.set(0);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getDefaultTTL() {
+        return defaultTTL;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "size=%d/%d hits=%d misses=%d evictions=%d expirations=%d",
+                size(), capacity, getHits(), getMisses(), getEvictions(), getExpirations()
+        );
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks identifier lookups that are in flight, so that concurrent lookups for the same identifier
+ * can wait for the first one instead of each querying the upstream service.
+ * <br/><br/>
+ * The first lookup for a key performs the query and must call {@link #complete(String)} once it's done,
+ * answering the lookups that were attached in the meantime. If a lookup isn't completed within
+ * <code>maxAge</code> milliseconds (e.g. because the upstream connection failed), the next lookup for the key
+ * performs the query itself and takes over the attached lookups.
+ */
+public class InFlightLookups<M> {
+
+    private static class Flight<M> {
+        final long startedAt = System.currentTimeMillis();
+        final List<M> attached = new ArrayList<>();
+    }
+
+    private final long maxAge;
+    private final Map<String, Flight<M>> flights = new HashMap<>();
+
+
+    /**
+     * @param maxAge the time (in milliseconds) after which a lookup that wasn't completed is no longer waited on
+     */
+    public InFlightLookups(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+
+    /**
+     * @return true if the lookup was attached to a lookup already in flight,
+     * or false if the caller should perform the query and complete it afterwards
+     */
+    public synchronized boolean attach(String key, M lookup) {
+        Flight<M> flight = flights.get(key);
+        if (flight!=null && System.currentTimeMillis() - flight.startedAt < maxAge) {
+            flight.attached.add(lookup);
+            return true;
+        }
+
+        Flight<M> newFlight = new Flight<>();
+        if (flight!=null) {
+            newFlight.attached.addAll(flight.attached);
+        }
+        flights.put(key, newFlight);
+        return false;
+    }
+
+    /**
+     * Complete the lookup for a key.
+     *
+     * @return the lookups that were attached and need to be answered
+     */
+    public synchronized List<M> complete(String key) {
+        Flight<M> flight = flights.remove(key);
+        return flight!=null ? flight.attached : Collections.<M>emptyList();
+    }
+
+    /**
+     * @return the number of lookups in flight
+     */
+    public synchronized int size() {
+        return flights.size();
+    }
+
+    public synchronized void clear() {
+        flights.clear();
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+/**
+ * A long-lived MLLP connection that supports multiple outstanding messages.
+ * <br/><br/>
+ * Responses are matched to requests using the message control id that is acknowledged in MSA-2.
+ * A response without MSA-2 is only matched if a single message is outstanding on its socket.
+ * Responses that can't be matched are reported to the listener and otherwise dropped,
+ * leaving the messages to time out rather than handing them a response to another message.
+ * <br/><br/>
+ * If a write fails, only the message being written fails. The socket is no longer written to,
+ * but responses to the messages already sent on it are still read until it closes
+ * (TLS sockets can't be half-closed, so those messages fail along with it).
+ * <br/><br/>
+ * Connecting and writing hold a lock that {@link #isConnected()} and {@link #close(Throwable)} never take,
+ * so checking or closing the connection doesn't wait for a connect or write in progress.
+ */
+public class MLLPConnection {
+
+    public interface Listener {
+        void onResponse(MediatorSocketRequest request, String response);
+        void onFailure(MediatorSocketRequest request, Throwable cause);
+        void onUnmatchedResponse(String acknowledgedControlId);
+    }
+
+    private static class Outstanding {
+        final MediatorSocketRequest request;
+        final Socket socket;
+        final long sentAt = System.currentTimeMillis();
+
+        Outstanding(MediatorSocketRequest request, Socket socket) {
+            this.request = request;
+            this.socket = socket;
+        }
+    }
+
+    private static class Submission {
+        final String controlId;
+        final MediatorSocketRequest request;
+
+        Submission(String controlId, MediatorSocketRequest request) {
+            this.controlId = controlId;
+            this.request = request;
+        }
+    }
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int START_BLOCK = 0x0b;
+    private static final int END_BLOCK = 0x1c;
+    private static final int CARRIAGE_RETURN = 0x0d;
+
+    private final String host;
+    private final int port;
+    private final boolean secure;
+    private final int connectTimeout;
+    private final Listener listener;
+
+    //the socket new messages are written to, or null if the next message should connect
+    private final AtomicReference<Socket> socket = new AtomicReference<>();
+    //held while connecting and writing
+    private final Object writeLock = new Object();
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    private final Map<String, Outstanding> outstanding = new ConcurrentHashMap<>();
+    //messages waiting to be written, in submission order (guarded by itself)
+    private final Queue<Submission> queued = new ArrayDeque<>();
+    private boolean writing;
+
+
+    public MLLPConnection(String host, int port, boolean secure, int connectTimeout, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.secure = secure;
+        this.connectTimeout = connectTimeout;
+        this.listener = listener;
+    }
+
+
+    private Socket connect() throws IOException {
+        final Socket s = secure ? SSLSocketFactory.getDefault().createSocket() : new Socket();
+        s.connect(new InetSocketAddress(host, port), connectTimeout);
+        s.setKeepAlive(true);
+        s.setTcpNoDelay(true);
+        socket.set(s);
+
+        final InputStream in = s.getInputStream();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readResponses(s, in);
+            }
+        }, "mllp-" + host + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+        return s;
+    }
+
+    /**
+     * Send a message, connecting if necessary.
+     *
+     * @param controlId the message control id (MSH-10) of the message
+     */
+    public void send(String controlId, MediatorSocketRequest request) throws IOException {
+        synchronized (writeLock) {
+            Socket s = socket.get();
+            if (!isOpen(s)) {
+                s = connect();
+            }
+
+            outstanding.put(controlId, new Outstanding(request, s));
+            try {
+                OutputStream out = s.getOutputStream();
+                out.write(START_BLOCK);
+                out.write(request.getBody().getBytes(CHARSET));
+                out.write(END_BLOCK);
+                out.write(CARRIAGE_RETURN);
+                out.flush();
+                lastActivity = System.currentTimeMillis();
+            } catch (IOException ex) {
+                outstanding.remove(controlId);
+                abandon(s);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Send a message on an executor, so that connecting and writing don't block the caller.
+     * Messages are written one at a time in the order they were submitted, and count as outstanding from the moment
+     * they're submitted. If a write fails, it's retried once on a new socket before the listener is notified of the failure.
+     */
+    public void send(String controlId, MediatorSocketRequest request, Executor executor) {
+        synchronized (queued) {
+            queued.add(new Submission(controlId, request));
+            if (writing) {
+                return;
+            }
+            writing = true;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Submission next;
+                while (true) {
+                    synchronized (queued) {
+                        next = queued.peek();
+                        if (next==null) {
+                            writing = false;
+                            return;
+                        }
+                    }
+                    write(next);
+                    synchronized (queued) {
+                        queued.remove();
+                    }
+                }
+            }
+        });
+    }
+
+    private void write(Submission submission) {
+        try {
+            try {
+                send(submission.controlId, submission.request);
+            } catch (IOException ex) {
+                //the socket may have been closed by the server
+                send(submission.controlId, submission.request);
+            }
+        } catch (IOException | RuntimeException ex) {
+            listener.onFailure(submission.request, ex);
+        }
+    }
+
+    /**
+     * Stop writing to the current socket, so that the next message is sent on a new one.
+     * The socket's reader closes it once the responses to the messages already sent have been read.
+     */
+    private void abandon(Socket s) {
+        socket.compareAndSet(s, null);
+        try {
+            s.shutdownOutput();
+        } catch (IOException | UnsupportedOperationException ex) {
+            //SSL sockets don't support half-closing
+            closeQuietly(s);
+        }
+    }
+
+    private void readResponses(Socket s, InputStream in) {
+        try {
+            String frame;
+            while ((frame = readFrame(in)) != null) {
+                lastActivity = System.currentTimeMillis();
+                dispatch(s, frame);
+            }
+            close(s, new IOException("Connection closed by " + host + ":" + port));
+        } catch (IOException ex) {
+            close(s, ex);
+        }
+    }
+
+    private static String readFrame(InputStream in) throws IOException {
+        int b;
+        do {
+            b = in.read();
+            if (b == -1) {
+                return null;
+            }
+        } while (b != START_BLOCK);
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(1024);
+        while ((b = in.read()) != -1) {
+            if (b == END_BLOCK) {
+                in.read(); //trailing carriage return
+                return new String(frame.toByteArray(), CHARSET);
+            }
+            frame.write(b);
+        }
+        return null;
+    }
+
+    /**
+     * @return the value of MSA-2 (the acknowledged message control id) or null if not present
+     */
+    protected static String parseAcknowledgedControlId(String message) {
+        if (message.length() < 4 || !message.startsWith("MSH")) {
+            return null;
+        }
+        String fieldSeparator = String.valueOf(message.charAt(3));
+
+        for (String segment : message.split("[\r\n]+")) {
+            if (segment.startsWith("MSA" + fieldSeparator)) {
+                String[] fields = segment.split(Pattern.quote(fieldSeparator));
+                return fields.length > 2 ? fields[2] : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the value of MSH-10 (the message control id) or null if not present
+     */
+    protected static String parseControlId(String message) {
+        if (message.length() < 4 || !message.startsWith("MSH")) {
+            return null;
+        }
+        String fieldSeparator = String.valueOf(message.charAt(3));
+        String msh = message.split("[\r\n]+")[0];
+        //MSH-1 is the field separator itself, so MSH-10 is at index 9
+        String[] fields = msh.split(Pattern.quote(fieldSeparator));
+        return fields.length > 9 ? fields[9] : null;
+    }
+
+    private void dispatch(Socket s, String response) {
+        String controlId = parseAcknowledgedControlId(response);
+        String matched = controlId;
+
+        if (controlId==null) {
+            //without MSA-2 the response can only be matched if a single message is outstanding
+            matched = null;
+            for (Map.Entry<String, Outstanding> entry : outstanding.entrySet()) {
+                if (entry.getValue().socket==s) {
+                    if (matched!=null) {
+                        matched = null;
+                        break;
+                    }
+                    matched = entry.getKey();
+                }
+            }
+        }
+
+        Outstanding match = matched!=null ? outstanding.remove(matched) : null;
+        if (match!=null) {
+            listener.onResponse(match.request, response);
+        } else {
+            listener.onUnmatchedResponse(controlId);
+        }
+    }
+
+    /**
+     * Close a socket, failing the messages outstanding on it
+     */
+    private void close(Socket s, Throwable cause) {
+        socket.compareAndSet(s, null);
+        closeQuietly(s);
+
+        Iterator<Map.Entry<String, Outstanding>> it = outstanding.entrySet().iterator();
+        while (it.hasNext()) {
+            Outstanding o = it.next().getValue();
+            if (o.socket==s) {
+                it.remove();
+                listener.onFailure(o.request, cause);
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket s) {
+        if (s!=null) {
+            try {
+                s.close();
+            } catch (IOException ex) {
+                //closing anyway
+            }
+        }
+    }
+
+    /**
+     * Close the connection, failing all outstanding messages.
+     */
+    public void close(Throwable cause) {
+        Set<Socket> sockets = new HashSet<>();
+        Socket current = socket.get();
+        if (current!=null) {
+            sockets.add(current);
+        }
+        for (Outstanding o : outstanding.values()) {
+            sockets.add(o.socket);
+        }
+        for (Socket s : sockets) {
+            close(s, cause);
+        }
+    }
+
+    public boolean isConnected() {
+        return isOpen(socket.get());
+    }
+
+    private static boolean isOpen(Socket s) {
+        return s!=null && s.isConnected() && !s.isClosed();
+    }
+
+    public int getOutstanding() {
+        synchronized (queued) {
+            return outstanding.size() + queued.size();
+        }
+    }
+
+    /**
+     * @return the age (in milliseconds) of the oldest outstanding message, or 0 if there are none
+     */
+    public long getOldestOutstandingAge() {
+        long now = System.currentTimeMillis();
+        long oldest = 0;
+        for (Outstanding o : outstanding.values()) {
+            oldest = Math.max(oldest, now - o.sentAt);
+        }
+        return oldest;
+    }
+
+    public long getIdleTime() {
+        return System.currentTimeMillis() - lastActivity;
+    }
+}
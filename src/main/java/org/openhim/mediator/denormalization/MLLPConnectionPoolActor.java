@@ -0,0 +1,219 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.Util;
+import org.openhim.mediator.engine.CoreResponse;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+import org.openhim.mediator.engine.messages.MediatorSocketResponse;
+import scala.concurrent.duration.Duration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A connector that keeps a pool of long-lived MLLP connections, for use in place of the engine's mllp-connector.
+ * <br/><br/>
+ * Up to <code>pix.pool.size</code> connections are opened per host, and messages are sent on the connection with
+ * the fewest outstanding messages without waiting for earlier responses (pipelining).
+ * Connections are checked every <code>pix.pool.healthCheckInterval</code> milliseconds: idle connections are closed
+ * after <code>pix.pool.idleTimeout</code> and connections that haven't responded within
+ * <code>pix.pool.responseTimeout</code> are reset. Closed connections are reopened on the next message.
+ * <br/><br/>
+ * Connecting, the TLS handshake and writes block, so they run on the <code>mllp-dispatcher</code>
+ * (see application.conf) rather than on this actor's dispatcher.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ *     <li>MediatorSocketRequest - responds with MediatorSocketResponse, in the same way as the engine's mllp-connector</li>
+ * </ul>
+ */
+public class MLLPConnectionPoolActor extends UntypedActor {
+
+    private static class HealthCheck {}
+
+    public static final String DISPATCHER = "mllp-dispatcher";
+
+    private static final int DEFAULT_POOL_SIZE = 2;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+    private static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+    private static final long DEFAULT_RESPONSE_TIMEOUT = 60 * 1000;
+    private static final long DEFAULT_HEALTH_CHECK_INTERVAL = 10 * 1000;
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final Map<String, List<MLLPConnection>> pools = new HashMap<>();
+    private Cancellable healthChecks;
+
+    //responses are received on the connection threads
+    private final ActorRef self = getSelf();
+    private final MLLPConnection.Listener listener = new MLLPConnection.Listener() {
+        @Override
+        public void onResponse(MediatorSocketRequest request, String response) {
+            MediatorSocketResponse socketResponse = new MediatorSocketResponse(request, response);
+            request.getRespondTo().tell(socketResponse, self);
+            if (request.getOrchestration()!=null) {
+                request.getRequestHandler().tell(new AddOrchestrationToCoreResponse(buildOrchestration(request, response)), self);
+            }
+        }
+
+        @Override
+        public void onFailure(MediatorSocketRequest request, Throwable cause) {
+            request.getRequestHandler().tell(new ExceptError(cause), self);
+        }
+
+        @Override
+        public void onUnmatchedResponse(String acknowledgedControlId) {
+            log.warning("Dropped MLLP response that doesn't acknowledge an outstanding message (MSA-2: " + acknowledgedControlId + ")");
+        }
+    };
+
+
+    public MLLPConnectionPoolActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    private static String wrapMLLP(String body) {
+        return (char) 0x0b + body + (char) 0x1c + (char) 0x0d;
+    }
+
+    private static CoreResponse.Orchestration buildOrchestration(MediatorSocketRequest request, String response) {
+        CoreResponse.Orchestration orchestration = new CoreResponse.Orchestration();
+        orchestration.setName(request.getOrchestration());
+
+        CoreResponse.Request orchestrationRequest = new CoreResponse.Request();
+        orchestrationRequest.setBody(wrapMLLP(request.getBody()));
+        orchestrationRequest.setTimestamp(new Date());
+        orchestration.setRequest(orchestrationRequest);
+
+        CoreResponse.Response orchestrationResponse = new CoreResponse.Response();
+        orchestrationResponse.setBody(wrapMLLP(response));
+        orchestrationResponse.setTimestamp(new Date());
+        orchestration.setResponse(orchestrationResponse);
+
+        return orchestration;
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        long interval = Util.getLongProperty(config, "pix.pool.healthCheckInterval", DEFAULT_HEALTH_CHECK_INTERVAL);
+        healthChecks = getContext().system().scheduler().schedule(
+                Duration.create(interval, TimeUnit.MILLISECONDS), Duration.create(interval, TimeUnit.MILLISECONDS),
+                getSelf(), new HealthCheck(), getContext().dispatcher(), getSelf()
+        );
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        if (healthChecks!=null) {
+            healthChecks.cancel();
+        }
+        for (List<MLLPConnection> pool : pools.values()) {
+            for (MLLPConnection connection : pool) {
+                connection.close(new IOException("Connection pool stopped"));
+            }
+        }
+    }
+
+    private List<MLLPConnection> getPool(MediatorSocketRequest request) {
+        String key = request.getHost() + ":" + request.getPort() + (request.isSecure() ? ":secure" : "");
+        List<MLLPConnection> pool = pools.get(key);
+        if (pool==null) {
+            pool = new ArrayList<>();
+            int size = Util.getIntegerProperty(config, "pix.pool.size", DEFAULT_POOL_SIZE);
+            int connectTimeout = Util.getIntegerProperty(config, "pix.pool.connectTimeout", DEFAULT_CONNECT_TIMEOUT);
+            for (int i=0; i<Math.max(size, 1); i++) {
+                pool.add(new MLLPConnection(request.getHost(), request.getPort(), request.isSecure(), connectTimeout, listener));
+            }
+            pools.put(key, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Prefer connections that are already open, then the one with the fewest outstanding messages.
+     */
+    private static MLLPConnection selectConnection(List<MLLPConnection> pool) {
+        MLLPConnection best = null;
+        for (MLLPConnection connection : pool) {
+            if (best==null) {
+                best = connection;
+            } else if (connection.isConnected() && !best.isConnected()) {
+                best = connection;
+            } else if (connection.isConnected()==best.isConnected() && connection.getOutstanding() < best.getOutstanding()) {
+                best = connection;
+            }
+        }
+
+        if (best.isConnected() && best.getOutstanding() > 0) {
+            //open another connection rather than pipelining if the pool isn't full yet
+            for (MLLPConnection connection : pool) {
+                if (!connection.isConnected()) {
+                    return connection;
+                }
+            }
+        }
+        return best;
+    }
+
+    private void send(MediatorSocketRequest request) {
+        String controlId = MLLPConnection.parseControlId(request.getBody());
+        if (controlId==null || controlId.isEmpty()) {
+            controlId = request.getCorrelationId();
+        }
+
+        List<MLLPConnection> pool = getPool(request);
+        MLLPConnection connection = selectConnection(pool);
+        connection.send(controlId, request, getContext().system().dispatchers().lookup(DISPATCHER));
+    }
+
+    private void checkHealth() {
+        long idleTimeout = Util.getLongProperty(config, "pix.pool.idleTimeout", DEFAULT_IDLE_TIMEOUT);
+        long responseTimeout = Util.getLongProperty(config, "pix.pool.responseTimeout", DEFAULT_RESPONSE_TIMEOUT);
+
+        for (List<MLLPConnection> pool : pools.values()) {
+            for (MLLPConnection connection : pool) {
+                if (!connection.isConnected()) {
+                    continue;
+                }
+                if (connection.getOldestOutstandingAge() > responseTimeout) {
+                    log.warning("No response on pooled MLLP connection within " + responseTimeout + "ms. Resetting connection.");
+                    connection.close(new TimeoutException("No response received within " + responseTimeout + "ms"));
+                } else if (connection.getOutstanding()==0 && connection.getIdleTime() > idleTimeout) {
+                    connection.close(new IOException("Idle connection closed"));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorSocketRequest) {
+            send((MediatorSocketRequest) msg);
+        } else if (msg instanceof HealthCheck) {
+            checkHealth();
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -20,12 +20,15 @@ import ca.uhn.hl7v2.model.v25.segment.MSH;
 import ca.uhn.hl7v2.parser.GenericParser;
 import ca.uhn.hl7v2.parser.Parser;
 import ca.uhn.hl7v2.util.Terser;
+import org.openhim.mediator.AuditPayloadPolicy;
+import org.openhim.mediator.Util;
 import org.openhim.mediator.datatypes.AssigningAuthority;
 import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.*;
 import org.openhim.mediator.messages.*;
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
@@ -39,22 +42,226 @@ import java.util.*;
  * <li>ResolvePatientIdentifier - responds with ResolvePatientIdentifierResponse. The identifier returned will be null if the id could not be resolved.</li>
  * <li>RegisterNewPatient - responds with RegisterNewPatientResponse</li>
  * </ul>
+ * <br/>
+ * Successfully resolved identifiers are kept in a cache shared by all instances of this actor
+ * if <code>pix.cache.enabled</code> is set, and are written through to the {@link PersistentIdentifierStore}
+ * if <code>identifiers.store.path</code> is set.
+ * <br/><br/>
+ * If <code>pix.table.path</code> is set, enterprise identifiers are first looked up in the local
+ * {@link PatientIdentifierTable} and the PIX manager is only queried if the identifier isn't found.
+ * <br/><br/>
+ * If <code>pix.coalesce.enabled</code> is set, concurrent lookups for the same identifier are answered
+ * from a single PIX query (see {@link InFlightLookups}). Connector errors are therefore routed through this actor,
+ * so that the lookups waiting on a failed query are failed along with it.
+ * <br/><br/>
+ * If <code>pix.pool.enabled</code> is set, messages are sent using the {@link MLLPConnectionPoolActor}
+ * instead of opening a new connection for each message.
  */
 public class PIXRequestActor extends UntypedActor {
     LoggingAdapter log = Logging.getLogger(getContext().system(), this);
 
     private MediatorConfig config;
+    private final AuditPayloadPolicy auditPayloadPolicy;
 
     private Map<String, MediatorRequestMessage> originalRequests = new HashMap<>();
+    private ActorRef requestHandler;
 
     private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmssZ");
     private static final SimpleDateFormat dateFormatDay = new SimpleDateFormat("yyyyMMdd");
 
+    private static final int DEFAULT_CACHE_CAPACITY = 10000;
+    private static final long DEFAULT_CACHE_TTL = 60 * 60 * 1000;
+
+    private static final String STORE_KEY_PREFIX = "pix|";
+
+    private static final long DEFAULT_COALESCE_MAX_AGE = 30 * 1000;
+
+    //the resolution actors are created per request, so these are static to be shared between them.
+    //keyed by config, so that each config's cache settings are used
+    private static final Map<MediatorConfig, IdentifierCache> patientIdCaches = new WeakHashMap<>();
+    private static final Map<MediatorConfig, InFlightLookups<ResolvePatientIdentifier>> inFlightLookups = new WeakHashMap<>();
+
 
     public PIXRequestActor(MediatorConfig config) {
         this.config = config;
+        this.auditPayloadPolicy = AuditPayloadPolicy.fromConfig(config, log);
+    }
+
+
+    /**
+     * @return the patient identifier cache shared by all PIX actors with the same config, or null if caching is disabled
+     */
+    public static synchronized IdentifierCache getPatientIdCache(MediatorConfig config) {
+        if (!Util.isPropertyTrue(config, "pix.cache.enabled")) {
+            return null;
+        }
+        IdentifierCache cache = patientIdCaches.get(config);
+        if (cache==null) {
+            cache = new IdentifierCache(
+                    Util.getIntegerProperty(config, "pix.cache.capacity", DEFAULT_CACHE_CAPACITY),
+                    Util.getLongProperty(config, "pix.cache.ttl", DEFAULT_CACHE_TTL)
+            );
+            patientIdCaches.put(config, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * @return the patient identifier lookups in flight for all PIX actors with the same config, or null if coalescing is disabled
+     */
+    public static synchronized InFlightLookups<ResolvePatientIdentifier> getInFlightLookups(MediatorConfig config) {
+        if (!Util.isPropertyTrue(config, "pix.coalesce.enabled")) {
+            return null;
+        }
+        InFlightLookups<ResolvePatientIdentifier> lookups = inFlightLookups.get(config);
+        if (lookups==null) {
+            lookups = new InFlightLookups<>(Util.getLongProperty(config, "pix.coalesce.maxAge", DEFAULT_COALESCE_MAX_AGE));
+            inFlightLookups.put(config, lookups);
+        }
+        return lookups;
+    }
+
+    protected static String buildCacheKey(ResolvePatientIdentifier msg) {
+        return buildCacheKey(msg.getIdentifier(), msg.getTargetAssigningAuthority());
+    }
+
+    /**
+     * Keys only use the authority id (or the namespace if there is no id),
+     * so that identifiers from documents and from patient identity feeds match.
+     */
+    protected static String buildCacheKey(Identifier identifier, AssigningAuthority targetAuthority) {
+        return identifier.getIdentifier() + "|" + buildAuthorityKey(identifier.getAssigningAuthority()) + "|" + buildAuthorityKey(targetAuthority);
     }
 
+    private static String buildAuthorityKey(AssigningAuthority authority) {
+        if (authority==null) {
+            return "";
+        }
+        if (authority.getAssigningAuthorityId()!=null && !authority.getAssigningAuthorityId().trim().isEmpty()) {
+            return authority.getAssigningAuthorityId();
+        }
+        return authority.getAssigningAuthority()!=null ? authority.getAssigningAuthority() : "";
+    }
+
+    /**
+     * Update a patient identifier cross-reference in the cache and persistent store (if enabled)
+     */
+    static void cacheIdentifier(MediatorConfig config, PersistentIdentifierStore store, String key, Identifier resolved) {
+        if (resolved==null) {
+            return;
+        }
+
+        IdentifierCache cache = getPatientIdCache(config);
+        if (cache!=null) {
+            cache.put(key, resolved);
+        }
+        if (store!=null) {
+            store.put(STORE_KEY_PREFIX + key, resolved, Util.getLongProperty(config, "pix.cache.ttl", DEFAULT_CACHE_TTL));
+        }
+    }
+
+    /**
+     * Remove a patient identifier cross-reference from the local table, the cache and persistent store (if enabled)
+     */
+    static void invalidateIdentifier(MediatorConfig config, PersistentIdentifierStore store, Identifier identifier, AssigningAuthority targetAuthority) {
+        if (identifier.getAssigningAuthority()!=null) {
+            PatientIdentifierTable.getInstance(config).remove(identifier.getIdentifier(), identifier.getAssigningAuthority().getAssigningAuthorityId());
+        }
+
+        String key = buildCacheKey(identifier, targetAuthority);
+        IdentifierCache cache = getPatientIdCache(config);
+        if (cache!=null) {
+            cache.remove(key);
+        }
+        if (store!=null) {
+            store.remove(STORE_KEY_PREFIX + key);
+        }
+    }
+
+    /**
+     * Remove all cross-references to an enterprise identifier from the local table, the cache and persistent store (if enabled).
+     * Cached values are matched on the identifier and authority, not on the exact CX.
+     */
+    static void invalidateEnterpriseIdentifier(MediatorConfig config, PersistentIdentifierStore store, Identifier enterpriseIdentifier) {
+        PatientIdentifierTable.getInstance(config).removeEcid(enterpriseIdentifier.getIdentifier());
+
+        IdentifierCache cache = getPatientIdCache(config);
+        if (cache!=null) {
+            cache.removeValue(enterpriseIdentifier);
+        }
+        if (store!=null) {
+            store.removeValue(enterpriseIdentifier);
+        }
+    }
+
+    private PersistentIdentifierStore getIdentifierStore() {
+        try {
+            return PersistentIdentifierStore.getInstance(config);
+        } catch (IOException ex) {
+            log.error(ex, "Could not open the persistent identifier store");
+            return null;
+        }
+    }
+
+    private boolean respondFromTable(ResolvePatientIdentifier msg) {
+        PatientIdentifierTable table = PatientIdentifierTable.getInstance(config);
+        if (config.getProperty("pix.table.path")==null || !table.isLoaded()) {
+            return false;
+        }
+
+        //the bulk export only contains enterprise identifiers
+        String enterpriseAuthorityId = config.getProperty("client.requestedAssigningAuthorityId");
+        if (enterpriseAuthorityId==null || !enterpriseAuthorityId.equals(msg.getTargetAssigningAuthority().getAssigningAuthorityId())) {
+            return false;
+        }
+
+        String ecid = table.lookup(msg.getIdentifier().getIdentifier(), msg.getIdentifier().getAssigningAuthority().getAssigningAuthorityId());
+        if (ecid==null) {
+            return false;
+        }
+
+        log.info("Resolved patient identifier from local cross-reference table");
+        Identifier result = new Identifier(ecid, msg.getTargetAssigningAuthority());
+        msg.getRespondTo().tell(new ResolvePatientIdentifierResponse(msg, result), getSelf());
+        return true;
+    }
+
+    private boolean respondLocally(ResolvePatientIdentifier msg) {
+        return respondFromTable(msg) || respondFromCache(msg);
+    }
+
+    private boolean respondFromCache(ResolvePatientIdentifier msg) {
+        IdentifierCache cache = getPatientIdCache(config);
+        PersistentIdentifierStore store = getIdentifierStore();
+        String key = buildCacheKey(msg);
+
+        Identifier cached = null;
+        if (cache!=null) {
+            cached = cache.get(key);
+            if (log.isDebugEnabled()) {
+                log.debug("Patient identifier cache " + (cached!=null ? "hit" : "miss") + " (" + cache + ")");
+            }
+        }
+        if (cached==null && store!=null) {
+            cached = store.get(STORE_KEY_PREFIX + key);
+            if (cached!=null && cache!=null) {
+                cache.put(key, cached);
+            }
+        }
+        if (cached==null) {
+            return false;
+        }
+
+        log.info("Resolved patient identifier from cache");
+        msg.getRespondTo().tell(new ResolvePatientIdentifierResponse(msg, cached), getSelf());
+        return true;
+    }
+
+    private void cacheResolvedIdentifier(ResolvePatientIdentifier msg, Identifier resolved) {
+        if (resolved!=null) {
+            cacheIdentifier(config, getIdentifierStore(), buildCacheKey(msg), resolved);
+        }
+    }
 
     private void constructBasicMSHSegment(String correlationId, Terser t) throws HL7Exception {
         MSH msh = (MSH) t.getSegment("MSH");
@@ -140,9 +347,12 @@ public class PIXRequestActor extends UntypedActor {
             port = Integer.parseInt(config.getProperty("pix.manager.port"));
         }
 
-        ActorSelection connector = getContext().actorSelection(config.userPathFor("mllp-connector"));
+        String connectorName = Util.isPropertyTrue(config, "pix.pool.enabled") ? "pix-connection-pool" : "mllp-connector";
+        ActorSelection connector = getContext().actorSelection(config.userPathFor(connectorName));
+        //the connector reports errors to the request handler, so this actor takes its place (see processConnectorError)
+        this.requestHandler = requestHandler;
         MediatorSocketRequest request = new MediatorSocketRequest(
-                requestHandler, getSelf(), orchestration, correlationId,
+                getSelf(), getSelf(), orchestration, correlationId,
                 config.getProperty("pix.manager.host"), port, pixRequest, secure
         );
         connector.tell(request, getSelf());
@@ -156,6 +366,9 @@ public class PIXRequestActor extends UntypedActor {
             sendPIXRequest(msg.getRequestHandler(), "PIX Resolve Enterprise Identifier", correlationId, pixQuery);
         } catch (HL7Exception ex) {
             msg.getRequestHandler().tell(new ExceptError(ex), getSelf());
+            for (ResolvePatientIdentifier attached : completeLookupInFlight(msg)) {
+                attached.getRequestHandler().tell(new ExceptError(ex), getSelf());
+            }
         }
     }
 
@@ -204,13 +417,40 @@ public class PIXRequestActor extends UntypedActor {
         return new Identifier(id, new AssigningAuthority(assigningAuthority, assigningAuthorityId, assigningAuthorityIdType));
     }
 
+    /**
+     * @return true if an identical lookup is already in flight and this request will be answered along with it
+     */
+    private boolean attachToLookupInFlight(ResolvePatientIdentifier msg) {
+        InFlightLookups<ResolvePatientIdentifier> lookups = getInFlightLookups(config);
+        if (lookups!=null && lookups.attach(buildCacheKey(msg), msg)) {
+            log.info("Identical patient identifier lookup in flight. Waiting for its response");
+            return true;
+        }
+        return false;
+    }
+
+    private List<ResolvePatientIdentifier> completeLookupInFlight(ResolvePatientIdentifier msg) {
+        InFlightLookups<ResolvePatientIdentifier> lookups = getInFlightLookups(config);
+        if (lookups==null) {
+            return Collections.emptyList();
+        }
+        return lookups.complete(buildCacheKey(msg));
+    }
+
     private void processQBP_Q21Response(MediatorSocketResponse msg, ResolvePatientIdentifier originalRequest) {
         Identifier result = null;
         try {
             result = parseRSP_K23(msg.getBody());
+            cacheResolvedIdentifier(originalRequest, result);
             originalRequest.getRespondTo().tell(new ResolvePatientIdentifierResponse(originalRequest, result), getSelf());
+            for (ResolvePatientIdentifier attached : completeLookupInFlight(originalRequest)) {
+                attached.getRespondTo().tell(new ResolvePatientIdentifierResponse(attached, result), getSelf());
+            }
         } catch (HL7Exception ex) {
-            msg.getOriginalRequest().getRequestHandler().tell(new ExceptError(ex), getSelf());
+            originalRequest.getRequestHandler().tell(new ExceptError(ex), getSelf());
+            for (ResolvePatientIdentifier attached : completeLookupInFlight(originalRequest)) {
+                attached.getRequestHandler().tell(new ExceptError(ex), getSelf());
+            }
         } finally {
             sendAuditMessage(ATNAAudit.TYPE.PIX_REQUEST, result, msg, result!=null);
         }
@@ -249,7 +489,7 @@ public class PIXRequestActor extends UntypedActor {
             err = parseACKError(msg.getBody());
             originalRequest.getRespondTo().tell(new RegisterNewPatientResponse(originalRequest, err == null, err), getSelf());
         } catch (HL7Exception ex) {
-            msg.getOriginalRequest().getRequestHandler().tell(new ExceptError(ex), getSelf());
+            originalRequest.getRequestHandler().tell(new ExceptError(ex), getSelf());
         } finally {
             Identifier pid = originalRequest.getPatientIdentifiers().get(0);
             sendAuditMessage(ATNAAudit.TYPE.PIX_IDENTITY_FEED, pid, msg, err==null);
@@ -266,10 +506,34 @@ public class PIXRequestActor extends UntypedActor {
         }
     }
 
+    /**
+     * Connector errors don't identify the request that failed, and fail the orchestration anyway,
+     * so all outstanding requests are failed along with the lookups waiting on them.
+     */
+    private void processConnectorError(ExceptError msg) {
+        Set<ActorRef> handlers = new LinkedHashSet<>();
+        if (requestHandler!=null) {
+            handlers.add(requestHandler);
+        }
+        for (MediatorRequestMessage originalRequest : originalRequests.values()) {
+            handlers.add(originalRequest.getRequestHandler());
+            if (originalRequest instanceof ResolvePatientIdentifier) {
+                for (ResolvePatientIdentifier attached : completeLookupInFlight((ResolvePatientIdentifier) originalRequest)) {
+                    handlers.add(attached.getRequestHandler());
+                }
+            }
+        }
+        originalRequests.clear();
+
+        for (ActorRef handler : handlers) {
+            handler.tell(msg, getSelf());
+        }
+    }
+
     private void sendAuditMessage(ATNAAudit.TYPE type, Identifier patientID, MediatorSocketResponse msg, boolean outcome) {
         try {
             ATNAAudit audit = new ATNAAudit(type);
-            audit.setMessage(((MediatorSocketRequest) msg.getOriginalRequest()).getBody());
+            audit.setMessage(auditPayloadPolicy.apply(((MediatorSocketRequest) msg.getOriginalRequest()).getBody()));
             audit.setParticipantIdentifiers(Collections.singletonList(patientID));
             audit.setUniqueId(msg.getOriginalRequest().getCorrelationId());
             audit.setOutcome(outcome);
@@ -287,12 +551,18 @@ public class PIXRequestActor extends UntypedActor {
             if (log.isDebugEnabled()) {
                 log.debug("Patient ID: " + ((ResolvePatientIdentifier) msg).getIdentifier());
             }
-            sendPIXRequest((ResolvePatientIdentifier) msg);
+            if (!respondLocally((ResolvePatientIdentifier) msg) && !attachToLookupInFlight((ResolvePatientIdentifier) msg)) {
+                sendPIXRequest((ResolvePatientIdentifier) msg);
+            }
         } else if (msg instanceof RegisterNewPatient) {
             log.info("Received request to register new patient demographic record");
             sendPIXRequest((RegisterNewPatient) msg);
         } else if (msg instanceof MediatorSocketResponse) {
             processResponse((MediatorSocketResponse) msg);
+        } else if (msg instanceof ExceptError) {
+            processConnectorError((ExceptError) msg);
+        } else if (msg instanceof AddOrchestrationToCoreResponse && requestHandler!=null) {
+            requestHandler.forward(msg, getContext());
         } else {
             unhandled(msg);
         }
@@ -0,0 +1,199 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A cross-reference table of local patient identifiers to enterprise identifiers (ECID),
+ * loaded from a bulk export of the client registry. Entries are only ever removed after loading,
+ * when a patient merge retires them.
+ * <br/><br/>
+ * The export is a CSV file with the columns <code>identifier,assigningAuthorityId,ecid</code>.
+ * Blank lines and lines starting with '#' are skipped.
+ * <br/><br/>
+ * The table is held as two sorted arrays and is replaced as a whole on every load or removal,
+ * so lookups never see a partially loaded export.
+ */
+public class PatientIdentifierTable {
+
+    private static class Snapshot {
+        final String[] keys;
+        final String[] ecids;
+
+        Snapshot(String[] keys, String[] ecids) {
+            this.keys = keys;
+            this.ecids = ecids;
+        }
+    }
+
+    public static class InvalidExportException extends Exception {
+        public InvalidExportException(String msg) {
+            super(msg);
+        }
+    }
+
+    //keyed by config, so that each config's table is loaded from its own pix.table.path
+    private static final Map<MediatorConfig, PatientIdentifierTable> instances = new WeakHashMap<>();
+
+    private volatile Snapshot snapshot;
+
+
+    /**
+     * @return the table for the config, shared by the loader and the resolution actors using that config
+     */
+    public static synchronized PatientIdentifierTable getInstance(MediatorConfig config) {
+        PatientIdentifierTable table = instances.get(config);
+        if (table==null) {
+            table = new PatientIdentifierTable();
+            instances.put(config, table);
+        }
+        return table;
+    }
+
+
+    private static String buildKey(String identifier, String assigningAuthorityId) {
+        return identifier + "|" + assigningAuthorityId;
+    }
+
+    /**
+     * @return the ECID for the local identifier or null if the table doesn't contain it
+     */
+    public String lookup(String identifier, String assigningAuthorityId) {
+        Snapshot current = snapshot;
+        if (current==null) {
+            return null;
+        }
+        int i = Arrays.binarySearch(current.keys, buildKey(identifier, assigningAuthorityId));
+        return i>=0 ? current.ecids[i] : null;
+    }
+
+    /**
+     * Load a bulk export, replacing the current table. If the export is invalid, the current table is kept.
+     * Where an identifier appears more than once, the last entry is used.
+     */
+    public void load(Reader export) throws IOException, InvalidExportException {
+        Map<String, String> entries = new HashMap<>();
+        BufferedReader reader = new BufferedReader(export);
+
+        String line;
+        int lineNum = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNum++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] columns = line.split(",", -1);
+            if (columns.length != 3) {
+                throw new InvalidExportException("Expected 3 columns on line " + lineNum + " of patient identifier export");
+            }
+            String identifier = columns[0].trim();
+            String assigningAuthorityId = columns[1].trim();
+            String ecid = columns[2].trim();
+            if (identifier.isEmpty() || ecid.isEmpty()) {
+                throw new InvalidExportException("Missing identifier on line " + lineNum + " of patient identifier export");
+            }
+
+            entries.put(buildKey(identifier, assigningAuthorityId), ecid);
+        }
+
+        String[] keys = entries.keySet().toArray(new String[entries.size()]);
+        Arrays.sort(keys);
+        String[] ecids = new String[keys.length];
+        for (int i=0; i<keys.length; i++) {
+            ecids[i] = entries.get(keys[i]);
+        }
+
+        synchronized (this) {
+            snapshot = new Snapshot(keys, ecids);
+        }
+    }
+
+    /**
+     * Remove the entry for a local identifier
+     *
+     * @return true if the table contained the identifier
+     */
+    public synchronized boolean remove(String identifier, String assigningAuthorityId) {
+        Snapshot current = snapshot;
+        if (current==null) {
+            return false;
+        }
+        int i = Arrays.binarySearch(current.keys, buildKey(identifier, assigningAuthorityId));
+        if (i<0) {
+            return false;
+        }
+        boolean[] removed = new boolean[current.keys.length];
+        removed[i] = true;
+        snapshot = without(current, removed, 1);
+        return true;
+    }
+
+    /**
+     * Remove all entries that map to an enterprise identifier
+     *
+     * @return the number of entries removed
+     */
+    public synchronized int removeEcid(String ecid) {
+        Snapshot current = snapshot;
+        if (current==null) {
+            return 0;
+        }
+        boolean[] removed = new boolean[current.keys.length];
+        int count = 0;
+        for (int i=0; i<current.ecids.length; i++) {
+            if (current.ecids[i].equals(ecid)) {
+                removed[i] = true;
+                count++;
+            }
+        }
+        if (count>0) {
+            snapshot = without(current, removed, count);
+        }
+        return count;
+    }
+
+    private static Snapshot without(Snapshot current, boolean[] removed, int count) {
+        String[] keys = new String[current.keys.length - count];
+        String[] ecids = new String[keys.length];
+        int j = 0;
+        for (int i=0; i<current.keys.length; i++) {
+            if (!removed[i]) {
+                keys[j] = current.keys[i];
+                ecids[j] = current.ecids[i];
+                j++;
+            }
+        }
+        return new Snapshot(keys, ecids);
+    }
+
+    /**
+     * @return true once an export has been successfully loaded
+     */
+    public boolean isLoaded() {
+        return snapshot != null;
+    }
+
+    public int size() {
+        Snapshot current = snapshot;
+        return current!=null ? current.keys.length : 0;
+    }
+
+    public synchronized void clear() {
+        snapshot = null;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.Cancellable;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.Util;
+import org.openhim.mediator.engine.MediatorConfig;
+import scala.concurrent.duration.Duration;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the {@link PatientIdentifierTable} from the bulk export at <code>pix.table.path</code>.
+ * <br/><br/>
+ * The export is loaded on startup and reloaded whenever the file is modified.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ *     <li>Reload - reloads the export if it was modified. Sent on a schedule by the actor itself.</li>
+ * </ul>
+ */
+public class PatientIdentifierTableLoaderActor extends UntypedActor {
+
+    public static class Reload {}
+
+    private static final long DEFAULT_RELOAD_INTERVAL = 60 * 1000;
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final PatientIdentifierTable table;
+    private Cancellable schedule;
+    private long lastModified = -1;
+
+
+    public PatientIdentifierTableLoaderActor(MediatorConfig config) {
+        this(config, PatientIdentifierTable.getInstance(config));
+    }
+
+    public PatientIdentifierTableLoaderActor(MediatorConfig config, PatientIdentifierTable table) {
+        this.config = config;
+        this.table = table;
+    }
+
+
+    @Override
+    public void preStart() throws Exception {
+        long interval = Util.getLongProperty(config, "pix.table.reloadInterval", DEFAULT_RELOAD_INTERVAL);
+        schedule = getContext().system().scheduler().schedule(
+                Duration.Zero(), Duration.create(interval, TimeUnit.MILLISECONDS),
+                getSelf(), new Reload(), getContext().dispatcher(), getSelf()
+        );
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        if (schedule!=null) {
+            schedule.cancel();
+        }
+    }
+
+    private void reload() {
+        File export = new File(config.getProperty("pix.table.path"));
+        if (!export.exists()) {
+            log.warning("Patient identifier export " + export + " does not exist");
+            return;
+        }
+        if (export.lastModified()==lastModified) {
+            return;
+        }
+
+        log.info("Loading patient identifier export " + export + "...");
+        try (Reader reader = new InputStreamReader(new FileInputStream(export), "UTF-8")) {
+            long modified = export.lastModified();
+            table.load(reader);
+            lastModified = modified;
+            log.info("Loaded " + table.size() + " patient identifiers");
+        } catch (IOException | PatientIdentifierTable.InvalidExportException ex) {
+            log.error(ex, "Failed to load patient identifier export. The previous table (if any) will still be used.");
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof Reload) {
+            reload();
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.ActorRef;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.app.HL7Service;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.Segment;
+import ca.uhn.hl7v2.model.Type;
+import ca.uhn.hl7v2.parser.CanonicalModelClassFactory;
+import ca.uhn.hl7v2.parser.Parser;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.protocol.ReceivingApplication;
+import ca.uhn.hl7v2.protocol.ReceivingApplicationException;
+import ca.uhn.hl7v2.util.Terser;
+import ca.uhn.hl7v2.validation.impl.ValidationContextFactory;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Listens for a Patient Identity Feed (ITI-8) from the client registry over MLLP
+ * and keeps the patient identifier cross-references used by {@link PIXRequestActor} up to date.
+ * <br/><br/>
+ * <ul>
+ *     <li>ADT^A04 and ADT^A08 - the local identifiers in PID-3 are mapped to the enterprise identifier in PID-3.</li>
+ *     <li>ADT^A40 - cross-references to the merged identifiers in MRG-1 are removed
+ *     before the surviving identifiers in PID-3 are mapped.</li>
+ * </ul>
+ * The listener is started on <code>pix.feed.port</code>. Feed messages are acknowledged as soon as they are received.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ *     <li>PatientIdentityFeed - updates the cross-references from an ADT message</li>
+ * </ul>
+ */
+public class PatientIdentityFeedActor extends UntypedActor {
+
+    public static class PatientIdentityFeed {
+        private final String message;
+
+        public PatientIdentityFeed(String message) {
+            this.message = message;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private class FeedReceiver implements ReceivingApplication {
+        private final ActorRef feedActor;
+
+        FeedReceiver(ActorRef feedActor) {
+            this.feedActor = feedActor;
+        }
+
+        @Override
+        public Message processMessage(Message message, Map<String, Object> metadata) throws ReceivingApplicationException, HL7Exception {
+            feedActor.tell(new PatientIdentityFeed(message.encode()), ActorRef.noSender());
+            try {
+                return message.generateACK();
+            } catch (IOException ex) {
+                throw new HL7Exception(ex);
+            }
+        }
+
+        @Override
+        public boolean canProcess(Message message) {
+            return true;
+        }
+    }
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final Parser parser = new PipeParser(new CanonicalModelClassFactory("2.5"));
+    private HapiContext hapiContext;
+    private HL7Service server;
+
+
+    public PatientIdentityFeedActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+
+    @Override
+    public void preStart() throws Exception {
+        if (config.getProperty("pix.feed.port")==null) {
+            return;
+        }
+
+        int port = Integer.parseInt(config.getProperty("pix.feed.port"));
+        hapiContext = new DefaultHapiContext(new CanonicalModelClassFactory("2.5"));
+        hapiContext.setValidationContext(ValidationContextFactory.noValidation());
+
+        server = hapiContext.newServer(port, false);
+        FeedReceiver receiver = new FeedReceiver(getSelf());
+        server.registerApplication("ADT", "A04", receiver);
+        server.registerApplication("ADT", "A08", receiver);
+        server.registerApplication("ADT", "A40", receiver);
+        server.startAndWait();
+
+        log.info("Listening for patient identity feed messages on port " + port);
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        if (server!=null) {
+            server.stopAndWait();
+        }
+        if (hapiContext!=null) {
+            hapiContext.close();
+        }
+    }
+
+    private List<Identifier> readIdentifiers(Terser t, String segmentPath, int field) throws HL7Exception {
+        List<Identifier> result = new ArrayList<>();
+        Segment segment = t.getSegment(segmentPath);
+        Type[] reps = segment.getField(field);
+
+        for (int i=0; i<reps.length; i++) {
+            String prefix = segmentPath + "-" + field + "(" + i + ")";
+            String id = t.get(prefix + "-1");
+            if (id==null || id.isEmpty()) {
+                continue;
+            }
+            AssigningAuthority authority = new AssigningAuthority(
+                    t.get(prefix + "-4-1"), t.get(prefix + "-4-2"), t.get(prefix + "-4-3")
+            );
+            result.add(new Identifier(id, authority));
+        }
+
+        return result;
+    }
+
+    private boolean isEnterpriseIdentifier(Identifier id) {
+        AssigningAuthority enterpriseAuthority = getEnterpriseAuthority();
+        String authorityId = id.getAssigningAuthority().getAssigningAuthorityId();
+        if (authorityId!=null && !authorityId.isEmpty()) {
+            return authorityId.equals(enterpriseAuthority.getAssigningAuthorityId());
+        }
+        return id.getAssigningAuthority().getAssigningAuthority()!=null
+                && id.getAssigningAuthority().getAssigningAuthority().equals(enterpriseAuthority.getAssigningAuthority());
+    }
+
+    private AssigningAuthority getEnterpriseAuthority() {
+        return new AssigningAuthority(
+                config.getProperty("client.requestedAssigningAuthority"),
+                config.getProperty("client.requestedAssigningAuthorityId")
+        );
+    }
+
+    private PersistentIdentifierStore getIdentifierStore() {
+        try {
+            return PersistentIdentifierStore.getInstance(config);
+        } catch (IOException ex) {
+            log.error(ex, "Could not open the persistent identifier store");
+            return null;
+        }
+    }
+
+    private void processFeed(PatientIdentityFeed msg) throws HL7Exception {
+        Terser t = new Terser(parser.parse(msg.getMessage()));
+        String trigger = t.get("/MSH-9-2");
+        PersistentIdentifierStore store = getIdentifierStore();
+
+        if ("A40".equals(trigger)) {
+            for (Identifier merged : readIdentifiers(t, "/.MRG", 1)) {
+                if (isEnterpriseIdentifier(merged)) {
+                    PIXRequestActor.invalidateEnterpriseIdentifier(config, store, merged);
+                } else {
+                    PIXRequestActor.invalidateIdentifier(config, store, merged, getEnterpriseAuthority());
+                }
+            }
+        }
+
+        List<Identifier> identifiers = readIdentifiers(t, "/.PID", 3);
+        Identifier enterpriseIdentifier = null;
+        for (Identifier id : identifiers) {
+            if (isEnterpriseIdentifier(id)) {
+                enterpriseIdentifier = id;
+                break;
+            }
+        }
+        if (enterpriseIdentifier==null) {
+            log.info("Patient identity feed (" + trigger + ") does not contain an enterprise identifier");
+            return;
+        }
+
+        int count = 0;
+        for (Identifier id : identifiers) {
+            if (!isEnterpriseIdentifier(id)) {
+                PIXRequestActor.cacheIdentifier(config, store, PIXRequestActor.buildCacheKey(id, getEnterpriseAuthority()), enterpriseIdentifier);
+                count++;
+            }
+        }
+        log.info("Patient identity feed (" + trigger + ") updated " + count + " patient identifier cross-reference(s)");
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof PatientIdentityFeed) {
+            try {
+                processFeed((PatientIdentityFeed) msg);
+            } catch (HL7Exception ex) {
+                log.error(ex, "Failed to process patient identity feed message");
+            }
+        } else {
+            unhandled(msg);
+        }
+    }
+}
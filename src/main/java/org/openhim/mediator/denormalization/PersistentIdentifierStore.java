@@ -0,0 +1,468 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.openhim.mediator.Util;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.exceptions.CXParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An on-disk store for resolved identifiers so that the mediator doesn't start cold after a restart.
+ * <br/><br/>
+ * The store is an append-only log of records that is memory-mapped for reading and writing. Only the offsets of the
+ * live records are kept on the heap. Writes are performed asynchronously (write-behind) on a single thread.
+ * The file is grown in increasingly large steps, up to the maximum size, and is only remapped when it grows.
+ * Once the log grows beyond the configured maximum size it is compacted: only live, unexpired records are kept,
+ * and if that is still too large, the oldest records are dropped.
+ * <br/><br/>
+ * Record format: <code>keyLength(int) key(UTF-8) expiresAt(long) valueLength(int) value(UTF-8 CX)</code>.
+ * A value length of -1 marks a removed key and a key length of 0 marks the end of the log.
+ */
+public class PersistentIdentifierStore {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_PENDING_WRITES = 10000;
+    private static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+    private static final long MIN_ALLOCATION = 64 * 1024;
+    private static final int RECORD_HEADER_SIZE = 12;
+
+    //keyed by canonical path, so that configs with different paths get their own store but a file is only opened once
+    private static final Map<String, PersistentIdentifierStore> instances = new HashMap<>();
+
+    private final File file;
+    private final long maxSize;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private long mappedSize;
+    //the end of the log. The file beyond it is preallocated space.
+    private long writePosition;
+    private int remaps;
+
+    private final Map<String, Long> index = new ConcurrentHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ExecutorService writer;
+
+
+    /**
+     * @return the store at the config's <code>identifiers.store.path</code>, shared by all resolution actors
+     * using that path, or null if the path isn't set. The store's maximum size is that of the config that opened it.
+     */
+    public static synchronized PersistentIdentifierStore getInstance(MediatorConfig config) throws IOException {
+        if (config==null || config.getProperty("identifiers.store.path")==null) {
+            return null;
+        }
+        File file = new File(config.getProperty("identifiers.store.path")).getCanonicalFile();
+        PersistentIdentifierStore instance = instances.get(file.getPath());
+        if (instance==null) {
+            instance = new PersistentIdentifierStore(
+                    file, Util.getLongProperty(config, "identifiers.store.maxSize", DEFAULT_MAX_SIZE)
+            );
+            instances.put(file.getPath(), instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Flush and close the shared stores, if open.
+     */
+    public static synchronized void closeInstances() {
+        for (PersistentIdentifierStore instance : instances.values()) {
+            instance.close();
+        }
+        instances.clear();
+    }
+
+
+    public PersistentIdentifierStore(File file, long maxSize) throws IOException {
+        this.file = file;
+        this.maxSize = maxSize;
+        this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_PENDING_WRITES),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "identifier-store-writer");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.DiscardPolicy()
+        );
+        open();
+    }
+
+
+    private void open() throws IOException {
+        if (file.getParentFile()!=null) {
+            file.getParentFile().mkdirs();
+        }
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        remap();
+        loadIndex();
+    }
+
+    /**
+     * Map the whole file, releasing the previous mapping. Callers must hold the write lock (or be opening the store).
+     */
+    private void remap() throws IOException {
+        MappedByteBuffer previous = mapped;
+        mappedSize = channel.size();
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+        remaps++;
+        Util.unmap(previous);
+    }
+
+    /**
+     * Grow the file so that it has room for at least <code>required</code> bytes
+     */
+    private void ensureCapacity(long required) throws IOException {
+        if (required <= mappedSize) {
+            return;
+        }
+
+        long size = Math.max(required, Math.min(Math.max(mappedSize * 2, MIN_ALLOCATION), maxSize));
+        lock.writeLock().lock();
+        try {
+            raf.setLength(size);
+            remap();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void loadIndex() {
+        index.clear();
+        ByteBuffer buf = mapped.duplicate();
+        long now = System.currentTimeMillis();
+        writePosition = 0;
+
+        while (buf.remaining() >= 4) {
+            int recordStart = buf.position();
+            int keyLength = buf.getInt();
+            if (keyLength<=0 || buf.remaining() < keyLength + RECORD_HEADER_SIZE) {
+                //the end of the log, or a truncated record after a crash, which will be overwritten
+                writePosition = recordStart;
+                break;
+            }
+            byte[] key = new byte[keyLength];
+            buf.get(key);
+            int valueOffset = buf.position();
+            long expiresAt = buf.getLong();
+            int valueLength = buf.getInt();
+            if (valueLength > buf.remaining()) {
+                writePosition = recordStart;
+                break;
+            }
+            if (valueLength>0) {
+                buf.position(buf.position() + valueLength);
+            }
+
+            String k = new String(key, UTF8);
+            if (valueLength<0 || expiresAt<=now) {
+                index.remove(k);
+            } else {
+                index.put(k, (long) valueOffset);
+            }
+            writePosition = buf.position();
+        }
+    }
+
+    /**
+     * @return the value of the record at an offset, or null if the record doesn't fit in the mapping
+     */
+    private static byte[] readValue(ByteBuffer buf, long offset, long now) {
+        if (offset<0 || offset + RECORD_HEADER_SIZE > buf.limit()) {
+            return null;
+        }
+        buf.position((int) offset);
+        long expiresAt = buf.getLong();
+        int valueLength = buf.getInt();
+        if (valueLength<=0 || valueLength > buf.remaining() || expiresAt<=now) {
+            return null;
+        }
+        byte[] value = new byte[valueLength];
+        buf.get(value);
+        return value;
+    }
+
+    /**
+     * @return the stored identifier for the key, or null if not found or expired
+     */
+    public Identifier get(String key) {
+        lock.readLock().lock();
+        try {
+            //read under the lock, since compaction moves the records
+            Long offset = index.get(key);
+            if (offset==null || mapped==null) {
+                return null;
+            }
+
+            byte[] value = readValue(mapped.duplicate(), offset, System.currentTimeMillis());
+            return value!=null ? new Identifier(new String(value, UTF8)) : null;
+        } catch (CXParseException ex) {
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Asynchronously store an identifier with a time-to-live (in milliseconds).
+     */
+    public void put(final String key, final Identifier value, long ttl) {
+        if (value==null || ttl<=0) {
+            return;
+        }
+        final long expiresAt = System.currentTimeMillis() + ttl;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                append(key, value.toCX(), expiresAt);
+            }
+        });
+    }
+
+    /**
+     * Asynchronously remove a key.
+     */
+    public void remove(final String key) {
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (index.containsKey(key)) {
+                    append(key, null, 0);
+                }
+            }
+        });
+    }
+
+    /**
+     * Asynchronously remove all keys that map to a specific identifier.
+     * Values are compared with {@link Identifier#matches(Identifier)}.
+     */
+    public void removeValue(final Identifier value) {
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<String> keys = new ArrayList<>();
+                for (String key : index.keySet()) {
+                    if (value.matches(get(key))) {
+                        keys.add(key);
+                    }
+                }
+                for (String key : keys) {
+                    append(key, null, 0);
+                }
+            }
+        });
+    }
+
+    private static ByteBuffer encode(String key, String value, long expiresAt) {
+        byte[] k = key.getBytes(UTF8);
+        byte[] v = value!=null ? value.getBytes(UTF8) : null;
+        ByteBuffer buf = ByteBuffer.allocate(4 + k.length + 12 + (v!=null ? v.length : 0));
+        buf.putInt(k.length);
+        buf.put(k);
+        buf.putLong(expiresAt);
+        buf.putInt(v!=null ? v.length : -1);
+        if (v!=null) {
+            buf.put(v);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private void append(String key, String value, long expiresAt) {
+        try {
+            ByteBuffer record = encode(key, value, expiresAt);
+            long position = writePosition;
+            int keyLength = record.getInt(0);
+            int end = (int) position + record.remaining();
+            //room for the record and the end marker
+            ensureCapacity(end + 4);
+
+            ByteBuffer buf = mapped.duplicate();
+            buf.position((int) position + 4);
+            record.position(4);
+            buf.put(record);
+            buf.putInt(end, 0);
+            //the key length goes last, so that a partly written record is read as the end of the log
+            buf.putInt((int) position, keyLength);
+            writePosition = end;
+
+            if (value!=null) {
+                index.put(key, position + 4 + keyLength);
+            } else {
+                index.remove(key);
+            }
+
+            if (writePosition > maxSize) {
+                compact();
+            }
+        } catch (IOException ex) {
+            //write-behind is best effort; the identifier will simply be resolved again
+        }
+    }
+
+    /**
+     * Rewrite the store with only the live records. If that is still larger than the maximum size,
+     * the oldest records are dropped until the store fits in half of the maximum size.
+     */
+    protected void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            Map<String, ByteBuffer> live = new LinkedHashMap<>();
+            long liveSize = 0;
+
+            ByteBuffer buf = mapped.duplicate();
+            List<String> order = new ArrayList<>(index.size());
+            for (Map.Entry<String, Long> entry : index.entrySet()) {
+                byte[] value = readValue(buf, entry.getValue(), now);
+                if (value==null) {
+                    continue;
+                }
+                long expiresAt = buf.getLong((int) (long) entry.getValue());
+                ByteBuffer record = encode(entry.getKey(), new String(value, UTF8), expiresAt);
+                live.put(entry.getKey(), record);
+                order.add(entry.getKey());
+                liveSize += record.remaining();
+            }
+
+            //oldest records first
+            Collections.sort(order, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    return Long.compare(index.get(a), index.get(b));
+                }
+            });
+            int dropped = 0;
+            while (liveSize > maxSize / 2 && dropped < order.size()) {
+                liveSize -= live.remove(order.get(dropped)).remaining();
+                dropped++;
+            }
+
+            File tmp = new File(file.getPath() + ".compact");
+            RandomAccessFile tmpRaf = new RandomAccessFile(tmp, "rw");
+            FileChannel tmpChannel = tmpRaf.getChannel();
+            tmpChannel.truncate(0);
+            Map<String, Long> newIndex = new LinkedHashMap<>();
+            long position = 0;
+            for (int i=dropped; i<order.size(); i++) {
+                String key = order.get(i);
+                ByteBuffer record = live.get(key);
+                int keyLength = record.getInt(0);
+                newIndex.put(key, position + 4 + keyLength);
+                while (record.hasRemaining()) {
+                    position += tmpChannel.write(record, position);
+                }
+            }
+            tmpChannel.force(true);
+            tmpRaf.close();
+
+            Util.unmap(mapped);
+            mapped = null;
+            channel.close();
+            raf.close();
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Failed to replace identifier store with compacted store");
+                }
+            }
+
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            remap();
+            writePosition = position;
+            index.clear();
+            index.putAll(newIndex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Wait for pending writes to complete.
+     */
+    public void flush() {
+        try {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (Exception ex) {
+            //nothing to flush
+        }
+    }
+
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            //closing anyway
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (mapped!=null) {
+                mapped.force();
+                Util.unmap(mapped);
+                mapped = null;
+            }
+            channel.close();
+            raf.close();
+        } catch (IOException ex) {
+            //closing anyway
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public long getFileSize() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * @return the number of times the file has been mapped
+     */
+    int getRemapCount() {
+        return remaps;
+    }
+}
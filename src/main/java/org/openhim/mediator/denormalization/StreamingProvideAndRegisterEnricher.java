@@ -0,0 +1,545 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.dcm4chee.xds2.common.XDSConstants;
+import org.openhim.mediator.Payload;
+import org.openhim.mediator.XMLToolkit;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Enriches XDS.b Provide and Register Document Set requests in two streaming passes, without binding the request to JAXB.
+ * <br/><br/>
+ * The first pass ({@link #scan(CharSequence)}) reads the SubmitObjectsRequest and collects the identifiers that need to be resolved:
+ * the patient identifiers of the submission set and document entries and the author person (XCN) and institution (XON) slots
+ * of the document entries. Reading stops at the end of the SubmitObjectsRequest, so the documents are never parsed.
+ * <br/><br/>
+ * The collected values can then be changed and the second pass ({@link #rewrite(Payload, Metadata)}) copies the request,
+ * rewriting only the values that changed. Everything before and after the SubmitObjectsRequest, including the documents,
+ * is kept as is: the rewritten request is a {@link Payload} made up of the original request around the rewritten
+ * SubmitObjectsRequest. Memory use is therefore proportional to the metadata rather than the size of the request.
+ */
+public class StreamingProvideAndRegisterEnricher {
+
+    private static final String SUBMIT_OBJECTS_REQUEST = "SubmitObjectsRequest";
+
+
+    /**
+     * An ExternalIdentifier of a registry object
+     */
+    public static class ExternalIdentifier {
+        private final String scheme;
+        private final String originalValue;
+        private String value;
+
+        public ExternalIdentifier(String scheme, String value) {
+            this.scheme = scheme;
+            this.originalValue = value;
+            this.value = value;
+        }
+
+        public String getScheme() {
+            return scheme;
+        }
+
+        public String getOriginalValue() {
+            return originalValue;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public void setValue(String value) {
+            this.value = value;
+        }
+
+        public boolean isChanged() {
+            return value==null ? originalValue!=null : !value.equals(originalValue);
+        }
+    }
+
+    /**
+     * The values of a Slot. The list returned by {@link #getValues()} can be changed.
+     */
+    public static class Slot {
+        private final String name;
+        private final List<String> originalValues = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+
+        public Slot(String name) {
+            this.name = name;
+        }
+
+        private void addValue(String value) {
+            originalValues.add(value);
+            values.add(value);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<String> getValues() {
+            return values;
+        }
+
+        public boolean isChanged() {
+            return !values.equals(originalValues);
+        }
+    }
+
+    /**
+     * The author slots of an author classification. Either slot can be null if the classification doesn't have it.
+     */
+    public static class Author {
+        private Slot person;
+        private Slot institution;
+
+        public Slot getPerson() {
+            return person;
+        }
+
+        public Slot getInstitution() {
+            return institution;
+        }
+    }
+
+    /**
+     * A top-level ExtrinsicObject or RegistryPackage
+     */
+    public static class RegistryObject {
+        private final String id;
+        private final List<ExternalIdentifier> externalIdentifiers = new ArrayList<>();
+        private final List<Author> authors = new ArrayList<>();
+
+        public RegistryObject(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the first external identifier with a scheme or null if there isn't one
+         */
+        public ExternalIdentifier getExternalIdentifier(String scheme) {
+            for (ExternalIdentifier ei : externalIdentifiers) {
+                if (scheme.equals(ei.getScheme())) {
+                    return ei;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the author classifications. Only read for document entries.
+         */
+        public List<Author> getAuthors() {
+            return authors;
+        }
+    }
+
+    /**
+     * The metadata of a request as read by {@link #scan(CharSequence)}
+     */
+    public static class Metadata {
+        private final List<RegistryObject> extrinsicObjects = new ArrayList<>();
+        private final List<RegistryObject> registryPackages = new ArrayList<>();
+        private String submissionSetId;
+        private int submitObjectsRequestStart = -1;
+        private int submitObjectsRequestEnd = -1;
+
+        //the values to rewrite, keyed by the position of their element within the SubmitObjectsRequest
+        private final Map<Integer, ExternalIdentifier> identifiersByPosition = new HashMap<>();
+        private final Map<Integer, Slot> slotsByPosition = new HashMap<>();
+
+        public List<RegistryObject> getExtrinsicObjects() {
+            return Collections.unmodifiableList(extrinsicObjects);
+        }
+
+        public List<RegistryObject> getRegistryPackages() {
+            return Collections.unmodifiableList(registryPackages);
+        }
+
+        /**
+         * Find the submission set in the same way as
+         * {@link org.dcm4chee.xds2.infoset.util.InfosetUtil#getRegistryPackage(oasis.names.tc.ebxml_regrep.xsd.lcm._3.SubmitObjectsRequest, String)}:
+         * the package classified as a submission set, or the first package if none is.
+         *
+         * @return the submission set or null if it isn't found
+         */
+        public RegistryObject getSubmissionSet() {
+            for (RegistryObject rp : registryPackages) {
+                if (submissionSetId==null || submissionSetId.equals(rp.getId())) {
+                    return rp;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the offset of the SubmitObjectsRequest start tag in the request
+         */
+        public int getSubmitObjectsRequestStart() {
+            return submitObjectsRequestStart;
+        }
+
+        /**
+         * @return the offset just past the SubmitObjectsRequest end tag in the request
+         */
+        public int getSubmitObjectsRequestEnd() {
+            return submitObjectsRequestEnd;
+        }
+
+        /**
+         * @return the SubmitObjectsRequest element of a request. Namespaces declared on its ancestors aren't included.
+         */
+        public String getSubmitObjectsRequest(CharSequence pnr) {
+            return Payload.of(pnr).slice(submitObjectsRequestStart, submitObjectsRequestEnd).toString();
+        }
+    }
+
+
+    private StreamingProvideAndRegisterEnricher() {
+    }
+
+
+    /**
+     * First pass: read the metadata of a request
+     *
+     * @throws XMLStreamException if the request isn't well-formed or doesn't contain a SubmitObjectsRequest
+     */
+    public static Metadata scan(CharSequence pnr) throws XMLStreamException {
+        Metadata metadata = new Metadata();
+        XMLStreamReader reader = XMLToolkit.getInputFactory().createXMLStreamReader(Payload.of(pnr).openReader());
+
+        try {
+            //depth within the SubmitObjectsRequest, which is at 1
+            int depth = 0;
+            int identifierPosition = 0;
+            int slotPosition = 0;
+            String qName = null;
+
+            RegistryObject object = null;
+            boolean extrinsicObject = false;
+            Author author = null;
+            int authorDepth = 0;
+            Slot slot = null;
+            int slotDepth = 0;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                if (event==XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+
+                    if (depth==0) {
+                        if (SUBMIT_OBJECTS_REQUEST.equals(name)) {
+                            String prefix = reader.getPrefix();
+                            qName = prefix==null || prefix.isEmpty() ? name : prefix + ":" + name;
+                            depth = 1;
+                        }
+                        continue;
+                    }
+                    depth++;
+
+                    if (depth==3 && ("ExtrinsicObject".equals(name) || "RegistryPackage".equals(name))) {
+                        object = new RegistryObject(reader.getAttributeValue(null, "id"));
+                        extrinsicObject = "ExtrinsicObject".equals(name);
+                        if (extrinsicObject) {
+                            metadata.extrinsicObjects.add(object);
+                        } else {
+                            metadata.registryPackages.add(object);
+                        }
+
+                    } else if ("ExternalIdentifier".equals(name)) {
+                        if (object!=null && depth==4) {
+                            ExternalIdentifier ei = new ExternalIdentifier(
+                                    reader.getAttributeValue(null, "identificationScheme"), reader.getAttributeValue(null, "value")
+                            );
+                            object.externalIdentifiers.add(ei);
+                            metadata.identifiersByPosition.put(identifierPosition, ei);
+                        }
+                        identifierPosition++;
+
+                    } else if ("Classification".equals(name)) {
+                        if (depth==3) {
+                            if (metadata.submissionSetId==null &&
+                                    XDSConstants.UUID_XDSSubmissionSet.equals(reader.getAttributeValue(null, "classificationNode"))) {
+                                metadata.submissionSetId = reader.getAttributeValue(null, "classifiedObject");
+                            }
+                        } else if (extrinsicObject && depth==4 &&
+                                XDSConstants.UUID_XDSDocumentEntry_author.equals(reader.getAttributeValue(null, "classificationScheme"))) {
+                            author = new Author();
+                            authorDepth = depth;
+                            object.authors.add(author);
+                        }
+
+                    } else if ("Slot".equals(name)) {
+                        String slotName = reader.getAttributeValue(null, "name");
+                        if (author!=null && depth==authorDepth+1) {
+                            //as with a slot map, a later slot replaces an earlier one with the same name
+                            if (XDSConstants.SLOT_NAME_AUTHOR_PERSON.equals(slotName)) {
+                                slot = author.person = new Slot(slotName);
+                            } else if (XDSConstants.SLOT_NAME_AUTHOR_INSTITUTION.equals(slotName)) {
+                                slot = author.institution = new Slot(slotName);
+                            }
+                            if (slot!=null) {
+                                slotDepth = depth;
+                                metadata.slotsByPosition.put(slotPosition, slot);
+                            }
+                        }
+                        slotPosition++;
+
+                    } else if ("Value".equals(name) && slot!=null && depth==slotDepth+2) {
+                        slot.addValue(reader.getElementText());
+                        depth--;
+                    }
+
+                } else if (event==XMLStreamConstants.END_ELEMENT && depth>0) {
+                    if (depth==1) {
+                        locateSubmitObjectsRequest(pnr, qName, metadata);
+                        return metadata;
+                    }
+
+                    if (depth==3) {
+                        object = null;
+                        extrinsicObject = false;
+                    } else if (author!=null && depth==authorDepth) {
+                        author = null;
+                    } else if (slot!=null && depth==slotDepth) {
+                        slot = null;
+                    }
+                    depth--;
+                }
+            }
+
+            throw new XMLStreamException("Request does not contain a complete SubmitObjectsRequest");
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Find the SubmitObjectsRequest tags in the request's text. Parser locations can't be used for this,
+     * since StAX implementations differ in the position they report for an event.
+     * <br/><br/>
+     * The start tag is the first one with the element's name and the end tag the last one,
+     * since what follows the SubmitObjectsRequest are the documents, which are base64 encoded or XOP includes.
+     */
+    private static void locateSubmitObjectsRequest(CharSequence pnr, String qName, Metadata metadata) throws XMLStreamException {
+        int start = XMLToolkit.indexOfStartTag(pnr, qName, 0);
+        int end = XMLToolkit.lastIndexOfEndTag(pnr, qName);
+
+        if (start<0 || end<=start) {
+            throw new XMLStreamException("Unable to locate the SubmitObjectsRequest");
+        }
+        metadata.submitObjectsRequestStart = start;
+        metadata.submitObjectsRequestEnd = Payload.of(pnr).indexOf(">", end) + 1;
+    }
+
+    /**
+     * Second pass: copy a request, rewriting the external identifiers and slots in its metadata that were changed.
+     * <br/><br/>
+     * The metadata's SubmitObjectsRequest offsets are updated to those of the returned request.
+     *
+     * @param metadata the request's metadata as read by {@link #scan(CharSequence)}
+     * @return the request, referencing the original request for everything but the SubmitObjectsRequest
+     */
+    public static Payload rewrite(Payload pnr, Metadata metadata) throws XMLStreamException {
+        int start = metadata.submitObjectsRequestStart;
+        int end = metadata.submitObjectsRequestEnd;
+
+        StringWriter out = new StringWriter(end - start + 256);
+
+        XMLEventFactory eventFactory = XMLToolkit.getEventFactory();
+        XMLEventReader reader = XMLToolkit.getInputFactory().createXMLEventReader(pnr.openReader());
+        XMLEventWriter writer = XMLToolkit.getOutputFactory().createXMLEventWriter(out);
+
+        try {
+            //depth within the SubmitObjectsRequest, which is at 1
+            int depth = 0;
+            int identifierPosition = 0;
+            int slotPosition = 0;
+
+            Slot slot = null;
+            int slotDepth = 0;
+            //while non-zero, the contents of the ValueList at this depth are being replaced
+            int replaceDepth = 0;
+
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+
+                if (depth==0) {
+                    if (event.isStartElement() && SUBMIT_OBJECTS_REQUEST.equals(event.asStartElement().getName().getLocalPart())) {
+                        writer.add(event);
+                        depth = 1;
+                    }
+                    continue;
+                }
+
+                if (event.isStartElement()) {
+                    depth++;
+                    if (replaceDepth>0) {
+                        continue;
+                    }
+
+                    StartElement element = event.asStartElement();
+                    String name = element.getName().getLocalPart();
+
+                    if ("ExternalIdentifier".equals(name)) {
+                        ExternalIdentifier ei = metadata.identifiersByPosition.get(identifierPosition++);
+                        if (ei!=null && ei.isChanged()) {
+                            event = withAttribute(eventFactory, element, "value", ei.getValue());
+                        }
+                    } else if ("Slot".equals(name)) {
+                        Slot candidate = metadata.slotsByPosition.get(slotPosition++);
+                        if (candidate!=null && candidate.isChanged()) {
+                            slot = candidate;
+                            slotDepth = depth;
+                        }
+                    } else if ("ValueList".equals(name) && slot!=null && depth==slotDepth+1) {
+                        writer.add(event);
+                        QName valueName = new QName(element.getName().getNamespaceURI(), "Value", element.getName().getPrefix());
+                        for (String value : slot.getValues()) {
+                            writer.add(eventFactory.createStartElement(valueName, null, null));
+                            writer.add(eventFactory.createCharacters(value));
+                            writer.add(eventFactory.createEndElement(valueName, null));
+                        }
+                        replaceDepth = depth;
+                        continue;
+                    }
+                    writer.add(event);
+
+                } else if (event.isEndElement()) {
+                    if (replaceDepth>0) {
+                        if (depth>replaceDepth) {
+                            depth--;
+                            continue;
+                        }
+                        replaceDepth = 0;
+                    }
+                    if (slot!=null && depth==slotDepth) {
+                        slot = null;
+                    }
+
+                    writer.add(event);
+                    depth--;
+                    if (depth==0) {
+                        break;
+                    }
+
+                } else if (replaceDepth==0) {
+                    writer.add(event);
+                }
+            }
+
+            writer.flush();
+        } finally {
+            close(reader);
+        }
+
+        String submitObjectsRequest = out.toString();
+        metadata.submitObjectsRequestEnd = start + submitObjectsRequest.length();
+        return Payload.concat(pnr.slice(0, start), submitObjectsRequest, pnr.slice(end));
+    }
+
+    /**
+     * @see #rewrite(Payload, Metadata)
+     */
+    public static String rewrite(String pnr, Metadata metadata) throws XMLStreamException {
+        return rewrite(Payload.of(pnr), metadata).toString();
+    }
+
+    private static StartElement withAttribute(XMLEventFactory eventFactory, StartElement element, String name, String value) {
+        List<Attribute> attributes = new ArrayList<>();
+        Iterator<?> it = element.getAttributes();
+        while (it.hasNext()) {
+            Attribute attribute = (Attribute) it.next();
+            if (name.equals(attribute.getName().getLocalPart()) && attribute.getName().getNamespaceURI().isEmpty()) {
+                attribute = eventFactory.createAttribute(name, value);
+            }
+            attributes.add(attribute);
+        }
+        return eventFactory.createStartElement(element.getName(), attributes.iterator(), element.getNamespaces());
+    }
+
+    /**
+     * Read the first document of a request. Only the request up to the end of that document is parsed.
+     *
+     * @return the decoded document or null if the request has no inline documents
+     */
+    public static String readFirstDocument(CharSequence pnr) throws XMLStreamException {
+        XMLStreamReader reader = XMLToolkit.getInputFactory().createXMLStreamReader(Payload.of(pnr).openReader());
+
+        try {
+            int depth = 0;
+            int requestDepth = -1;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                if (event==XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String name = reader.getLocalName();
+
+                    if (requestDepth<0 && "ProvideAndRegisterDocumentSetRequest".equals(name)) {
+                        requestDepth = depth;
+                    } else if (requestDepth>0 && depth==requestDepth+1 && "Document".equals(name)) {
+                        byte[] document = DatatypeConverter.parseBase64Binary(reader.getElementText());
+                        return new String(document, StandardCharsets.UTF_8);
+                    }
+                } else if (event==XMLStreamConstants.END_ELEMENT) {
+                    if (depth==requestDepth) {
+                        return null;
+                    }
+                    depth--;
+                }
+            }
+            return null;
+        } finally {
+            close(reader);
+        }
+    }
+
+    private static void close(XMLStreamReader reader) {
+        try {
+            reader.close();
+        } catch (XMLStreamException ex) {
+            //ignore
+        }
+    }
+
+    private static void close(XMLEventReader reader) {
+        try {
+            reader.close();
+        } catch (XMLStreamException ex) {
+            //ignore
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.apache.commons.io.IOUtils;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * A long-lived syslog connection (RFC5425) to an audit repository. Not thread-safe.
+ * <br/><br/>
+ * The connection is opened on the first write. If a write fails, the connection is closed and reopened on the
+ * next write, and the failure reports how many frames were written in full so that only the rest need to be sent again.
+ * <br/><br/>
+ * A write to a connection that was closed by the audit repository usually only fails on the following write,
+ * so a connection that has been idle for longer than <code>idleTimeout</code> milliseconds is reopened
+ * before writing to it.
+ */
+public class SyslogTCPConnection {
+
+    /**
+     * A failed write. The first {@link #getFramesWritten()} frames were handed to the socket in full.
+     */
+    public static class WriteFailedException extends IOException {
+        private final int framesWritten;
+
+        public WriteFailedException(int framesWritten, IOException cause) {
+            super(cause.getMessage(), cause);
+            this.framesWritten = framesWritten;
+        }
+
+        public int getFramesWritten() {
+            return framesWritten;
+        }
+    }
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final String host;
+    private final int port;
+    private final boolean secure;
+    private final int connectTimeout;
+    private final long idleTimeout;
+
+    private Socket socket;
+    private OutputStream out;
+    private long lastWrite;
+
+
+    public SyslogTCPConnection(String host, int port, boolean secure, int connectTimeout, long idleTimeout) {
+        this.host = host;
+        this.port = port;
+        this.secure = secure;
+        this.connectTimeout = connectTimeout;
+        this.idleTimeout = idleTimeout;
+    }
+
+
+    /**
+     * Build an RFC5425 frame for a syslog message: the message length in octets, a space, then the message.
+     */
+    public static String buildFrame(String syslogMessage) {
+        return syslogMessage.getBytes(CHARSET).length + " " + syslogMessage;
+    }
+
+    /**
+     * Write a batch of octet-counted frames, in chunks of up to 64KB.
+     *
+     * @throws WriteFailedException if a chunk couldn't be written. The connection is closed.
+     */
+    public void write(List<String> frames) throws WriteFailedException {
+        int written = 0;
+        try {
+            if (socket!=null && System.currentTimeMillis() - lastWrite > idleTimeout) {
+                close();
+            }
+            if (socket==null) {
+                connect();
+            }
+
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream(WRITE_BUFFER_SIZE);
+            int inChunk = 0;
+            for (String frame : frames) {
+                byte[] bytes = frame.getBytes(CHARSET);
+                if (inChunk>0 && chunk.size() + bytes.length > WRITE_BUFFER_SIZE) {
+                    chunk.writeTo(out);
+                    written += inChunk;
+                    chunk.reset();
+                    inChunk = 0;
+                }
+                chunk.write(bytes);
+                inChunk++;
+            }
+            chunk.writeTo(out);
+            out.flush();
+            written += inChunk;
+            lastWrite = System.currentTimeMillis();
+        } catch (IOException ex) {
+            close();
+            throw new WriteFailedException(written, ex);
+        }
+    }
+
+    private void connect() throws IOException {
+        Socket s = secure ? SSLSocketFactory.getDefault().createSocket() : new Socket();
+        s.connect(new InetSocketAddress(host, port), connectTimeout);
+        s.setKeepAlive(true);
+        socket = s;
+        out = s.getOutputStream();
+    }
+
+    public void close() {
+        IOUtils.closeQuietly(socket);
+        socket = null;
+        out = null;
+    }
+
+    public boolean isFor(String host, int port, boolean secure) {
+        return this.host.equals(host) && this.port==port && this.secure==secure;
+    }
+}
@@ -0,0 +1,24 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.exceptions;
+
+public class MimeParseException extends ValidationException {
+    public MimeParseException(Throwable cause) {
+        super(cause);
+    }
+
+    public MimeParseException() {
+    }
+
+    public MimeParseException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public MimeParseException(String message) {
+        super(message);
+    }
+}
@@ -7,12 +7,13 @@
 package org.openhim.mediator.messages;
 
 import akka.actor.ActorRef;
+import org.openhim.mediator.Payload;
 import org.openhim.mediator.engine.messages.SimpleMediatorRequest;
 
 /**
  * Orchestrate an XDS.b Provider and Register request
  */
-public class OrchestrateProvideAndRegisterRequest extends SimpleMediatorRequest<String> {
+public class OrchestrateProvideAndRegisterRequest extends SimpleMediatorRequest<Payload> {
     private final String xForwardedFor; //needed for auditing
     private final String messageID; //message id from the SOAP header
 
@@ -21,8 +22,8 @@ public class OrchestrateProvideAndRegisterRequest extends SimpleMediatorRequest<
     //it will likely need to be retrieved from the XDS.b contents (document element)
     private final String document;
 
-    public OrchestrateProvideAndRegisterRequest(ActorRef requestHandler, ActorRef respondTo, String requestObject, String xForwardedFor, String document, String messageID) {
-        super(requestHandler, respondTo, requestObject);
+    public OrchestrateProvideAndRegisterRequest(ActorRef requestHandler, ActorRef respondTo, CharSequence requestObject, String xForwardedFor, String document, String messageID) {
+        super(requestHandler, respondTo, Payload.of(requestObject));
         this.xForwardedFor = xForwardedFor;
         this.document = document;
         this.messageID = messageID;
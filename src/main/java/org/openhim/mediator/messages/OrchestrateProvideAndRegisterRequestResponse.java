@@ -6,11 +6,12 @@
 
 package org.openhim.mediator.messages;
 
+import org.openhim.mediator.Payload;
 import org.openhim.mediator.engine.messages.MediatorRequestMessage;
 import org.openhim.mediator.engine.messages.SimpleMediatorResponse;
 
-public class OrchestrateProvideAndRegisterRequestResponse extends SimpleMediatorResponse<String> {
-    public OrchestrateProvideAndRegisterRequestResponse(MediatorRequestMessage originalRequest, String responseObject) {
-        super(originalRequest, responseObject);
+public class OrchestrateProvideAndRegisterRequestResponse extends SimpleMediatorResponse<Payload> {
+    public OrchestrateProvideAndRegisterRequestResponse(MediatorRequestMessage originalRequest, CharSequence responseObject) {
+        super(originalRequest, Payload.of(responseObject));
     }
 }
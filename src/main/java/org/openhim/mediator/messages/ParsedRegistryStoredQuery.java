@@ -11,10 +11,16 @@ import org.openhim.mediator.datatypes.Identifier;
 public class ParsedRegistryStoredQuery {
     private Identifier patientId;
     private String messageId;
+    private String queryId;
 
     public ParsedRegistryStoredQuery(Identifier patientId, String messageId) {
+        this(patientId, messageId, null);
+    }
+
+    public ParsedRegistryStoredQuery(Identifier patientId, String messageId, String queryId) {
         this.patientId = patientId;
         this.messageId = messageId;
+        this.queryId = queryId;
     }
 
     public Identifier getPatientId() {
@@ -24,4 +30,8 @@ public class ParsedRegistryStoredQuery {
     public String getMessageId() {
         return messageId;
     }
+
+    public String getQueryId() {
+        return queryId;
+    }
 }
@@ -0,0 +1,235 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.normalization;
+
+import oasis.names.tc.ebxml_regrep.xsd.lcm._3.SubmitObjectsRequest;
+import org.openhim.mediator.JAXBRuntime;
+import org.openhim.mediator.Payload;
+import org.openhim.mediator.XMLToolkit;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An XDS.b Provide and Register Document Set request of which only the SubmitObjectsRequest metadata is bound to JAXB.
+ * <br/><br/>
+ * The documents are kept as handles to their base64 content in the original request and are only decoded if asked for.
+ * When the request is marshalled, only the metadata is marshalled: the result is a {@link Payload} that references
+ * the original request for everything else, including the documents. The request is therefore not copied,
+ * and no decoded copies of the documents are made unless asked for. The original request stays on the heap
+ * for as long as the result references it.
+ */
+public class LazyProvideAndRegisterRequest {
+
+    private static final String JAXB_CONTEXT_PATH = "ihe.iti.xds_b._2007";
+
+    /**
+     * A document in the request
+     */
+    public static class DocumentHandle {
+        private final Payload source;
+        private final String id;
+        private final int contentStart;
+        private final int contentEnd;
+
+        public DocumentHandle(Payload source, String id, int contentStart, int contentEnd) {
+            this.source = source;
+            this.id = id;
+            this.contentStart = contentStart;
+            this.contentEnd = contentEnd;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the length of the document's base64 content in characters
+         */
+        public int getEncodedLength() {
+            return contentEnd - contentStart;
+        }
+
+        /**
+         * @return the document's base64 content as it appears in the request
+         */
+        public String getEncodedContent() {
+            return source.slice(contentStart, contentEnd).toString();
+        }
+
+        /**
+         * @return the decoded document
+         */
+        public byte[] getContent() {
+            return DatatypeConverter.parseBase64Binary(getEncodedContent());
+        }
+    }
+
+
+    private final Payload source;
+    private final SubmitObjectsRequest submitObjectsRequest;
+    private final int submitObjectsRequestStart;
+    private final int submitObjectsRequestEnd;
+    private final List<DocumentHandle> documents;
+
+    private LazyProvideAndRegisterRequest(Payload source, SubmitObjectsRequest submitObjectsRequest,
+                                          int submitObjectsRequestStart, int submitObjectsRequestEnd, List<DocumentHandle> documents) {
+        this.source = source;
+        this.submitObjectsRequest = submitObjectsRequest;
+        this.submitObjectsRequestStart = submitObjectsRequestStart;
+        this.submitObjectsRequestEnd = submitObjectsRequestEnd;
+        this.documents = documents;
+    }
+
+
+    /**
+     * Parse a request, binding only its SubmitObjectsRequest.
+     * <br/><br/>
+     * The parser checks the structure of the request, while the positions of the SubmitObjectsRequest
+     * and document contents are found in the request's text.
+     */
+    public static LazyProvideAndRegisterRequest parse(CharSequence request) throws JAXBException {
+        Payload pnr = Payload.of(request);
+        XMLStreamReader reader = null;
+        try {
+            reader = XMLToolkit.getInputFactory().createXMLStreamReader(pnr.openReader());
+
+            while (reader.hasNext() && !(reader.isStartElement() && "SubmitObjectsRequest".equals(reader.getLocalName()))) {
+                reader.next();
+            }
+            if (!reader.isStartElement()) {
+                throw new JAXBException("Request does not contain a SubmitObjectsRequest");
+            }
+
+            String sorQName = getQName(reader);
+            SubmitObjectsRequest sor = JAXBRuntime.unmarshal(JAXBRuntime.getContext(JAXB_CONTEXT_PATH), reader, SubmitObjectsRequest.class).getValue();
+
+            int sorStart = XMLToolkit.indexOfStartTag(pnr, sorQName, 0);
+            if (sorStart<0) {
+                throw new JAXBException("Unable to locate the SubmitObjectsRequest");
+            }
+            int sorEnd = findTagEnd(pnr, sorStart) + 1;
+            if (pnr.charAt(sorEnd-2)!='/') {
+                int endTag = XMLToolkit.lastIndexOfEndTag(pnr, sorQName);
+                if (endTag<sorEnd) {
+                    throw new JAXBException("Unable to locate the SubmitObjectsRequest");
+                }
+                sorEnd = pnr.indexOf(">", endTag) + 1;
+            }
+
+            return new LazyProvideAndRegisterRequest(pnr, sor, sorStart, sorEnd, readDocuments(pnr, reader, sorEnd));
+        } catch (XMLStreamException ex) {
+            throw new JAXBException(ex);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Read the Document elements that follow the SubmitObjectsRequest, without reading their contents
+     */
+    private static List<DocumentHandle> readDocuments(Payload pnr, XMLStreamReader reader, int from) throws XMLStreamException {
+        List<DocumentHandle> documents = new ArrayList<>();
+        int depth = 0;
+        int pos = from;
+
+        //the unmarshaller leaves the reader after the SubmitObjectsRequest's end tag
+        int event = reader.getEventType();
+        if (event==XMLStreamConstants.END_ELEMENT && "SubmitObjectsRequest".equals(reader.getLocalName())) {
+            event = reader.next();
+        }
+
+        while (true) {
+            if (event==XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                if (depth==1 && "Document".equals(reader.getLocalName())) {
+                    String qName = getQName(reader);
+                    int tagStart = XMLToolkit.indexOfStartTag(pnr, qName, pos);
+                    int contentStart = findTagEnd(pnr, tagStart) + 1;
+                    int contentEnd = contentStart;
+                    if (pnr.charAt(contentStart-2)!='/') {
+                        contentEnd = pnr.indexOf("</" + qName, contentStart);
+                    }
+                    documents.add(new DocumentHandle(pnr, reader.getAttributeValue(null, "id"), contentStart, contentEnd));
+                    pos = contentEnd;
+                }
+            } else if (event==XMLStreamConstants.END_ELEMENT) {
+                if (depth==0) {
+                    //end of the Provide and Register request
+                    break;
+                }
+                depth--;
+            }
+
+            if (!reader.hasNext()) {
+                break;
+            }
+            event = reader.next();
+        }
+
+        return documents;
+    }
+
+    private static String getQName(XMLStreamReader reader) {
+        String prefix = reader.getPrefix();
+        return prefix==null || prefix.isEmpty() ? reader.getLocalName() : prefix + ":" + reader.getLocalName();
+    }
+
+    /**
+     * @return the index of the '>' closing a start tag, skipping over quoted attribute values
+     */
+    private static int findTagEnd(CharSequence xml, int from) {
+        char quote = 0;
+        for (int i=from; i<xml.length(); i++) {
+            char c = xml.charAt(i);
+            if (quote!=0) {
+                if (c==quote) {
+                    quote = 0;
+                }
+            } else if (c=='"' || c=='\'') {
+                quote = c;
+            } else if (c=='>') {
+                return i;
+            }
+        }
+        return xml.length();
+    }
+
+    private static void close(XMLStreamReader reader) {
+        if (reader!=null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException ex) {
+                //ignore
+            }
+        }
+    }
+
+
+    public SubmitObjectsRequest getSubmitObjectsRequest() {
+        return submitObjectsRequest;
+    }
+
+    public List<DocumentHandle> getDocuments() {
+        return Collections.unmodifiableList(documents);
+    }
+
+    /**
+     * @return the request with the current state of its SubmitObjectsRequest,
+     * referencing the original request for everything else
+     */
+    public Payload marshal() throws JAXBException {
+        String sor = JAXBRuntime.marshal(JAXBRuntime.getContext(JAXB_CONTEXT_PATH), submitObjectsRequest, true, false);
+        return Payload.concat(source.slice(0, submitObjectsRequestStart), sor, source.slice(submitObjectsRequestEnd));
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.normalization;
+
+import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.Payload;
+import org.openhim.mediator.Util;
+import org.openhim.mediator.exceptions.MimeParseException;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeUtility;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A MIME multipart message (e.g. an MTOM/XOP request) parsed over its bytes.
+ * <br/><br/>
+ * Parts are located by scanning the buffer for the boundary delimiters. The parts aren't copied or decoded:
+ * each one refers to a range of the message's buffer, and is only decoded if its content is asked for.
+ * A part's body can be replaced when writing the message out, in which case everything else in the message,
+ * including the other parts and their headers, is written exactly as received.
+ * <br/><br/>
+ * Large parts can be spilled to temporary files (see {@link #spill(long, File)}), which are memory-mapped
+ * so that the parts are read from disk rather than held on the heap. When the message is closed the files are
+ * unmapped and deleted, and the spilled parts can no longer be read.
+ */
+public class MultipartRelated implements Closeable {
+
+    private static final Charset HEADER_CHARSET = StandardCharsets.ISO_8859_1;
+
+    /**
+     * A part of the message
+     */
+    public static class Part {
+        private final Map<String, String> headers;
+        private ByteBuffer body;
+        private File file;
+
+        private Part(Map<String, String> headers, ByteBuffer body) {
+            this.headers = headers;
+            this.body = body;
+        }
+
+        private ByteBuffer body() {
+            if (body==null) {
+                throw new IllegalStateException("The part was spilled and the message has been closed");
+            }
+            return body;
+        }
+
+        /**
+         * @return a header's value or null if the part doesn't have the header. Names aren't case sensitive.
+         */
+        public String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        public String getContentType() {
+            String contentType = getHeader("Content-Type");
+            return contentType!=null ? contentType : "text/plain";
+        }
+
+        /**
+         * @return the charset of the part's content, defaulting to UTF-8
+         */
+        public Charset getCharset() {
+            String charset = SOAPActionRouter.getContentTypeParameter(getContentType(), "charset");
+            try {
+                return charset!=null ? Charset.forName(charset) : StandardCharsets.UTF_8;
+            } catch (IllegalArgumentException ex) {
+                return StandardCharsets.UTF_8;
+            }
+        }
+
+        /**
+         * @return the part's Content-Transfer-Encoding or null if there is none
+         */
+        public String getTransferEncoding() {
+            String encoding = getHeader("Content-Transfer-Encoding");
+            return encoding!=null ? encoding.trim().toLowerCase() : null;
+        }
+
+        /**
+         * @return the length of the body as it appears in the message
+         */
+        public int getBodyLength() {
+            return body().remaining();
+        }
+
+        /**
+         * @return true if the body has been spilled to a temporary file
+         */
+        public boolean isSpilled() {
+            return file!=null;
+        }
+
+        /**
+         * @return the body as it appears in the message, i.e. without removing any transfer encoding
+         */
+        public InputStream getRawBody() {
+            return new ByteBufferInputStream(body().duplicate());
+        }
+
+        /**
+         * @return the decoded body
+         */
+        public InputStream getBody() throws MimeParseException {
+            if (isIdentityEncoding(getTransferEncoding())) {
+                return getRawBody();
+            }
+            try {
+                return MimeUtility.decode(getRawBody(), getTransferEncoding());
+            } catch (MessagingException ex) {
+                throw new MimeParseException(ex);
+            }
+        }
+
+        /**
+         * @return the decoded body as text, using the part's charset
+         */
+        public String getBodyAsString() throws MimeParseException, IOException {
+            if (isIdentityEncoding(getTransferEncoding())) {
+                ByteBuffer body = body();
+                if (body.hasArray()) {
+                    return new String(body.array(), body.arrayOffset() + body.position(), body.remaining(), getCharset());
+                }
+                return getCharset().decode(body.duplicate()).toString();
+            }
+            return IOUtils.toString(getBody(), getCharset());
+        }
+    }
+
+
+    /**
+     * The message being parsed. The parts and framing refer to it, but it isn't kept once parsing is done.
+     */
+    private byte[] buffer;
+    private final List<Part> parts = new ArrayList<>();
+    /**
+     * The message's content around the part bodies: before the first body, between each pair of bodies and after the last body
+     */
+    private final List<ByteBuffer> framing = new ArrayList<>();
+
+    private MultipartRelated(byte[] buffer) {
+        this.buffer = buffer;
+    }
+
+
+    /**
+     * Parse a message. The buffer is referenced by the parsed message and so must not be changed afterwards.
+     * <br/><br/>
+     * As with javax.mail, if the Content-Type doesn't have a boundary parameter then the first line
+     * in the message starting with "--" is taken as the boundary delimiter.
+     *
+     * @param contentType the Content-Type of the message, containing the boundary parameter
+     */
+    public static MultipartRelated parse(byte[] buffer, String contentType) throws MimeParseException {
+        String boundary = SOAPActionRouter.getContentTypeParameter(contentType, "boundary");
+        if (boundary==null || boundary.isEmpty()) {
+            boundary = findBoundary(buffer);
+        }
+        if (boundary==null || boundary.isEmpty()) {
+            throw new MimeParseException("No boundary found in Content-Type: " + contentType);
+        }
+
+        MultipartRelated message = new MultipartRelated(buffer);
+        message.readParts(("--" + boundary).getBytes(HEADER_CHARSET));
+        message.buffer = null;
+        return message;
+    }
+
+    private void readParts(byte[] delimiter) throws MimeParseException {
+        int pos = indexOf(buffer, delimiter, 0);
+        //the first delimiter is either at the start of the message or after the preamble
+        while (pos>0 && buffer[pos-1]!='\n') {
+            pos = indexOf(buffer, delimiter, pos+1);
+        }
+        if (pos<0) {
+            throw new MimeParseException("No parts found in multipart message");
+        }
+
+        int framingStart = 0;
+        while (true) {
+            int afterDelimiter = pos + delimiter.length;
+            if (afterDelimiter+1<buffer.length && buffer[afterDelimiter]=='-' && buffer[afterDelimiter+1]=='-') {
+                //close delimiter
+                framing.add(slice(framingStart, buffer.length));
+                return;
+            }
+
+            int lineEnd = indexOf(buffer, (byte) '\n', afterDelimiter);
+            if (lineEnd<0) {
+                throw new MimeParseException("Unexpected end of multipart message");
+            }
+
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            int bodyStart = readHeaders(lineEnd+1, headers);
+
+            //the line break before a delimiter belongs to the delimiter
+            int next = indexOfDelimiter(delimiter, bodyStart-1);
+            if (next<0) {
+                throw new MimeParseException("Unexpected end of multipart message");
+            }
+            int bodyEnd = next;
+            if (bodyEnd>bodyStart && buffer[bodyEnd-1]=='\r') {
+                bodyEnd--;
+            }
+            bodyEnd = Math.max(bodyStart, bodyEnd);
+            framing.add(slice(framingStart, bodyStart));
+            parts.add(new Part(headers, slice(bodyStart, bodyEnd)));
+            framingStart = bodyEnd;
+
+            pos = next + 1;
+        }
+    }
+
+    private static String findBoundary(byte[] buffer) {
+        int pos = 0;
+        while (pos<buffer.length) {
+            int lineEnd = indexOf(buffer, (byte) '\n', pos);
+            if (lineEnd<0) {
+                return null;
+            }
+            if (lineEnd-pos>2 && buffer[pos]=='-' && buffer[pos+1]=='-') {
+                return new String(buffer, pos+2, lineEnd-pos-2, HEADER_CHARSET).trim();
+            }
+            pos = lineEnd + 1;
+        }
+        return null;
+    }
+
+    /**
+     * @return the offset of the body following the headers
+     */
+    private int readHeaders(int pos, Map<String, String> headers) throws MimeParseException {
+        String name = null;
+        StringBuilder value = null;
+
+        while (true) {
+            int lineEnd = indexOf(buffer, (byte) '\n', pos);
+            if (lineEnd<0) {
+                throw new MimeParseException("Unexpected end of multipart message");
+            }
+            int contentEnd = lineEnd>pos && buffer[lineEnd-1]=='\r' ? lineEnd-1 : lineEnd;
+            String line = new String(buffer, pos, contentEnd - pos, HEADER_CHARSET);
+            pos = lineEnd + 1;
+
+            if (!line.isEmpty() && (line.charAt(0)==' ' || line.charAt(0)=='\t') && value!=null) {
+                //folded header
+                value.append(' ').append(line.trim());
+                continue;
+            }
+
+            if (name!=null) {
+                headers.put(name, value.toString());
+                name = null;
+            }
+            if (line.isEmpty()) {
+                return pos;
+            }
+
+            int colon = line.indexOf(':');
+            if (colon>0) {
+                name = line.substring(0, colon).trim();
+                value = new StringBuilder(line.substring(colon+1).trim());
+            }
+        }
+    }
+
+    private ByteBuffer slice(int start, int end) {
+        return ByteBuffer.wrap(buffer, start, end - start).slice();
+    }
+
+    private int indexOfDelimiter(byte[] delimiter, int from) {
+        int i = indexOf(buffer, delimiter, from);
+        while (i>0 && buffer[i-1]!='\n') {
+            i = indexOf(buffer, delimiter, i+1);
+        }
+        return i>0 ? i-1 : -1;
+    }
+
+    private static int indexOf(byte[] buffer, byte b, int from) {
+        for (int i=Math.max(from, 0); i<buffer.length; i++) {
+            if (buffer[i]==b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] buffer, byte[] target, int from) {
+        int last = buffer.length - target.length;
+        outer:
+        for (int i=Math.max(from, 0); i<=last; i++) {
+            for (int j=0; j<target.length; j++) {
+                if (buffer[i+j]!=target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static boolean isIdentityEncoding(String encoding) {
+        return encoding==null || "binary".equals(encoding) || "8bit".equals(encoding) || "7bit".equals(encoding);
+    }
+
+
+    public List<Part> getParts() {
+        return Collections.unmodifiableList(parts);
+    }
+
+    /**
+     * @return the first part whose Content-Type contains a string, or null if there is none
+     */
+    public Part findPart(String contentType) {
+        for (Part part : parts) {
+            if (part.getContentType().contains(contentType)) {
+                return part;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Spill the bodies of parts larger than a threshold to memory-mapped temporary files.
+     * <br/><br/>
+     * Once anything has been spilled, the rest of the message is copied out of the buffer that was parsed,
+     * so that the message no longer references that buffer.
+     *
+     * @param threshold the size in bytes above which a part is spilled
+     * @param directory where the files are created, or null for the default temporary directory
+     * @return the number of parts spilled
+     */
+    public int spill(long threshold, File directory) throws IOException {
+        int spilled = 0;
+        try {
+            for (Part part : parts) {
+                if (!part.isSpilled() && part.getBodyLength()>threshold) {
+                    spill(part, directory);
+                    spilled++;
+                }
+            }
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+
+        if (spilled>0) {
+            for (int i=0; i<framing.size(); i++) {
+                framing.set(i, copy(framing.get(i)));
+            }
+            for (Part part : parts) {
+                if (!part.isSpilled()) {
+                    part.body = copy(part.body);
+                }
+            }
+        }
+        return spilled;
+    }
+
+    private static void spill(Part part, File directory) throws IOException {
+        File file = File.createTempFile("mtom-", ".part", directory);
+        part.file = file;
+
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = out.getChannel();
+            ByteBuffer body = part.body().duplicate();
+            while (body.hasRemaining()) {
+                channel.write(body);
+            }
+            part.body = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * Unmap and delete the temporary files of any spilled parts
+     */
+    @Override
+    public void close() {
+        for (Part part : parts) {
+            if (part.file!=null) {
+                if (part.body instanceof MappedByteBuffer) {
+                    Util.unmap((MappedByteBuffer) part.body);
+                }
+                //a spilled part mustn't be read once it's unmapped
+                part.body = null;
+                part.file.delete();
+                part.file = null;
+            }
+        }
+    }
+
+    /**
+     * Write the message out with the content of one of its parts replaced.
+     * The content is encoded with the part's charset and transfer encoding as it's written.
+     */
+    public void writeTo(OutputStream out, Part part, CharSequence content) throws IOException, MimeParseException {
+        for (int i=0; i<parts.size(); i++) {
+            write(out, framing.get(i));
+
+            Part current = parts.get(i);
+            if (current==part) {
+                writeContent(out, part, content);
+            } else {
+                write(out, current.body());
+            }
+        }
+        write(out, framing.get(parts.size()));
+    }
+
+    private static void writeContent(OutputStream out, Part part, CharSequence content) throws IOException, MimeParseException {
+        if (isIdentityEncoding(part.getTransferEncoding())) {
+            Payload.of(content).writeTo(out, part.getCharset());
+        } else {
+            try {
+                OutputStream encoder = MimeUtility.encode(new NonClosingOutputStream(out), part.getTransferEncoding());
+                Payload.of(content).writeTo(encoder, part.getCharset());
+                encoder.close();
+            } catch (MessagingException ex) {
+                throw new MimeParseException(ex);
+            }
+        }
+    }
+
+    private static void write(OutputStream out, ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+
+        ByteBuffer src = buffer.duplicate();
+        byte[] chunk = new byte[Math.min(src.remaining(), 8192)];
+        while (src.hasRemaining()) {
+            int len = Math.min(src.remaining(), chunk.length);
+            src.get(chunk, 0, len);
+            out.write(chunk, 0, len);
+        }
+    }
+
+    /**
+     * @return the total length of the message
+     */
+    public long getLength() {
+        long length = 0;
+        for (ByteBuffer b : framing) {
+            length += b.remaining();
+        }
+        for (Part part : parts) {
+            length += part.getBodyLength();
+        }
+        return length;
+    }
+
+    /**
+     * @return the message with the content of one of its parts replaced
+     */
+    public byte[] toByteArray(Part part, CharSequence content) throws IOException, MimeParseException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, getLength() - part.getBodyLength() + content.length()));
+        writeTo(out, part, content);
+        return out.toByteArray();
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len==0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    private static class NonClosingOutputStream extends OutputStream {
+        private final OutputStream out;
+
+        NonClosingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
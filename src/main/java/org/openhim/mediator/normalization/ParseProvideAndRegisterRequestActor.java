@@ -9,8 +9,10 @@ package org.openhim.mediator.normalization;
 import akka.actor.ActorRef;
 import akka.actor.UntypedActor;
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
-import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpStatus;
+import org.openhim.mediator.JAXBRuntime;
+import org.openhim.mediator.Payload;
+import org.openhim.mediator.Util;
 import org.openhim.mediator.engine.CoreResponse;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
@@ -18,17 +20,19 @@ import org.openhim.mediator.engine.messages.FinishRequest;
 import org.openhim.mediator.engine.messages.SimpleMediatorRequest;
 import org.openhim.mediator.engine.messages.SimpleMediatorResponse;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
 
 /**
  * Parses XDS.b Provide and Register Document Set transactions.
  * <br/><br/>
+ * If <code>pnr.parse.lazyDocuments</code> is enabled, only the request's metadata is bound
+ * and the documents are left in the request until needed (see {@link LazyProvideAndRegisterRequest}).
+ * <br/><br/>
  * Messages supported:
  * <ul>
- *     <li>SimpleMediatorRequest<String> - responds with SimpleMediatorResponse<ProvideAndRegisterDocumentSetRequestType></li>
+ *     <li>SimpleMediatorRequest<String> or SimpleMediatorRequest<Payload> - responds with SimpleMediatorResponse<ProvideAndRegisterDocumentSetRequestType>,
+ *     or SimpleMediatorResponse<LazyProvideAndRegisterRequest> if parsing lazily</li>
  * </ul>
  */
 public class ParseProvideAndRegisterRequestActor extends UntypedActor {
@@ -43,15 +47,13 @@ public class ParseProvideAndRegisterRequestActor extends UntypedActor {
     }
 
 
-    public static ProvideAndRegisterDocumentSetRequestType parseRequest(String document) throws JAXBException {
-        JAXBContext jaxbContext = JAXBContext.newInstance("ihe.iti.xds_b._2007");
-        Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-        JAXBElement result = (JAXBElement)(unmarshaller.unmarshal(IOUtils.toInputStream(document)));
+    public static ProvideAndRegisterDocumentSetRequestType parseRequest(CharSequence document) throws JAXBException {
+        JAXBElement result = (JAXBElement) JAXBRuntime.unmarshal(JAXBRuntime.getContext("ihe.iti.xds_b._2007"), Payload.of(document).openReader());
         return (ProvideAndRegisterDocumentSetRequestType) result.getValue();
     }
 
 
-    private void processMsg(SimpleMediatorRequest<String> msg) {
+    private void processMsg(SimpleMediatorRequest<? extends CharSequence> msg) {
         ActorRef requestHandler = msg.getRequestHandler();
         
         CoreResponse.Orchestration orch = null;
@@ -65,8 +67,13 @@ public class ParseProvideAndRegisterRequestActor extends UntypedActor {
                 orch.setRequest(new CoreResponse.Request());
             }
 
-            ProvideAndRegisterDocumentSetRequestType result = parseRequest(msg.getRequestObject());
-            msg.getRespondTo().tell(new SimpleMediatorResponse<>(msg, result), getSelf());
+            if (Util.isPropertyTrue(config, "pnr.parse.lazyDocuments")) {
+                LazyProvideAndRegisterRequest result = LazyProvideAndRegisterRequest.parse(msg.getRequestObject());
+                msg.getRespondTo().tell(new SimpleMediatorResponse<>(msg, result), getSelf());
+            } else {
+                ProvideAndRegisterDocumentSetRequestType result = parseRequest(msg.getRequestObject());
+                msg.getRespondTo().tell(new SimpleMediatorResponse<>(msg, result), getSelf());
+            }
 
             if (sendParseOrchestration) {
                 orch.setResponse(new CoreResponse.Response());
@@ -81,8 +88,8 @@ public class ParseProvideAndRegisterRequestActor extends UntypedActor {
 
     @Override
     public void onReceive(Object msg) throws Exception {
-        if (SimpleMediatorRequest.isInstanceOf(String.class, msg)) {
-            processMsg((SimpleMediatorRequest<String>) msg);
+        if (SimpleMediatorRequest.isInstanceOf(CharSequence.class, msg)) {
+            processMsg((SimpleMediatorRequest<? extends CharSequence>) msg);
         } else {
             unhandled(msg);
         }
@@ -0,0 +1,205 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.normalization;
+
+import org.openhim.mediator.XMLToolkit;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+
+/**
+ * Reads the fields needed to process a registry stored query in a single streaming pass.
+ * <br/><br/>
+ * The scan detects whether a message is an AdhocQueryRequest, either as the document element or
+ * as the first element of the SOAP body, and reads the WS-Addressing MessageID,
+ * the AdhocQuery id and the first value of the $XDSDocumentEntryPatientId slot.
+ * Reading stops as soon as these are known or the message is found not to be a stored query,
+ * so the rest of the document is never parsed.
+ */
+public class RegistryStoredQueryScanner {
+
+    public static class Result {
+        private final boolean adhocQuery;
+        private final String messageID;
+        private final String queryID;
+        private final String patientID;
+        private final XMLStreamException parseError;
+
+        public Result(boolean adhocQuery, String messageID, String queryID, String patientID) {
+            this(adhocQuery, messageID, queryID, patientID, null);
+        }
+
+        public Result(boolean adhocQuery, String messageID, String queryID, String patientID, XMLStreamException parseError) {
+            this.adhocQuery = adhocQuery;
+            this.messageID = messageID;
+            this.queryID = queryID;
+            this.patientID = patientID;
+            this.parseError = parseError;
+        }
+
+        public boolean isAdhocQuery() {
+            return adhocQuery;
+        }
+
+        /**
+         * @return the SOAP header's MessageID or null if the message has none
+         */
+        public String getMessageID() {
+            return messageID;
+        }
+
+        public String getQueryID() {
+            return queryID;
+        }
+
+        /**
+         * @return the patient ID as it appears in the query (i.e. as a quoted CX) or null if the query has none
+         */
+        public String getPatientID() {
+            return patientID;
+        }
+
+        /**
+         * @return the error if the message was found to be an AdhocQueryRequest but couldn't be read, else null
+         */
+        public XMLStreamException getParseError() {
+            return parseError;
+        }
+    }
+
+
+    private RegistryStoredQueryScanner() {
+    }
+
+
+    /**
+     * Scan a message. A message that can't be parsed up to its AdhocQueryRequest element is not a stored query.
+     * If parsing fails after that, the result is a stored query that carries the parse error,
+     * so that the request can be rejected rather than forwarded without enrichment.
+     */
+    public static Result scan(String msg) {
+        boolean adhocQuery = false;
+        String messageID = null;
+        String queryID = null;
+        String patientID = null;
+
+        XMLStreamReader reader = null;
+        try {
+            reader = XMLToolkit.getInputFactory().createXMLStreamReader(new StringReader(msg));
+
+            //depth of the current element, with the document element at 1
+            int depth = 0;
+            boolean soap = false;
+            boolean inHeader = false;
+            boolean inBody = false;
+            boolean inPatientIDSlot = false;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                if (event==XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String name = reader.getLocalName();
+
+                    if (depth==1) {
+                        if ("Envelope".equals(name)) {
+                            soap = true;
+                        } else if ("AdhocQueryRequest".equals(name)) {
+                            adhocQuery = true;
+                        } else {
+                            break;
+                        }
+                    } else if (soap && depth==2) {
+                        inHeader = "Header".equals(name);
+                        inBody = "Body".equals(name);
+                    } else if (inHeader && depth==3) {
+                        if ("MessageID".equals(name)) {
+                            messageID = readText(reader);
+                            depth--;
+                        }
+                    } else if (inBody && depth==3) {
+                        if (!"AdhocQueryRequest".equals(name)) {
+                            break;
+                        }
+                        adhocQuery = true;
+                    } else if (adhocQuery) {
+                        if ("AdhocQuery".equals(name)) {
+                            if (queryID==null) {
+                                queryID = reader.getAttributeValue(null, "id");
+                            }
+                        } else if ("Slot".equals(name)) {
+                            inPatientIDSlot = patientID==null &&
+                                    ParseRegistryStoredQueryActor.PATIENT_ID_SLOT_TYPE.equals(reader.getAttributeValue(null, "name"));
+                        } else if ("Value".equals(name) && inPatientIDSlot) {
+                            patientID = readText(reader);
+                            inPatientIDSlot = false;
+                            depth--;
+                        }
+
+                        if (queryID!=null && patientID!=null) {
+                            //the header precedes the body, so everything needed has been read
+                            break;
+                        }
+                    }
+                } else if (event==XMLStreamConstants.END_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("Slot".equals(name)) {
+                        inPatientIDSlot = false;
+                    } else if (adhocQuery && "AdhocQueryRequest".equals(name)) {
+                        break;
+                    }
+                    if (soap && depth==2) {
+                        inHeader = false;
+                        inBody = false;
+                    }
+                    depth--;
+                }
+            }
+        } catch (XMLStreamException ex) {
+            if (adhocQuery) {
+                return new Result(true, messageID, queryID, patientID, ex);
+            }
+            return new Result(false, null, null, null);
+        } finally {
+            close(reader);
+        }
+
+        return new Result(adhocQuery, messageID, queryID, patientID);
+    }
+
+    /**
+     * Read the text of the current element, including that of any child elements (as with XPath's string value),
+     * leaving the reader on the element's end tag.
+     */
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        int level = 1;
+        while (level > 0) {
+            int event = reader.next();
+            if (event==XMLStreamConstants.START_ELEMENT) {
+                level++;
+            } else if (event==XMLStreamConstants.END_ELEMENT) {
+                level--;
+            } else if (event==XMLStreamConstants.CHARACTERS || event==XMLStreamConstants.CDATA || event==XMLStreamConstants.SPACE) {
+                text.append(reader.getText());
+            }
+        }
+        return text.toString();
+    }
+
+    private static void close(XMLStreamReader reader) {
+        if (reader!=null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException ex) {
+                //ignore
+            }
+        }
+    }
+}
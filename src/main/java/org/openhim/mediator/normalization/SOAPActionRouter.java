@@ -0,0 +1,107 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.normalization;
+
+import java.util.Map;
+
+/**
+ * Determines the SOAP action of a request so that it can be routed before its body is parsed.
+ * <br/><br/>
+ * The action is taken from the HTTP headers if present: the <code>action</code> parameter of the Content-Type (SOAP 1.2)
+ * or the SOAPAction header (SOAP 1.1). Otherwise the WS-Addressing Action is read from a bounded prefix of the message.
+ */
+public class SOAPActionRouter {
+
+    public static final String ACTION_REGISTRY_STORED_QUERY = "urn:ihe:iti:2007:RegistryStoredQuery";
+    public static final String ACTION_REGISTER_DOCUMENT_SET_B = "urn:ihe:iti:2007:RegisterDocumentSet-b";
+    public static final String ACTION_PROVIDE_AND_REGISTER_DOCUMENT_SET_B = "urn:ihe:iti:2007:ProvideAndRegisterDocumentSet-b";
+    public static final String ACTION_RETRIEVE_DOCUMENT_SET = "urn:ihe:iti:2007:RetrieveDocumentSet";
+
+    //the SOAP header is expected well within this many characters
+    public static final int PREFIX_SCAN_LIMIT = 64 * 1024;
+
+
+    private SOAPActionRouter() {
+    }
+
+
+    /**
+     * @return the action from the HTTP headers or null if not set
+     */
+    public static String getActionFromHeaders(Map<String, String> headers) {
+        if (headers==null) {
+            return null;
+        }
+
+        String action = getContentTypeParameter(getHeader(headers, "Content-Type"), "action");
+        if (isEmpty(action)) {
+            action = unquote(getHeader(headers, "SOAPAction"));
+        }
+        return isEmpty(action) ? null : action.trim();
+    }
+
+    /**
+     * @return the WS-Addressing action from the SOAP header of a message or null if it isn't found
+     * within the first {@link #PREFIX_SCAN_LIMIT} characters
+     */
+    public static String getActionFromPrefix(String message) {
+        if (message==null) {
+            return null;
+        }
+        String action = SOAPEnvelopeSniffer.sniffHeader(message, PREFIX_SCAN_LIMIT).getAction();
+        return isEmpty(action) ? null : action.trim();
+    }
+
+    /**
+     * @return the action from the HTTP headers or else from the message's SOAP header, or null if neither has one
+     */
+    public static String determineAction(Map<String, String> headers, String message) {
+        String action = getActionFromHeaders(headers);
+        return action!=null ? action : getActionFromPrefix(message);
+    }
+
+    protected static String getHeader(Map<String, String> headers, String name) {
+        String value = headers.get(name);
+        if (value==null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey())) {
+                    return header.getValue();
+                }
+            }
+        }
+        return value;
+    }
+
+    protected static String getContentTypeParameter(String contentType, String parameter) {
+        if (contentType==null) {
+            return null;
+        }
+
+        for (String part : contentType.split(";")) {
+            int eq = part.indexOf('=');
+            if (eq>0 && parameter.equalsIgnoreCase(part.substring(0, eq).trim())) {
+                return unquote(part.substring(eq+1));
+            }
+        }
+        return null;
+    }
+
+    private static String unquote(String value) {
+        if (value==null) {
+            return null;
+        }
+        value = value.trim();
+        if (value.length()>=2 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length()-1);
+        }
+        return value;
+    }
+
+    private static boolean isEmpty(String value) {
+        return value==null || value.trim().isEmpty();
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.normalization;
+
+/**
+ * Reads the parts of a SOAP envelope needed for routing without parsing the whole message.
+ * <br/><br/>
+ * A single forward scan reads the WS-Addressing Action and MessageID from the header and stops at the start of the Body.
+ * The end of the Body is then found by searching back from the end of the message, so the Body's contents
+ * (e.g. megabytes of inline base64 documents) are never read. The Body is available as offsets into the message,
+ * so that it can be extracted or replaced by slicing.
+ * <br/><br/>
+ * This is not a validating parser: it reads the tags it needs and leaves the rest of the message to later processing.
+ */
+public class SOAPEnvelopeSniffer {
+
+    private final String message;
+    //offset at which scanning stops
+    private final int limit;
+    private final boolean locateBody;
+    private String action;
+    private String messageID;
+    private int bodyStart = -1;
+    private int bodyEnd = -1;
+
+
+    private SOAPEnvelopeSniffer(String message, int limit, boolean locateBody) {
+        this.message = message;
+        this.limit = Math.min(limit, message.length());
+        this.locateBody = locateBody;
+    }
+
+    public static SOAPEnvelopeSniffer sniff(String message) {
+        SOAPEnvelopeSniffer sniffer = new SOAPEnvelopeSniffer(message, message.length(), true);
+        sniffer.scan();
+        return sniffer;
+    }
+
+    /**
+     * Read only the header fields, looking at no more than the first <code>maxChars</code> characters of the message.
+     * The Body isn't located, so {@link #hasBody()} is false.
+     */
+    public static SOAPEnvelopeSniffer sniffHeader(String message, int maxChars) {
+        SOAPEnvelopeSniffer sniffer = new SOAPEnvelopeSniffer(message, maxChars, false);
+        sniffer.scan();
+        return sniffer;
+    }
+
+
+    private void scan() {
+        int depth = 0;
+        boolean inHeader = false;
+        int i = 0;
+
+        while (true) {
+            int lt = message.indexOf('<', i);
+            if (lt<0 || lt+1>=limit) {
+                return;
+            }
+
+            char c = message.charAt(lt+1);
+            if (c=='?') {
+                i = skipPast(lt, "?>");
+            } else if (c=='!') {
+                if (message.startsWith("<!--", lt)) {
+                    i = skipPast(lt, "-->");
+                } else if (message.startsWith("<![CDATA[", lt)) {
+                    i = skipPast(lt, "]]>");
+                } else {
+                    i = skipPast(lt, ">");
+                }
+            } else if (c=='/') {
+                depth--;
+                if (depth<=1) {
+                    inHeader = false;
+                }
+                i = skipPast(lt, ">");
+            } else {
+                int nameEnd = findNameEnd(lt+1);
+                int gt = findTagEnd(nameEnd);
+                if (gt<0) {
+                    return;
+                }
+                String qName = message.substring(lt+1, nameEnd);
+                String localName = qName.substring(qName.indexOf(':')+1);
+                boolean empty = message.charAt(gt-1)=='/';
+                depth++;
+                i = gt+1;
+
+                if (depth==1) {
+                    if (!"Envelope".equals(localName)) {
+                        return;
+                    }
+                } else if (depth==2) {
+                    if ("Header".equals(localName)) {
+                        inHeader = !empty;
+                    } else if ("Body".equals(localName)) {
+                        if (!empty && locateBody) {
+                            bodyStart = gt+1;
+                            bodyEnd = findEndTag(qName, bodyStart);
+                            if (bodyEnd<0) {
+                                bodyStart = -1;
+                            }
+                        }
+                        //the header precedes the body, so there's nothing left to read
+                        return;
+                    }
+                } else if (depth==3 && inHeader && !empty) {
+                    if ("Action".equals(localName) && action==null) {
+                        action = readText(gt+1);
+                    } else if ("MessageID".equals(localName) && messageID==null) {
+                        messageID = readText(gt+1);
+                    }
+                }
+
+                if (empty) {
+                    depth--;
+                }
+            }
+
+            if (i<0) {
+                return;
+            }
+        }
+    }
+
+    private int skipPast(int from, String terminator) {
+        int end = message.indexOf(terminator, from);
+        return end<0 || end>=limit ? -1 : end + terminator.length();
+    }
+
+    private int findNameEnd(int from) {
+        int i = from;
+        while (i<message.length()) {
+            char c = message.charAt(i);
+            if (Character.isWhitespace(c) || c=='>' || c=='/') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the index of the '>' closing a start tag, skipping over quoted attribute values
+     */
+    private int findTagEnd(int from) {
+        char quote = 0;
+        for (int i=from; i<limit; i++) {
+            char c = message.charAt(i);
+            if (quote!=0) {
+                if (c==quote) {
+                    quote = 0;
+                }
+            } else if (c=='"' || c=='\'') {
+                quote = c;
+            } else if (c=='>') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the last end tag for an element, searching back from the end of the message
+     */
+    private int findEndTag(String qName, int notBefore) {
+        String endTag = "</" + qName;
+        int i = message.lastIndexOf(endTag);
+        while (i>=notBefore) {
+            int j = i + endTag.length();
+            while (j<message.length() && Character.isWhitespace(message.charAt(j))) {
+                j++;
+            }
+            if (j<message.length() && message.charAt(j)=='>') {
+                return i;
+            }
+            i = message.lastIndexOf(endTag, i-1);
+        }
+        return -1;
+    }
+
+    private String readText(int from) {
+        int end = message.indexOf('<', from);
+        if (end<0 || end>=limit) {
+            return null;
+        }
+        return unescape(message.substring(from, end));
+    }
+
+    private static String unescape(String text) {
+        if (text.indexOf('&')<0) {
+            return text;
+        }
+
+        StringBuilder sb = new StringBuilder(text.length());
+        int i = 0;
+        while (i<text.length()) {
+            char c = text.charAt(i);
+            int semi = c=='&' ? text.indexOf(';', i) : -1;
+            if (semi<0) {
+                sb.append(c);
+                i++;
+                continue;
+            }
+
+            String entity = text.substring(i+1, semi);
+            if ("amp".equals(entity)) {
+                sb.append('&');
+            } else if ("lt".equals(entity)) {
+                sb.append('<');
+            } else if ("gt".equals(entity)) {
+                sb.append('>');
+            } else if ("quot".equals(entity)) {
+                sb.append('"');
+            } else if ("apos".equals(entity)) {
+                sb.append('\'');
+            } else if (entity.startsWith("#")) {
+                try {
+                    sb.appendCodePoint(entity.startsWith("#x") ?
+                            Integer.parseInt(entity.substring(2), 16) : Integer.parseInt(entity.substring(1)));
+                } catch (IllegalArgumentException ex) {
+                    sb.append(text, i, semi+1);
+                }
+            } else {
+                sb.append(text, i, semi+1);
+            }
+            i = semi+1;
+        }
+        return sb.toString();
+    }
+
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the WS-Addressing Action or null if the header has none
+     */
+    public String getAction() {
+        return action;
+    }
+
+    /**
+     * @return the WS-Addressing MessageID or null if the header has none
+     */
+    public String getMessageID() {
+        return messageID;
+    }
+
+    public boolean hasBody() {
+        return bodyStart>=0;
+    }
+
+    /**
+     * @return the offset of the Body's contents, i.e. just after the Body start tag, or -1 if there is no Body
+     */
+    public int getBodyStart() {
+        return bodyStart;
+    }
+
+    /**
+     * @return the offset of the Body end tag or -1 if there is no Body
+     */
+    public int getBodyEnd() {
+        return bodyEnd;
+    }
+
+    /**
+     * @return the Body's contents or null if there is no Body
+     */
+    public String getBody() {
+        return hasBody() ? message.substring(bodyStart, bodyEnd) : null;
+    }
+
+    /**
+     * @return the message with the Body's contents replaced
+     */
+    public String replaceBody(String body) {
+        if (!hasBody()) {
+            throw new IllegalStateException("Message has no SOAP Body");
+        }
+        int tailLength = message.length() - bodyEnd;
+        StringBuilder sb = new StringBuilder(bodyStart + body.length() + tailLength);
+        sb.append(message, 0, bodyStart);
+        sb.append(body);
+        sb.append(message, bodyEnd, message.length());
+        return sb.toString();
+    }
+}
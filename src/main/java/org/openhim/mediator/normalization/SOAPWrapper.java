@@ -6,54 +6,47 @@
 
 package org.openhim.mediator.normalization;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import org.openhim.mediator.Payload;
 
+/**
+ * Splits a SOAP envelope into its body and the content around it, so that the body can be replaced.
+ * <br/><br/>
+ * The parts are views of the original message and the full document is only copied if converted to a String.
+ */
 public class SOAPWrapper {
-    protected String soapBegin;
-    protected String soapBody;
-    protected String soapEnd;
+    protected Payload soapBegin;
+    protected Payload soapBody;
+    protected Payload soapEnd;
 
     public SOAPWrapper(String soapMessage) throws SOAPParseException {
-        Pattern beginPattern = Pattern.compile("<(\\w+:)?Body>");
-        Matcher beginMatcher = beginPattern.matcher(soapMessage);
-        String _rest;
-        if (beginMatcher.find()) {
-            int i = beginMatcher.end();
-            soapBegin = soapMessage.substring(0, i);
-            _rest = soapMessage.substring(i);
-        } else {
-            throw new SOAPParseException();
-        }
+        this(SOAPEnvelopeSniffer.sniff(soapMessage));
+    }
 
-        Pattern endPattern = Pattern.compile("</(\\w+:)?Body>");
-        Matcher endMatcher = endPattern.matcher(_rest);
-        int lastI = -1;
-        while (endMatcher.find()) {
-            lastI = endMatcher.start();
-        }
-        if (lastI<0) {
+    public SOAPWrapper(SOAPEnvelopeSniffer envelope) throws SOAPParseException {
+        if (!envelope.hasBody()) {
             throw new SOAPParseException();
         }
 
-        soapBody = _rest.substring(0, lastI);
-        soapEnd = _rest.substring(lastI);
+        Payload soapMessage = Payload.of(envelope.getMessage());
+        soapBegin = soapMessage.slice(0, envelope.getBodyStart());
+        soapBody = soapMessage.slice(envelope.getBodyStart(), envelope.getBodyEnd());
+        soapEnd = soapMessage.slice(envelope.getBodyEnd());
     }
 
-    public String getSoapBody() {
+    public Payload getSoapBody() {
         return soapBody;
     }
 
-    public void setSoapBody(String soapBody) {
-        this.soapBody = soapBody;
+    public void setSoapBody(CharSequence soapBody) {
+        this.soapBody = Payload.of(soapBody);
     }
 
-    public String getFullDocument() {
-        return soapBegin + soapBody + soapEnd;
+    public Payload getFullDocument() {
+        return Payload.concat(soapBegin, soapBody, soapEnd);
     }
 
     public String toString() {
-        return getFullDocument();
+        return getFullDocument().toString();
     }
 
     public static class SOAPParseException extends Exception {
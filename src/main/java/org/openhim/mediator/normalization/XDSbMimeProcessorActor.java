@@ -8,33 +8,41 @@ package org.openhim.mediator.normalization;
 
 import akka.actor.ActorRef;
 import akka.actor.UntypedActor;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.openhim.mediator.Util;
+import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.engine.messages.MediatorRequestMessage;
 import org.openhim.mediator.engine.messages.SimpleMediatorRequest;
 import org.openhim.mediator.engine.messages.SimpleMediatorResponse;
+import org.openhim.mediator.exceptions.MimeParseException;
 
-import javax.mail.BodyPart;
-import javax.mail.Header;
-import javax.mail.MessagingException;
-import javax.mail.internet.InternetHeaders;
-import javax.mail.internet.MimeMultipart;
-import javax.mail.util.ByteArrayDataSource;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.*;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * A MIME container for processing MTOM/XOP requests.
  * <br/><br/>
  * The actor just parses out the SOAP message, but keeps the request in state
  * so that the complete MTOM request can be sent again with the enriched message.
+ * The request is parsed over its bytes (see {@link MultipartRelated}): only the SOAP part is decoded and replaced,
+ * while the attachments are passed through as is and are only decoded if the documents are read from the response.
+ * <br/><br/>
+ * Attachments larger than <code>mtom.attachments.spillThreshold</code> bytes are spilled to memory-mapped
+ * temporary files (in <code>mtom.attachments.spillPath</code> if set), which are unmapped and deleted once the enriched
+ * request has been built or the actor stops. Spilling only releases the parsed copy of the request while it's
+ * being orchestrated: the request is received as a String and the enriched request is built as a String for
+ * the http-connector, so the attachments are still held on the heap and spilling doesn't bound heap use.
  * <br/><br/>
  * Messages supported:
  * <ul>
  *     <li>MimeMessage: Parses the string as an MTOM/XOP request and responds with the SOAP part and a map referencing the other documents (XDSbMimeProcessorResponse)</li>
- *     <li>EnrichedMessage: Returns the original MTOM/XOP request but with the provided enriched SOAP part (XDSbMimeProcessorResponse)</li>
+ *     <li>EnrichedMessage: Returns the original MTOM/XOP request but with the provided enriched SOAP part (XDSbMimeProcessorResponse).
+ *     The response has no documents, since the parsed request is closed once the enriched request is built.</li>
  * </ul>
  */
 public class XDSbMimeProcessorActor extends UntypedActor {
@@ -48,8 +56,8 @@ public class XDSbMimeProcessorActor extends UntypedActor {
         }
     }
 
-    public static class EnrichedMessage extends SimpleMediatorRequest<String> {
-        public EnrichedMessage(ActorRef requestHandler, ActorRef respondTo, String requestObject) {
+    public static class EnrichedMessage extends SimpleMediatorRequest<CharSequence> {
+        public EnrichedMessage(ActorRef requestHandler, ActorRef respondTo, CharSequence requestObject) {
             super(requestHandler, respondTo, requestObject);
         }
     }
@@ -85,69 +93,91 @@ public class XDSbMimeProcessorActor extends UntypedActor {
         }
     }
 
-    MimeMultipart mimeMessage;
+    private final long spillThreshold;
+    private final File spillPath;
+
+    MultipartRelated mimeMessage;
+    MultipartRelated.Part soapPart;
 
     private String _soapPart;
     private List<String> _documents = new ArrayList<>(1);
 
-    private void parseMimeMessage(String msg, String contentType) throws IOException, MessagingException, SOAPPartNotFound, UnprocessableContentFound {
-        mimeMessage = new MimeMultipart(new ByteArrayDataSource(msg, contentType));
-        for (int i=0; i<mimeMessage.getCount(); i++) {
-            BodyPart part = mimeMessage.getBodyPart(i);
+    public XDSbMimeProcessorActor() {
+        this(null);
+    }
+
+    public XDSbMimeProcessorActor(MediatorConfig config) {
+        spillThreshold = Util.getLongProperty(config, "mtom.attachments.spillThreshold", 0);
+        String path = config!=null ? config.getProperty("mtom.attachments.spillPath") : null;
+        spillPath = path!=null && !path.trim().isEmpty() ? new File(path.trim()) : null;
+    }
+
+    private void parseMimeMessage(String msg, String contentType) throws IOException, MimeParseException, SOAPPartNotFound {
+        closeMimeMessage();
+        mimeMessage = MultipartRelated.parse(msg.getBytes(StandardCharsets.UTF_8), contentType);
 
-            if (part.getContentType().contains("application/soap+xml")) {
-                _soapPart = getValue(part);
+        List<MultipartRelated.Part> attachments = new ArrayList<>(mimeMessage.getParts().size());
+        for (MultipartRelated.Part part : mimeMessage.getParts()) {
+            if (soapPart==null && part.getContentType().contains("application/soap+xml")) {
+                soapPart = part;
             } else {
-                _documents.add(getValue(part));
+                attachments.add(part);
             }
         }
 
-        if (_soapPart==null) {
+        if (soapPart==null) {
             throw new SOAPPartNotFound();
         }
-    }
 
-    private String getValue(BodyPart part) throws IOException, MessagingException, UnprocessableContentFound {
-        Object value = part.getContent();
-        if (value instanceof String) {
-            return (String) value;
-        } else if (value instanceof InputStream) {
-            return IOUtils.toString((InputStream) value);
+        if (spillThreshold>0) {
+            mimeMessage.spill(spillThreshold, spillPath);
         }
-        throw new UnprocessableContentFound();
+
+        _soapPart = soapPart.getBodyAsString();
+        _documents = new DocumentList(attachments);
     }
 
-    private String buildEnrichedMimeMessage(String enrichedSOAPMessage) throws MessagingException, IOException {
-        for (int i=0; i<mimeMessage.getCount(); i++) {
-            BodyPart part = mimeMessage.getBodyPart(i);
-            if (part.getContentType().contains("application/soap+xml")) {
-                Enumeration copyOfHeaders = createCopyOfHeaders(part);
-                part.setContent(enrichedSOAPMessage, part.getContentType());
-                copyHeadersToPart(copyOfHeaders, part);
-                break;
-            }
+    private String buildEnrichedMimeMessage(CharSequence enrichedSOAPMessage) throws MimeParseException, IOException {
+        try {
+            //the http-connector takes a String body, which reads any spilled attachments back onto the heap
+            byte[] mime = mimeMessage.toByteArray(soapPart, enrichedSOAPMessage);
+            return new String(mime, StandardCharsets.UTF_8);
+        } finally {
+            closeMimeMessage();
         }
+    }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        mimeMessage.writeTo(out);
+    private void closeMimeMessage() {
+        if (mimeMessage!=null) {
+            mimeMessage.close();
+        }
         mimeMessage = null;
-        return out.toString();
+        soapPart = null;
+        _documents = Collections.emptyList();
     }
 
-    private Enumeration createCopyOfHeaders(BodyPart part) throws MessagingException {
-        Enumeration headers = part.getAllHeaders();
-        InternetHeaders internetHeaders = new InternetHeaders();
-        while (headers.hasMoreElements()) {
-            Header header = (Header) headers.nextElement();
-            internetHeaders.addHeader(header.getName(), header.getValue());
+    /**
+     * The attachments' contents, decoded when read
+     */
+    private static class DocumentList extends AbstractList<String> {
+        private final List<MultipartRelated.Part> parts;
+
+        DocumentList(List<MultipartRelated.Part> parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        public String get(int index) {
+            try {
+                return parts.get(index).getBodyAsString();
+            } catch (MimeParseException | IOException ex) {
+                throw new IllegalStateException(ex);
+            }
         }
-        return internetHeaders.getAllHeaders();
-    }
 
-    private void copyHeadersToPart(Enumeration headers, BodyPart part) throws MessagingException {
-        while (headers.hasMoreElements()) {
-            Header header = (Header) headers.nextElement();
-            part.setHeader(header.getName(), header.getValue());
+        @Override
+        public int size() {
+            return parts.size();
         }
     }
 
@@ -157,7 +187,8 @@ public class XDSbMimeProcessorActor extends UntypedActor {
             try {
                 parseMimeMessage(((MimeMessage) msg).getRequestObject(), ((MimeMessage) msg).contentType);
                 ((MimeMessage) msg).getRespondTo().tell(new XDSbMimeProcessorResponse((MediatorRequestMessage) msg, _soapPart, _documents), getSelf());
-            } catch (IOException | MessagingException | SOAPPartNotFound | UnprocessableContentFound ex) {
+            } catch (IOException | MimeParseException | SOAPPartNotFound ex) {
+                closeMimeMessage();
                 ((MimeMessage) msg).getRequestHandler().tell(new ExceptError(ex), getSelf());
             }
         } else if (msg instanceof EnrichedMessage) {
@@ -166,8 +197,9 @@ public class XDSbMimeProcessorActor extends UntypedActor {
             } else {
                 try {
                     String mime = buildEnrichedMimeMessage(((EnrichedMessage) msg).getRequestObject());
-                    ((EnrichedMessage) msg).getRespondTo().tell(new XDSbMimeProcessorResponse((MediatorRequestMessage) msg, mime, _documents), getSelf());
-                } catch (MessagingException | IOException ex) {
+                    //the documents can't be read once the message is closed
+                    ((EnrichedMessage) msg).getRespondTo().tell(new XDSbMimeProcessorResponse((MediatorRequestMessage) msg, mime, Collections.<String>emptyList()), getSelf());
+                } catch (MimeParseException | IOException ex) {
                     ((EnrichedMessage) msg).getRequestHandler().tell(new ExceptError(ex), getSelf());
                 }
             }
@@ -175,4 +207,10 @@ public class XDSbMimeProcessorActor extends UntypedActor {
             unhandled(msg);
         }
     }
+
+    @Override
+    public void postStop() throws Exception {
+        closeMimeMessage();
+        super.postStop();
+    }
 }
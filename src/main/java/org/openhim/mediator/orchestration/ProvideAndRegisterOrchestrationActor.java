@@ -13,21 +13,26 @@ import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
 import ihe.iti.xds_b._2007.ObjectFactory;
+import oasis.names.tc.ebxml_regrep.xsd.lcm._3.SubmitObjectsRequest;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.*;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.http.HttpStatus;
 import org.dcm4chee.xds2.common.XDSConstants;
 import org.dcm4chee.xds2.infoset.util.InfosetUtil;
+import org.openhim.mediator.AuditPayloadPolicy;
+import org.openhim.mediator.Payload;
 import org.openhim.mediator.Util;
+import org.openhim.mediator.XMLToolkit;
 import org.openhim.mediator.datatypes.AssigningAuthority;
 import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.denormalization.RegistryResponseError;
+import org.openhim.mediator.denormalization.StreamingProvideAndRegisterEnricher;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.*;
 import org.openhim.mediator.exceptions.CXParseException;
 import org.openhim.mediator.exceptions.ValidationException;
 import org.openhim.mediator.messages.*;
+import org.openhim.mediator.normalization.LazyProvideAndRegisterRequest;
 import org.openhim.mediator.normalization.ParseProvideAndRegisterRequestActor;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
@@ -35,18 +40,19 @@ import org.xml.sax.SAXParseException;
 
 import javax.xml.bind.DatatypeConverter;
 import javax.xml.bind.JAXBException;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 import java.io.IOException;
 import java.util.*;
 
 /**
  * An orchestrator for enriching XDS.b Provide and Register Document Set requests.
  * <br/><br/>
+ * By default the request is bound to JAXB, enriched and marshalled again. If <code>pnr.enrichment</code> is set to
+ * <code>streaming</code>, the {@link StreamingProvideAndRegisterEnricher} is used instead, which only reads and rewrites
+ * the request's metadata.
+ * <br/><br/>
  * Messages supported:
  * <ul>
  *     <li>OrchestrateProvideAndRegisterRequest: responds with OrchestrateProvideAndRegisterRequestResponse</li>
@@ -66,14 +72,36 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
         abstract void resolve(Identifier resolvedId);
     }
 
-    private class DocumentNode {
+    private abstract class DocumentNode {
+        abstract void setPatientIdentifier(String CX);
+    }
+
+    private class JAXBDocumentNode extends DocumentNode {
         String documentNodeURN;
         RegistryObjectType documentNode;
 
-        public DocumentNode(String documentNodeURN, RegistryObjectType documentNode) {
+        public JAXBDocumentNode(String documentNodeURN, RegistryObjectType documentNode) {
             this.documentNodeURN = documentNodeURN;
             this.documentNode = documentNode;
         }
+
+        @Override
+        void setPatientIdentifier(String CX) {
+            InfosetUtil.setExternalIdentifierValue(documentNodeURN, CX, documentNode);
+        }
+    }
+
+    private class StreamingDocumentNode extends DocumentNode {
+        StreamingProvideAndRegisterEnricher.ExternalIdentifier patientId;
+
+        public StreamingDocumentNode(StreamingProvideAndRegisterEnricher.ExternalIdentifier patientId) {
+            this.patientId = patientId;
+        }
+
+        @Override
+        void setPatientIdentifier(String CX) {
+            patientId.setValue(CX);
+        }
     }
 
     private class PatientIdentifierMapping extends IdentifierMapping {
@@ -90,7 +118,7 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
 
             if (resolvedId!=null) {
                 for (DocumentNode node : nodes) {
-                    InfosetUtil.setExternalIdentifierValue(node.documentNodeURN, resolvedId.toString(), node.documentNode);
+                    node.setPatientIdentifier(resolvedId.toString());
                 }
                 successful = true;
             }
@@ -142,6 +170,8 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
     }
 
     private final MediatorConfig config;
+    private final AuditPayloadPolicy auditPayloadPolicy;
+    private final boolean streamingEnrichment;
     private final ActorRef resolvePatientIdHandler;
     private final ActorRef resolveHealthcareWorkerIdHandler;
     private final ActorRef resolveFacilityIdHandler;
@@ -150,7 +180,11 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
 
     private OrchestrateProvideAndRegisterRequest originalRequest;
     private ProvideAndRegisterDocumentSetRequestType parsedRequest;
-    private String messageBuffer;
+    //set instead of parsedRequest if the parser left the documents in the request
+    private LazyProvideAndRegisterRequest lazyParsedRequest;
+    //set instead of parsedRequest when using streaming enrichment
+    private StreamingProvideAndRegisterEnricher.Metadata metadata;
+    private Payload messageBuffer;
 
     private List<IdentifierMapping> enterprisePatientIds = new ArrayList<>();
     private List<IdentifierMapping> enterpriseHealthcareWorkerIds = new ArrayList<>();
@@ -176,6 +210,8 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
     public ProvideAndRegisterOrchestrationActor(MediatorConfig config, ActorRef resolvePatientIdHandler, ActorRef resolveHealthcareWorkerIdHandler,
                                                 ActorRef resolveFacilityIdHandler, ActorRef registerNewPatientHandler) {
         this.config = config;
+        this.auditPayloadPolicy = AuditPayloadPolicy.fromConfig(config, log);
+        this.streamingEnrichment = "streaming".equalsIgnoreCase(config.getProperty("pnr.enrichment"));
         this.resolvePatientIdHandler = resolvePatientIdHandler;
         this.resolveHealthcareWorkerIdHandler = resolveHealthcareWorkerIdHandler;
         this.resolveFacilityIdHandler = resolveFacilityIdHandler;
@@ -186,13 +222,39 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
     private void parseRequest(OrchestrateProvideAndRegisterRequest msg) {
         log.info("Parsing Xds.b Provide and Register request");
         messageBuffer = msg.getRequestObject();
+
+        if (streamingEnrichment) {
+            try {
+                metadata = StreamingProvideAndRegisterEnricher.scan(messageBuffer);
+            } catch (XMLStreamException ex) {
+                FinishRequest fr = new FinishRequest("Failed to parse XDS.b Provide and Register Document Set request: " + ex.getMessage(), "text/plain", HttpStatus.SC_BAD_REQUEST);
+                msg.getRequestHandler().tell(fr, getSelf());
+                return;
+            }
+            processRequest();
+            return;
+        }
+
         ActorRef parseHandler = getContext().actorOf(Props.create(ParseProvideAndRegisterRequestActor.class, config), "xds-pnr-document-normalization");
         parseHandler.tell(new SimpleMediatorRequest<>(msg.getRequestHandler(), getSelf(), messageBuffer), getSelf());
     }
 
     private void processParsedRequest(ProvideAndRegisterDocumentSetRequestType doc) {
-        log.info("Request parsed. Processing document");
         parsedRequest = doc;
+        processRequest();
+    }
+
+    private void processParsedRequest(LazyProvideAndRegisterRequest doc) {
+        lazyParsedRequest = doc;
+        processRequest();
+    }
+
+    private SubmitObjectsRequest getSubmitObjectsRequest() {
+        return lazyParsedRequest!=null ? lazyParsedRequest.getSubmitObjectsRequest() : parsedRequest.getSubmitObjectsRequest();
+    }
+
+    private void processRequest() {
+        log.info("Request parsed. Processing document");
         boolean outcome = true;
         try {
             initIdentifiersToBeResolvedMappings();
@@ -227,7 +289,12 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
     }
 
     private void readPatientIdentifiers() throws CXParseException {
-        RegistryPackageType regPac = InfosetUtil.getRegistryPackage(parsedRequest.getSubmitObjectsRequest(), XDSConstants.UUID_XDSSubmissionSet);
+        if (streamingEnrichment) {
+            readPatientIdentifiersFromMetadata();
+            return;
+        }
+
+        RegistryPackageType regPac = InfosetUtil.getRegistryPackage(getSubmitObjectsRequest(), XDSConstants.UUID_XDSSubmissionSet);
         if (regPac==null) {
             String msg = "Unabled to correctly parse XDS.b SubmissionSet Metadata";
             RegistryResponseError.RegistryError err = new RegistryResponseError.RegistryError(RegistryResponseError.XDS_REPOSITORY_METADATA_ERROR, msg);
@@ -236,17 +303,51 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
         }
 
         String CX = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_patientId, regPac);
-        addPatientIdToResolve(new Identifier(CX), new DocumentNode(XDSConstants.UUID_XDSSubmissionSet_patientId, regPac));
+        addPatientIdToResolve(new Identifier(CX), new JAXBDocumentNode(XDSConstants.UUID_XDSSubmissionSet_patientId, regPac));
 
-        List<ExtrinsicObjectType> eos = InfosetUtil.getExtrinsicObjects(parsedRequest.getSubmitObjectsRequest());
+        List<ExtrinsicObjectType> eos = InfosetUtil.getExtrinsicObjects(getSubmitObjectsRequest());
         for (ExtrinsicObjectType eo : eos) {
             String documentPatCX = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_patientId, eo);
-            addPatientIdToResolve(new Identifier(documentPatCX), new DocumentNode(XDSConstants.UUID_XDSDocumentEntry_patientId, eo));
+            addPatientIdToResolve(new Identifier(documentPatCX), new JAXBDocumentNode(XDSConstants.UUID_XDSDocumentEntry_patientId, eo));
+        }
+    }
+
+    private void readPatientIdentifiersFromMetadata() throws CXParseException {
+        StreamingProvideAndRegisterEnricher.RegistryObject regPac = metadata.getSubmissionSet();
+        StreamingProvideAndRegisterEnricher.ExternalIdentifier patientId = regPac!=null ?
+                regPac.getExternalIdentifier(XDSConstants.UUID_XDSSubmissionSet_patientId) : null;
+        if (patientId==null) {
+            String msg = "Unabled to correctly parse XDS.b SubmissionSet Metadata";
+            RegistryResponseError.RegistryError err = new RegistryResponseError.RegistryError(RegistryResponseError.XDS_REPOSITORY_METADATA_ERROR, msg);
+            respondBadRequest(Collections.singletonList(err));
+            return;
+        }
+
+        addPatientIdToResolve(new Identifier(patientId.getValue()), new StreamingDocumentNode(patientId));
+
+        for (StreamingProvideAndRegisterEnricher.RegistryObject eo : metadata.getExtrinsicObjects()) {
+            StreamingProvideAndRegisterEnricher.ExternalIdentifier documentPatientId = eo.getExternalIdentifier(XDSConstants.UUID_XDSDocumentEntry_patientId);
+            if (documentPatientId==null) {
+                throw new CXParseException("Document entry " + eo.getId() + " has no patient identifier");
+            }
+            addPatientIdToResolve(new Identifier(documentPatientId.getValue()), new StreamingDocumentNode(documentPatientId));
         }
     }
 
     protected void readHealthcareWorkerAndFacilityIdentifiers() throws ValidationException {
-        List<ExtrinsicObjectType> eos = InfosetUtil.getExtrinsicObjects(parsedRequest.getSubmitObjectsRequest());
+        if (streamingEnrichment) {
+            for (StreamingProvideAndRegisterEnricher.RegistryObject eo : metadata.getExtrinsicObjects()) {
+                for (StreamingProvideAndRegisterEnricher.Author author : eo.getAuthors()) {
+                    addAuthorIdentifiers(
+                            author.getPerson()!=null ? author.getPerson().getValues() : null,
+                            author.getInstitution()!=null ? author.getInstitution().getValues() : null
+                    );
+                }
+            }
+            return;
+        }
+
+        List<ExtrinsicObjectType> eos = InfosetUtil.getExtrinsicObjects(getSubmitObjectsRequest());
         for (ExtrinsicObjectType eo : eos) {
             List<Map<String, SlotType1>> authorClassSlots = null;
             try {
@@ -256,65 +357,77 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
             }
 
             for (Map<String, SlotType1> slotMap : authorClassSlots) {
-
-                String localProviderID = null;
-                String localProviderIDAssigningAuthority = null;
-                String localLocationID = null;
-                String localLocationIDAssigningAuthority = null;
-                String localLocationName = null;
                 List<String> personSlotValList = null;
                 List<String> institutionSlotValList = null;
 
                 if (slotMap.containsKey(XDSConstants.SLOT_NAME_AUTHOR_PERSON)) {
-                    SlotType1 personSlot = slotMap.get(XDSConstants.SLOT_NAME_AUTHOR_PERSON);
-                    personSlotValList = personSlot.getValueList().getValue();
-
-                    // loop through all values and find the first one with an ID and assigning authority
-                    for (String val : personSlotValList) {
-                        String[] xcnComponents = val.split("\\^", -1);
-
-                        // if the identifier component exists
-                        if (!xcnComponents[0].isEmpty() && !xcnComponents[8].isEmpty()) {
-                            localProviderID = xcnComponents[0];
-                            localProviderIDAssigningAuthority = xcnComponents[8].substring(xcnComponents[8].indexOf('&') + 1, xcnComponents[8].lastIndexOf('&'));
-                            break;
-                        }
-                    }
+                    personSlotValList = slotMap.get(XDSConstants.SLOT_NAME_AUTHOR_PERSON).getValueList().getValue();
                 }
-
                 if (slotMap.containsKey(XDSConstants.SLOT_NAME_AUTHOR_INSTITUTION)) {
-                    SlotType1 institutionSlot = slotMap.get(XDSConstants.SLOT_NAME_AUTHOR_INSTITUTION);
-                    institutionSlotValList = institutionSlot.getValueList().getValue();
-
-                    // loop through all values and find the first one with an ID
-                    for (String val : institutionSlotValList) {
-                        String[] xonComponents = val.split("\\^", -1);
-
-                        // if the identifier component exists
-                        if (xonComponents.length >= 10 && !xonComponents[5].isEmpty() && !xonComponents[9].isEmpty()) {
-                            localLocationID = xonComponents[9];
-                            localLocationName = xonComponents[0];
-                            localLocationIDAssigningAuthority = xonComponents[5].substring(xonComponents[5].indexOf('&') + 1, xonComponents[5].lastIndexOf('&'));
-                        }
-                    }
-
+                    institutionSlotValList = slotMap.get(XDSConstants.SLOT_NAME_AUTHOR_INSTITUTION).getValueList().getValue();
                 }
 
-                if (localProviderID == null && localLocationID == null) {
-                    throw new ValidationException("Local provider and facility identifiers could not be extracted from the XDS metadata");
-                }
+                addAuthorIdentifiers(personSlotValList, institutionSlotValList);
+            }
+        }
+    }
 
-                if (localProviderID!=null && Util.isPropertyTrue(config, "pnr.providers.enrich", true)) {
-                    Identifier id = new Identifier(localProviderID, new AssigningAuthority("", localProviderIDAssigningAuthority));
-                    enterpriseHealthcareWorkerIds.add(new HealthcareWorkerIdentifierMapping(id, personSlotValList));
+    /**
+     * Read the provider and facility identifiers of an author and add them to be resolved
+     *
+     * @param personSlotValList the values of the authorPerson slot or null if there isn't one.
+     *                          Replaced with the enterprise identifier once resolved.
+     * @param institutionSlotValList the values of the authorInstitution slot or null if there isn't one.
+     *                               Replaced with the enterprise identifier once resolved.
+     */
+    private void addAuthorIdentifiers(List<String> personSlotValList, List<String> institutionSlotValList) throws ValidationException {
+        String localProviderID = null;
+        String localProviderIDAssigningAuthority = null;
+        String localLocationID = null;
+        String localLocationIDAssigningAuthority = null;
+        String localLocationName = null;
+
+        if (personSlotValList!=null) {
+            // loop through all values and find the first one with an ID and assigning authority
+            for (String val : personSlotValList) {
+                String[] xcnComponents = val.split("\\^", -1);
+
+                // if the identifier component exists
+                if (!xcnComponents[0].isEmpty() && !xcnComponents[8].isEmpty()) {
+                    localProviderID = xcnComponents[0];
+                    localProviderIDAssigningAuthority = xcnComponents[8].substring(xcnComponents[8].indexOf('&') + 1, xcnComponents[8].lastIndexOf('&'));
+                    break;
                 }
+            }
+        }
+
+        if (institutionSlotValList!=null) {
+            // loop through all values and find the first one with an ID
+            for (String val : institutionSlotValList) {
+                String[] xonComponents = val.split("\\^", -1);
 
-                if (localLocationID!=null && Util.isPropertyTrue(config, "pnr.facilities.enrich", true)) {
-                    Identifier id = new Identifier(localLocationID, new AssigningAuthority("", localLocationIDAssigningAuthority));
-                    enterpriseFacilityIds.add(new FacilityIdentifierMapping(id, localLocationName, institutionSlotValList));
+                // if the identifier component exists
+                if (xonComponents.length >= 10 && !xonComponents[5].isEmpty() && !xonComponents[9].isEmpty()) {
+                    localLocationID = xonComponents[9];
+                    localLocationName = xonComponents[0];
+                    localLocationIDAssigningAuthority = xonComponents[5].substring(xonComponents[5].indexOf('&') + 1, xonComponents[5].lastIndexOf('&'));
                 }
             }
         }
+
+        if (localProviderID == null && localLocationID == null) {
+            throw new ValidationException("Local provider and facility identifiers could not be extracted from the XDS metadata");
+        }
+
+        if (localProviderID!=null && Util.isPropertyTrue(config, "pnr.providers.enrich", true)) {
+            Identifier id = new Identifier(localProviderID, new AssigningAuthority("", localProviderIDAssigningAuthority));
+            enterpriseHealthcareWorkerIds.add(new HealthcareWorkerIdentifierMapping(id, personSlotValList));
+        }
+
+        if (localLocationID!=null && Util.isPropertyTrue(config, "pnr.facilities.enrich", true)) {
+            Identifier id = new Identifier(localLocationID, new AssigningAuthority("", localLocationIDAssigningAuthority));
+            enterpriseFacilityIds.add(new FacilityIdentifierMapping(id, localLocationName, institutionSlotValList));
+        }
     }
 
 
@@ -440,16 +553,14 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
      */
     private RegisterNewPatient buildRegistrationRequestFromCDA(String document) {
         try {
-            DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-            Document doc = builder.parse(IOUtils.toInputStream(document));
-            XPath xpath = XPathFactory.newInstance().newXPath();
+            Document doc = XMLToolkit.parse(document);
 
-            String givenName = xpath.compile("ClinicalDocument/recordTarget/patientRole/patient/name/given").evaluate(doc);
-            String lastName = xpath.compile("ClinicalDocument/recordTarget/patientRole/patient/name/family").evaluate(doc);
-            String gender = xpath.compile("ClinicalDocument/recordTarget/patientRole/patient/administrativeGenderCode/@code").evaluate(doc);
-            String birthdate = xpath.compile("ClinicalDocument/recordTarget/patientRole/patient/birthTime/@value").evaluate(doc);
-            String telecom = xpath.compile("ClinicalDocument/recordTarget/patientRole/telecom/@value").evaluate(doc);
-            String languagePreference = xpath.compile("ClinicalDocument/recordTarget/patientRole/patient/languageCommunication/languageCode/@code").evaluate(doc);
+            String givenName = XMLToolkit.evaluate("ClinicalDocument/recordTarget/patientRole/patient/name/given", doc);
+            String lastName = XMLToolkit.evaluate("ClinicalDocument/recordTarget/patientRole/patient/name/family", doc);
+            String gender = XMLToolkit.evaluate("ClinicalDocument/recordTarget/patientRole/patient/administrativeGenderCode/@code", doc);
+            String birthdate = XMLToolkit.evaluate("ClinicalDocument/recordTarget/patientRole/patient/birthTime/@value", doc);
+            String telecom = XMLToolkit.evaluate("ClinicalDocument/recordTarget/patientRole/telecom/@value", doc);
+            String languagePreference = XMLToolkit.evaluate("ClinicalDocument/recordTarget/patientRole/patient/languageCommunication/languageCode/@code", doc);
 
             return new RegisterNewPatient(
                     originalRequest.getRequestHandler(), getSelf(), getAllKnownPatientIdentifiers(), givenName, lastName, gender, birthdate, telecom, languagePreference
@@ -469,7 +580,18 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
 
     private void autoRegisterPatient() {
         String document = originalRequest.getDocument(); //is mime?
-        if (document == null) { //else get from parsed message
+        if (document == null && streamingEnrichment) {
+            try {
+                document = StreamingProvideAndRegisterEnricher.readFirstDocument(messageBuffer);
+            } catch (XMLStreamException ex) {
+                originalRequest.getRequestHandler().tell(new ExceptError(ex), getSelf());
+                return;
+            }
+        } else if (document == null && lazyParsedRequest!=null) {
+            if (!lazyParsedRequest.getDocuments().isEmpty()) {
+                document = new String(lazyParsedRequest.getDocuments().get(0).getContent());
+            }
+        } else if (document == null) { //else get from parsed message
             if (parsedRequest.getDocument()!=null && parsedRequest.getDocument().size()>=1) {
                 document = parsedRequest.getDocument().get(0).getContent().get(0).toString();
                 document = new String(DatatypeConverter.parseBase64Binary(document));
@@ -515,7 +637,7 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
                     respondBadRequest(errors);
                     outcome = false;
                 }
-            } catch (JAXBException ex) {
+            } catch (JAXBException | XMLStreamException ex) {
                 respondBadRequest(ex);
             } finally {
                 sendAuditMessage(ATNAAudit.TYPE.PROVIDE_AND_REGISTER_ENRICHED, outcome);
@@ -525,9 +647,15 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
         return false;
     }
 
-    private void respondSuccess() throws JAXBException {
+    private void respondSuccess() throws JAXBException, XMLStreamException {
         log.info("All identifiers resolved. Responding with enriched document.");
-        messageBuffer = Util.marshallJAXBObject("ihe.iti.xds_b._2007", new ObjectFactory().createProvideAndRegisterDocumentSetRequest(parsedRequest), false);
+        if (streamingEnrichment) {
+            messageBuffer = StreamingProvideAndRegisterEnricher.rewrite(originalRequest.getRequestObject(), metadata);
+        } else if (lazyParsedRequest!=null) {
+            messageBuffer = lazyParsedRequest.marshal();
+        } else {
+            messageBuffer = Payload.of(Util.marshallJAXBObject("ihe.iti.xds_b._2007", new ObjectFactory().createProvideAndRegisterDocumentSetRequest(parsedRequest), false));
+        }
         OrchestrateProvideAndRegisterRequestResponse response = new OrchestrateProvideAndRegisterRequestResponse(originalRequest, messageBuffer);
         originalRequest.getRespondTo().tell(response, getSelf());
     }
@@ -642,7 +770,14 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
     private void sendAuditMessage(ATNAAudit.TYPE type, boolean outcome) {
         try {
             ATNAAudit audit = new ATNAAudit(type);
-            audit.setMessage(messageBuffer);
+            if (auditPayloadPolicy.getMode()==AuditPayloadPolicy.Mode.METADATA && streamingEnrichment) {
+                audit.setMessage(metadata.getSubmitObjectsRequest(messageBuffer));
+            } else if (auditPayloadPolicy.getMode()==AuditPayloadPolicy.Mode.METADATA) {
+                //audit the submission metadata only, leaving out the document content
+                audit.setMessage(Util.marshallJAXBObject("oasis.names.tc.ebxml_regrep.xsd.lcm._3", getSubmitObjectsRequest(), false));
+            } else {
+                audit.setMessage(auditPayloadPolicy.apply(messageBuffer));
+            }
 
             List<Identifier> participants = new ArrayList<>(enterprisePatientIds.size());
             for (IdentifierMapping mapping : enterprisePatientIds) {
@@ -650,8 +785,13 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
             }
             audit.setParticipantIdentifiers(participants);
 
-            RegistryPackageType regPac = InfosetUtil.getRegistryPackage(parsedRequest.getSubmitObjectsRequest(), XDSConstants.UUID_XDSSubmissionSet);
-            String uniqueId = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_uniqueId, regPac);
+            String uniqueId;
+            if (streamingEnrichment) {
+                uniqueId = metadata.getSubmissionSet().getExternalIdentifier(XDSConstants.UUID_XDSSubmissionSet_uniqueId).getValue();
+            } else {
+                RegistryPackageType regPac = InfosetUtil.getRegistryPackage(getSubmitObjectsRequest(), XDSConstants.UUID_XDSSubmissionSet);
+                uniqueId = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_uniqueId, regPac);
+            }
             audit.setUniqueId(uniqueId);
             audit.setOutcome(outcome);
             audit.setSourceIP(xForwardedFor);
@@ -674,6 +814,8 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
 
         } else if (SimpleMediatorResponse.isInstanceOf(ProvideAndRegisterDocumentSetRequestType.class, msg)) { //response from parser
             processParsedRequest(((SimpleMediatorResponse<ProvideAndRegisterDocumentSetRequestType>) msg).getResponseObject());
+        } else if (SimpleMediatorResponse.isInstanceOf(LazyProvideAndRegisterRequest.class, msg)) { //response from parser
+            processParsedRequest(((SimpleMediatorResponse<LazyProvideAndRegisterRequest>) msg).getResponseObject());
 
         } else if (msg instanceof ResolvePatientIdentifierResponse) {
             processResolvedPatientId((ResolvePatientIdentifierResponse) msg);
@@ -12,8 +12,8 @@ import akka.actor.Props;
 import akka.actor.UntypedActor;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
-import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpStatus;
+import org.openhim.mediator.AuditPayloadPolicy;
 import org.openhim.mediator.datatypes.AssigningAuthority;
 import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.denormalization.PIXRequestActor;
@@ -21,16 +21,9 @@ import org.openhim.mediator.denormalization.RegistryResponseError;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.*;
 import org.openhim.mediator.messages.*;
-import org.w3c.dom.Document;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-import java.io.IOException;
+import org.openhim.mediator.normalization.RegistryStoredQueryScanner;
+import org.openhim.mediator.normalization.SOAPActionRouter;
+
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -39,6 +32,7 @@ public class RegistryActor extends UntypedActor {
     LoggingAdapter log = Logging.getLogger(getContext().system(), this);
 
     private MediatorConfig config;
+    private final AuditPayloadPolicy auditPayloadPolicy;
 
     protected ActorRef resolvePatientIDActor;
 
@@ -53,42 +47,41 @@ public class RegistryActor extends UntypedActor {
 
     public RegistryActor(MediatorConfig config) {
         this.config = config;
+        this.auditPayloadPolicy = AuditPayloadPolicy.fromConfig(config, log);
 
         resolvePatientIDActor = getContext().actorOf(Props.create(PIXRequestActor.class, config), "pix-denormalization");
     }
 
 
-    protected boolean isAdhocQuery(String msg) throws ParserConfigurationException, IOException, XPathExpressionException {
-        try {
-            DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-            Document doc = builder.parse(IOUtils.toInputStream(msg));
-            XPath xpath = XPathFactory.newInstance().newXPath();
-            String pathResult = xpath.compile("//AdhocQueryRequest[1]").evaluate(doc);
-            return pathResult != null && !pathResult.isEmpty();
-        } catch (SAXException ex) {
-            return false;
-        }
+    protected boolean isAdhocQuery(String msg) {
+        return RegistryStoredQueryScanner.scan(msg).isAdhocQuery();
     }
 
     private void parseMessage(MediatorHTTPRequest request) {
-        try {
-            requestHandler = request.getRequestHandler();
-            xForwardedFor = request.getHeaders().get("X-Forwarded-For");
+        requestHandler = request.getRequestHandler();
+        xForwardedFor = request.getHeaders().get("X-Forwarded-For");
 
-            //get request body
-            messageBuffer = request.getBody();
+        //get request body
+        messageBuffer = request.getBody();
 
-            isStoredQuery = isAdhocQuery(request.getBody());
-            if (isStoredQuery) {
-                log.info("Parsing registry stored query request...");
-                ActorSelection parseActor = getContext().actorSelection(config.userPathFor("parse-registry-stored-query"));
-                parseActor.tell(new SimpleMediatorRequest<>(request.getRequestHandler(), getSelf(), messageBuffer), getSelf());
-            } else {
-                log.info("Forwarding request to registry...");
-                forwardToRegistry();
-            }
-        } catch (ParserConfigurationException | IOException | XPathExpressionException ex) {
-            request.getRequestHandler().tell(new ExceptError(ex), getSelf());
+        String action = SOAPActionRouter.determineAction(request.getHeaders(), messageBuffer);
+        if (action!=null && !SOAPActionRouter.ACTION_REGISTRY_STORED_QUERY.equals(action)) {
+            //no enrichment needed
+            log.info("Forwarding " + action + " request to registry...");
+            isStoredQuery = false;
+            forwardToRegistry();
+            return;
+        }
+
+        RegistryStoredQueryScanner.Result scan = RegistryStoredQueryScanner.scan(messageBuffer);
+        isStoredQuery = scan.isAdhocQuery();
+        if (isStoredQuery) {
+            log.info("Parsing registry stored query request...");
+            ActorSelection parseActor = getContext().actorSelection(config.userPathFor("parse-registry-stored-query"));
+            parseActor.tell(new SimpleMediatorRequest<>(request.getRequestHandler(), getSelf(), scan), getSelf());
+        } else {
+            log.info("Forwarding request to registry...");
+            forwardToRegistry();
         }
     }
 
@@ -154,7 +147,7 @@ public class RegistryActor extends UntypedActor {
     private void sendAuditMessage(ATNAAudit.TYPE type, boolean outcome) {
         try {
             ATNAAudit audit = new ATNAAudit(type);
-            audit.setMessage(messageBuffer);
+            audit.setMessage(auditPayloadPolicy.apply(messageBuffer));
 
             audit.setParticipantIdentifiers(Collections.singletonList(patientId));
             audit.setUniqueId("NotParsed");
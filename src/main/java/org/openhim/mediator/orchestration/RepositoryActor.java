@@ -12,30 +12,22 @@ import akka.actor.Props;
 import akka.actor.UntypedActor;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpStatus;
+import org.openhim.mediator.Util;
 import org.openhim.mediator.denormalization.CSDRequestActor;
 import org.openhim.mediator.denormalization.PIXRequestActor;
 import org.openhim.mediator.engine.MediatorConfig;
-import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.engine.messages.FinishRequest;
 import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
 import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
 import org.openhim.mediator.messages.OrchestrateProvideAndRegisterRequest;
 import org.openhim.mediator.messages.OrchestrateProvideAndRegisterRequestResponse;
+import org.openhim.mediator.normalization.SOAPActionRouter;
+import org.openhim.mediator.normalization.SOAPEnvelopeSniffer;
 import org.openhim.mediator.normalization.SOAPWrapper;
 import org.openhim.mediator.normalization.XDSbMimeProcessorActor;
-import org.w3c.dom.Document;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-import java.io.IOException;
+
 import java.util.HashMap;
 import java.util.Map;
 
@@ -56,18 +48,28 @@ public class RepositoryActor extends UntypedActor {
     private boolean messageIsMTOM;
 
     private String messageBuffer;
+    private SOAPEnvelopeSniffer envelope;
     private SOAPWrapper soapWrapper;
 
 
     public RepositoryActor(MediatorConfig config) {
         this.config = config;
-        mtomProcessor = getContext().actorOf(Props.create(XDSbMimeProcessorActor.class), "xds-multipart-normalization");
+        mtomProcessor = getContext().actorOf(Props.create(XDSbMimeProcessorActor.class, config), "xds-multipart-normalization");
     }
 
 
     private void readMessage() {
         contentType = originalRequest.getHeaders().get("Content-Type");
 
+        String headerAction = SOAPActionRouter.getActionFromHeaders(originalRequest.getHeaders());
+        if (headerAction!=null && !SOAPActionRouter.ACTION_PROVIDE_AND_REGISTER_DOCUMENT_SET_B.equals(headerAction)) {
+            //no enrichment needed, so there's no need to parse the message
+            log.info("Action: " + headerAction);
+            messageBuffer = originalRequest.getBody();
+            forwardRequestToRepository(false);
+            return;
+        }
+
         if (contentType != null
                 && (StringUtils.containsIgnoreCase(contentType, "multipart/related") || StringUtils.containsIgnoreCase(
                 contentType, "multipart/form-data"))) {
@@ -97,59 +99,34 @@ public class RepositoryActor extends UntypedActor {
             triggerRepositoryAction();
         } else if (msg.getOriginalRequest() instanceof XDSbMimeProcessorActor.EnrichedMessage) {
             messageBuffer = msg.getResponseObject();
-            forwardRequestToRepository();
+            forwardRequestToRepository(true);
         } else {
             unhandled(msg);
         }
     }
 
     private boolean determineSOAPAction() {
-        try {
-            readSOAPHeader();
+        readSOAPHeader();
+        if (action==null || action.isEmpty()) {
+            //not in soap header. maybe it's in the http headers?
+            action = SOAPActionRouter.getActionFromHeaders(originalRequest.getHeaders());
+
             if (action==null || action.isEmpty()) {
-                //not in soap header. maybe it's in the content-type?
-                action = getSOAPActionFromContentType();
-
-                if (action==null || action.isEmpty()) {
-                    FinishRequest fr = new FinishRequest("Could not determine SOAP Action. Is the correct WS-Adressing header set?", "text/plain", HttpStatus.SC_BAD_REQUEST);
-                    originalRequest.getRespondTo().tell(fr, getSelf());
-                    return false;
-                }
+                FinishRequest fr = new FinishRequest("Could not determine SOAP Action. Is the correct WS-Adressing header set?", "text/plain", HttpStatus.SC_BAD_REQUEST);
+                originalRequest.getRespondTo().tell(fr, getSelf());
+                return false;
             }
-
-            action = action.trim();
-            log.info("Action: " + action);
-            return true;
-        } catch (ParserConfigurationException | SAXException | XPathExpressionException | IOException ex) {
-            originalRequest.getRequestHandler().tell(new ExceptError(ex), getSelf());
-            return false;
         }
-    }
 
-    private void readSOAPHeader() throws ParserConfigurationException, IOException, SAXException, XPathExpressionException {
-        DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        Document doc = builder.parse(IOUtils.toInputStream(messageBuffer));
-        XPath xpath = XPathFactory.newInstance().newXPath();
-        action = xpath.compile("//Envelope/Header/Action").evaluate(doc);
-        messageID = xpath.compile("//Envelope/Header/MessageID").evaluate(doc);
+        action = action.trim();
+        log.info("Action: " + action);
+        return true;
     }
 
-    private String getSOAPActionFromContentType() {
-        if (contentType==null) {
-            return null;
-        }
-
-        int startI = contentType.indexOf("action=")+"action=\"".length();
-        if (startI<0) {
-            return null;
-        }
-
-        String subStr = contentType.substring(startI);
-        int endI = subStr.indexOf("\"");
-        if (endI>-1) {
-            return subStr.substring(0, endI);
-        }
-        return subStr;
+    private void readSOAPHeader() {
+        envelope = SOAPEnvelopeSniffer.sniff(messageBuffer);
+        action = envelope.getAction();
+        messageID = envelope.getMessageID()!=null ? envelope.getMessageID() : "";
     }
 
     private void processProviderAndRegisterAction() {
@@ -165,7 +142,7 @@ public class RepositoryActor extends UntypedActor {
         );
 
         try {
-            soapWrapper = new SOAPWrapper(messageBuffer);
+            soapWrapper = new SOAPWrapper(envelope);
             OrchestrateProvideAndRegisterRequest msg = new OrchestrateProvideAndRegisterRequest(
                     originalRequest.getRequestHandler(), getSelf(), soapWrapper.getSoapBody(), xForwardedFor, mimeDocument, messageID
             );
@@ -178,32 +155,39 @@ public class RepositoryActor extends UntypedActor {
 
     private void processProvideAndRegisterResponse(OrchestrateProvideAndRegisterRequestResponse msg) {
         soapWrapper.setSoapBody(msg.getResponseObject());
-        messageBuffer = soapWrapper.getFullDocument();
 
         if (messageIsMTOM) {
+            //the mime processor encodes the document straight into the mime message
             XDSbMimeProcessorActor.EnrichedMessage mimeMsg = new XDSbMimeProcessorActor.EnrichedMessage(
-                    originalRequest.getRequestHandler(), getSelf(), messageBuffer
+                    originalRequest.getRequestHandler(), getSelf(), soapWrapper.getFullDocument()
             );
             mtomProcessor.tell(mimeMsg, getSelf());
         } else {
-            forwardRequestToRepository();
+            //the http-connector needs a String
+            messageBuffer = soapWrapper.getFullDocument().toString();
+            forwardRequestToRepository(true);
         }
     }
 
     private void triggerRepositoryAction() {
         if (determineSOAPAction()) {
-            if ("urn:ihe:iti:2007:ProvideAndRegisterDocumentSet-b".equals(action)) {
+            if (SOAPActionRouter.ACTION_PROVIDE_AND_REGISTER_DOCUMENT_SET_B.equals(action)) {
                 processProviderAndRegisterAction();
             } else {
                 messageBuffer = originalRequest.getBody();
-                forwardRequestToRepository();
+                forwardRequestToRepository(false);
             }
         }
     }
 
-    private void forwardRequestToRepository() {
+    /**
+     * @param modified whether the message was enriched. Unmodified messages are sent through the repository-connector
+     *                 if <code>xds.repository.streaming</code> is enabled.
+     */
+    private void forwardRequestToRepository(boolean modified) {
         log.info("Forwarding request to repository");
-        ActorSelection httpConnector = getContext().actorSelection(config.userPathFor("http-connector"));
+        String connector = !modified && Util.isPropertyTrue(config, "xds.repository.streaming") ? "repository-connector" : "http-connector";
+        ActorSelection httpConnector = getContext().actorSelection(config.userPathFor(connector));
 
         // Copy original content type
         String contentType = originalRequest.getHeaders().get("Content-Type");
@@ -0,0 +1,323 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.orchestration;
+
+import akka.actor.ActorRef;
+import akka.actor.UntypedActor;
+import akka.dispatch.Futures;
+import akka.dispatch.OnComplete;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.openhim.mediator.Payload;
+import org.openhim.mediator.Util;
+import org.openhim.mediator.engine.CoreResponse;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+/**
+ * A connector for forwarding requests to the XDS.b repository, for use in place of the engine's http-connector.
+ * <br/><br/>
+ * Connections are pooled and kept alive between requests (up to <code>xds.repository.pool.size</code> connections).
+ * Request bodies are sent chunked, encoding the body while it's written to the connection rather than copying
+ * the whole body into a byte array first, and response bodies are decoded from the connection into a single buffer
+ * sized from the response's Content-Length.
+ * <br/><br/>
+ * Requests block while they're sent and read, so they're run on the <code>repository-connector-dispatcher</code>
+ * (see application.conf) rather than on the actor's dispatcher.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ *     <li>MediatorHTTPRequest - responds with MediatorHTTPResponse, in the same way as the engine's http-connector</li>
+ * </ul>
+ */
+public class StreamingHTTPConnectorActor extends UntypedActor {
+
+    public static final String DISPATCHER = "repository-connector-dispatcher";
+    private static final int DEFAULT_POOL_SIZE = 10;
+    private static final int BUFFER_SIZE = 8192;
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient client;
+
+
+    public StreamingHTTPConnectorActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        int poolSize = Util.getIntegerProperty(config, "xds.repository.pool.size", DEFAULT_POOL_SIZE);
+
+        //the keystores are set up through the javax.net.ssl system properties on startup
+        connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", SSLConnectionSocketFactory.getSystemSocketFactory())
+                        .build()
+        );
+        connectionManager.setMaxTotal(poolSize);
+        connectionManager.setDefaultMaxPerRoute(poolSize);
+        client = HttpClients.custom().setConnectionManager(connectionManager).build();
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        if (client!=null) {
+            client.close();
+        }
+        super.postStop();
+    }
+
+
+    /**
+     * A request body that is encoded as it's written out
+     */
+    static class StringStreamEntity extends AbstractHttpEntity {
+        private final String body;
+        private final Charset charset;
+
+        StringStreamEntity(String body, Charset charset) {
+            this.body = body;
+            this.charset = charset;
+            setChunked(true);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return Payload.of(body).openStream(charset);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            Writer writer = new OutputStreamWriter(out, charset);
+            for (int i=0; i<body.length(); i+=BUFFER_SIZE) {
+                writer.write(body, i, Math.min(BUFFER_SIZE, body.length() - i));
+            }
+            writer.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    /**
+     * @return the charset declared in a Content-Type or else the default
+     */
+    static Charset getCharset(String contentType, Charset defaultCharset) {
+        if (contentType==null) {
+            return defaultCharset;
+        }
+        try {
+            Charset charset = ContentType.parse(contentType).getCharset();
+            return charset!=null ? charset : defaultCharset;
+        } catch (RuntimeException ex) {
+            return defaultCharset;
+        }
+    }
+
+    private static String getHeader(Map<String, String> headers, String name) {
+        if (headers==null) {
+            return null;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private HttpUriRequest buildRequest(MediatorHTTPRequest req) throws URISyntaxException {
+        URIBuilder builder = new URIBuilder()
+                .setScheme(req.getScheme())
+                .setHost(req.getHost())
+                .setPort(req.getPort())
+                .setPath(req.getPath());
+        if (req.getParams()!=null) {
+            for (Map.Entry<String, String> param : req.getParams().entrySet()) {
+                builder.addParameter(param.getKey(), param.getValue());
+            }
+        }
+
+        HttpUriRequest request;
+        switch (req.getMethod()) {
+            case "GET":
+                request = new HttpGet(builder.build());
+                break;
+            case "POST":
+                request = new HttpPost(builder.build());
+                break;
+            case "PUT":
+                request = new HttpPut(builder.build());
+                break;
+            default:
+                throw new UnsupportedOperationException(req.getMethod() + " requests not supported");
+        }
+
+        if (request instanceof HttpEntityEnclosingRequestBase && req.getBody()!=null) {
+            //StringEntity defaults to ISO-8859-1 in the engine's http-connector
+            Charset charset = getCharset(getHeader(req.getHeaders(), "Content-Type"), StandardCharsets.ISO_8859_1);
+            ((HttpEntityEnclosingRequestBase) request).setEntity(new StringStreamEntity(req.getBody(), charset));
+        }
+
+        if (req.getHeaders()!=null) {
+            //the entity sets the framing headers
+            for (Map.Entry<String, String> header : req.getHeaders().entrySet()) {
+                if (header.getValue()!=null && !"Content-Length".equalsIgnoreCase(header.getKey())
+                        && !"Transfer-Encoding".equalsIgnoreCase(header.getKey())) {
+                    request.addHeader(header.getKey(), header.getValue());
+                }
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Decode a response's body straight from the connection
+     */
+    static String readBody(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity==null) {
+            return null;
+        }
+
+        Header contentType = entity.getContentType();
+        //IOUtils.toString uses the platform's charset in the engine's http-connector
+        Charset charset = getCharset(contentType!=null ? contentType.getValue() : null, Charset.defaultCharset());
+        long length = entity.getContentLength();
+        StringBuilder body = new StringBuilder(length>0 && length<Integer.MAX_VALUE ? (int) length : BUFFER_SIZE);
+
+        try (Reader reader = new InputStreamReader(entity.getContent(), charset)) {
+            char[] buffer = new char[BUFFER_SIZE];
+            int n;
+            while ((n = reader.read(buffer))!=-1) {
+                body.append(buffer, 0, n);
+            }
+        }
+        return body.toString();
+    }
+
+    private MediatorHTTPResponse send(MediatorHTTPRequest req) throws IOException, URISyntaxException {
+        try (CloseableHttpResponse response = client.execute(buildRequest(req))) {
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (Header header : response.getAllHeaders()) {
+                headers.put(header.getName(), header.getValue());
+            }
+            String body = readBody(response);
+            return new MediatorHTTPResponse(req, body, response.getStatusLine().getStatusCode(), headers);
+        }
+    }
+
+    private static CoreResponse.Orchestration buildOrchestration(MediatorHTTPRequest req, MediatorHTTPResponse resp, Date requestTimestamp) {
+        CoreResponse.Orchestration orchestration = new CoreResponse.Orchestration();
+        orchestration.setName(req.getOrchestration());
+
+        CoreResponse.Request request = new CoreResponse.Request();
+        request.setBody(req.getBody());
+        request.setPath(req.getPath());
+        request.setMethod(req.getMethod());
+        request.setHeaders(req.getHeaders());
+        request.setTimestamp(requestTimestamp);
+        orchestration.setRequest(request);
+
+        CoreResponse.Response response = new CoreResponse.Response();
+        response.setBody(resp.getBody());
+        response.setStatus(resp.getStatusCode());
+        response.setHeaders(resp.getHeaders());
+        response.setTimestamp(new Date());
+        orchestration.setResponse(response);
+
+        return orchestration;
+    }
+
+    private void sendRequest(final MediatorHTTPRequest req) {
+        final ActorRef self = getSelf();
+        final Date requestTimestamp = new Date();
+
+        Futures.future(new Callable<MediatorHTTPResponse>() {
+            @Override
+            public MediatorHTTPResponse call() throws Exception {
+                return send(req);
+            }
+        }, getContext().system().dispatchers().lookup(DISPATCHER)).onComplete(new OnComplete<MediatorHTTPResponse>() {
+            @Override
+            public void onComplete(Throwable ex, MediatorHTTPResponse response) throws Throwable {
+                if (ex!=null) {
+                    log.error(ex, "Failed to forward request to " + req.getHost());
+                    req.getRequestHandler().tell(new ExceptError(ex), self);
+                    return;
+                }
+
+                if (req.getOrchestration()!=null) {
+                    req.getRequestHandler().tell(new AddOrchestrationToCoreResponse(buildOrchestration(req, response, requestTimestamp)), self);
+                }
+                req.getRespondTo().tell(response, self);
+            }
+        }, getContext().dispatcher());
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorHTTPRequest) {
+            sendRequest((MediatorHTTPRequest) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import akka.actor.ActorSystem;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.testkit.JavaTestKit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import javax.xml.bind.DatatypeConverter;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.*;
+
+public class AuditPayloadPolicyTest {
+
+    static ActorSystem system;
+    static LoggingAdapter log;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+        log = Logging.getLogger(system, AuditPayloadPolicyTest.class);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static MediatorConfig config(String payload) throws Exception {
+        MediatorConfig config = new MediatorConfig();
+        config.setProperties("mediator-unit-test.properties");
+        config.getProperties().setProperty("atna.payload", payload);
+        config.getProperties().setProperty("atna.payload.maxBytes", "4");
+        return config;
+    }
+
+    @Test
+    public void testFull() {
+        AuditPayloadPolicy policy = new AuditPayloadPolicy(AuditPayloadPolicy.Mode.FULL, 4);
+        assertEquals("<test/>", policy.apply("<test/>"));
+        assertNull(policy.apply(null));
+    }
+
+    @Test
+    public void testMetadata_shouldNotAlterTheMessage() {
+        AuditPayloadPolicy policy = new AuditPayloadPolicy(AuditPayloadPolicy.Mode.METADATA, 4);
+        assertEquals("<AdhocQueryRequest/>", policy.apply("<AdhocQueryRequest/>"));
+        assertNull(policy.apply(null));
+    }
+
+    @Test
+    public void testTruncated_shouldNotSplitCharacters() {
+        AuditPayloadPolicy policy = new AuditPayloadPolicy(AuditPayloadPolicy.Mode.TRUNCATED, 4);
+        assertEquals("<tes", policy.apply("<test/>"));
+        assertEquals("abc", policy.apply("abc\u00e9"));
+        assertEquals("ab\u00e9", policy.apply("ab\u00e9"));
+        assertEquals("a", policy.apply("a\uD83D\uDE00"));
+        assertEquals("abc", policy.apply("abc"));
+    }
+
+    @Test
+    public void testDigest() throws Exception {
+        AuditPayloadPolicy policy = new AuditPayloadPolicy(AuditPayloadPolicy.Mode.DIGEST, 4);
+        assertEquals("sha256:ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", policy.apply("abc"));
+
+        //larger than a single chunk, with characters split across chunks
+        StringBuilder large = new StringBuilder("a");
+        for (int i=0; i<10000; i++) {
+            large.append("\u00e9\uD83D\uDE00");
+        }
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(large.toString().getBytes(ATNAUtil.UTF8));
+        assertEquals("sha256:" + DatatypeConverter.printHexBinary(expected).toLowerCase(), policy.apply(large));
+    }
+
+    @Test
+    public void testFromConfig() throws Exception {
+        assertEquals(AuditPayloadPolicy.Mode.METADATA, AuditPayloadPolicy.fromConfig(config(" Metadata "), log).getMode());
+
+        AuditPayloadPolicy truncated = AuditPayloadPolicy.fromConfig(config("truncated"), log);
+        assertEquals(AuditPayloadPolicy.Mode.TRUNCATED, truncated.getMode());
+        assertEquals("<tes", truncated.apply("<test/>"));
+    }
+
+    @Test
+    public void testFromConfig_shouldAuditFullMessagesIfModeIsUnknown() throws Exception {
+        AuditPayloadPolicy policy = AuditPayloadPolicy.fromConfig(config("summary"), log);
+        assertEquals(AuditPayloadPolicy.Mode.FULL, policy.getMode());
+        assertEquals("<test/>", policy.apply("<test/>"));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import ihe.iti.atna.AuditMessage;
+import ihe.iti.atna.AuditSourceIdentificationType;
+import org.junit.Test;
+
+import javax.xml.bind.JAXBContext;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JAXBRuntimeTest {
+
+    private static AuditMessage newAuditMessage(String sourceID) {
+        AuditMessage message = new AuditMessage();
+        AuditSourceIdentificationType source = new AuditSourceIdentificationType();
+        source.setAuditSourceID(sourceID);
+        message.getAuditSourceIdentification().add(source);
+        return message;
+    }
+
+    @Test
+    public void testGetContext_shouldReturnSharedInstance() throws Exception {
+        JAXBContext context = JAXBRuntime.getContext("ihe.iti.atna");
+        assertSame(context, JAXBRuntime.getContext("ihe.iti.atna"));
+        assertSame(context, Util.getJAXBContext("ihe.iti.atna"));
+    }
+
+    @Test
+    public void testMarshalUnmarshal_shouldReuseMarshallersPerThread() throws Exception {
+        JAXBContext context = JAXBRuntime.getContext("ihe.iti.atna");
+        JAXBRuntime.marshal(context, newAuditMessage("warmup"), true, false);
+        JAXBRuntime.unmarshal(context, new StringReader("<AuditMessage/>"));
+
+        JAXBRuntime.Statistics before = JAXBRuntime.getStatistics();
+        for (int i=0; i<10; i++) {
+            String xml = JAXBRuntime.marshal(context, newAuditMessage("source" + i), i%2==0, false);
+            assertEquals(i%2==0, !xml.startsWith("<?xml"));
+
+            AuditMessage result = (AuditMessage) JAXBRuntime.unmarshal(context, new StringReader(xml));
+            assertEquals("source" + i, result.getAuditSourceIdentification().get(0).getAuditSourceID());
+        }
+        JAXBRuntime.Statistics after = JAXBRuntime.getStatistics();
+
+        assertEquals(before.getMarshallersCreated(), after.getMarshallersCreated());
+        assertEquals(before.getUnmarshallersCreated(), after.getUnmarshallersCreated());
+        assertEquals(10, after.getMarshals() - before.getMarshals());
+        assertEquals(10, after.getUnmarshals() - before.getUnmarshals());
+    }
+
+    @Test
+    public void testMarshal_concurrent() throws Exception {
+        final JAXBContext context = JAXBRuntime.getContext("ihe.iti.atna");
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<>();
+
+        for (int t=0; t<4; t++) {
+            final String sourceID = "thread" + t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i=0; i<50; i++) {
+                            String xml = JAXBRuntime.marshal(context, newAuditMessage(sourceID), true, false);
+                            AuditMessage result = (AuditMessage) JAXBRuntime.unmarshal(context, new StringReader(xml));
+                            assertEquals(sourceID, result.getAuditSourceIdentification().get(0).getAuditSourceID());
+                        }
+                    } catch (Throwable ex) {
+                        errors.add(ex);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+}
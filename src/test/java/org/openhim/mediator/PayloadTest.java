@@ -0,0 +1,131 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class PayloadTest {
+
+    private static final String MESSAGE = "<Envelope><Body>test message</Body></Envelope>";
+
+    private static Payload replaceBody(String body) {
+        Payload message = Payload.of(MESSAGE);
+        int start = message.indexOf("<Body>") + "<Body>".length();
+        int end = message.indexOf("</Body>");
+        return Payload.concat(message.slice(0, start), body, message.slice(end));
+    }
+
+    @Test
+    public void testOf_shouldNotCopy() throws Exception {
+        Payload payload = Payload.of(MESSAGE);
+        assertSame(MESSAGE, payload.toString());
+        assertSame(payload, Payload.of(payload));
+        assertSame(Payload.EMPTY, Payload.of(""));
+    }
+
+    @Test
+    public void testSlice() throws Exception {
+        Payload payload = Payload.of(MESSAGE);
+        Payload body = payload.slice(16, 28);
+        assertEquals("test message", body.toString());
+        assertEquals("message", body.slice(5).toString());
+        assertEquals('t', body.charAt(0));
+        assertSame(payload, payload.slice(0, payload.length()));
+        assertTrue(payload.slice(3, 3).isEmpty());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testSlice_outOfRange() throws Exception {
+        Payload.of(MESSAGE).slice(0, MESSAGE.length() + 1);
+    }
+
+    @Test
+    public void testConcat() throws Exception {
+        Payload payload = replaceBody("enriched");
+        String expected = "<Envelope><Body>enriched</Body></Envelope>";
+
+        assertEquals(expected, payload.toString());
+        assertEquals(expected.length(), payload.length());
+        for (int i=0; i<expected.length(); i++) {
+            assertEquals(expected.charAt(i), payload.charAt(i));
+        }
+        assertTrue(payload.contentEquals(expected));
+    }
+
+    @Test
+    public void testConcat_shouldSkipEmptyParts() throws Exception {
+        Payload payload = Payload.of(MESSAGE);
+        assertSame(payload, Payload.concat(Payload.EMPTY, payload, ""));
+        assertSame(Payload.EMPTY, Payload.concat("", null));
+    }
+
+    @Test
+    public void testSlice_acrossParts() throws Exception {
+        Payload payload = Payload.concat("abc", "def", "ghi");
+        assertEquals("cdefg", payload.slice(2, 7).toString());
+        assertEquals("def", payload.slice(3, 6).toString());
+        assertEquals("fgh", payload.subSequence(5, 8).toString());
+    }
+
+    @Test
+    public void testIndexOf() throws Exception {
+        Payload payload = Payload.concat("<a><b", "></b><b>", "</b></a>");
+
+        assertEquals(0, payload.indexOf("<a>"));
+        //matches that cross a boundary between parts
+        assertEquals(3, payload.indexOf("<b>"));
+        assertEquals(10, payload.indexOf("<b>", 4));
+        assertEquals(13, payload.indexOf("</b></a>"));
+        assertEquals(-1, payload.indexOf("<c>"));
+
+        assertEquals(13, payload.lastIndexOf("</b>"));
+        assertEquals(6, payload.lastIndexOf("</b>", 12));
+        assertEquals(-1, payload.lastIndexOf("<c>"));
+    }
+
+    @Test
+    public void testIndexOf_slice() throws Exception {
+        Payload body = Payload.of(MESSAGE).slice(10, 35);
+        assertEquals(0, body.indexOf("<Body>"));
+        assertEquals(-1, body.indexOf("<Envelope>"));
+        assertEquals(-1, body.indexOf("</Envelope>"));
+        assertEquals(18, body.lastIndexOf("</Body>"));
+    }
+
+    @Test
+    public void testOpenReader() throws Exception {
+        Payload payload = replaceBody("enriched");
+        assertEquals(payload.toString(), IOUtils.toString(payload.openReader()));
+    }
+
+    @Test
+    public void testOpenStream() throws Exception {
+        Payload payload = replaceBody("\u00e9t\u00e9");
+        byte[] expected = payload.toString().getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(expected, IOUtils.toByteArray(payload.openStream(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testWriteTo() throws Exception {
+        Payload payload = replaceBody("\u00e9t\u00e9");
+
+        StringWriter writer = new StringWriter();
+        payload.writeTo(writer);
+        assertEquals(payload.toString(), writer.toString());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        payload.writeTo(out, StandardCharsets.ISO_8859_1);
+        assertArrayEquals(payload.toString().getBytes(StandardCharsets.ISO_8859_1), out.toByteArray());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import ihe.iti.atna.AuditMessage;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StreamingAuditMessageBuilderTest {
+
+    private static String write(AuditMessageBuilder b, Date now) throws Exception {
+        b.eventIdentification("E", now, 4, "DCM", "110112", "Query", "IHE Transactions", "ITI-18", "Registry Stored Query");
+        b.activeParticipant(ATNAUtil.WSA_REPLYTO_ANON, "client", true, "192.168.1.1", (short)2, "DCM", "110153", "Source");
+        b.activeParticipant("fac & \"app\" <1>", null, false, null, (short)1, "DCM", "110152", "Destination");
+        b.auditSource("openhim");
+        b.participantObject("1234^^^&1.2.3&ISO", (short)1, (short)1, "RFC-3881", "2", "PatientNumber", null, null);
+
+        List<ATNAUtil.ParticipantObjectDetail> details = new ArrayList<>();
+        details.add(new ATNAUtil.ParticipantObjectDetail("QueryEncoding", "UTF-8".getBytes()));
+        details.add(new ATNAUtil.ParticipantObjectDetail("urn:ihe:iti:xca:2010:homeCommunityId", "urn:oid:1.2.3".getBytes()));
+        b.participantObject("urn:uuid:1234", (short)2, (short)24, "IHE Transactions", "ITI-18", "Registry Stored Query",
+                "<query>é</query>", details);
+        b.participantObject("msg1", (short)2, (short)24, "IHE Transactions", "ITI-9", "PIX Query",
+                "MSH|^~\\&|", Collections.singletonList(new ATNAUtil.ParticipantObjectDetail("MSH-10", "msg1".getBytes())));
+
+        return b.build();
+    }
+
+    @Test
+    public void testOutput_shouldMatchJAXB() throws Exception {
+        Date now = new Date();
+        String expected = write(new JAXBAuditMessageBuilder(), now);
+        String actual = write(new StreamingAuditMessageBuilder(), now);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testBufferReuse() throws Exception {
+        Date now = new Date();
+        String first = write(new StreamingAuditMessageBuilder(), now);
+        String second = write(new StreamingAuditMessageBuilder(), now);
+        assertEquals(first, second);
+        assertTrue(second.startsWith("<AuditMessage><EventIdentification"));
+    }
+
+    private static AuditMessage parse(String auditMessage) throws Exception {
+        return (AuditMessage) JAXBRuntime.unmarshal(JAXBRuntime.getContext("ihe.iti.atna"), new StringReader(auditMessage));
+    }
+
+    private static String writeAuditSource(AuditMessageBuilder b, Date now, String auditSourceID) throws Exception {
+        b.eventIdentification("E", now, 0, "DCM", "110112", "Query", "IHE Transactions", "ITI-18", "Registry Stored Query");
+        b.auditSource(auditSourceID);
+        return b.build();
+    }
+
+    @Test
+    public void testOutput_shouldMatchJAXBForSupplementaryCharacters() throws Exception {
+        Date now = new Date();
+        String id = "source 'a' \uD83D\uDE00";
+        assertEquals(writeAuditSource(new JAXBAuditMessageBuilder(), now, id), writeAuditSource(new StreamingAuditMessageBuilder(), now, id));
+    }
+
+    @Test
+    public void testOutput_shouldPreserveWhitespaceAndReplaceInvalidCharacters() throws Exception {
+        Date now = new Date();
+        String id = "a\tb\nc\rd\u0001e\uFFFEf\uD800g";
+
+        String streaming = writeAuditSource(new StreamingAuditMessageBuilder(), now, id);
+        assertTrue(streaming.contains("a&#9;b&#10;c&#13;d\uFFFDe\uFFFDf\uFFFDg"));
+        assertEquals("a\tb\nc\rd\uFFFDe\uFFFDf\uFFFDg", parse(streaming).getAuditSourceIdentification().get(0).getAuditSourceID());
+
+        //apart from the escaped characters, the output is the same as JAXB's
+        String valid = "a b c d";
+        assertEquals(
+                writeAuditSource(new JAXBAuditMessageBuilder(), now, valid),
+                streaming.replace("a&#9;b&#10;c&#13;d\uFFFDe\uFFFDf\uFFFDg", valid)
+        );
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+public class XMLToolkitTest {
+
+    @Test
+    public void testEvaluate() throws Exception {
+        Document doc = XMLToolkit.parse("<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\"><s:Header>" +
+                "<a:MessageID xmlns:a=\"http://www.w3.org/2005/08/addressing\">urn:uuid:1234</a:MessageID></s:Header></s:Envelope>");
+        assertEquals("urn:uuid:1234", XMLToolkit.evaluate("//Envelope/Header/MessageID", doc));
+
+        //parsers are reused
+        Document second = XMLToolkit.parse("<Envelope><Header><MessageID>5678</MessageID></Header></Envelope>");
+        assertEquals("5678", XMLToolkit.evaluate("//Envelope/Header/MessageID", second));
+        assertSame(XMLToolkit.getExpression("//Envelope/Header/MessageID"), XMLToolkit.getExpression("//Envelope/Header/MessageID"));
+    }
+
+    @Test
+    public void testParse_shouldNotResolveExternalEntities() throws Exception {
+        String xml = "<?xml version=\"1.0\"?><!DOCTYPE test [<!ENTITY ext SYSTEM \"file:///etc/passwd\">]><test>&ext;</test>";
+        try {
+            Document doc = XMLToolkit.parse(xml);
+            assertEquals("", XMLToolkit.evaluate("/test", doc));
+        } catch (Exception ex) {
+            //rejecting the document is also acceptable
+        }
+    }
+
+    @Test
+    public void testGetInputFactory() throws Exception {
+        XMLStreamReader reader = XMLToolkit.getInputFactory().createXMLStreamReader(new StringReader("<test>value</test>"));
+        reader.nextTag();
+        assertEquals("value", reader.getElementText());
+        reader.close();
+    }
+}
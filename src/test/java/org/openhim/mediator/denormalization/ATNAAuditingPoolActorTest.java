@@ -0,0 +1,116 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.testkit.JavaTestKit;
+import akka.util.Timeout;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import org.openhim.mediator.engine.testing.TestingUtils;
+import org.openhim.mediator.messages.ATNAAudit;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ATNAAuditingPoolActorTest {
+
+    public static class MockTCPConnection extends UntypedActor {
+        static final List<String> received = Collections.synchronizedList(new LinkedList<String>());
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorSocketRequest) {
+                received.add(((MediatorSocketRequest) msg).getBody());
+            }
+        }
+    }
+
+    static ActorSystem system;
+    MediatorConfig testConfig;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        testConfig = new MediatorConfig();
+        testConfig.setName("atna-pool-tests-" + UUID.randomUUID());
+        testConfig.setProperties("mediator-unit-test.properties");
+        testConfig.getProperties().setProperty("atna.useTcp", "true");
+        testConfig.getProperties().setProperty("atna.tcpPort", "5052");
+        testConfig.getProperties().setProperty("atna.tcp.persistent", "true");
+        testConfig.getProperties().setProperty("atna.pool.size", "4");
+        MockTCPConnection.received.clear();
+    }
+
+    private void awaitActor(String name) throws Exception {
+        Timeout timeout = new Timeout(Duration.create(100, TimeUnit.MILLISECONDS));
+        for (int i=0; i<50; i++) {
+            try {
+                Await.result(system.actorSelection(testConfig.userPathFor(name)).resolveOne(timeout), timeout.duration());
+                return;
+            } catch (Exception ex) {
+                Thread.sleep(100);
+            }
+        }
+        fail("Failed to launch " + name);
+    }
+
+    @Test
+    public void testAudits_shouldAllBeSent() throws Exception {
+        TestingUtils.launchActors(system, testConfig.getName(), Collections.singletonList(
+                new MockLauncher.ActorToLaunch("atna-tcp-connection", MockTCPConnection.class)
+        ));
+        awaitActor("atna-tcp-connection");
+
+        ActorRef pool = system.actorOf(Props.create(ATNAAuditingPoolActor.class, testConfig));
+        for (int i=0; i<20; i++) {
+            ATNAAudit audit = new ATNAAudit(ATNAAudit.TYPE.PIX_REQUEST);
+            audit.setMessage("PIX query " + i);
+            audit.setParticipantIdentifiers(Collections.singletonList(new Identifier("1234", new AssigningAuthority("test-auth", "1.2.3", "ISO"))));
+            audit.setUniqueId("msg" + i);
+            audit.setOutcome(true);
+            pool.tell(audit, ActorRef.noSender());
+        }
+
+        for (int i=0; i<50 && MockTCPConnection.received.size()<20; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(20, MockTCPConnection.received.size());
+        for (String frame : MockTCPConnection.received) {
+            assertTrue(frame.contains("ITI-9"));
+        }
+
+        system.stop(pool);
+    }
+}
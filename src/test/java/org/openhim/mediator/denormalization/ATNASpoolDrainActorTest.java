@@ -0,0 +1,101 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ATNASpoolDrainActorTest {
+
+    static ActorSystem system;
+    MediatorConfig testConfig;
+    File directory;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("audit-spool").toFile();
+        testConfig = new MediatorConfig();
+        testConfig.setName("atna-spool-tests-" + UUID.randomUUID());
+        testConfig.setProperties("mediator-unit-test.properties");
+        testConfig.getProperties().setProperty("atna.spool.path", directory.getAbsolutePath());
+        testConfig.getProperties().setProperty("atna.spool.drainInterval", "100");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        AuditSpool.closeInstance();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testDrain_shouldDeliverAfterOutage() throws Exception {
+        //find a free port, but don't listen on it yet
+        ServerSocket probe = new ServerSocket(0);
+        final int port = probe.getLocalPort();
+        probe.close();
+        testConfig.getProperties().setProperty("atna.tcpPort", Integer.toString(port));
+
+        AuditSpool spool = AuditSpool.getInstance(testConfig);
+        spool.append(SyslogTCPConnection.buildFrame("audit 1"));
+        spool.append(SyslogTCPConnection.buildFrame("audit 2"));
+
+        new JavaTestKit(system) {{
+            ActorRef drainer = system.actorOf(Props.create(ATNASpoolDrainActor.class, testConfig));
+
+            //the audit repository is down
+            Thread.sleep(300);
+            drainer.tell(new ATNASpoolDrainActor.GetSpoolStatus(), getRef());
+            ATNASpoolDrainActor.SpoolStatus status = expectMsgClass(ATNASpoolDrainActor.SpoolStatus.class);
+            assertEquals(2, status.getDepth());
+
+            try (ServerSocket server = new ServerSocket(port)) {
+                server.setSoTimeout(5000);
+                try (Socket conn = server.accept()) {
+                    byte[] expected = (SyslogTCPConnection.buildFrame("audit 1") + SyslogTCPConnection.buildFrame("audit 2")).getBytes("UTF-8");
+                    byte[] received = new byte[expected.length];
+                    IOUtils.readFully(conn.getInputStream(), received);
+                    assertArrayEquals(expected, received);
+                }
+            }
+
+            drainer.tell(new ATNASpoolDrainActor.GetSpoolStatus(), getRef());
+            status = expectMsgClass(ATNASpoolDrainActor.SpoolStatus.class);
+            assertEquals(0, status.getDepth());
+
+            system.stop(drainer);
+        }};
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ATNATCPConnectionActorTest {
+
+    /**
+     * Reads octet-counted syslog frames from each connection until it's closed.
+     */
+    private static class MockSyslogServer extends Thread {
+        final ServerSocket server;
+        final AtomicInteger connections = new AtomicInteger();
+        final List<String> received = Collections.synchronizedList(new LinkedList<String>());
+
+        MockSyslogServer() throws IOException {
+            server = new ServerSocket(0);
+            setDaemon(true);
+        }
+
+        static String readFrame(InputStream in) throws IOException {
+            ByteArrayOutputStream length = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != ' ') {
+                if (b == -1) {
+                    return null;
+                }
+                length.write(b);
+            }
+            byte[] frame = new byte[Integer.parseInt(length.toString("UTF-8"))];
+            new DataInputStream(in).readFully(frame);
+            return new String(frame, "UTF-8");
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!server.isClosed()) {
+                    Socket conn = server.accept();
+                    connections.incrementAndGet();
+                    String frame;
+                    while ((frame = readFrame(conn.getInputStream())) != null) {
+                        received.add(frame);
+                    }
+                    conn.close();
+                }
+            } catch (IOException ex) {
+                //server closed
+            }
+        }
+
+        void waitForFrames(int expected) throws InterruptedException {
+            for (int i=0; i<50 && received.size()<expected; i++) {
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    static ActorSystem system;
+    MediatorConfig testConfig;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        testConfig = new MediatorConfig();
+        testConfig.setName("atna-tcp-tests-" + UUID.randomUUID());
+        testConfig.setProperties("mediator-unit-test.properties");
+        testConfig.getProperties().setProperty("atna.tcp.batchSize", "3");
+        testConfig.getProperties().setProperty("atna.tcp.batchWindow", "20");
+    }
+
+    @Test
+    public void testBuildFrame_shouldCountOctets() {
+        assertEquals("5 audit", SyslogTCPConnection.buildFrame("audit"));
+        assertEquals("7 éaudit", SyslogTCPConnection.buildFrame("éaudit"));
+    }
+
+    @Test
+    public void testAudits_shouldBeSentOnASingleConnection() throws Exception {
+        final MockSyslogServer server = new MockSyslogServer();
+        server.start();
+
+        new JavaTestKit(system) {{
+            ActorRef connection = system.actorOf(Props.create(ATNATCPConnectionActor.class, testConfig));
+
+            for (int i=0; i<7; i++) {
+                MediatorSocketRequest request = new MediatorSocketRequest(
+                        ActorRef.noSender(), getRef(), "ATNA Audit", null, "localhost", server.server.getLocalPort(),
+                        SyslogTCPConnection.buildFrame("<85>1 audit " + i), false
+                );
+                connection.tell(request, getRef());
+            }
+
+            server.waitForFrames(7);
+            assertEquals(7, server.received.size());
+            assertEquals("<85>1 audit 0", server.received.get(0));
+            assertEquals("<85>1 audit 6", server.received.get(6));
+            assertEquals(1, server.connections.get());
+
+            system.stop(connection);
+        }};
+
+        server.server.close();
+    }
+
+    @Test
+    public void testIdleConnection_shouldBeReopened() throws Exception {
+        final MockSyslogServer server = new MockSyslogServer();
+        server.start();
+        testConfig.getProperties().setProperty("atna.tcp.idleTimeout", "100");
+
+        new JavaTestKit(system) {{
+            ActorRef connection = system.actorOf(Props.create(ATNATCPConnectionActor.class, testConfig));
+
+            for (int i=0; i<2; i++) {
+                MediatorSocketRequest request = new MediatorSocketRequest(
+                        ActorRef.noSender(), getRef(), "ATNA Audit", null, "localhost", server.server.getLocalPort(),
+                        SyslogTCPConnection.buildFrame("<85>1 audit " + i), false
+                );
+                connection.tell(request, getRef());
+                server.waitForFrames(i + 1);
+                Thread.sleep(300);
+            }
+
+            assertEquals(2, server.received.size());
+            assertEquals("<85>1 audit 1", server.received.get(1));
+            assertEquals(2, server.connections.get());
+
+            system.stop(connection);
+        }};
+
+        server.server.close();
+    }
+}
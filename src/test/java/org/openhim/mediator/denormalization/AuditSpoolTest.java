@@ -0,0 +1,98 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AuditSpoolTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("audit-spool").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testAppendPeekAcknowledge() throws Exception {
+        AuditSpool spool = new AuditSpool(directory, 64, 1024 * 1024);
+        for (int i=0; i<10; i++) {
+            spool.append("audit message " + i);
+        }
+        assertEquals(10, spool.getDepth());
+
+        List<String> batch = spool.peek(4);
+        assertEquals(4, batch.size());
+        assertEquals("audit message 0", batch.get(0));
+        //not acknowledged, so the same batch is returned again
+        assertEquals(batch, spool.peek(4));
+
+        spool.acknowledge();
+        assertEquals(6, spool.getDepth());
+        batch = spool.peek(100);
+        assertEquals(6, batch.size());
+        assertEquals("audit message 4", batch.get(0));
+        assertEquals("audit message 9", batch.get(5));
+
+        spool.acknowledge();
+        assertEquals(0, spool.getDepth());
+        assertTrue(spool.peek(100).isEmpty());
+        spool.close();
+    }
+
+    @Test
+    public void testReopen_shouldResumeFromCursor() throws Exception {
+        AuditSpool spool = new AuditSpool(directory, 64, 1024 * 1024);
+        for (int i=0; i<10; i++) {
+            spool.append("audit message " + i);
+        }
+        spool.peek(3);
+        spool.acknowledge();
+        spool.close();
+
+        spool = new AuditSpool(directory, 64, 1024 * 1024);
+        assertEquals(7, spool.getDepth());
+        List<String> batch = spool.peek(100);
+        assertEquals(7, batch.size());
+        assertEquals("audit message 3", batch.get(0));
+
+        spool.append("audit message 10");
+        assertEquals(8, spool.getDepth());
+        spool.close();
+    }
+
+    @Test
+    public void testMaxSize_shouldDropOldestSegments() throws Exception {
+        AuditSpool spool = new AuditSpool(directory, 64, 256);
+        for (int i=0; i<100; i++) {
+            spool.append("audit message " + i);
+        }
+
+        assertTrue(spool.getSizeOnDisk() <= 256);
+        assertTrue(spool.getDropped() > 0);
+        assertEquals(100 - spool.getDropped(), spool.getDepth());
+
+        List<String> batch = spool.peek(1000);
+        assertEquals(spool.getDepth(), batch.size());
+        assertEquals("audit message 99", batch.get(batch.size() - 1));
+        spool.close();
+    }
+}
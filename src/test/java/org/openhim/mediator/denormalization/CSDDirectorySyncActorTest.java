@@ -0,0 +1,139 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.testkit.JavaTestKit;
+import akka.testkit.TestActorRef;
+import akka.util.Timeout;
+import org.junit.*;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import org.openhim.mediator.engine.testing.TestingUtils;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CSDDirectorySyncActorTest {
+
+    private static final String DIRECTORY = "<CSD xmlns='urn:ihe:iti:csd:2013'>\n"
+            + "  <providerDirectory>\n"
+            + "    <provider entityID='urn:oid:1.2.3.1234'>\n"
+            + "      <otherID code='prov1' assigningAuthorityName='1.2.4'/>\n"
+            + "      <record created='2014-01-01T00:00:00+00:00' updated='2014-03-01T00:00:00+00:00' status='Active' sourceDirectory='test'/>\n"
+            + "    </provider>\n"
+            + "  </providerDirectory>\n"
+            + "</CSD>";
+
+    /**
+     * Passes requests on to the test
+     */
+    private static class ForwardingHTTPConnector extends UntypedActor {
+        static volatile ActorRef target;
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            target.forward(msg, getContext());
+        }
+    }
+
+    static ActorSystem system;
+    MediatorConfig testConfig;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        testConfig = new MediatorConfig();
+        testConfig.setName("csd-sync-tests-" + UUID.randomUUID());
+        testConfig.setProperties("mediator-unit-test.properties");
+        testConfig.getProperties().setProperty("ilr.directory.syncInterval", "600000");
+
+        TestingUtils.launchActors(system, testConfig.getName(), Collections.singletonList(
+                new MockLauncher.ActorToLaunch("http-connector", ForwardingHTTPConnector.class)
+        ));
+        Timeout timeout = new Timeout(Duration.create(100, TimeUnit.MILLISECONDS));
+        for (int i=0; i<50; i++) {
+            try {
+                Await.result(system.actorSelection(testConfig.userPathFor("http-connector")).resolveOne(timeout), timeout.duration());
+                return;
+            } catch (Exception ex) {
+                //the mock is launched asynchronously
+                Thread.sleep(100);
+            }
+        }
+        fail("Failed to launch mock http-connector");
+    }
+
+    @After
+    public void tearDown() {
+        TestingUtils.clearRootContext(system, testConfig.getName());
+    }
+
+    private MediatorHTTPResponse buildResponse(MediatorHTTPRequest request) {
+        return new MediatorHTTPResponse(request, DIRECTORY, 200, Collections.<String, String>emptyMap());
+    }
+
+    @Test
+    public void testSync() {
+        new JavaTestKit(system) {{
+            ForwardingHTTPConnector.target = getRef();
+            CSDDirectory directory = new CSDDirectory();
+            TestActorRef<CSDDirectorySyncActor> actor = TestActorRef.create(system, Props.create(CSDDirectorySyncActor.class, testConfig, directory));
+
+            MediatorHTTPRequest request = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), MediatorHTTPRequest.class);
+            actor.tell(buildResponse(request), getRef());
+
+            assertTrue(directory.isLoaded());
+            assertEquals("urn:oid:1.2.3.1234", directory.lookup(CSDDirectory.EntityType.PROVIDER, "prov1", "1.2.4"));
+            system.stop(actor);
+        }};
+    }
+
+    @Test
+    public void testSync_shouldIgnoreResponsesToEarlierRequests() {
+        new JavaTestKit(system) {{
+            ForwardingHTTPConnector.target = getRef();
+            CSDDirectory directory = new CSDDirectory();
+            TestActorRef<CSDDirectorySyncActor> actor = TestActorRef.create(system, Props.create(CSDDirectorySyncActor.class, testConfig, directory));
+
+            MediatorHTTPRequest request = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), MediatorHTTPRequest.class);
+            MediatorHTTPRequest earlierRequest = new MediatorHTTPRequest(
+                    actor, actor, request.getOrchestration(), request.getMethod(), request.getScheme(),
+                    request.getHost(), request.getPort(), request.getPath(), request.getBody(),
+                    request.getHeaders(), null, UUID.randomUUID().toString()
+            );
+
+            actor.tell(buildResponse(earlierRequest), getRef());
+            assertFalse(directory.isLoaded());
+
+            //the pending sync is still answered
+            actor.tell(buildResponse(request), getRef());
+            assertTrue(directory.isLoaded());
+            system.stop(actor);
+        }};
+    }
+}
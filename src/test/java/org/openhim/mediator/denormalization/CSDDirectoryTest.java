@@ -0,0 +1,80 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CSDDirectoryTest {
+
+    private static final String DIRECTORY = "<CSD xmlns='urn:ihe:iti:csd:2013'>\n"
+            + "  <organizationDirectory/>\n"
+            + "  <serviceDirectory/>\n"
+            + "  <facilityDirectory>\n"
+            + "    <facility entityID='urn:oid:1.2.3.2345'>\n"
+            + "      <otherID code='fac1' assigningAuthorityName='1.2.5'/>\n"
+            + "      <record created='2014-01-01T00:00:00+00:00' updated='2014-02-01T00:00:00+00:00' status='Active' sourceDirectory='test'/>\n"
+            + "    </facility>\n"
+            + "  </facilityDirectory>\n"
+            + "  <providerDirectory>\n"
+            + "    <provider entityID='urn:oid:1.2.3.1234'>\n"
+            + "      <otherID code='prov1' assigningAuthorityName='1.2.4'/>\n"
+            + "      <facilities>\n"
+            + "        <facility entityID='urn:oid:1.2.3.9999'>\n"
+            + "          <otherID code='nested' assigningAuthorityName='1.2.5'/>\n"
+            + "        </facility>\n"
+            + "      </facilities>\n"
+            + "      <record created='2014-01-01T00:00:00+00:00' updated='2014-03-01T00:00:00+00:00' status='Active' sourceDirectory='test'/>\n"
+            + "    </provider>\n"
+            + "  </providerDirectory>\n"
+            + "</CSD>";
+
+    @Test
+    public void testApplyModifications() throws Exception {
+        CSDDirectory directory = new CSDDirectory();
+        assertFalse(directory.isLoaded());
+
+        directory.applyModifications(IOUtils.toInputStream(DIRECTORY));
+
+        assertTrue(directory.isLoaded());
+        assertEquals("urn:oid:1.2.3.1234", directory.lookup(CSDDirectory.EntityType.PROVIDER, "prov1", "1.2.4"));
+        assertEquals("urn:oid:1.2.3.2345", directory.lookup(CSDDirectory.EntityType.FACILITY, "fac1", "1.2.5"));
+        assertNull(directory.lookup(CSDDirectory.EntityType.FACILITY, "prov1", "1.2.4"));
+        assertNull(directory.lookup(CSDDirectory.EntityType.FACILITY, "nested", "1.2.5"));
+        assertEquals(2, directory.size());
+        assertTrue(directory.getLastModified().startsWith("2014-03-01"));
+    }
+
+    @Test
+    public void testApplyModifications_shouldUpdateAndRemoveEntities() throws Exception {
+        CSDDirectory directory = new CSDDirectory();
+        directory.applyModifications(IOUtils.toInputStream(DIRECTORY));
+
+        String modifications = "<CSD xmlns='urn:ihe:iti:csd:2013'>\n"
+                + "  <facilityDirectory>\n"
+                + "    <facility entityID='urn:oid:1.2.3.2345'>\n"
+                + "      <otherID code='fac2' assigningAuthorityName='1.2.5'/>\n"
+                + "      <record updated='2014-04-01T00:00:00+00:00' status='Active'/>\n"
+                + "    </facility>\n"
+                + "  </facilityDirectory>\n"
+                + "  <providerDirectory>\n"
+                + "    <provider entityID='urn:oid:1.2.3.1234'>\n"
+                + "      <otherID code='prov1' assigningAuthorityName='1.2.4'/>\n"
+                + "      <record updated='2014-04-02T00:00:00+00:00' status='Inactive'/>\n"
+                + "    </provider>\n"
+                + "  </providerDirectory>\n"
+                + "</CSD>";
+        directory.applyModifications(IOUtils.toInputStream(modifications));
+
+        assertNull(directory.lookup(CSDDirectory.EntityType.FACILITY, "fac1", "1.2.5"));
+        assertEquals("urn:oid:1.2.3.2345", directory.lookup(CSDDirectory.EntityType.FACILITY, "fac2", "1.2.5"));
+        assertNull(directory.lookup(CSDDirectory.EntityType.PROVIDER, "prov1", "1.2.4"));
+        assertTrue(directory.getLastModified().startsWith("2014-04-02"));
+    }
+}
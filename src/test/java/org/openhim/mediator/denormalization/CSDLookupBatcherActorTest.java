@@ -0,0 +1,241 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.testkit.JavaTestKit;
+import akka.util.Timeout;
+import org.apache.http.HttpStatus;
+import org.junit.*;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.CoreResponse;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import org.openhim.mediator.engine.testing.MockHTTPConnector;
+import org.openhim.mediator.engine.testing.TestingUtils;
+import org.openhim.mediator.messages.BaseResolveIdentifier;
+import org.openhim.mediator.messages.ResolveFacilityIdentifier;
+import org.openhim.mediator.messages.ResolveHealthcareWorkerIdentifier;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CSDLookupBatcherActorTest {
+
+    private static final String BATCH_RESPONSE = "<CSD xmlns='urn:ihe:iti:csd:2013'>\n"
+            + "  <providerDirectory>\n"
+            + "    <provider entityID='urn:oid:1.2.3.1111'>\n"
+            + "      <otherID code='1111' assigningAuthorityName='testauth'/>\n"
+            + "    </provider>\n"
+            + "    <provider entityID='urn:oid:1.2.3.2222'>\n"
+            + "      <otherID code='2222' assigningAuthorityName='testauth'/>\n"
+            + "    </provider>\n"
+            + "  </providerDirectory>\n"
+            + "</CSD>\n";
+
+    private static class BatchMock extends MockHTTPConnector {
+        static final AtomicInteger requests = new AtomicInteger();
+        static final AtomicInteger otherIDsInFirstRequest = new AtomicInteger();
+
+        @Override
+        public String getResponse() {
+            return BATCH_RESPONSE;
+        }
+
+        @Override
+        public Integer getStatus() {
+            return HttpStatus.SC_OK;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest msg) {
+            if (requests.incrementAndGet()==1) {
+                otherIDsInFirstRequest.set(msg.getBody().split("<otherID").length - 1);
+            }
+        }
+    }
+
+    /**
+     * Fails searches for provider 9999 and otherwise responds like the http connector, with an orchestration
+     */
+    private static class FailingConnector extends UntypedActor {
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorHTTPRequest) {
+                MediatorHTTPRequest request = (MediatorHTTPRequest) msg;
+                if (request.getBody().contains("code='9999'")) {
+                    request.getRequestHandler().tell(new ExceptError(new IOException("Connection reset")), getSelf());
+                    return;
+                }
+                MediatorHTTPResponse response = new MediatorHTTPResponse(
+                        request, BATCH_RESPONSE, HttpStatus.SC_OK, Collections.<String, String>emptyMap()
+                );
+                request.getRespondTo().tell(response, getSelf());
+
+                CoreResponse.Orchestration orchestration = new CoreResponse.Orchestration();
+                orchestration.setName(request.getOrchestration());
+                request.getRequestHandler().tell(new AddOrchestrationToCoreResponse(orchestration), getSelf());
+            } else {
+                fail("Unexpected message received");
+            }
+        }
+    }
+
+    static ActorSystem system;
+    MediatorConfig testConfig;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        testConfig = new MediatorConfig();
+        testConfig.setName("csd-batch-tests-" + UUID.randomUUID());
+        testConfig.setProperties("mediator-unit-test.properties");
+        testConfig.getProperties().setProperty("ilr.batch.window", "200");
+    }
+
+    private void launchConnector(Class<? extends UntypedActor> connector) throws Exception {
+        TestingUtils.launchActors(system, testConfig.getName(), Collections.singletonList(new MockLauncher.ActorToLaunch("http-connector", connector)));
+        Timeout timeout = new Timeout(Duration.create(100, TimeUnit.MILLISECONDS));
+        for (int i=0; i<50; i++) {
+            try {
+                Await.result(system.actorSelection(testConfig.userPathFor("http-connector")).resolveOne(timeout), timeout.duration());
+                return;
+            } catch (Exception ex) {
+                //the mock is launched asynchronously
+                Thread.sleep(100);
+            }
+        }
+        fail("Failed to launch mock http-connector");
+    }
+
+    @After
+    public void tearDown() {
+        TestingUtils.clearRootContext(system, testConfig.getName());
+    }
+
+    private static void lookup(ActorRef batcher, ActorRef requestHandler, String code, boolean facility) {
+        Identifier id = new Identifier(code, new AssigningAuthority("", "testauth"));
+        AssigningAuthority target = new AssigningAuthority("", "not used");
+        BaseResolveIdentifier request = facility
+                ? new ResolveFacilityIdentifier(requestHandler, requestHandler, id, target)
+                : new ResolveHealthcareWorkerIdentifier(requestHandler, requestHandler, id, target);
+        batcher.tell(new CSDLookupBatcherActor.Lookup(request), requestHandler);
+    }
+
+    @Test
+    public void testLookupsShouldBeBatched() throws Exception {
+        launchConnector(BatchMock.class);
+        BatchMock.requests.set(0);
+
+        new JavaTestKit(system) {{
+            ActorRef batcher = system.actorOf(Props.create(CSDLookupBatcherActor.class, testConfig));
+            for (String code : new String[]{"1111", "2222", "3333", "1111"}) {
+                Identifier id = new Identifier(code, new AssigningAuthority("", "testauth"));
+                batcher.tell(new CSDLookupBatcherActor.Lookup(
+                        new ResolveHealthcareWorkerIdentifier(getRef(), getRef(), id, new AssigningAuthority("", "not used"))
+                ), getRef());
+            }
+
+            Map<String, String> results = new HashMap<>();
+            for (int i=0; i<4; i++) {
+                CSDLookupBatcherActor.LookupResult result = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), CSDLookupBatcherActor.LookupResult.class);
+                results.put(result.getLookup().getIdentifier().getIdentifier(), result.getEntityID());
+            }
+
+            assertEquals("urn:oid:1.2.3.1111", results.get("1111"));
+            assertEquals("urn:oid:1.2.3.2222", results.get("2222"));
+            //3333 isn't in the batch response, so it's unknown to the Infomanager
+            assertTrue(results.containsKey("3333"));
+            assertNull(results.get("3333"));
+
+            assertEquals(3, BatchMock.otherIDsInFirstRequest.get());
+            assertEquals(1, BatchMock.requests.get());
+        }};
+    }
+
+    @Test
+    public void testFailedBatch_shouldOnlyFailItsOwnLookups() throws Exception {
+        launchConnector(FailingConnector.class);
+
+        new JavaTestKit(system) {{
+            JavaTestKit facilityHandler = new JavaTestKit(system);
+            ActorRef batcher = system.actorOf(Props.create(CSDLookupBatcherActor.class, testConfig));
+            //providers and facilities are sent as separate batches
+            lookup(batcher, getRef(), "9999", false);
+            lookup(batcher, getRef(), "1111", false);
+            lookup(batcher, facilityHandler.getRef(), "1111", true);
+
+            for (int i=0; i<2; i++) {
+                CSDLookupBatcherActor.LookupFailed failed = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), CSDLookupBatcherActor.LookupFailed.class);
+                assertTrue(failed.getError() instanceof IOException);
+            }
+            facilityHandler.expectMsgClass(Duration.create(60, TimeUnit.SECONDS), CSDLookupBatcherActor.LookupResult.class);
+            AddOrchestrationToCoreResponse orchestration = facilityHandler.expectMsgClass(
+                    Duration.create(60, TimeUnit.SECONDS), AddOrchestrationToCoreResponse.class
+            );
+            assertEquals("CSD Resolve Facility Identifier", orchestration.getOrchestration().getName());
+            expectNoMsg(Duration.create(200, TimeUnit.MILLISECONDS));
+        }};
+    }
+
+    @Test
+    public void testUnknownIdentifiers_shouldResolveToNullWithoutRetrying() throws Exception {
+        launchConnector(BatchMock.class);
+        BatchMock.requests.set(0);
+
+        new JavaTestKit(system) {{
+            ActorRef batcher = system.actorOf(Props.create(CSDLookupBatcherActor.class, testConfig));
+            for (String code : new String[]{"1111", "3333", "4444"}) {
+                lookup(batcher, getRef(), code, false);
+            }
+
+            Map<String, String> results = new HashMap<>();
+            for (int i=0; i<3; i++) {
+                CSDLookupBatcherActor.LookupResult result = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), CSDLookupBatcherActor.LookupResult.class);
+                results.put(result.getLookup().getIdentifier().getIdentifier(), result.getEntityID());
+            }
+
+            assertEquals("urn:oid:1.2.3.1111", results.get("1111"));
+            assertNull(results.get("3333"));
+            assertNull(results.get("4444"));
+            assertEquals(3, results.size());
+            assertEquals(1, BatchMock.requests.get());
+        }};
+    }
+}
@@ -10,6 +10,8 @@ import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 import akka.actor.Props;
 import akka.testkit.JavaTestKit;
+import akka.util.Timeout;
+import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpStatus;
 import org.junit.*;
 import org.openhim.mediator.datatypes.AssigningAuthority;
@@ -23,10 +25,13 @@ import org.openhim.mediator.messages.ResolveFacilityIdentifier;
 import org.openhim.mediator.messages.ResolveFacilityIdentifierResponse;
 import org.openhim.mediator.messages.ResolveHealthcareWorkerIdentifier;
 import org.openhim.mediator.messages.ResolveHealthcareWorkerIdentifierResponse;
+import scala.concurrent.Await;
 import scala.concurrent.duration.Duration;
 import java.util.Collections;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -81,6 +86,20 @@ public class CSDRequestActorTest {
         }
     }
 
+    private static class SlowFacilityMock extends FacilityMock {
+        static final AtomicInteger requests = new AtomicInteger();
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest mediatorHTTPRequest) {
+            super.executeOnReceive(mediatorHTTPRequest);
+            requests.incrementAndGet();
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
     private static class NoResultsMock extends CSDMock {
         @Override
         public String getResponse() {
@@ -118,12 +137,29 @@ public class CSDRequestActorTest {
     @Before
     public void setUp() throws Exception {
         testConfig = new MediatorConfig();
-        testConfig.setName("csd-tests");
+        //unique per test, since the previous test's root context is cleared asynchronously
+        testConfig.setName("csd-tests-" + UUID.randomUUID());
         testConfig.setProperties("mediator-unit-test.properties");
     }
 
     private void stubWith(Class<? extends MockHTTPConnector> clazz) {
         TestingUtils.launchMockHTTPConnector(system, testConfig.getName(), clazz);
+
+        //the mock is launched asynchronously
+        Timeout timeout = new Timeout(Duration.create(100, TimeUnit.MILLISECONDS));
+        for (int i=0; i<50; i++) {
+            try {
+                Await.result(system.actorSelection(testConfig.userPathFor("http-connector")).resolveOne(timeout), timeout.duration());
+                return;
+            } catch (Exception ex) {
+                //not launched yet
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+        fail("Failed to launch mock http-connector");
     }
 
     private void stubForHealthcareWorkerLookup() {
@@ -230,6 +266,109 @@ public class CSDRequestActorTest {
         }};
     }
 
+    @Test
+    public void resolveFacilityIdentifier_shouldUseCacheForRepeatLookups() throws Exception {
+        testConfig.getProperties().setProperty("ilr.cache.enabled", "true");
+        final IdentifierCache cache = CSDRequestActor.getIdentifierCache(testConfig);
+        cache.clear();
+        final long hitsBefore = cache.getHits();
+
+        new JavaTestKit(system) {{
+            try {
+                stubForFacilityLookup();
+
+                Identifier testId = new Identifier("1234", new AssigningAuthority("", "testauth"));
+                for (int i=0; i<2; i++) {
+                    ActorRef actor = system.actorOf(Props.create(CSDRequestActor.class, testConfig));
+                    actor.tell(new ResolveFacilityIdentifier(getRef(), getRef(), testId, new AssigningAuthority("", "not used")), getRef());
+
+                    ResolveFacilityIdentifierResponse response = expectMsgClass(
+                            Duration.create(60, TimeUnit.SECONDS),
+                            ResolveFacilityIdentifierResponse.class
+                    );
+                    assertEquals("2345", response.getIdentifier().getIdentifier());
+                }
+
+                assertEquals(hitsBefore + 1, cache.getHits());
+                assertEquals(1, cache.size());
+
+                //same code, but a provider lookup shouldn't hit the facility entry
+                ResolveHealthcareWorkerIdentifier hcwMsg = new ResolveHealthcareWorkerIdentifier(getRef(), getRef(), testId, new AssigningAuthority("", "not used"));
+                assertNotEquals(CSDRequestActor.buildCacheKey(hcwMsg), CSDRequestActor.buildCacheKey(
+                        new ResolveFacilityIdentifier(getRef(), getRef(), testId, new AssigningAuthority("", "not used"))
+                ));
+            } finally {
+                cache.clear();
+                clearStub();
+            }
+        }};
+    }
+
+    @Test
+    public void resolveFacilityIdentifier_shouldCoalesceConcurrentLookups() throws Exception {
+        testConfig.getProperties().setProperty("ilr.coalesce.enabled", "true");
+        SlowFacilityMock.requests.set(0);
+
+        new JavaTestKit(system) {{
+            try {
+                stubWith(SlowFacilityMock.class);
+
+                Identifier testId = new Identifier("4321", new AssigningAuthority("", "testauth"));
+                for (int i=0; i<3; i++) {
+                    ActorRef actor = system.actorOf(Props.create(CSDRequestActor.class, testConfig));
+                    actor.tell(new ResolveFacilityIdentifier(getRef(), getRef(), testId, new AssigningAuthority("", "not used")), getRef());
+                }
+
+                for (int i=0; i<3; i++) {
+                    ResolveFacilityIdentifierResponse response = expectMsgClass(
+                            Duration.create(60, TimeUnit.SECONDS),
+                            ResolveFacilityIdentifierResponse.class
+                    );
+                    assertEquals("2345", response.getIdentifier().getIdentifier());
+                }
+
+                assertEquals(1, SlowFacilityMock.requests.get());
+                assertEquals(0, CSDRequestActor.getInFlightLookups(testConfig).size());
+            } finally {
+                clearStub();
+            }
+        }};
+    }
+
+    @Test
+    public void resolveHealthcareWorkerIdentifier_shouldUseLocalDirectory() throws Exception {
+        testConfig.getProperties().setProperty("ilr.directory.preload", "true");
+        CSDDirectory.getInstance().clear();
+        CSDDirectory.getInstance().applyModifications(IOUtils.toInputStream(
+                "<CSD xmlns='urn:ihe:iti:csd:2013'><providerDirectory>"
+                + "<provider entityID='urn:oid:1.2.3.5678'><otherID code='1234' assigningAuthorityName='testauth'/></provider>"
+                + "</providerDirectory></CSD>"
+        ));
+
+        new JavaTestKit(system) {{
+            try {
+                //the ilr shouldn't be contacted
+                stubBadResponse();
+
+                ActorRef actor = system.actorOf(Props.create(CSDRequestActor.class, testConfig));
+
+                Identifier testId = new Identifier("1234", new AssigningAuthority("", "testauth"));
+                actor.tell(new ResolveHealthcareWorkerIdentifier(getRef(), getRef(), testId, new AssigningAuthority("", "not used")), getRef());
+
+                ResolveHealthcareWorkerIdentifierResponse response = expectMsgClass(
+                        Duration.create(60, TimeUnit.SECONDS),
+                        ResolveHealthcareWorkerIdentifierResponse.class
+                );
+
+                assertEquals("5678", response.getIdentifier().getIdentifier());
+                assertEquals("1.2.3", response.getIdentifier().getAssigningAuthority().getAssigningAuthorityId());
+            } finally {
+                CSDDirectory.getInstance().clear();
+                clearStub();
+            }
+        }};
+    }
+
     @Test
     public void resolveHealtcareWorker_NoResults() throws Exception {
         new JavaTestKit(system) {{
@@ -0,0 +1,93 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.junit.Test;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+
+import static org.junit.Assert.*;
+
+public class IdentifierCacheTest {
+
+    private static Identifier id(String id) {
+        return new Identifier(id, new AssigningAuthority("ECID", "ECID"));
+    }
+
+    @Test
+    public void testGetAndPut() {
+        IdentifierCache cache = new IdentifierCache(10, 60000);
+        assertNull(cache.get("a"));
+
+        cache.put("a", id("1"));
+        assertEquals(id("1"), cache.get("a"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testClear_shouldResetStatistics() {
+        IdentifierCache cache = new IdentifierCache(1, 60000);
+        cache.put("a", id("1"));
+        cache.put("b", id("2"));
+        cache.get("a");
+        cache.get("b");
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+        assertEquals(0, cache.getEvictions());
+        assertEquals(0, cache.getExpirations());
+    }
+
+    @Test
+    public void testNullValuesAreNotCached() {
+        IdentifierCache cache = new IdentifierCache(10, 60000);
+        cache.put("a", null);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        IdentifierCache cache = new IdentifierCache(2, 60000);
+        cache.put("a", id("1"));
+        cache.put("b", id("2"));
+        cache.get("a");
+        cache.put("c", id("3"));
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        IdentifierCache cache = new IdentifierCache(10, 60000);
+        cache.put("a", id("1"), 1);
+        Thread.sleep(10);
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getExpirations());
+    }
+
+    @Test
+    public void testRemoveValue() {
+        IdentifierCache cache = new IdentifierCache(10, 60000);
+        cache.put("a", id("1"));
+        cache.put("b", id("1"));
+        cache.put("c", id("2"));
+
+        assertEquals(2, cache.removeValue(id("1")));
+        assertNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class InFlightLookupsTest {
+
+    @Test
+    public void testAttachAndComplete() {
+        InFlightLookups<String> lookups = new InFlightLookups<>(60000);
+
+        assertFalse(lookups.attach("a", "first"));
+        assertTrue(lookups.attach("a", "second"));
+        assertTrue(lookups.attach("a", "third"));
+        assertFalse(lookups.attach("b", "other"));
+
+        assertEquals(Arrays.asList("second", "third"), lookups.complete("a"));
+        assertEquals(1, lookups.size());
+        assertTrue(lookups.complete("a").isEmpty());
+        assertFalse(lookups.attach("a", "fourth"));
+    }
+
+    @Test
+    public void testStaleLookupsShouldBeTakenOver() throws InterruptedException {
+        InFlightLookups<String> lookups = new InFlightLookups<>(200);
+
+        assertFalse(lookups.attach("a", "first"));
+        Thread.sleep(300);
+        assertFalse(lookups.attach("a", "second"));
+        assertTrue(lookups.attach("a", "third"));
+        Thread.sleep(300);
+
+        assertFalse(lookups.attach("a", "fourth"));
+        assertEquals(Arrays.asList("third"), lookups.complete("a"));
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+import org.openhim.mediator.engine.messages.MediatorSocketResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MLLPConnectionPoolActorTest {
+
+    private static final String MESSAGE = "MSH|^~\\&|openhim|openhim|pix|pix|20141104174451||QBP^Q23^QBP_Q21|%s|P|2.5\r"
+            + "QPD|IHE PIX Query|%s|1234^^^&1.2.3&ISO\r";
+
+    private static final String RESPONSE = "MSH|^~\\&|pix|pix|openhim|openhim|20141104174451||RSP^K23^RSP_K21|r-%s|P|2.5\r"
+            + "MSA|AA|%s\r";
+
+    /**
+     * Reads two pipelined messages and responds to them in reverse order, on a single connection.
+     */
+    private static class ReversingMLLPServer extends Thread {
+        final ServerSocket server;
+        final AtomicInteger connections = new AtomicInteger();
+
+        ReversingMLLPServer() throws Exception {
+            server = new ServerSocket(0);
+            setDaemon(true);
+        }
+
+        static String readFrame(InputStream in) throws Exception {
+            while (in.read() != 0x0b) {}
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != 0x1c) {
+                frame.write(b);
+            }
+            in.read();
+            return frame.toString("UTF-8");
+        }
+
+        static void writeFrame(OutputStream out, String body) throws Exception {
+            out.write(0x0b);
+            out.write(body.getBytes("UTF-8"));
+            out.write(0x1c);
+            out.write(0x0d);
+            out.flush();
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = server.accept()) {
+                connections.incrementAndGet();
+                List<String> controlIds = new ArrayList<>();
+                controlIds.add(MLLPConnection.parseControlId(readFrame(socket.getInputStream())));
+                controlIds.add(MLLPConnection.parseControlId(readFrame(socket.getInputStream())));
+
+                writeFrame(socket.getOutputStream(), String.format(RESPONSE, controlIds.get(1), controlIds.get(1)));
+                writeFrame(socket.getOutputStream(), String.format(RESPONSE, controlIds.get(0), controlIds.get(0)));
+                readFrame(socket.getInputStream());
+            } catch (Exception ex) {
+                //connection closed
+            }
+        }
+    }
+
+    static ActorSystem system;
+    MediatorConfig testConfig;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        testConfig = new MediatorConfig();
+        testConfig.setName("pool-tests-" + UUID.randomUUID());
+        testConfig.setProperties("mediator-unit-test.properties");
+        testConfig.getProperties().setProperty("pix.pool.size", "1");
+    }
+
+    @Test
+    public void testParseControlIds() {
+        String message = String.format(MESSAGE, "msg1", "q1");
+        assertEquals("msg1", MLLPConnection.parseControlId(message));
+        assertEquals("msg1", MLLPConnection.parseAcknowledgedControlId(String.format(RESPONSE, "x", "msg1")));
+        assertNull(MLLPConnection.parseAcknowledgedControlId(message));
+        assertNull(MLLPConnection.parseControlId("not hl7"));
+    }
+
+    @Test
+    public void testPipelinedRequests_shouldBeMatchedByControlId() throws Exception {
+        final ReversingMLLPServer server = new ReversingMLLPServer();
+        server.start();
+
+        new JavaTestKit(system) {{
+            ActorRef pool = system.actorOf(Props.create(MLLPConnectionPoolActor.class, testConfig));
+
+            MediatorSocketRequest first = new MediatorSocketRequest(
+                    getRef(), getRef(), null, "corr1", "localhost", server.server.getLocalPort(), String.format(MESSAGE, "msg1", "q1"), false
+            );
+            MediatorSocketRequest second = new MediatorSocketRequest(
+                    getRef(), getRef(), null, "corr2", "localhost", server.server.getLocalPort(), String.format(MESSAGE, "msg2", "q2"), false
+            );
+            pool.tell(first, getRef());
+            pool.tell(second, getRef());
+
+            MediatorSocketResponse[] responses = new MediatorSocketResponse[] {
+                    expectMsgClass(duration("5 seconds"), MediatorSocketResponse.class),
+                    expectMsgClass(duration("5 seconds"), MediatorSocketResponse.class)
+            };
+
+            //the second message is answered first
+            assertSame(second, responses[0].getOriginalRequest());
+            assertTrue(responses[0].getBody().contains("MSA|AA|msg2"));
+            assertSame(first, responses[1].getOriginalRequest());
+            assertTrue(responses[1].getBody().contains("MSA|AA|msg1"));
+
+            assertEquals(1, server.connections.get());
+
+            system.stop(pool);
+        }};
+
+        server.server.close();
+    }
+
+    @Test
+    public void testUnmatchedResponse_shouldNotBeGivenToAnotherRequest() throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        Thread responder = new Thread() {
+            @Override
+            public void run() {
+                try (Socket socket = server.accept()) {
+                    ReversingMLLPServer.readFrame(socket.getInputStream());
+                    ReversingMLLPServer.writeFrame(socket.getOutputStream(), String.format(RESPONSE, "x", "unknown"));
+                    ReversingMLLPServer.readFrame(socket.getInputStream());
+                } catch (Exception ex) {
+                    //connection closed
+                }
+            }
+        };
+        responder.setDaemon(true);
+        responder.start();
+
+        new JavaTestKit(system) {{
+            ActorRef pool = system.actorOf(Props.create(MLLPConnectionPoolActor.class, testConfig));
+            pool.tell(new MediatorSocketRequest(
+                    getRef(), getRef(), null, "corr1", "localhost", server.getLocalPort(), String.format(MESSAGE, "msg1", "q1"), false
+            ), getRef());
+
+            expectNoMsg(duration("1 second"));
+
+            system.stop(pool);
+        }};
+
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testBlockedWrite_shouldNotBlockIsConnectedOrClose() throws Exception {
+        //accepts the connection but never reads, so a large enough write blocks once the socket buffers are full
+        final ServerSocket server = new ServerSocket(0);
+        final List<Socket> accepted = new ArrayList<>();
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    accepted.add(server.accept());
+                } catch (Exception ex) {
+                    //server closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        final CountDownLatch failed = new CountDownLatch(1);
+        final MLLPConnection connection = new MLLPConnection("localhost", server.getLocalPort(), false, 10000, new MLLPConnection.Listener() {
+            @Override
+            public void onResponse(MediatorSocketRequest request, String response) {
+            }
+
+            @Override
+            public void onFailure(MediatorSocketRequest request, Throwable cause) {
+            }
+
+            @Override
+            public void onUnmatchedResponse(String acknowledgedControlId) {
+            }
+        });
+
+        char[] body = new char[32 * 1024 * 1024];
+        Arrays.fill(body, 'x');
+        final MediatorSocketRequest request = new MediatorSocketRequest(
+                null, null, null, "corr1", "localhost", server.getLocalPort(), new String(body), false
+        );
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    connection.send("msg1", request);
+                } catch (Exception ex) {
+                    failed.countDown();
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+
+        for (int i=0; i<50 && !connection.isConnected(); i++) {
+            Thread.sleep(100);
+        }
+        //give the write time to fill the socket buffers
+        Thread.sleep(500);
+
+        long start = System.currentTimeMillis();
+        assertTrue(connection.isConnected());
+        connection.close(new Exception("closed by test"));
+        assertFalse(connection.isConnected());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+
+        //closing the socket fails the blocked write
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+
+        server.close();
+    }
+}
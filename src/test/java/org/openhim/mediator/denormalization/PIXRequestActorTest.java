@@ -12,6 +12,7 @@ import akka.actor.Props;
 import akka.actor.UntypedActor;
 import akka.testkit.JavaTestKit;
 import akka.testkit.TestActorRef;
+import akka.util.Timeout;
 import org.apache.commons.io.IOUtils;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -28,10 +29,16 @@ import org.openhim.mediator.engine.testing.MockLauncher;
 import org.openhim.mediator.engine.testing.TestingUtils;
 import org.openhim.mediator.messages.ResolvePatientIdentifier;
 import org.openhim.mediator.messages.ResolvePatientIdentifierResponse;
+import scala.concurrent.Await;
 import scala.concurrent.duration.Duration;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
@@ -74,6 +81,27 @@ public class PIXRequestActorTest {
         }
     }
 
+    /**
+     * Holds requests until told to "fail" them, as the mllp connector does when the connection fails
+     */
+    private static class MockPIXReceiver_Failing extends UntypedActor {
+        private final List<MediatorSocketRequest> pending = new ArrayList<>();
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorSocketRequest) {
+                pending.add((MediatorSocketRequest) msg);
+            } else if ("fail".equals(msg)) {
+                for (MediatorSocketRequest request : pending) {
+                    request.getRequestHandler().tell(new ExceptError(new IOException("Connection refused")), getSelf());
+                }
+                pending.clear();
+            } else {
+                fail("Unexpected message received");
+            }
+        }
+    }
+
     static ActorSystem system;
     MediatorConfig testConfig;
 
@@ -91,12 +119,32 @@ public class PIXRequestActorTest {
     @Before
     public void setUp() throws Exception {
         testConfig = new MediatorConfig();
-        testConfig.setName("pix-tests");
+        //unique per test, since the previous test's root context is cleared asynchronously
+        testConfig.setName("pix-tests-" + UUID.randomUUID());
         testConfig.setProperties("mediator-unit-test.properties");
     }
 
+    private void awaitActor(String name) {
+        //the mock is launched asynchronously
+        Timeout timeout = new Timeout(Duration.create(100, TimeUnit.MILLISECONDS));
+        for (int i=0; i<50; i++) {
+            try {
+                Await.result(system.actorSelection(testConfig.userPathFor(name)).resolveOne(timeout), timeout.duration());
+                return;
+            } catch (Exception ex) {
+                //not launched yet
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+        fail("Failed to launch " + name);
+    }
+
     private void sendTestRequest(ActorRef ref, Class<? extends UntypedActor> handler) {
         TestingUtils.launchActors(system, testConfig.getName(), Collections.singletonList(new MockLauncher.ActorToLaunch("mllp-connector", handler)));
+        awaitActor("mllp-connector");
         TestActorRef<PIXRequestActor> actor = TestActorRef.create(system, Props.create(PIXRequestActor.class, testConfig));
 
         Identifier fromId = new Identifier("1234", new AssigningAuthority("test-auth", "1.2.3", "ISO"));
@@ -130,6 +178,99 @@ public class PIXRequestActorTest {
         }};
     }
 
+    @Test
+    public void testCachedPIXQuery() {
+        testConfig.getProperties().setProperty("pix.cache.enabled", "true");
+        PIXRequestActor.getPatientIdCache(testConfig).clear();
+
+        new JavaTestKit(system) {{
+            sendTestRequest(getRef(), MockPIXReceiver_Valid.class);
+            ResolvePatientIdentifierResponse response = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), ResolvePatientIdentifierResponse.class);
+            assertEquals("975cac30-68e5-11e4-bf2a-04012ce65b02", response.getIdentifier().getIdentifier());
+
+            //the pix manager shouldn't be contacted again
+            long hits = PIXRequestActor.getPatientIdCache(testConfig).getHits();
+            TestActorRef<PIXRequestActor> actor = TestActorRef.create(system, Props.create(PIXRequestActor.class, testConfig));
+            Identifier fromId = new Identifier("1234", new AssigningAuthority("test-auth", "1.2.3", "ISO"));
+            AssigningAuthority targetDomain = new AssigningAuthority("ECID", "ECID", "ECID");
+            actor.tell(new ResolvePatientIdentifier(getRef(), getRef(), fromId, targetDomain), getRef());
+
+            response = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), ResolvePatientIdentifierResponse.class);
+            assertEquals("975cac30-68e5-11e4-bf2a-04012ce65b02", response.getIdentifier().getIdentifier());
+            assertEquals(hits + 1, PIXRequestActor.getPatientIdCache(testConfig).getHits());
+
+            PIXRequestActor.getPatientIdCache(testConfig).clear();
+            TestingUtils.clearRootContext(system, testConfig.getName());
+        }};
+    }
+
+    @Test
+    public void testPatientIdCache_shouldUseEachConfigsSettings() throws Exception {
+        testConfig.getProperties().setProperty("pix.cache.enabled", "true");
+        testConfig.getProperties().setProperty("pix.cache.capacity", "10");
+
+        MediatorConfig otherConfig = new MediatorConfig();
+        otherConfig.setProperties("mediator-unit-test.properties");
+        otherConfig.getProperties().setProperty("pix.cache.enabled", "true");
+        otherConfig.getProperties().setProperty("pix.cache.capacity", "20");
+
+        assertSame(PIXRequestActor.getPatientIdCache(testConfig), PIXRequestActor.getPatientIdCache(testConfig));
+        assertEquals(10, PIXRequestActor.getPatientIdCache(testConfig).getCapacity());
+        assertEquals(20, PIXRequestActor.getPatientIdCache(otherConfig).getCapacity());
+    }
+
+    @Test
+    public void testPIXQueryFromTable() throws Exception {
+        testConfig.getProperties().setProperty("pix.table.path", "patient-identifiers.csv");
+        testConfig.getProperties().setProperty("client.requestedAssigningAuthorityId", "ECID");
+        PatientIdentifierTable.getInstance(testConfig).load(new StringReader("1234,1.2.3,ecid-from-table\n"));
+
+        new JavaTestKit(system) {{
+            //a bad response would be returned if the pix manager was contacted
+            sendTestRequest(getRef(), MockPIXReceiver_BadResponse.class);
+
+            ResolvePatientIdentifierResponse response = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), ResolvePatientIdentifierResponse.class);
+            assertEquals("ecid-from-table", response.getIdentifier().getIdentifier());
+            assertEquals("ECID", response.getIdentifier().getAssigningAuthority().getAssigningAuthorityId());
+
+            PatientIdentifierTable.getInstance(testConfig).clear();
+            TestingUtils.clearRootContext(system, testConfig.getName());
+        }};
+    }
+
+    @Test
+    public void testPIXQuery_connectorErrorShouldFailAttachedLookups() {
+        testConfig.getProperties().setProperty("pix.coalesce.enabled", "true");
+
+        new JavaTestKit(system) {{
+            TestingUtils.launchActors(system, testConfig.getName(), Collections.singletonList(new MockLauncher.ActorToLaunch("mllp-connector", MockPIXReceiver_Failing.class)));
+            awaitActor("mllp-connector");
+
+            Identifier fromId = new Identifier("1234", new AssigningAuthority("test-auth", "1.2.3", "ISO"));
+            AssigningAuthority targetDomain = new AssigningAuthority("ECID", "ECID", "ECID");
+
+            //the first lookup queries the pix manager and the other two are attached to it
+            JavaTestKit waiter1 = new JavaTestKit(system);
+            JavaTestKit waiter2 = new JavaTestKit(system);
+            TestActorRef.create(system, Props.create(PIXRequestActor.class, testConfig))
+                    .tell(new ResolvePatientIdentifier(getRef(), getRef(), fromId, targetDomain), getRef());
+            TestActorRef.create(system, Props.create(PIXRequestActor.class, testConfig))
+                    .tell(new ResolvePatientIdentifier(waiter1.getRef(), waiter1.getRef(), fromId, targetDomain), waiter1.getRef());
+            TestActorRef.create(system, Props.create(PIXRequestActor.class, testConfig))
+                    .tell(new ResolvePatientIdentifier(waiter2.getRef(), waiter2.getRef(), fromId, targetDomain), waiter2.getRef());
+            assertEquals(1, PIXRequestActor.getInFlightLookups(testConfig).size());
+
+            system.actorSelection(testConfig.userPathFor("mllp-connector")).tell("fail", getRef());
+
+            expectMsgClass(Duration.create(60, TimeUnit.SECONDS), ExceptError.class);
+            waiter1.expectMsgClass(Duration.create(60, TimeUnit.SECONDS), ExceptError.class);
+            waiter2.expectMsgClass(Duration.create(60, TimeUnit.SECONDS), ExceptError.class);
+            assertEquals(0, PIXRequestActor.getInFlightLookups(testConfig).size());
+
+            TestingUtils.clearRootContext(system, testConfig.getName());
+        }};
+    }
+
     @Test
     public void testInvalidPIXQuery() {
         new JavaTestKit(system) {{
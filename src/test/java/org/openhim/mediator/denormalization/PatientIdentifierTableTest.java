@@ -0,0 +1,88 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+public class PatientIdentifierTableTest {
+
+    private static final String EXPORT = "# identifier,assigningAuthorityId,ecid\n"
+            + "1234,1.2.3,ecid1\n"
+            + "\n"
+            + "5678,1.2.3,ecid2\n"
+            + "1234,1.2.4,ecid3\n"
+            + "5678,1.2.3,ecid4\n";
+
+    @Test
+    public void testLoadAndLookup() throws Exception {
+        PatientIdentifierTable table = new PatientIdentifierTable();
+        assertFalse(table.isLoaded());
+        assertNull(table.lookup("1234", "1.2.3"));
+
+        table.load(new StringReader(EXPORT));
+
+        assertTrue(table.isLoaded());
+        assertEquals(3, table.size());
+        assertEquals("ecid1", table.lookup("1234", "1.2.3"));
+        assertEquals("ecid3", table.lookup("1234", "1.2.4"));
+        assertEquals("ecid4", table.lookup("5678", "1.2.3"));
+        assertNull(table.lookup("9999", "1.2.3"));
+    }
+
+    @Test
+    public void testInvalidExportShouldKeepCurrentTable() throws Exception {
+        PatientIdentifierTable table = new PatientIdentifierTable();
+        table.load(new StringReader(EXPORT));
+
+        try {
+            table.load(new StringReader("1111,1.2.3,ecid5\nnot a valid line\n"));
+            fail("Expected InvalidExportException");
+        } catch (PatientIdentifierTable.InvalidExportException ex) {
+            //expected
+        }
+
+        assertEquals("ecid1", table.lookup("1234", "1.2.3"));
+        assertNull(table.lookup("1111", "1.2.3"));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        PatientIdentifierTable table = new PatientIdentifierTable();
+        assertFalse(table.remove("1234", "1.2.3"));
+        assertEquals(0, table.removeEcid("ecid1"));
+
+        table.load(new StringReader(EXPORT + "9999,1.2.5,ecid1\n"));
+
+        assertTrue(table.remove("1234", "1.2.4"));
+        assertFalse(table.remove("1234", "1.2.4"));
+        assertEquals(2, table.removeEcid("ecid1"));
+
+        assertEquals(1, table.size());
+        assertNull(table.lookup("1234", "1.2.3"));
+        assertNull(table.lookup("1234", "1.2.4"));
+        assertNull(table.lookup("9999", "1.2.5"));
+        assertEquals("ecid4", table.lookup("5678", "1.2.3"));
+    }
+
+    @Test
+    public void testGetInstance_shouldBeKeyedByConfig() throws Exception {
+        MediatorConfig config = new MediatorConfig();
+        MediatorConfig otherConfig = new MediatorConfig();
+
+        assertSame(PatientIdentifierTable.getInstance(config), PatientIdentifierTable.getInstance(config));
+        assertNotSame(PatientIdentifierTable.getInstance(config), PatientIdentifierTable.getInstance(otherConfig));
+
+        PatientIdentifierTable.getInstance(config).load(new StringReader(EXPORT));
+        assertTrue(PatientIdentifierTable.getInstance(config).isLoaded());
+        assertFalse(PatientIdentifierTable.getInstance(otherConfig).isLoaded());
+    }
+}
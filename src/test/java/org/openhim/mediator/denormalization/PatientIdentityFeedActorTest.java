@@ -0,0 +1,146 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import akka.testkit.TestActorRef;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.io.StringReader;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class PatientIdentityFeedActorTest {
+
+    private static final String ADT_A04 = "MSH|^~\\&|CR|CR|openhim|openhim|20141104174451||ADT^A04^ADT_A01|1|P|2.5\r"
+            + "EVN|A04|20141104174451\r"
+            + "PID|||1234^^^test-auth&1.2.3&ISO~ecid1^^^ECID&ECID&ISO||Doe^John\r"
+            + "PV1||O\r";
+
+    private static final String ADT_A40 = "MSH|^~\\&|CR|CR|openhim|openhim|20141104174451||ADT^A40^ADT_A39|2|P|2.5\r"
+            + "EVN|A40|20141104174451\r"
+            + "PID|||5678^^^test-auth&1.2.3&ISO~ecid2^^^ECID&ECID&ISO||Doe^John\r"
+            + "MRG|ecid1^^^ECID&ECID&ISO\r";
+
+    private static final String ADT_A40_LOCAL = "MSH|^~\\&|CR|CR|openhim|openhim|20141104174451||ADT^A40^ADT_A39|3|P|2.5\r"
+            + "EVN|A40|20141104174451\r"
+            + "PID|||5678^^^test-auth&1.2.3&ISO~ecid2^^^ECID&ECID&ISO||Doe^John\r"
+            + "MRG|1234^^^&1.2.3&ISO\r";
+
+    static ActorSystem system;
+    MediatorConfig testConfig;
+    IdentifierCache cache;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        testConfig = new MediatorConfig();
+        testConfig.setName("feed-tests-" + UUID.randomUUID());
+        testConfig.setProperties("mediator-unit-test.properties");
+        testConfig.getProperties().setProperty("pix.cache.enabled", "true");
+        testConfig.getProperties().setProperty("client.requestedAssigningAuthority", "ECID");
+        testConfig.getProperties().setProperty("client.requestedAssigningAuthorityId", "ECID");
+        cache = PIXRequestActor.getPatientIdCache(testConfig);
+        cache.clear();
+    }
+
+    @After
+    public void tearDown() {
+        cache.clear();
+        PatientIdentifierTable.getInstance(testConfig).clear();
+    }
+
+    private static String key(String id) {
+        return PIXRequestActor.buildCacheKey(
+                new Identifier(id, new AssigningAuthority(null, "1.2.3", "ISO")), new AssigningAuthority("ECID", "ECID")
+        );
+    }
+
+    @Test
+    public void testA04_shouldPopulateCache() {
+        TestActorRef<PatientIdentityFeedActor> actor = TestActorRef.create(system, Props.create(PatientIdentityFeedActor.class, testConfig));
+        actor.tell(new PatientIdentityFeedActor.PatientIdentityFeed(ADT_A04), null);
+
+        Identifier cached = cache.get(key("1234"));
+        assertNotNull(cached);
+        assertEquals("ecid1", cached.getIdentifier());
+        assertEquals("ECID", cached.getAssigningAuthority().getAssigningAuthorityId());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testA40_shouldReplaceMergedIdentifiers() {
+        TestActorRef<PatientIdentityFeedActor> actor = TestActorRef.create(system, Props.create(PatientIdentityFeedActor.class, testConfig));
+        actor.tell(new PatientIdentityFeedActor.PatientIdentityFeed(ADT_A04), null);
+        actor.tell(new PatientIdentityFeedActor.PatientIdentityFeed(ADT_A40), null);
+
+        assertNull(cache.get(key("1234")));
+        assertEquals("ecid2", cache.get(key("5678")).getIdentifier());
+    }
+
+    @Test
+    public void testA40_shouldMatchMergedIdentifiersOfADifferentShape() {
+        //cached with a namespace and type code, merged with the authority id only
+        cache.put(key("1234"), new Identifier("ecid1", new AssigningAuthority("ECID", "ECID", "ISO"), "PI"));
+        cache.put(key("9999"), new Identifier("ecid3", new AssigningAuthority("ECID", "ECID", "ISO"), "PI"));
+
+        String a40 = ADT_A40.replace("MRG|ecid1^^^ECID&ECID&ISO", "MRG|ecid1^^^&ECID");
+        TestActorRef<PatientIdentityFeedActor> actor = TestActorRef.create(system, Props.create(PatientIdentityFeedActor.class, testConfig));
+        actor.tell(new PatientIdentityFeedActor.PatientIdentityFeed(a40), null);
+
+        assertNull(cache.get(key("1234")));
+        assertEquals("ecid3", cache.get(key("9999")).getIdentifier());
+    }
+
+    @Test
+    public void testA40_shouldRemoveMergedIdentifiersFromTable() throws Exception {
+        PatientIdentifierTable table = PatientIdentifierTable.getInstance(testConfig);
+        table.load(new StringReader("1234,1.2.3,ecid1\n4321,1.2.4,ecid1\n9999,1.2.3,ecid3\n"));
+
+        TestActorRef<PatientIdentityFeedActor> actor = TestActorRef.create(system, Props.create(PatientIdentityFeedActor.class, testConfig));
+        actor.tell(new PatientIdentityFeedActor.PatientIdentityFeed(ADT_A40), null);
+
+        assertNull(table.lookup("1234", "1.2.3"));
+        assertNull(table.lookup("4321", "1.2.4"));
+        assertEquals("ecid3", table.lookup("9999", "1.2.3"));
+    }
+
+    @Test
+    public void testA40_shouldRemoveMergedLocalIdentifiersFromTable() throws Exception {
+        PatientIdentifierTable table = PatientIdentifierTable.getInstance(testConfig);
+        table.load(new StringReader("1234,1.2.3,ecid1\n9999,1.2.3,ecid1\n"));
+        cache.put(key("1234"), new Identifier("ecid1", new AssigningAuthority("ECID", "ECID")));
+
+        TestActorRef<PatientIdentityFeedActor> actor = TestActorRef.create(system, Props.create(PatientIdentityFeedActor.class, testConfig));
+        actor.tell(new PatientIdentityFeedActor.PatientIdentityFeed(ADT_A40_LOCAL), null);
+
+        assertNull(table.lookup("1234", "1.2.3"));
+        assertNull(cache.get(key("1234")));
+        assertEquals("ecid1", table.lookup("9999", "1.2.3"));
+        assertEquals("ecid2", cache.get(key("5678")).getIdentifier());
+    }
+}
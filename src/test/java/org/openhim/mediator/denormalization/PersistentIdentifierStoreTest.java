@@ -0,0 +1,166 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class PersistentIdentifierStoreTest {
+
+    private File file;
+
+    private static Identifier id(String id) {
+        return new Identifier(id, new AssigningAuthority("ECID", "ECID", "ISO"));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("identifiers", ".store");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testGetAndPut() throws Exception {
+        PersistentIdentifierStore store = new PersistentIdentifierStore(file, 1024 * 1024);
+        assertNull(store.get("a"));
+
+        store.put("a", id("1"), 60000);
+        store.flush();
+
+        assertEquals(id("1"), store.get("a"));
+        store.close();
+    }
+
+    @Test
+    public void testIdentifiersSurviveRestart() throws Exception {
+        PersistentIdentifierStore store = new PersistentIdentifierStore(file, 1024 * 1024);
+        store.put("a", id("1"), 60000);
+        store.put("b", id("2"), 60000);
+        store.put("a", id("3"), 60000);
+        store.put("expired", id("4"), 1);
+        store.remove("b");
+        store.close();
+
+        Thread.sleep(10);
+        store = new PersistentIdentifierStore(file, 1024 * 1024);
+        assertEquals(1, store.size());
+        assertEquals(id("3"), store.get("a"));
+        assertNull(store.get("b"));
+        assertNull(store.get("expired"));
+        store.close();
+    }
+
+    @Test
+    public void testReadsAfterWrites_shouldOnlyRemapWhenTheFileGrows() throws Exception {
+        PersistentIdentifierStore store = new PersistentIdentifierStore(file, 1024 * 1024);
+        int remaps = store.getRemapCount();
+
+        for (int i=0; i<100; i++) {
+            store.put("key" + i, id(Integer.toString(i)), 60000);
+            store.flush();
+            assertEquals(id(Integer.toString(i)), store.get("key" + i));
+        }
+
+        //a single allocation holds all the records
+        assertEquals(remaps + 1, store.getRemapCount());
+        store.close();
+    }
+
+    @Test
+    public void testTruncatedRecord_shouldBeIgnoredAndOverwritten() throws Exception {
+        PersistentIdentifierStore store = new PersistentIdentifierStore(file, 1024 * 1024);
+        store.put("a", id("1"), 60000);
+        store.close();
+
+        //a record cut off by a crash
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long end = raf.length();
+        for (int i=0; i<=raf.length() - 4; i++) {
+            raf.seek(i);
+            if (raf.readInt()==0) {
+                end = i;
+                break;
+            }
+        }
+        raf.seek(end);
+        raf.writeInt(10);
+        raf.write("trunc".getBytes("UTF-8"));
+        raf.setLength(end + 9);
+        raf.close();
+
+        store = new PersistentIdentifierStore(file, 1024 * 1024);
+        assertEquals(1, store.size());
+        assertEquals(id("1"), store.get("a"));
+        store.put("b", id("2"), 60000);
+        store.close();
+
+        store = new PersistentIdentifierStore(file, 1024 * 1024);
+        assertEquals(2, store.size());
+        assertEquals(id("1"), store.get("a"));
+        assertEquals(id("2"), store.get("b"));
+        store.close();
+    }
+
+    @Test
+    public void testCompactionBoundsFileSize() throws Exception {
+        long maxSize = 4096;
+        PersistentIdentifierStore store = new PersistentIdentifierStore(file, maxSize);
+        for (int i=0; i<1000; i++) {
+            store.put("key" + i, id(Integer.toString(i)), 60000);
+        }
+        store.flush();
+
+        assertTrue(store.getFileSize() <= maxSize);
+        assertEquals(id("999"), store.get("key999"));
+        assertNull(store.get("key0"));
+        store.close();
+
+        store = new PersistentIdentifierStore(file, maxSize);
+        assertEquals(id("999"), store.get("key999"));
+        store.close();
+    }
+
+    private static MediatorConfig config(File file) throws Exception {
+        MediatorConfig config = new MediatorConfig();
+        config.setProperties("mediator-unit-test.properties");
+        config.getProperties().setProperty("identifiers.store.path", file.getAbsolutePath());
+        return config;
+    }
+
+    @Test
+    public void testGetInstance_shouldBeKeyedByPath() throws Exception {
+        File other = File.createTempFile("identifiers", ".store");
+        try {
+            PersistentIdentifierStore store = PersistentIdentifierStore.getInstance(config(file));
+            assertNotNull(store);
+            assertSame(store, PersistentIdentifierStore.getInstance(config(file)));
+
+            PersistentIdentifierStore otherStore = PersistentIdentifierStore.getInstance(config(other));
+            assertNotSame(store, otherStore);
+
+            store.put("a", id("1"), 60000);
+            store.flush();
+            assertNull(otherStore.get("a"));
+        } finally {
+            PersistentIdentifierStore.closeInstances();
+            other.delete();
+        }
+    }
+}
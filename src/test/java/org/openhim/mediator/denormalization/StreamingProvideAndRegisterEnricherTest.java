@@ -0,0 +1,156 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
+import oasis.names.tc.ebxml_regrep.xsd.rim._3.ExtrinsicObjectType;
+import oasis.names.tc.ebxml_regrep.xsd.rim._3.RegistryPackageType;
+import oasis.names.tc.ebxml_regrep.xsd.rim._3.SlotType1;
+import org.apache.commons.io.IOUtils;
+import org.dcm4chee.xds2.common.XDSConstants;
+import org.dcm4chee.xds2.infoset.util.InfosetUtil;
+import org.junit.Before;
+import org.junit.Test;
+import org.openhim.mediator.normalization.ParseProvideAndRegisterRequestActor;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StreamingProvideAndRegisterEnricherTest {
+
+    private String pnr;
+
+    @Before
+    public void setUp() throws Exception {
+        InputStream in = getClass().getClassLoader().getResourceAsStream("pnr1.xml");
+        pnr = IOUtils.toString(in);
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        StreamingProvideAndRegisterEnricher.Metadata metadata = StreamingProvideAndRegisterEnricher.scan(pnr);
+
+        assertEquals(1, metadata.getExtrinsicObjects().size());
+        StreamingProvideAndRegisterEnricher.RegistryObject eo = metadata.getExtrinsicObjects().get(0);
+        assertEquals("Document01", eo.getId());
+        assertEquals("1111111111^^^&1.2.3&ISO", eo.getExternalIdentifier(XDSConstants.UUID_XDSDocumentEntry_patientId).getValue());
+
+        assertEquals(2, eo.getAuthors().size());
+        assertEquals(Collections.singletonList("pro111^Smitty^Gerald^^^^^^&1.2.3&ISO"), eo.getAuthors().get(0).getPerson().getValues());
+        assertEquals(Arrays.asList("Cleveland Clinic", "Another Hospital^^^^^&1.2.3.4.5.6.7.8.9.1789&ISO^^^^53"),
+                eo.getAuthors().get(1).getInstitution().getValues());
+
+        StreamingProvideAndRegisterEnricher.RegistryObject submissionSet = metadata.getSubmissionSet();
+        assertEquals("SubmissionSet01", submissionSet.getId());
+        assertEquals("76cc765a442f410^^^&1.3.6.1.4.1.21367.2005.3.7&ISO",
+                submissionSet.getExternalIdentifier(XDSConstants.UUID_XDSSubmissionSet_patientId).getValue());
+        assertEquals("2009.9.1.2456", submissionSet.getExternalIdentifier(XDSConstants.UUID_XDSSubmissionSet_uniqueId).getValue());
+    }
+
+    @Test
+    public void testScan_shouldLocateSubmitObjectsRequest() throws Exception {
+        StreamingProvideAndRegisterEnricher.Metadata metadata = StreamingProvideAndRegisterEnricher.scan(pnr);
+
+        String sor = metadata.getSubmitObjectsRequest(pnr);
+        assertTrue(sor.startsWith("<lcm:SubmitObjectsRequest "));
+        assertTrue(sor.endsWith("</lcm:SubmitObjectsRequest>"));
+    }
+
+    @Test
+    public void testScan_shouldNotReadDocuments() throws Exception {
+        //the malformed tail is never read
+        String truncated = pnr.substring(0, pnr.indexOf("<xdsb:Document ")) + "<xdsb:Document><<<";
+        assertEquals(1, StreamingProvideAndRegisterEnricher.scan(truncated).getExtrinsicObjects().size());
+    }
+
+    @Test(expected = XMLStreamException.class)
+    public void testScan_invalidRequest() throws Exception {
+        StreamingProvideAndRegisterEnricher.scan("<ProvideAndRegisterDocumentSetRequest><Document/></ProvideAndRegisterDocumentSetRequest>");
+    }
+
+    @Test
+    public void testRewrite_unchanged() throws Exception {
+        StreamingProvideAndRegisterEnricher.Metadata metadata = StreamingProvideAndRegisterEnricher.scan(pnr);
+        String result = StreamingProvideAndRegisterEnricher.rewrite(pnr, metadata);
+
+        ProvideAndRegisterDocumentSetRequestType original = ParseProvideAndRegisterRequestActor.parseRequest(pnr);
+        ProvideAndRegisterDocumentSetRequestType rewritten = ParseProvideAndRegisterRequestActor.parseRequest(result);
+        assertEquals(original.getSubmitObjectsRequest().getRegistryObjectList().getIdentifiable().size(),
+                rewritten.getSubmitObjectsRequest().getRegistryObjectList().getIdentifiable().size());
+        assertTrue(result.endsWith(pnr.substring(pnr.indexOf("</lcm:SubmitObjectsRequest>"))));
+    }
+
+    @Test
+    public void testRewrite() throws Exception {
+        StreamingProvideAndRegisterEnricher.Metadata metadata = StreamingProvideAndRegisterEnricher.scan(pnr);
+
+        StreamingProvideAndRegisterEnricher.RegistryObject eo = metadata.getExtrinsicObjects().get(0);
+        eo.getExternalIdentifier(XDSConstants.UUID_XDSDocumentEntry_patientId).setValue("ECID1^^^&ECID&ISO");
+        metadata.getSubmissionSet().getExternalIdentifier(XDSConstants.UUID_XDSSubmissionSet_patientId).setValue("ECID1^^^&ECID&ISO");
+        eo.getAuthors().get(0).getPerson().getValues().clear();
+        eo.getAuthors().get(0).getPerson().getValues().add("EPID1^^^^^^^^&EPID&ISO");
+        eo.getAuthors().get(1).getInstitution().getValues().clear();
+        eo.getAuthors().get(1).getInstitution().getValues().add("Another Hospital^^^^^&ELID&ISO^^^^ELID1");
+
+        String result = StreamingProvideAndRegisterEnricher.rewrite(pnr, metadata);
+        ProvideAndRegisterDocumentSetRequestType rewritten = ParseProvideAndRegisterRequestActor.parseRequest(result);
+
+        RegistryPackageType regPac = InfosetUtil.getRegistryPackage(rewritten.getSubmitObjectsRequest(), XDSConstants.UUID_XDSSubmissionSet);
+        assertEquals("ECID1^^^&ECID&ISO", InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_patientId, regPac));
+        assertEquals("2009.9.1.2456", InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_uniqueId, regPac));
+
+        ExtrinsicObjectType rewrittenEO = InfosetUtil.getExtrinsicObjects(rewritten.getSubmitObjectsRequest()).get(0);
+        assertEquals("ECID1^^^&ECID&ISO", InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_patientId, rewrittenEO));
+
+        Map<String, SlotType1> author1 = InfosetUtil.getSlotsFromRegistryObject(rewrittenEO.getClassification().get(0));
+        assertEquals(Collections.singletonList("EPID1^^^^^^^^&EPID&ISO"), author1.get(XDSConstants.SLOT_NAME_AUTHOR_PERSON).getValueList().getValue());
+        assertEquals(Collections.singletonList("Some Hospital^^^^^&1.2.3.4.5.6.7.8.9.1789&ISO^^^^45"),
+                author1.get(XDSConstants.SLOT_NAME_AUTHOR_INSTITUTION).getValueList().getValue());
+        Map<String, SlotType1> author2 = InfosetUtil.getSlotsFromRegistryObject(rewrittenEO.getClassification().get(1));
+        assertEquals(Collections.singletonList("Another Hospital^^^^^&ELID&ISO^^^^ELID1"),
+                author2.get(XDSConstants.SLOT_NAME_AUTHOR_INSTITUTION).getValueList().getValue());
+
+        assertEquals(1, rewritten.getDocument().size());
+        assertEquals("Document01", rewritten.getDocument().get(0).getId());
+
+        //offsets now refer to the rewritten request
+        assertTrue(metadata.getSubmitObjectsRequest(result).endsWith("</lcm:SubmitObjectsRequest>"));
+    }
+
+    @Test
+    public void testRewrite_shouldHandleNamespacesDeclaredOnAncestors() throws Exception {
+        String soap = "<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\" xmlns:lcm=\"urn:oasis:names:tc:ebxml-regrep:xsd:lcm:3.0\"" +
+                " xmlns:rim=\"urn:oasis:names:tc:ebxml-regrep:xsd:rim:3.0\"><s:Body>" +
+                "<ProvideAndRegisterDocumentSetRequest xmlns=\"urn:ihe:iti:xds-b:2007\"><lcm:SubmitObjectsRequest><rim:RegistryObjectList>" +
+                "<rim:RegistryPackage id=\"ss\"><rim:ExternalIdentifier identificationScheme=\"" + XDSConstants.UUID_XDSSubmissionSet_patientId +
+                "\" value=\"1^^^&amp;1.2&amp;ISO\"/></rim:RegistryPackage>" +
+                "</rim:RegistryObjectList></lcm:SubmitObjectsRequest><Document id=\"d\">dGVzdA==</Document>" +
+                "</ProvideAndRegisterDocumentSetRequest></s:Body></s:Envelope>";
+
+        StreamingProvideAndRegisterEnricher.Metadata metadata = StreamingProvideAndRegisterEnricher.scan(soap);
+        metadata.getSubmissionSet().getExternalIdentifier(XDSConstants.UUID_XDSSubmissionSet_patientId).setValue("2^^^&3.4&ISO");
+        String result = StreamingProvideAndRegisterEnricher.rewrite(soap, metadata);
+
+        //everything outside the SubmitObjectsRequest is copied as is
+        assertTrue(result.startsWith(soap.substring(0, soap.indexOf("<lcm:SubmitObjectsRequest>"))));
+        assertTrue(result.endsWith(soap.substring(soap.indexOf("</lcm:SubmitObjectsRequest>"))));
+        assertTrue(result.contains("value=\"2^^^&amp;3.4&amp;ISO\""));
+        assertTrue(metadata.getSubmitObjectsRequest(result).endsWith("</lcm:SubmitObjectsRequest>"));
+        assertEquals("test", StreamingProvideAndRegisterEnricher.readFirstDocument(result));
+    }
+
+    @Test
+    public void testReadFirstDocument() throws Exception {
+        assertEquals("My test document", StreamingProvideAndRegisterEnricher.readFirstDocument(pnr));
+        assertNull(StreamingProvideAndRegisterEnricher.readFirstDocument("<ProvideAndRegisterDocumentSetRequest/>"));
+    }
+}
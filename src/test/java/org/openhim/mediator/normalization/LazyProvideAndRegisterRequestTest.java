@@ -0,0 +1,85 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.normalization;
+
+import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
+import oasis.names.tc.ebxml_regrep.xsd.rim._3.ExtrinsicObjectType;
+import oasis.names.tc.ebxml_regrep.xsd.rim._3.RegistryPackageType;
+import org.apache.commons.io.IOUtils;
+import org.dcm4chee.xds2.common.XDSConstants;
+import org.dcm4chee.xds2.infoset.util.InfosetUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.bind.JAXBException;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class LazyProvideAndRegisterRequestTest {
+
+    private String pnr;
+
+    @Before
+    public void setUp() throws Exception {
+        InputStream in = getClass().getClassLoader().getResourceAsStream("pnr1.xml");
+        pnr = IOUtils.toString(in);
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        LazyProvideAndRegisterRequest request = LazyProvideAndRegisterRequest.parse(pnr);
+
+        assertEquals(1, InfosetUtil.getExtrinsicObjects(request.getSubmitObjectsRequest()).size());
+        RegistryPackageType regPac = InfosetUtil.getRegistryPackage(request.getSubmitObjectsRequest(), XDSConstants.UUID_XDSSubmissionSet);
+        assertEquals("2009.9.1.2456", InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_uniqueId, regPac));
+
+        assertEquals(1, request.getDocuments().size());
+        LazyProvideAndRegisterRequest.DocumentHandle document = request.getDocuments().get(0);
+        assertEquals("Document01", document.getId());
+        assertEquals("TXkgdGVzdCBkb2N1bWVudA==", document.getEncodedContent());
+        assertEquals("My test document", new String(document.getContent(), "UTF-8"));
+    }
+
+    @Test
+    public void testParse_shouldHandleDocumentsWithoutWhitespaceOrContent() throws Exception {
+        String msg = "<ProvideAndRegisterDocumentSetRequest xmlns=\"urn:ihe:iti:xds-b:2007\">" +
+                "<lcm:SubmitObjectsRequest xmlns:lcm=\"urn:oasis:names:tc:ebxml-regrep:xsd:lcm:3.0\"/>" +
+                "<Document id=\"a\">dGVzdA==</Document><Document id='b&gt;'/><Document id=\"c\">" +
+                "</Document></ProvideAndRegisterDocumentSetRequest>";
+        LazyProvideAndRegisterRequest request = LazyProvideAndRegisterRequest.parse(msg);
+
+        assertEquals(3, request.getDocuments().size());
+        assertEquals("test", new String(request.getDocuments().get(0).getContent(), "UTF-8"));
+        assertEquals("b>", request.getDocuments().get(1).getId());
+        assertEquals(0, request.getDocuments().get(1).getEncodedLength());
+        assertEquals(0, request.getDocuments().get(2).getEncodedLength());
+    }
+
+    @Test(expected = JAXBException.class)
+    public void testParse_invalidRequest() throws Exception {
+        LazyProvideAndRegisterRequest.parse("<ProvideAndRegisterDocumentSetRequest><Document/></ProvideAndRegisterDocumentSetRequest>");
+    }
+
+    @Test
+    public void testMarshal() throws Exception {
+        LazyProvideAndRegisterRequest request = LazyProvideAndRegisterRequest.parse(pnr);
+        ExtrinsicObjectType eo = InfosetUtil.getExtrinsicObjects(request.getSubmitObjectsRequest()).get(0);
+        InfosetUtil.setExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_patientId, "ECID1^^^&ECID&ISO", eo);
+
+        String result = request.marshal().toString();
+
+        //the documents are copied as is
+        assertTrue(result.endsWith(pnr.substring(pnr.indexOf("</lcm:SubmitObjectsRequest>") + "</lcm:SubmitObjectsRequest>".length())));
+
+        ProvideAndRegisterDocumentSetRequestType parsed = ParseProvideAndRegisterRequestActor.parseRequest(result);
+        ExtrinsicObjectType parsedEO = InfosetUtil.getExtrinsicObjects(parsed.getSubmitObjectsRequest()).get(0);
+        assertEquals("ECID1^^^&ECID&ISO", InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_patientId, parsedEO));
+        assertEquals(1, parsed.getDocument().size());
+        assertEquals("Document01", parsed.getDocument().get(0).getId());
+    }
+}
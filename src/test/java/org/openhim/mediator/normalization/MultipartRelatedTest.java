@@ -0,0 +1,179 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.normalization;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.openhim.mediator.exceptions.MimeParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MultipartRelatedTest {
+
+    private static final String CONTENT_TYPE = "multipart/related; boundary=\"MIMEBoundary\"; type=\"application/xop+xml\"";
+
+    private static final String MESSAGE = "preamble\r\n" +
+            "--MIMEBoundary\r\n" +
+            "Content-Type: application/xop+xml; charset=UTF-8;\r\n" +
+            "  type=\"application/soap+xml\"\r\n" +
+            "Content-ID: <0.soap@example.org>\r\n" +
+            "\r\n" +
+            "<soap/>\r\n" +
+            "--MIMEBoundary\r\n" +
+            "Content-Type: application/octet-stream\r\n" +
+            "Content-Transfer-Encoding: binary\r\n" +
+            "\r\n" +
+            "ATTACHMENT\r\n" +
+            "--MIMEBoundary--\r\n";
+
+    private static byte[] withBinaryAttachment(byte[] attachment) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int i = MESSAGE.indexOf("ATTACHMENT");
+        out.write(MESSAGE.substring(0, i).getBytes(StandardCharsets.ISO_8859_1));
+        out.write(attachment);
+        out.write(MESSAGE.substring(i + "ATTACHMENT".length()).getBytes(StandardCharsets.ISO_8859_1));
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        MultipartRelated mime = MultipartRelated.parse(MESSAGE.getBytes(StandardCharsets.UTF_8), CONTENT_TYPE);
+
+        assertEquals(2, mime.getParts().size());
+        MultipartRelated.Part soap = mime.findPart("application/soap+xml");
+        assertSame(mime.getParts().get(0), soap);
+        assertEquals("<0.soap@example.org>", soap.getHeader("content-id"));
+        assertEquals("<soap/>", soap.getBodyAsString());
+        assertEquals("ATTACHMENT", mime.getParts().get(1).getBodyAsString());
+    }
+
+    @Test
+    public void testParse_shouldUnfoldHeaders() throws Exception {
+        MultipartRelated mime = MultipartRelated.parse(MESSAGE.getBytes(StandardCharsets.UTF_8), CONTENT_TYPE);
+        assertEquals("application/xop+xml; charset=UTF-8; type=\"application/soap+xml\"", mime.getParts().get(0).getContentType());
+    }
+
+    @Test
+    public void testParse_shouldHandleLFLineEndings() throws Exception {
+        byte[] msg = MESSAGE.replace("\r\n", "\n").getBytes(StandardCharsets.UTF_8);
+        MultipartRelated mime = MultipartRelated.parse(msg, CONTENT_TYPE);
+
+        assertEquals(2, mime.getParts().size());
+        assertEquals("<soap/>", mime.getParts().get(0).getBodyAsString());
+        assertEquals("ATTACHMENT", mime.getParts().get(1).getBodyAsString());
+    }
+
+    @Test
+    public void testParse_shouldDecodeTransferEncoding() throws Exception {
+        String msg = MESSAGE.replace("binary", "base64").replace("ATTACHMENT", "dGVzdA==");
+        MultipartRelated mime = MultipartRelated.parse(msg.getBytes(StandardCharsets.UTF_8), CONTENT_TYPE);
+        assertEquals("test", IOUtils.toString(mime.getParts().get(1).getBody(), "UTF-8"));
+    }
+
+    @Test
+    public void testToByteArray_shouldOnlyReplaceSOAPPart() throws Exception {
+        byte[] attachment = new byte[256];
+        for (int i=0; i<attachment.length; i++) {
+            attachment[i] = (byte) i;
+        }
+        byte[] msg = withBinaryAttachment(attachment);
+
+        MultipartRelated mime = MultipartRelated.parse(msg, CONTENT_TYPE);
+        assertArrayEquals(attachment, IOUtils.toByteArray(mime.getParts().get(1).getRawBody()));
+
+        byte[] result = mime.toByteArray(mime.findPart("application/soap+xml"), "<enriched>\u00e9</enriched>");
+
+        String soapMessage = "<enriched>\u00e9</enriched>";
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        int soapStart = MESSAGE.indexOf("<soap/>");
+        expected.write(Arrays.copyOfRange(msg, 0, soapStart));
+        expected.write(soapMessage.getBytes(StandardCharsets.UTF_8));
+        expected.write(Arrays.copyOfRange(msg, soapStart + "<soap/>".length(), msg.length));
+        assertArrayEquals(expected.toByteArray(), result);
+    }
+
+    @Test
+    public void testParse_shouldFindMissingBoundaryParameter() throws Exception {
+        MultipartRelated mime = MultipartRelated.parse(MESSAGE.getBytes(StandardCharsets.UTF_8), "multipart/related");
+        assertEquals(2, mime.getParts().size());
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        byte[] attachment = new byte[4096];
+        for (int i=0; i<attachment.length; i++) {
+            attachment[i] = (byte) i;
+        }
+        byte[] msg = withBinaryAttachment(attachment);
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+
+        MultipartRelated mime = MultipartRelated.parse(msg, CONTENT_TYPE);
+        MultipartRelated.Part soap = mime.findPart("application/soap+xml");
+        byte[] expected = mime.toByteArray(soap, "<enriched/>");
+
+        try {
+            assertEquals(1, mime.spill(1024, dir));
+            assertFalse(soap.isSpilled());
+            assertTrue(mime.getParts().get(1).isSpilled());
+
+            //the parsed buffer is no longer used
+            Arrays.fill(msg, (byte) 0);
+
+            assertArrayEquals(attachment, IOUtils.toByteArray(mime.getParts().get(1).getRawBody()));
+            assertEquals("<soap/>", soap.getBodyAsString());
+            assertArrayEquals(expected, mime.toByteArray(soap, "<enriched/>"));
+        } finally {
+            mime.close();
+        }
+    }
+
+    @Test
+    public void testClose_shouldDeleteSpilledParts() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "mtom-spill-test-" + System.nanoTime());
+        assertTrue(dir.mkdir());
+
+        try {
+            MultipartRelated mime = MultipartRelated.parse(MESSAGE.getBytes(StandardCharsets.UTF_8), CONTENT_TYPE);
+            assertEquals(2, mime.spill(0, dir));
+            assertEquals(2, dir.list().length);
+
+            mime.close();
+            assertEquals(0, dir.list().length);
+
+            //the spilled parts have been unmapped
+            try {
+                mime.getParts().get(0).getRawBody();
+                fail("Expected the closed part to be unreadable");
+            } catch (IllegalStateException ex) {
+                //expected
+            }
+        } finally {
+            dir.delete();
+        }
+    }
+
+    @Test(expected = MimeParseException.class)
+    public void testParse_noBoundary() throws Exception {
+        MultipartRelated.parse("no delimiters\r\n".getBytes(StandardCharsets.UTF_8), "multipart/related");
+    }
+
+    @Test(expected = MimeParseException.class)
+    public void testParse_noParts() throws Exception {
+        MultipartRelated.parse("just some text".getBytes(StandardCharsets.UTF_8), CONTENT_TYPE);
+    }
+
+    @Test(expected = MimeParseException.class)
+    public void testParse_truncated() throws Exception {
+        String msg = MESSAGE.substring(0, MESSAGE.indexOf("ATTACHMENT"));
+        MultipartRelated.parse(msg.getBytes(StandardCharsets.UTF_8), CONTENT_TYPE);
+    }
+}
@@ -15,6 +15,7 @@ import org.apache.commons.io.IOUtils;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.SimpleMediatorRequest;
 import org.openhim.mediator.engine.messages.SimpleMediatorResponse;
 import scala.concurrent.duration.Duration;
@@ -54,4 +55,26 @@ public class ParseProvideAndRegisterRequestActorTest {
             assertTrue(SimpleMediatorResponse.isInstanceOf(ProvideAndRegisterDocumentSetRequestType.class, result));
         }};
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testLazyDocuments() throws Exception {
+        InputStream testPnRIn = getClass().getClassLoader().getResourceAsStream("pnr1.xml");
+        final String testPnR = IOUtils.toString(testPnRIn);
+
+        final MediatorConfig config = new MediatorConfig();
+        config.setProperties("mediator-unit-test.properties");
+        config.getProperties().setProperty("pnr.sendParseOrchestration", "false");
+        config.getProperties().setProperty("pnr.parse.lazyDocuments", "true");
+
+        new JavaTestKit(system) {{
+            ActorRef actor = system.actorOf(Props.create(ParseProvideAndRegisterRequestActor.class, config));
+
+            SimpleMediatorRequest<String> testMsg = new SimpleMediatorRequest<String>(getRef(), getRef(), testPnR);
+            actor.tell(testMsg, getRef());
+
+            SimpleMediatorResponse result = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), SimpleMediatorResponse.class);
+            assertTrue(SimpleMediatorResponse.isInstanceOf(LazyProvideAndRegisterRequest.class, result));
+            assertEquals(1, ((LazyProvideAndRegisterRequest) result.getResponseObject()).getDocuments().size());
+        }};
+    }
+}
@@ -70,4 +70,21 @@ public class ParseRegistryStoredQueryActorTest {
             assertEquals(new Integer(400), result.getResponseStatus());
         }};
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testParseMalformedAdhocQuery() throws Exception {
+        final String testAdhocRequest = "<Envelope><Body><AdhocQueryRequest><AdhocQuery id=\"q1\">" +
+                "<Slot name=\"$XDSDocumentEntryPatientId\"><ValueList><Value>'1^^^&1.2&ISO'</Value></ValueList></Slot>" +
+                "</AdhocQuery></AdhocQueryRequest></Body></Envelope>";
+
+        new JavaTestKit(system) {{
+            ActorRef actor = system.actorOf(Props.create(ParseRegistryStoredQueryActor.class));
+
+            actor.tell(new SimpleMediatorRequest<String>(getRef(), getRef(), testAdhocRequest), getRef());
+
+            FinishRequest result = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), FinishRequest.class);
+            assertEquals(new Integer(400), result.getResponseStatus());
+            assertTrue(result.getResponse().startsWith("Failed to parse registry stored query"));
+        }};
+    }
+}
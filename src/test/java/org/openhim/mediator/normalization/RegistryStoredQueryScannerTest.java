@@ -0,0 +1,74 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.normalization;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class RegistryStoredQueryScannerTest {
+
+    @Test
+    public void testScan_adhocQuery() throws Exception {
+        InputStream in = getClass().getClassLoader().getResourceAsStream("adhocQueryRequest_wSOAP.xml");
+        RegistryStoredQueryScanner.Result result = RegistryStoredQueryScanner.scan(IOUtils.toString(in));
+
+        assertTrue(result.isAdhocQuery());
+        assertEquals("urn:uuid:44657c95-9a4a-420e-bb62-93a773e8a5f1", result.getMessageID());
+        assertEquals("urn:uuid:14d4debf-8f97-4251-9a74-a90016b0af0d", result.getQueryID());
+        assertEquals("1234567890^^^TestID&1.2.3&ISO", result.getPatientID());
+    }
+
+    @Test
+    public void testScan_shouldStopOnceFieldsAreKnown() throws Exception {
+        //the malformed tail is never read
+        String msg = "<Envelope><Header><MessageID>1</MessageID></Header><Body><AdhocQueryRequest>" +
+                "<AdhocQuery id=\"q1\"><Slot name=\"$XDSDocumentEntryPatientId\"><ValueList><Value>'1^^^&amp;1.2&amp;ISO'</Value>" +
+                "</ValueList></Slot><Slot name=\"broken\"></AdhocQuery><<<";
+        RegistryStoredQueryScanner.Result result = RegistryStoredQueryScanner.scan(msg);
+
+        assertTrue(result.isAdhocQuery());
+        assertEquals("1", result.getMessageID());
+        assertEquals("q1", result.getQueryID());
+        assertEquals("'1^^^&1.2&ISO'", result.getPatientID());
+    }
+
+    @Test
+    public void testScan_notAdhocQuery() throws Exception {
+        InputStream in = getClass().getClassLoader().getResourceAsStream("pnr1.xml");
+        assertFalse(RegistryStoredQueryScanner.scan(IOUtils.toString(in)).isAdhocQuery());
+        assertFalse(RegistryStoredQueryScanner.scan("random stuff").isAdhocQuery());
+        assertFalse(RegistryStoredQueryScanner.scan("<Envelope><Body><SubmitObjectsRequest/></Body></Envelope>").isAdhocQuery());
+    }
+
+    @Test
+    public void testScan_shouldReadTextOfNestedElements() throws Exception {
+        String msg = "<Envelope><Header><MessageID>urn:<b>1</b></MessageID></Header><Body><AdhocQueryRequest>" +
+                "<AdhocQuery id=\"q1\"><Slot name=\"$XDSDocumentEntryPatientId\"><ValueList><Value>'1^^^&amp;1.2&amp;ISO'</Value>" +
+                "</ValueList></Slot></AdhocQuery></AdhocQueryRequest></Body></Envelope>";
+        RegistryStoredQueryScanner.Result result = RegistryStoredQueryScanner.scan(msg);
+
+        assertTrue(result.isAdhocQuery());
+        assertEquals("urn:1", result.getMessageID());
+        assertNull(result.getParseError());
+    }
+
+    @Test
+    public void testScan_shouldReportParseErrorsInAdhocQuery() throws Exception {
+        String msg = "<Envelope><Header><MessageID>1</MessageID></Header><Body><AdhocQueryRequest>" +
+                "<AdhocQuery id=\"q1\"><Slot name=\"$XDSDocumentEntryPatientId\"><ValueList><Value>'1^^^&1.2&ISO'</Value>" +
+                "</ValueList></Slot></AdhocQuery></AdhocQueryRequest></Body></Envelope>";
+        RegistryStoredQueryScanner.Result result = RegistryStoredQueryScanner.scan(msg);
+
+        assertTrue(result.isAdhocQuery());
+        assertNotNull(result.getParseError());
+        assertNull(result.getPatientID());
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.normalization;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SOAPActionRouterTest {
+
+    @Test
+    public void testGetActionFromHeaders_contentType() throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("content-type", "multipart/related; type=\"application/xop+xml\"; " +
+                "start-info=\"application/soap+xml\"; action=\"urn:ihe:iti:2007:RetrieveDocumentSet\"");
+        assertEquals(SOAPActionRouter.ACTION_RETRIEVE_DOCUMENT_SET, SOAPActionRouter.getActionFromHeaders(headers));
+
+        headers.put("content-type", "application/soap+xml;charset=UTF-8;action=urn:ihe:iti:2007:RegisterDocumentSet-b");
+        assertEquals(SOAPActionRouter.ACTION_REGISTER_DOCUMENT_SET_B, SOAPActionRouter.getActionFromHeaders(headers));
+    }
+
+    @Test
+    public void testGetActionFromHeaders_soapAction() throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "text/xml");
+        headers.put("SOAPAction", "\"urn:ihe:iti:2007:RegistryStoredQuery\"");
+        assertEquals(SOAPActionRouter.ACTION_REGISTRY_STORED_QUERY, SOAPActionRouter.getActionFromHeaders(headers));
+
+        headers.put("SOAPAction", "\"\"");
+        assertNull(SOAPActionRouter.getActionFromHeaders(headers));
+        assertNull(SOAPActionRouter.getActionFromHeaders(Collections.<String, String>emptyMap()));
+    }
+
+    @Test
+    public void testDetermineAction_prefix() throws Exception {
+        String msg = "<Envelope><Header><Action> urn:ihe:iti:2007:RegisterDocumentSet-b </Action></Header><Body>";
+        assertEquals(SOAPActionRouter.ACTION_REGISTER_DOCUMENT_SET_B,
+                SOAPActionRouter.determineAction(Collections.<String, String>emptyMap(), msg));
+
+        //beyond the scan limit
+        StringBuilder padded = new StringBuilder("<Envelope><Header><Padding>");
+        for (int i=0; i<SOAPActionRouter.PREFIX_SCAN_LIMIT; i++) {
+            padded.append('x');
+        }
+        padded.append("</Padding><Action>urn:ihe:iti:2007:RegisterDocumentSet-b</Action></Header><Body>");
+        assertNull(SOAPActionRouter.determineAction(Collections.<String, String>emptyMap(), padded.toString()));
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.normalization;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class SOAPEnvelopeSnifferTest {
+
+    private static final String TEST_MSG_START = "<?xml version=\"1.0\"?><!-- test --><s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\" " +
+            "xmlns:a=\"http://www.w3.org/2005/08/addressing\"><s:Header><a:Action s:mustUnderstand=\"1\">urn:ihe:iti:2007:ProvideAndRegisterDocumentSet-b</a:Action>" +
+            "<a:MessageID>urn:uuid:1&amp;2</a:MessageID><a:To attr=\"a>b\"/></s:Header><s:Body >";
+    private static final String TEST_MSG_BODY = "<test>a</s:Body></test>";
+    private static final String TEST_MSG_END = "</s:Body ></s:Envelope>";
+
+    @Test
+    public void testSniff() throws Exception {
+        SOAPEnvelopeSniffer envelope = SOAPEnvelopeSniffer.sniff(TEST_MSG_START + TEST_MSG_BODY + TEST_MSG_END);
+
+        assertEquals("urn:ihe:iti:2007:ProvideAndRegisterDocumentSet-b", envelope.getAction());
+        assertEquals("urn:uuid:1&2", envelope.getMessageID());
+        assertTrue(envelope.hasBody());
+        assertEquals(TEST_MSG_START.length(), envelope.getBodyStart());
+        assertEquals(TEST_MSG_BODY, envelope.getBody());
+        assertEquals(TEST_MSG_START + "<new/>" + TEST_MSG_END, envelope.replaceBody("<new/>"));
+    }
+
+    @Test
+    public void testSniff_pnr() throws Exception {
+        InputStream in = getClass().getClassLoader().getResourceAsStream("pnr1.xml");
+        String pnr = IOUtils.toString(in);
+        SOAPEnvelopeSniffer envelope = SOAPEnvelopeSniffer.sniff(pnr);
+
+        assertFalse(envelope.hasBody());
+        assertNull(envelope.getAction());
+    }
+
+    @Test
+    public void testSniff_noEnvelope() throws Exception {
+        assertFalse(SOAPEnvelopeSniffer.sniff("random stuff").hasBody());
+        assertFalse(SOAPEnvelopeSniffer.sniff("<Envelope><Body>unterminated").hasBody());
+        assertFalse(SOAPEnvelopeSniffer.sniff("<Envelope><Header><Action>a").hasBody());
+        assertFalse(SOAPEnvelopeSniffer.sniff("<Envelope><Body/></Envelope>").hasBody());
+    }
+}
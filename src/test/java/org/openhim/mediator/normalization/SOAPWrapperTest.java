@@ -19,9 +19,9 @@ public class SOAPWrapperTest {
     @Test
     public void testSOAPWrapper() throws Exception {
         SOAPWrapper wrapper = new SOAPWrapper(TEST_MSG_START + TEST_MSG_BODY + TEST_MSG_END);
-        assertEquals(TEST_MSG_START, wrapper.soapBegin);
-        assertEquals(TEST_MSG_BODY, wrapper.soapBody);
-        assertEquals(TEST_MSG_END, wrapper.soapEnd);
-        assertEquals(wrapper.getFullDocument(), TEST_MSG_START + TEST_MSG_BODY + TEST_MSG_END);
+        assertEquals(TEST_MSG_START, wrapper.soapBegin.toString());
+        assertEquals(TEST_MSG_BODY, wrapper.soapBody.toString());
+        assertEquals(TEST_MSG_END, wrapper.soapEnd.toString());
+        assertEquals(wrapper.getFullDocument().toString(), TEST_MSG_START + TEST_MSG_BODY + TEST_MSG_END);
     }
 }
\ No newline at end of file
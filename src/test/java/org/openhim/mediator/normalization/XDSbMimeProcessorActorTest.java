@@ -14,6 +14,7 @@ import org.apache.commons.io.IOUtils;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
 import scala.concurrent.duration.Duration;
 
 import java.io.InputStream;
@@ -92,4 +93,32 @@ public class XDSbMimeProcessorActorTest {
             assertEquals(testPnRModifiedMtom, result.getResponseObject().replaceAll("\r", ""));
         }};
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testEnrichedMimeMessage_withSpilledAttachments() throws Exception {
+        InputStream testPnRBasicMtomIn = getClass().getClassLoader().getResourceAsStream("PnRBasicMtom.xml");
+        final String testPnRBasicMtom = IOUtils.toString(testPnRBasicMtomIn);
+        InputStream testPnRModifiedMtomIn = getClass().getClassLoader().getResourceAsStream("PnRModifiedMtom.xml");
+        final String testPnRModifiedMtom = IOUtils.toString(testPnRModifiedMtomIn);
+
+        final MediatorConfig config = new MediatorConfig();
+        config.setProperties("mediator-unit-test.properties");
+        config.getProperties().setProperty("mtom.attachments.spillThreshold", "1");
+
+        new JavaTestKit(system) {{
+            ActorRef actor = system.actorOf(Props.create(XDSbMimeProcessorActor.class, config));
+
+            XDSbMimeProcessorActor.MimeMessage testMsg = new XDSbMimeProcessorActor.MimeMessage(getRef(), getRef(), testPnRBasicMtom, CONTENT_TYPE);
+            actor.tell(testMsg, getRef());
+            XDSbMimeProcessorActor.XDSbMimeProcessorResponse parsed = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), XDSbMimeProcessorActor.XDSbMimeProcessorResponse.class);
+            assertEquals("This is my document.\nIt is great!\n", parsed.getDocuments().get(0));
+
+            XDSbMimeProcessorActor.EnrichedMessage enrichedMessage = new XDSbMimeProcessorActor.EnrichedMessage(getRef(), getRef(), "My test");
+            actor.tell(enrichedMessage, getRef());
+
+            XDSbMimeProcessorActor.XDSbMimeProcessorResponse result = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), XDSbMimeProcessorActor.XDSbMimeProcessorResponse.class);
+            assertEquals(testPnRModifiedMtom, result.getResponseObject().replaceAll("\r", ""));
+            assertTrue(result.getDocuments().isEmpty());
+        }};
+    }
+}
@@ -14,6 +14,7 @@ import akka.testkit.JavaTestKit;
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.ExtrinsicObjectType;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.RegistryPackageType;
+import oasis.names.tc.ebxml_regrep.xsd.rim._3.SlotType1;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpStatus;
 import org.dcm4chee.xds2.common.XDSConstants;
@@ -27,6 +28,8 @@ import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.dummies.DummyResolveIdentifierActor;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import org.openhim.mediator.engine.testing.TestingUtils;
 import org.openhim.mediator.messages.*;
 import org.openhim.mediator.normalization.ParseProvideAndRegisterRequestActor;
 import scala.concurrent.duration.Duration;
@@ -34,7 +37,11 @@ import scala.concurrent.duration.FiniteDuration;
 
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
@@ -89,6 +96,19 @@ public class ProvideAndRegisterOrchestrationActorTest {
         }
     }
 
+    private static class AuditCollectorActor extends UntypedActor {
+        static final BlockingQueue<ATNAAudit> audits = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof ATNAAudit) {
+                audits.add((ATNAAudit) msg);
+            } else {
+                unhandled(msg);
+            }
+        }
+    }
+
     static ActorSystem system;
     MediatorConfig testConfig;
     ActorRef resolvePIDDummy;
@@ -277,6 +297,59 @@ public class ProvideAndRegisterOrchestrationActorTest {
         }};
     }
 
+    @Test
+    public void validateAndEnrichClient_shouldEnrichPNRUsingStreamingEnrichment() throws Exception {
+        final MediatorConfig config = new MediatorConfig();
+        config.setProperties("mediator-unit-test.properties");
+        config.getProperties().setProperty("pnr.sendParseOrchestration", "false");
+        config.getProperties().setProperty("pnr.enrichment", "streaming");
+
+        setupResolvePatientIDMock();
+        setupResolveHCWIDMock();
+        setupResolveFacilityIDMock();
+        setupIdentityFeedMock();
+
+        new JavaTestKit(system) {{
+            sendPnRMessage(config, system, getRef(), "pnr1.xml");
+            OrchestrateProvideAndRegisterRequestResponse response = expectMsgClass(waitTime, OrchestrateProvideAndRegisterRequestResponse.class);
+
+            ProvideAndRegisterDocumentSetRequestType pnr = ParseProvideAndRegisterRequestActor.parseRequest(response.getResponseObject());
+
+            RegistryPackageType regPac = InfosetUtil.getRegistryPackage(pnr.getSubmitObjectsRequest(), XDSConstants.UUID_XDSSubmissionSet);
+            assertEquals("ECID1^^^ECID&ECID&ECID", InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_patientId, regPac));
+
+            ExtrinsicObjectType eo = InfosetUtil.getExtrinsicObjects(pnr.getSubmitObjectsRequest()).get(0);
+            assertEquals("ECID1^^^ECID&ECID&ECID", InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_patientId, eo));
+            Map<String, SlotType1> authorSlots = InfosetUtil.getSlotsFromRegistryObject(eo.getClassification().get(0));
+            assertEquals("EPID1^^^^^^^^EPID&EPID&EPID", authorSlots.get(XDSConstants.SLOT_NAME_AUTHOR_PERSON).getValueList().getValue().get(0));
+            assertEquals(1, pnr.getDocument().size());
+        }};
+    }
+
+    @Test
+    public void validateAndEnrichClient_shouldEnrichPNRWithLazyDocuments() throws Exception {
+        final MediatorConfig config = new MediatorConfig();
+        config.setProperties("mediator-unit-test.properties");
+        config.getProperties().setProperty("pnr.sendParseOrchestration", "false");
+        config.getProperties().setProperty("pnr.parse.lazyDocuments", "true");
+
+        setupResolvePatientIDMock();
+        setupResolveHCWIDMock();
+        setupResolveFacilityIDMock();
+        setupIdentityFeedMock();
+
+        new JavaTestKit(system) {{
+            sendPnRMessage(config, system, getRef(), "pnr1.xml");
+            OrchestrateProvideAndRegisterRequestResponse response = expectMsgClass(waitTime, OrchestrateProvideAndRegisterRequestResponse.class);
+
+            ProvideAndRegisterDocumentSetRequestType pnr = ParseProvideAndRegisterRequestActor.parseRequest(response.getResponseObject());
+
+            RegistryPackageType regPac = InfosetUtil.getRegistryPackage(pnr.getSubmitObjectsRequest(), XDSConstants.UUID_XDSSubmissionSet);
+            assertEquals("ECID1^^^ECID&ECID&ECID", InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_patientId, regPac));
+            assertEquals(1, pnr.getDocument().size());
+        }};
+    }
+
     @Test
     public void validateAndEnrichPatient_shouldRespondWithXDSRegistryResponseIfPatientNotResolved() throws Exception {
         Identifier responseId = null;
@@ -493,4 +566,39 @@ public class ProvideAndRegisterOrchestrationActorTest {
             assertTrue(fr.getResponse().contains("<ns3:RegistryError errorCode=\"XDSUnknownPatientId\" codeContext=\"Failed to resolve patient identifier: 1111111111^^^&amp;1.2.3&amp;ISO\" severity=\"urn:oasis:names:tc:ebxml-regrep:ErrorSeverityType:Error\"/>"));
         }};
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldAuditMetadataOnlyIfConfigured() throws Exception {
+        final MediatorConfig config = new MediatorConfig();
+        config.setName("pnr-audit-tests");
+        config.setProperties("mediator-unit-test.properties");
+        config.getProperties().setProperty("pnr.sendParseOrchestration", "false");
+        config.getProperties().setProperty("atna.payload", "metadata");
+
+        AuditCollectorActor.audits.clear();
+        TestingUtils.launchActors(system, config.getName(), Collections.singletonList(
+                new MockLauncher.ActorToLaunch("atna-auditing", AuditCollectorActor.class)
+        ));
+
+        setupResolvePatientIDMock();
+        setupResolveHCWIDMock();
+        setupResolveFacilityIDMock();
+        setupIdentityFeedMock();
+
+        try {
+            new JavaTestKit(system) {{
+                sendPnRMessage(config, system, getRef(), "pnr1.xml");
+                expectMsgClass(waitTime, OrchestrateProvideAndRegisterRequestResponse.class);
+
+                ATNAAudit audit = AuditCollectorActor.audits.poll(5, TimeUnit.SECONDS);
+                assertNotNull(audit);
+                assertTrue(audit.getMessage().contains("SubmitObjectsRequest"));
+                assertTrue(audit.getMessage().contains("76cc765a442f410"));
+                //the document content is left out
+                assertFalse(audit.getMessage().contains("TXkgdGVzdCBkb2N1bWVudA=="));
+            }};
+        } finally {
+            TestingUtils.clearRootContext(system, config.getName());
+        }
+    }
+}
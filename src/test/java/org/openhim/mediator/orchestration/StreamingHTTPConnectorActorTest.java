@@ -0,0 +1,146 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.orchestration;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import akka.testkit.TestActorRef;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.pool.PoolStats;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import scala.concurrent.duration.Duration;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.Assert.*;
+
+public class StreamingHTTPConnectorActorTest {
+
+    private static final int PORT = 8521;
+
+    static ActorSystem system;
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(PORT);
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static MediatorConfig buildConfig() throws Exception {
+        MediatorConfig config = new MediatorConfig();
+        config.setProperties("mediator-unit-test.properties");
+        return config;
+    }
+
+    @Test
+    public void testForward() throws Exception {
+        stubFor(post(urlEqualTo("/xdsrepository"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/soap+xml; charset=UTF-8")
+                        .withBody("<response>caf\u00e9</response>")));
+
+        final MediatorConfig config = buildConfig();
+
+        new JavaTestKit(system) {{
+            ActorRef connector = system.actorOf(Props.create(StreamingHTTPConnectorActor.class, config));
+
+            MediatorHTTPRequest request = new MediatorHTTPRequest(
+                    getRef(), getRef(), "XDS.b Repository", "POST", "http", "localhost", PORT, "/xdsrepository",
+                    "<request>na\u00efve</request>", Collections.singletonMap("Content-Type", "application/soap+xml; charset=UTF-8"), null
+            );
+            connector.tell(request, getRef());
+
+            AddOrchestrationToCoreResponse orchestration = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), AddOrchestrationToCoreResponse.class);
+            assertNotNull(orchestration);
+
+            MediatorHTTPResponse response = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), MediatorHTTPResponse.class);
+            assertEquals(new Integer(200), response.getStatusCode());
+            assertEquals("<response>caf\u00e9</response>", response.getBody());
+            assertEquals("application/soap+xml; charset=UTF-8", response.getHeaders().get("content-type"));
+        }};
+
+        verify(postRequestedFor(urlEqualTo("/xdsrepository"))
+                .withHeader("Transfer-Encoding", equalTo("chunked"))
+                .withHeader("Content-Type", equalTo("application/soap+xml; charset=UTF-8"))
+                .withRequestBody(equalTo("<request>na\u00efve</request>")));
+    }
+
+    @Test
+    public void testForward_shouldReuseConnections() throws Exception {
+        stubFor(post(urlEqualTo("/xdsrepository")).willReturn(aResponse().withStatus(200).withBody("ok")));
+
+        final MediatorConfig config = buildConfig();
+
+        new JavaTestKit(system) {{
+            TestActorRef<StreamingHTTPConnectorActor> connector = TestActorRef.create(system, Props.create(StreamingHTTPConnectorActor.class, config));
+
+            for (int i=0; i<3; i++) {
+                MediatorHTTPRequest request = new MediatorHTTPRequest(
+                        getRef(), getRef(), null, "POST", "http", "localhost", PORT, "/xdsrepository",
+                        "request " + i, Collections.singletonMap("Content-Type", "text/plain"), null
+                );
+                connector.tell(request, getRef());
+                MediatorHTTPResponse response = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), MediatorHTTPResponse.class);
+                assertEquals("ok", response.getBody());
+            }
+
+            //a single connection was opened and returned to the pool after each request
+            PoolStats stats = connector.underlyingActor().connectionManager.getTotalStats();
+            assertEquals(0, stats.getLeased());
+            assertEquals(1, stats.getAvailable());
+        }};
+
+        verify(3, postRequestedFor(urlEqualTo("/xdsrepository")));
+    }
+
+    @Test
+    public void testForward_connectionFailure() throws Exception {
+        final MediatorConfig config = buildConfig();
+
+        new JavaTestKit(system) {{
+            ActorRef connector = system.actorOf(Props.create(StreamingHTTPConnectorActor.class, config));
+
+            MediatorHTTPRequest request = new MediatorHTTPRequest(
+                    getRef(), getRef(), "XDS.b Repository", "POST", "http", "localhost", 1, "/xdsrepository",
+                    "request", Collections.singletonMap("Content-Type", "text/plain"), null
+            );
+            connector.tell(request, getRef());
+
+            expectMsgClass(Duration.create(60, TimeUnit.SECONDS), ExceptError.class);
+        }};
+    }
+
+    @Test
+    public void testStringStreamEntity_getContent() throws Exception {
+        StreamingHTTPConnectorActor.StringStreamEntity entity =
+                new StreamingHTTPConnectorActor.StringStreamEntity("<request>na\u00efve</request>", StandardCharsets.UTF_8);
+        assertEquals("<request>na\u00efve</request>", IOUtils.toString(entity.getContent(), StandardCharsets.UTF_8));
+        //repeatable
+        assertEquals("<request>na\u00efve</request>", IOUtils.toString(entity.getContent(), StandardCharsets.UTF_8));
+    }
+}